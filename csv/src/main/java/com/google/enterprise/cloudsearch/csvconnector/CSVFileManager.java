@@ -27,13 +27,19 @@ import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.enterprise.cloudsearch.csvconnector.MappedCSVFile.Range;
 import com.google.enterprise.cloudsearch.sdk.CloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CloseableIterableOnce;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import com.google.enterprise.cloudsearch.sdk.indexing.ContentTemplate;
@@ -58,12 +64,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -102,6 +112,13 @@ import org.apache.commons.csv.CSVRecord;
  *       is running. Refer to
  *       {@link "https://docs.oracle.com/javase/8/docs/api/java/nio/charset/Charset.html"}
  *       for details about supported charsets.
+ *   <li>{@value #PARSER_MEMORY_MAPPED} - Specifies whether to read the file through memory-mapped
+ *       chunks instead of a buffered stream. The default value is false.
+ *   <li>{@value #PARSER_THREADS} - Specifies the number of threads parsing the file. Values
+ *       greater than 1 split the file into byte ranges on record boundaries, parse the ranges in
+ *       parallel from a memory-mapped file, and return records in no particular order. Requires
+ *       a charset encoding line breaks and quotes as single bytes, such as UTF-8, and quotes to
+ *       only appear around values. The default value is 1.
  * </ul>
  *
  * <p>Additional configuration parameters:
@@ -130,6 +147,11 @@ class CSVFileManager {
   static final String MULTIVALUE_FORMAT_COLUMN = "csv.multiValue.%s";
   static final String CSV_FORMAT = "csv.format";
   static final String CSV_FORMAT_METHOD_VALUE = "csv.format.%s";
+  static final String PARSER_MEMORY_MAPPED = "csv.parser.memoryMapped";
+  static final String PARSER_THREADS = "csv.parser.threads";
+
+  private static final int RECORD_BATCH_SIZE = 512;
+  private static final int QUEUED_RECORD_BATCHES = 64;
 
   private final CSVFormat csvFormat;
   private final Path csvFilePath;
@@ -138,6 +160,9 @@ class CSVFileManager {
   private final LinkedHashSet<String> uniqueKeyColumns;
   private final Map<String, String> columnsToDelimiter;
   private final UrlBuilder urlBuilder;
+  private final boolean memoryMapped;
+  private final int parserThreads;
+  private volatile Columns columns;
 
   private static final Logger logger = Logger.getLogger(CSVFileManager.class.getName());
 
@@ -180,6 +205,9 @@ class CSVFileManager {
     }
 
     String csvFormat = Configuration.getString(CSV_FORMAT, "").get();
+    boolean memoryMapped = Configuration.getBoolean(PARSER_MEMORY_MAPPED, false).get();
+    int parserThreads = Configuration.getInteger(PARSER_THREADS, 1).get();
+    checkConfiguration(parserThreads > 0, "%s should be greater than 0", PARSER_THREADS);
 
     UrlBuilder urlBuilder = UrlBuilder.fromConfiguration();
     if (!csvColumns.isEmpty()) {
@@ -199,6 +227,8 @@ class CSVFileManager {
         .setContentTemplate(ContentTemplate.fromConfiguration("csv"))
         .setColumnsToDelimiter(columnsToDelimiter)
         .setUrlBuilder(urlBuilder)
+        .setMemoryMapped(memoryMapped)
+        .setParserThreads(parserThreads)
         .verify()
         .build();
   }
@@ -211,9 +241,92 @@ class CSVFileManager {
    * @throws IOException If an I/O error occurs when parsing the csv file
    */
   public CloseableIterable<CSVRecord> getCSVFile() throws IOException {
-    CSVParser csvParser = csvFormat.parse(getReader());
-    verifyColumns(csvParser.getHeaderMap().keySet());
-    return new CSVFile(csvParser);
+    if (!memoryMapped && parserThreads == 1) {
+      CSVParser csvParser = csvFormat.parse(getReader());
+      setColumns(csvParser);
+      return new CSVFile(csvParser);
+    }
+    MappedCSVFile mappedFile = new MappedCSVFile(csvFilePath, fileCharset);
+    List<Range> ranges = split(mappedFile, parserThreads);
+    logger.log(Level.FINE, "Parsing csv file ranges {0}", ranges);
+    List<CSVParser> parsers = new ArrayList<>(ranges.size());
+    try {
+      for (Range range : ranges) {
+        parsers.add(parseRange(mappedFile, range));
+      }
+    } catch (IOException | RuntimeException e) {
+      closeParsers(parsers);
+      throw e;
+    }
+    return parsers.size() == 1 ? new CSVFile(parsers.get(0)) : new ParallelCSVFile(parsers);
+  }
+
+  /**
+   * Splits the csv file into byte ranges starting at record boundaries, see {@link
+   * #PARSER_THREADS} for limitations. The same file is always split into the same ranges.
+   *
+   * @param count maximum number of ranges
+   * @return ranges covering the whole file, in file order
+   * @throws IOException If an I/O error occurs when reading the csv file
+   */
+  List<Range> getRanges(int count) throws IOException {
+    return split(new MappedCSVFile(csvFilePath, fileCharset), count);
+  }
+
+  /**
+   * Reads the records in a range of the csv file returned by {@link #getRanges}.
+   *
+   * @param range byte range of the csv file
+   * @return a {@link CloseableIterable} to read the records from
+   * @throws IOException If an I/O error occurs when parsing the csv file
+   */
+  CloseableIterable<CSVRecord> getCSVFile(Range range) throws IOException {
+    return new CSVFile(parseRange(new MappedCSVFile(csvFilePath, fileCharset), range));
+  }
+
+  /**
+   * Returns a version of the csv file based on its size and last modification time, to detect
+   * changes to the file since ranges were computed.
+   *
+   * @return opaque version string
+   * @throws IOException If an I/O error occurs when reading file attributes
+   */
+  String getFileVersion() throws IOException {
+    return Files.size(csvFilePath) + "-" + Files.getLastModifiedTime(csvFilePath).toMillis();
+  }
+
+  private List<Range> split(MappedCSVFile mappedFile, int count) throws IOException {
+    return mappedFile.split(
+        count, csvFormat.getQuoteCharacter(), csvFormat.getEscapeCharacter());
+  }
+
+  private CSVParser parseRange(MappedCSVFile mappedFile, Range range) throws IOException {
+    if (range.getStart() == 0) {
+      // Only the first range starts with the header record, if any
+      CSVParser csvParser = csvFormat.parse(mappedFile.openReader(range));
+      try {
+        setColumns(csvParser);
+      } catch (RuntimeException e) {
+        csvParser.close();
+        throw e;
+      }
+      return csvParser;
+    }
+    if (columns == null) {
+      try (CSVParser headerParser = csvFormat.parse(getReader())) {
+        setColumns(headerParser);
+      }
+    }
+    return csvFormat
+        .withHeader(columns.getHeader())
+        .withSkipHeaderRecord(false)
+        .parse(mappedFile.openReader(range));
+  }
+
+  private void setColumns(CSVParser csvParser) {
+    Map<String, Integer> headerMap = csvParser.getHeaderMap();
+    verifyColumns(headerMap.keySet());
+    columns = new Columns(headerMap);
   }
 
   /**
@@ -225,8 +338,20 @@ class CSVFileManager {
    * values
    */
   public Item createItem(CSVRecord csvRecord) throws IOException {
+    return createItem(csvRecord, generateMultiMap(csvRecord));
+  }
+
+  /**
+   * Creates {@link Item} for a csvRecord from values already generated by {@link
+   * #generateMultiMap}.
+   *
+   * @param csvRecord a particular row in csv file
+   * @param values multimap for column names and values in csvRecord
+   * @return {@link Item}
+   */
+  Item createItem(CSVRecord csvRecord, Multimap<String, Object> values) {
     return IndexingItemBuilder.fromConfiguration(getUniqueId(csvRecord))
-        .setValues(generateMultiMap(csvRecord))
+        .setValues(values)
         .setSourceRepositoryUrl(FieldOrValue.withValue(getViewUrl(csvRecord)))
         .setItemType(ItemType.CONTENT_ITEM)
         .build();
@@ -241,7 +366,17 @@ class CSVFileManager {
    * corresponding values for the csvRecord
    */
   public ByteArrayContent createContent(CSVRecord csvRecord) throws IOException {
-    String htmlContent = contentTemplate.apply(generateMultiMap(csvRecord));
+    return createContent(generateMultiMap(csvRecord));
+  }
+
+  /**
+   * Creates {@link ByteArrayContent} from values already generated by {@link #generateMultiMap}.
+   *
+   * @param values multimap for column names and values in a csvRecord
+   * @return {@link ByteArrayContent}
+   */
+  ByteArrayContent createContent(Multimap<String, Object> values) {
+    String htmlContent = contentTemplate.apply(values);
     return ByteArrayContent.fromString("text/html", htmlContent);
   }
 
@@ -256,23 +391,33 @@ class CSVFileManager {
   @VisibleForTesting
   Multimap<String, Object> generateMultiMap(CSVRecord csvRecord) {
     Multimap<String, Object> multimap = ArrayListMultimap.create();
-    for (Map.Entry<String, String> entry : csvRecord.toMap().entrySet()) {
-      List<String> values = new ArrayList<>();
-      if (columnsToDelimiter.containsKey(entry.getKey())) {
-        values = Splitter.on(columnsToDelimiter.get(entry.getKey())).trimResults()
-            .omitEmptyStrings()
-          .splitToList(entry.getValue());
-      } else {
-        String value = entry.getValue().trim();
-        if (!value.isEmpty()) {
-          values.add(entry.getValue());
-        }
+    Columns columns = this.columns;
+    if (columns == null) {
+      for (Map.Entry<String, String> entry : csvRecord.toMap().entrySet()) {
+        putValues(multimap, entry.getKey(), entry.getValue());
+      }
+      return multimap;
+    }
+    // Reads values by column index instead of building a map of each record
+    for (int i = 0; i < columns.names.length; i++) {
+      int index = columns.indices[i];
+      if (index < csvRecord.size()) {
+        putValues(multimap, columns.names[i], csvRecord.get(index));
       }
-      multimap.putAll(entry.getKey(), values);
     }
     return multimap;
   }
 
+  private void putValues(Multimap<String, Object> multimap, String column, String value) {
+    String delimiter = columnsToDelimiter.get(column);
+    if (delimiter != null) {
+      multimap.putAll(
+          column, Splitter.on(delimiter).trimResults().omitEmptyStrings().split(value));
+    } else if (!value.trim().isEmpty()) {
+      multimap.put(column, value);
+    }
+  }
+
   /**
    * Construct unique Id based on uniqueKeyColumns. If uniqueKeyColumns is empty, use hash of the
    * whole CSVRecord.
@@ -280,14 +425,9 @@ class CSVFileManager {
    * @param csvRecord a csv record
    * @return uniqueId
    */
-  private String getUniqueId(CSVRecord csvRecord) {
+  String getUniqueId(CSVRecord csvRecord) {
     if (uniqueKeyColumns.isEmpty()) {
-      // Create a consistent fingerprint of the record values.
-      Hasher hasher = Hashing.farmHashFingerprint64().newHasher();
-      for (String value : csvRecord) {
-        hasher.putUnencodedChars(value);
-      }
-      return hasher.hash().toString();
+      return fingerprint(csvRecord).toString();
     } else {
       List<String> values = new ArrayList<>();
       for (String column : uniqueKeyColumns) {
@@ -297,8 +437,36 @@ class CSVFileManager {
     }
   }
 
+  /**
+   * Returns a fingerprint of the values of a csvRecord, to detect changes to the record.
+   *
+   * @param csvRecord a csv record
+   * @return fingerprint of the record values
+   */
+  long getFingerprint(CSVRecord csvRecord) {
+    // Unlike the unique ID, tell apart values moving between adjacent columns
+    Hasher hasher = Hashing.farmHashFingerprint64().newHasher();
+    for (String value : csvRecord) {
+      hasher.putInt(value.length()).putUnencodedChars(value);
+    }
+    return hasher.hash().asLong();
+  }
+
+  private static HashCode fingerprint(CSVRecord csvRecord) {
+    // Create a consistent fingerprint of the record values.
+    Hasher hasher = Hashing.farmHashFingerprint64().newHasher();
+    for (String value : csvRecord) {
+      hasher.putUnencodedChars(value);
+    }
+    return hasher.hash();
+  }
+
   private String getViewUrl(CSVRecord record) {
-    return urlBuilder.buildUrl(record.toMap());
+    Columns columns = this.columns;
+    if (columns == null || record.size() < columns.width) {
+      return urlBuilder.buildUrl(record.toMap());
+    }
+    return urlBuilder.buildUrl(Maps.asMap(columns.nameSet, record::get));
   }
 
   private CSVFileManager(Builder builder) {
@@ -312,6 +480,8 @@ class CSVFileManager {
     // those content fields are needed for contentQuailty later
     this.urlBuilder = builder.urlBuilder;
     this.csvFormat = createCsvFormat(builder);
+    this.memoryMapped = builder.memoryMapped;
+    this.parserThreads = builder.parserThreads;
   }
 
   static class Builder {
@@ -325,6 +495,8 @@ class CSVFileManager {
     private Map<String, String> columnsToDelimiter;
     private UrlBuilder urlBuilder;
     private String csvFormat;
+    private boolean memoryMapped = false;
+    private int parserThreads = 1;
 
     Builder() {}
 
@@ -373,6 +545,16 @@ class CSVFileManager {
       return this;
     }
 
+    Builder setMemoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+      return this;
+    }
+
+    Builder setParserThreads(int parserThreads) {
+      this.parserThreads = parserThreads;
+      return this;
+    }
+
     Builder verify() {
       checkNotNullNotEmpty(filePath, "csv file path");
       csvFilePath = Paths.get(filePath);
@@ -384,6 +566,7 @@ class CSVFileManager {
       checkNotNull(csvColumns);
       checkNotNull(contentTemplate);
       checkNotNull(columnsToDelimiter);
+      checkArgument(parserThreads > 0, "parser threads should be greater than 0");
       return this;
     }
 
@@ -550,4 +733,153 @@ class CSVFileManager {
       }
     }
   }
+
+  private static void closeParsers(List<CSVParser> parsers) {
+    for (CSVParser parser : parsers) {
+      try {
+        parser.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Error closing the CSV file: " + e);
+      }
+    }
+  }
+
+  /** Column names of the parsed csv file with their record index. */
+  private static class Columns {
+    final String[] names;
+    final int[] indices;
+    final Set<String> nameSet;
+    final int width;
+
+    Columns(Map<String, Integer> headerMap) {
+      names = new String[headerMap.size()];
+      indices = new int[headerMap.size()];
+      int i = 0;
+      int maxIndex = -1;
+      for (Map.Entry<String, Integer> entry : headerMap.entrySet()) {
+        names[i] = entry.getKey();
+        indices[i] = entry.getValue();
+        maxIndex = Math.max(maxIndex, indices[i]);
+        i++;
+      }
+      nameSet = Collections.unmodifiableSet(new LinkedHashSet<>(headerMap.keySet()));
+      width = maxIndex + 1;
+    }
+
+    /** Returns column names in record order, for parsing records without a header. */
+    String[] getHeader() {
+      String[] header = new String[width];
+      for (int i = 0; i < names.length; i++) {
+        header[indices[i]] = names[i];
+      }
+      return header;
+    }
+  }
+
+  /**
+   * Csv file parsed by a thread per range, returning records in the order they are parsed. Ranges
+   * are parsed ahead of the consumer up to a fixed number of queued record batches.
+   */
+  private static class ParallelCSVFile extends CloseableIterableOnce<CSVRecord> {
+    private final List<CSVParser> parsers;
+    private final ExecutorService executor;
+
+    ParallelCSVFile(List<CSVParser> parsers) {
+      this(parsers, new RecordBatchIterator(parsers.size()));
+    }
+
+    private ParallelCSVFile(List<CSVParser> parsers, RecordBatchIterator iterator) {
+      super(iterator);
+      this.parsers = parsers;
+      this.executor =
+          ConnectorExecutors.newBoundedExecutor("csv-parser-%d", true, parsers.size());
+      for (CSVParser parser : parsers) {
+        executor.execute(() -> iterator.parse(parser));
+      }
+      executor.shutdown();
+    }
+
+    @Override
+    public void close() {
+      try {
+        executor.shutdownNow();
+        closeParsers(parsers);
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+  /** Iterator over record batches queued by the threads parsing each range. */
+  private static class RecordBatchIterator extends AbstractIterator<CSVRecord> {
+    private final BlockingQueue<RecordBatch> batches =
+        new ArrayBlockingQueue<>(QUEUED_RECORD_BATCHES);
+    private int remainingRanges;
+    private Iterator<CSVRecord> current = Collections.emptyIterator();
+
+    RecordBatchIterator(int ranges) {
+      this.remainingRanges = ranges;
+    }
+
+    void parse(CSVParser parser) {
+      try {
+        List<CSVRecord> records = new ArrayList<>(RECORD_BATCH_SIZE);
+        for (CSVRecord record : parser) {
+          records.add(record);
+          if (records.size() == RECORD_BATCH_SIZE) {
+            batches.put(new RecordBatch(records, false, null));
+            records = new ArrayList<>(RECORD_BATCH_SIZE);
+          }
+        }
+        batches.put(new RecordBatch(records, true, null));
+      } catch (InterruptedException e) {
+        // the file was closed
+        Thread.currentThread().interrupt();
+      } catch (Throwable t) {
+        // always end the range, so that the consumer doesn't wait for it forever
+        try {
+          batches.put(new RecordBatch(Collections.emptyList(), true, t));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        Throwables.throwIfInstanceOf(t, Error.class);
+      }
+    }
+
+    @Override
+    protected CSVRecord computeNext() {
+      while (!current.hasNext()) {
+        if (remainingRanges == 0) {
+          return endOfData();
+        }
+        RecordBatch batch;
+        try {
+          batch = batches.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while reading the CSV file", e);
+        }
+        if (batch.failure != null) {
+          throw new IllegalStateException("Error parsing the CSV file", batch.failure);
+        }
+        if (batch.last) {
+          remainingRanges--;
+        }
+        current = batch.records.iterator();
+      }
+      return current.next();
+    }
+  }
+
+  private static class RecordBatch {
+    final List<CSVRecord> records;
+    final boolean last;
+    final Throwable failure;
+
+    RecordBatch(List<CSVRecord> records, boolean last, Throwable failure) {
+      this.records = records;
+      this.last = last;
+      this.failure = failure;
+    }
+  }
 }
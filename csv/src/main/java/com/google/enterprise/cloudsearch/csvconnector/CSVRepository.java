@@ -15,32 +15,96 @@
  */
 package com.google.enterprise.cloudsearch.csvconnector;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterators.transform;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
 import com.google.api.services.cloudsearch.v1.model.Item;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.cloudsearch.csvconnector.MappedCSVFile.Range;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
 import com.google.enterprise.cloudsearch.sdk.CloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.CloseableIterableOnce;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.ContentFormat;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.ApiOperation;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.ApiOperations;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.FullTraversalConnector;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.PartitionedRepository;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.Repository;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryDoc;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import org.apache.commons.csv.CSVRecord;
 
 /**
  * {@link Repository} implementation for csv connector. {@link CSVConnector} must be used with
  * {@link FullTraversalConnector} template for traversal.
+ *
+ * <p>The csv file is traversed as {@link PartitionedRepository} partitions, byte ranges of the
+ * file starting at record boundaries, so that items and content of each range are created by the
+ * thread traversing its partition. The checkpoint of a partition counts the records traversed in
+ * its range, so a restarted traversal resumes where it stopped unless the file changed.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@value #PARTITIONS} - Specifies the maximum number of ranges the file is split into.
+ *       Splitting has the limitations described for {@link CSVFileManager#PARSER_THREADS}. Use
+ *       {@code traverse.repositoryPartitionThreads} to set how many partitions are traversed
+ *       concurrently. The default value is 1.
+ *   <li>{@value #CHECKPOINT_INTERVAL} - Specifies the number of records traversed between
+ *       checkpoints of a partition. The default value is 10000.
+ *   <li>{@value #FINGERPRINT_INDEX_PATH} - Specifies a local file keeping the unique ID and a
+ *       fingerprint of each record, to detect changes to the csv file in incremental traversals.
+ *       If not specified, incremental traversals return no changes.
+ * </ul>
+ *
+ * <p>When the csv file changes, an incremental traversal reads the whole file and returns
+ * documents for records that were added or modified since the previous incremental traversal,
+ * and deletes records that were removed. The first incremental traversal, without an existing
+ * fingerprint index, only records the current fingerprints and relies on full traversals to
+ * index the file.
  */
-public class CSVRepository implements Repository {
+public class CSVRepository implements PartitionedRepository {
+  private static final Logger logger = Logger.getLogger(CSVRepository.class.getName());
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  static final String PARTITIONS = "csv.partitions";
+  static final String CHECKPOINT_INTERVAL = "csv.checkpointInterval";
+  static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+  static final String FINGERPRINT_INDEX_PATH = "csv.fingerprintIndexPath";
+
+  private final ConcurrentMap<String, PartitionCursor> cursors = new ConcurrentHashMap<>();
   private CSVFileManager csvFileManager;
+  private int partitions;
+  private int checkpointInterval;
+  private volatile List<Range> ranges;
+  private Path fingerprintIndexPath;
 
   public CSVRepository() {
   }
@@ -52,6 +116,103 @@ public class CSVRepository implements Repository {
           "defaultAcl.mode must be set, and to a value other than \"none\"");
     }
     csvFileManager = CSVFileManager.fromConfiguration();
+    partitions = Configuration.getInteger(PARTITIONS, 1).get();
+    Configuration.checkConfiguration(partitions > 0, "%s should be greater than 0", PARTITIONS);
+    checkpointInterval =
+        Configuration.getInteger(CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL).get();
+    Configuration.checkConfiguration(
+        checkpointInterval > 0, "%s should be greater than 0", CHECKPOINT_INTERVAL);
+    String indexPath = Configuration.getString(FINGERPRINT_INDEX_PATH, "").get();
+    fingerprintIndexPath = indexPath.isEmpty() ? null : Paths.get(indexPath);
+  }
+
+  /**
+   * Splits the csv file into ranges, returning the index of each range as its partition ID.
+   *
+   * @return partition IDs
+   * @throws RepositoryException on errors reading the csv file
+   */
+  @Override
+  public List<String> getPartitionIds() throws RepositoryException {
+    try {
+      ranges = csvFileManager.getRanges(partitions);
+    } catch (IOException e) {
+      throw new RepositoryException.Builder()
+          .setErrorMessage("Error reading the CSV file").setCause(e).build();
+    }
+    logger.log(Level.FINE, "Traversing csv file ranges {0}", ranges);
+    List<String> partitionIds = new ArrayList<>(ranges.size());
+    for (int i = 0; i < ranges.size(); i++) {
+      partitionIds.add(Integer.toString(i));
+    }
+    return partitionIds;
+  }
+
+  /**
+   * Fetches the documents of the next checkpoint interval from a range of the CSV file, starting
+   * after the records counted by the checkpoint if the file did not change since.
+   *
+   * @param partitionId one of the IDs returned by {@link #getPartitionIds}
+   * @param checkpoint saved state of the partition from the previous call
+   * @return an {@code Iterable} of CSV records converted to docs
+   * @throws RepositoryException on access errors
+   */
+  @Override
+  public CheckpointCloseableIterable<ApiOperation> getAllDocs(
+      String partitionId, @Nullable byte[] checkpoint) throws RepositoryException {
+    if (ranges == null) {
+      getPartitionIds();
+    }
+    List<Range> currentRanges = ranges;
+    int index = Integer.parseInt(partitionId);
+    checkArgument(index >= 0 && index < currentRanges.size(), "unknown partition %s", partitionId);
+    Range range = currentRanges.get(index);
+    PartitionCheckpoint previous = JsonCheckpoint.parse(checkpoint, PartitionCheckpoint.class);
+    PartitionCursor cursor;
+    try {
+      String fileVersion = csvFileManager.getFileVersion();
+      long position = 0;
+      if (previous != null && previous.isSameRange(fileVersion, range)) {
+        position = previous.getRecords();
+      }
+      cursor = cursors.get(partitionId);
+      if (cursor == null || !cursor.isAt(fileVersion, range, position)) {
+        if (cursor != null) {
+          cursor.close();
+        }
+        logger.log(Level.FINE, "Traversing csv file range {0} from record {1}",
+            new Object[] {range, position});
+        cursor = new PartitionCursor(fileVersion, range, csvFileManager.getCSVFile(range));
+        cursors.put(partitionId, cursor);
+        cursor.skip(position);
+      }
+    } catch (IOException | RuntimeException e) {
+      closeCursor(partitionId);
+      throw new RepositoryException.Builder()
+          .setErrorMessage("Error reading the CSV file").setCause(e).build();
+    }
+    PartitionCursor current = cursor;
+    return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(
+            new CloseableIterableOnce<ApiOperation>(
+                transform(current.next(checkpointInterval), this::createRepositoryDoc)) {
+              @Override
+              public void close() {
+                super.close();
+                if (!current.hasNext()) {
+                  closeCursor(partitionId);
+                }
+              }
+            })
+        .setCheckpoint(() -> current.hasNext() ? current.getCheckpoint().get() : null)
+        .setHasMore(current::hasNext)
+        .build();
+  }
+
+  private void closeCursor(String partitionId) {
+    PartitionCursor cursor = cursors.remove(partitionId);
+    if (cursor != null) {
+      cursor.close();
+    }
   }
 
   @Override
@@ -60,10 +221,45 @@ public class CSVRepository implements Repository {
     return null;
   }
 
+  /**
+   * Fetches documents for records added or modified and deletes records removed since the
+   * previous incremental traversal, if {@value #FINGERPRINT_INDEX_PATH} is configured.
+   *
+   * @param checkpoint saved state from the previous incremental traversal
+   * @return an {@code Iterable} of changes, with a checkpoint that saves the fingerprint index
+   * @throws RepositoryException on access errors
+   */
   @Override
   public CheckpointCloseableIterable<ApiOperation> getChanges(byte[] checkpoint)
       throws RepositoryException {
-    return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(Collections.emptyIterator())
+    if (fingerprintIndexPath == null) {
+      return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(
+              Collections.emptyIterator())
+          .build();
+    }
+    ChangesCheckpoint previous = JsonCheckpoint.parse(checkpoint, ChangesCheckpoint.class);
+    String fileVersion;
+    FingerprintIndex index;
+    CloseableIterable<CSVRecord> csvFile;
+    try {
+      fileVersion = csvFileManager.getFileVersion();
+      if (previous != null
+          && fileVersion.equals(previous.getFileVersion())
+          && Files.exists(fingerprintIndexPath)) {
+        return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(
+                Collections.emptyIterator())
+            .setCheckpoint(checkpoint)
+            .build();
+      }
+      index = FingerprintIndex.load(fingerprintIndexPath);
+      csvFile = csvFileManager.getCSVFile();
+    } catch (IOException e) {
+      throw new RepositoryException.Builder()
+          .setErrorMessage("Error reading the CSV file changes").setCause(e).build();
+    }
+    ChangedRecords changes = new ChangedRecords(csvFile, index);
+    return new CheckpointCloseableIterableImpl.Builder<ApiOperation>(changes)
+        .setCheckpoint(() -> changes.saveIndex(fileVersion, checkpoint))
         .build();
   }
 
@@ -78,7 +274,11 @@ public class CSVRepository implements Repository {
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    for (String partitionId : cursors.keySet()) {
+      closeCursor(partitionId);
+    }
+  }
 
   /**
    * Fetches all the documents from the CSV file.
@@ -113,19 +313,271 @@ public class CSVRepository implements Repository {
 
     @Override
     public Iterator<ApiOperation> iterator() {
-      return transform(csvFile.iterator(), this::createRepositoryDoc);
+      return transform(csvFile.iterator(), CSVRepository.this::createRepositoryDoc);
+    }
+  }
+
+  private ApiOperation createRepositoryDoc(CSVRecord csvRecord) {
+    Multimap<String, Object> values = csvFileManager.generateMultiMap(csvRecord);
+    return new RepositoryDoc.Builder()
+        .setItem(csvFileManager.createItem(csvRecord, values))
+        .setContent(csvFileManager.createContent(values), ContentFormat.HTML)
+        .build();
+  }
+
+  /**
+   * Documents of the records added or modified in the csv file compared to a fingerprint index,
+   * followed by deletes of the records missing from the file. Without a previous index, only
+   * collects fingerprints of the records.
+   */
+  private class ChangedRecords extends CloseableIterableOnce<ApiOperation> {
+    private final CloseableIterable<CSVRecord> csvFile;
+    private final ChangesIterator changesIterator;
+
+    ChangedRecords(CloseableIterable<CSVRecord> csvFile, @Nullable FingerprintIndex previous) {
+      this(csvFile, new ChangesIterator(csvFile.iterator(), previous));
+    }
+
+    private ChangedRecords(CloseableIterable<CSVRecord> csvFile, ChangesIterator iterator) {
+      super(iterator);
+      this.csvFile = csvFile;
+      this.changesIterator = iterator;
     }
 
-    RepositoryDoc createRepositoryDoc(CSVRecord csvRecord) {
+    /**
+     * Saves the fingerprints once all changes were returned.
+     *
+     * @return checkpoint of the saved index, or {@code previousCheckpoint} if changes were not
+     *     all returned
+     */
+    byte[] saveIndex(String fileVersion, @Nullable byte[] previousCheckpoint) {
+      if (!changesIterator.done) {
+        logger.log(Level.WARNING, "Not all CSV file changes were traversed, keeping fingerprints");
+        return previousCheckpoint;
+      }
       try {
-        return new RepositoryDoc.Builder()
-            .setItem(csvFileManager.createItem(csvRecord))
-            .setContent(csvFileManager.createContent(csvRecord), ContentFormat.HTML)
-            .build();
+        changesIterator.current.save(fingerprintIndexPath);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error saving CSV fingerprints", e);
+      }
+      logger.log(Level.FINE, "Saved fingerprints of {0} CSV records",
+          changesIterator.current.size());
+      return new ChangesCheckpoint().setFileVersion(fileVersion).get();
+    }
+
+    @Override
+    public void close() {
+      try {
+        csvFile.close();
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+  private class ChangesIterator extends AbstractIterator<ApiOperation> {
+    private final Iterator<CSVRecord> records;
+    private final FingerprintIndex previous;
+    private final FingerprintIndex current = new FingerprintIndex();
+    private Iterator<String> deleted;
+    private boolean done;
+
+    ChangesIterator(Iterator<CSVRecord> records, @Nullable FingerprintIndex previous) {
+      this.records = records;
+      this.previous = previous;
+    }
+
+    @Override
+    protected ApiOperation computeNext() {
+      while (records.hasNext()) {
+        CSVRecord csvRecord = records.next();
+        String id = csvFileManager.getUniqueId(csvRecord);
+        long fingerprint = csvFileManager.getFingerprint(csvRecord);
+        current.put(id, fingerprint);
+        if (previous == null) {
+          continue;
+        }
+        Long previousFingerprint = previous.remove(id);
+        if (previousFingerprint == null || previousFingerprint != fingerprint) {
+          return createRepositoryDoc(csvRecord);
+        }
+      }
+      if (previous != null) {
+        // Records left in the previous index are missing from the file
+        if (deleted == null) {
+          deleted = previous.getIds().iterator();
+        }
+        if (deleted.hasNext()) {
+          return ApiOperations.deleteItem(deleted.next());
+        }
+      }
+      done = true;
+      return endOfData();
+    }
+  }
+
+  /** Open range of the csv file with the number of records returned from it so far. */
+  private static class PartitionCursor {
+    private final String fileVersion;
+    private final Range range;
+    private final CloseableIterable<CSVRecord> csvFile;
+    private final Iterator<CSVRecord> records;
+    private long position;
+
+    PartitionCursor(String fileVersion, Range range, CloseableIterable<CSVRecord> csvFile) {
+      this.fileVersion = fileVersion;
+      this.range = range;
+      this.csvFile = csvFile;
+      this.records = csvFile.iterator();
+    }
+
+    boolean isAt(String fileVersion, Range range, long position) {
+      return this.fileVersion.equals(fileVersion)
+          && this.range.equals(range)
+          && this.position == position;
+    }
+
+    void skip(long count) {
+      while (position < count && records.hasNext()) {
+        records.next();
+        position++;
+      }
+    }
+
+    boolean hasNext() {
+      return records.hasNext();
+    }
+
+    /** Returns an iterator over at most {@code limit} of the next records. */
+    Iterator<CSVRecord> next(int limit) {
+      return new AbstractIterator<CSVRecord>() {
+        private int returned;
+
+        @Override
+        protected CSVRecord computeNext() {
+          if (returned == limit || !records.hasNext()) {
+            return endOfData();
+          }
+          returned++;
+          position++;
+          return records.next();
+        }
+      };
+    }
+
+    PartitionCheckpoint getCheckpoint() {
+      return new PartitionCheckpoint()
+          .setFileVersion(fileVersion)
+          .setStart(range.getStart())
+          .setEnd(range.getEnd())
+          .setRecords(position);
+    }
+
+    void close() {
+      csvFile.close();
+    }
+  }
+
+  /** Base class for checkpoints, with generic code for parsing and generating them. */
+  abstract static class JsonCheckpoint extends GenericJson implements Supplier<byte[]> {
+    JsonCheckpoint() {
+      setFactory(JSON_FACTORY);
+    }
+
+    @Override
+    public byte[] get() {
+      try {
+        return toPrettyString().getBytes(UTF_8);
       } catch (IOException e) {
-        throw new RuntimeException("Error creating document from CSV record.", e);
+        throw new RuntimeException("error encoding checkpoint", e);
+      }
+    }
+
+    static <T extends JsonCheckpoint> T parse(@Nullable byte[] payload, Class<T> clazz)
+        throws RepositoryException {
+      if (payload == null) {
+        return null;
+      }
+      String checkpoint = new String(payload, UTF_8);
+      try {
+        return JSON_FACTORY.fromString(checkpoint, clazz);
+      } catch (IOException | IllegalArgumentException e) {
+        throw new RepositoryException.Builder()
+            .setErrorMessage("Error parsing checkpoint " + checkpoint + " as "
+                + clazz.getSimpleName())
+            .setCause(e).build();
       }
     }
   }
+
+  /** Checkpoint of incremental traversals, the version of the csv file last traversed. */
+  public static class ChangesCheckpoint extends JsonCheckpoint {
+    @Key private String fileVersion;
+
+    /**
+     * Default constructor for Json parsing
+     *
+     * <p>This class and constructor must be public for the JSON parser to run correctly.
+     */
+    public ChangesCheckpoint() {
+      super();
+    }
+
+    ChangesCheckpoint setFileVersion(String fileVersion) {
+      this.fileVersion = fileVersion;
+      return this;
+    }
+
+    String getFileVersion() {
+      return fileVersion;
+    }
+  }
+
+  /** Checkpoint of a partition, counting the records traversed in a range of the csv file. */
+  public static class PartitionCheckpoint extends JsonCheckpoint {
+    @Key private String fileVersion;
+    @Key private Long start;
+    @Key private Long end;
+    @Key private Long records;
+
+    /**
+     * Default constructor for Json parsing
+     *
+     * <p>This class and constructor must be public for the JSON parser to run correctly.
+     */
+    public PartitionCheckpoint() {
+      super();
+    }
+
+    PartitionCheckpoint setFileVersion(String fileVersion) {
+      this.fileVersion = fileVersion;
+      return this;
+    }
+
+    PartitionCheckpoint setStart(long start) {
+      this.start = start;
+      return this;
+    }
+
+    PartitionCheckpoint setEnd(long end) {
+      this.end = end;
+      return this;
+    }
+
+    PartitionCheckpoint setRecords(long records) {
+      this.records = records;
+      return this;
+    }
+
+    long getRecords() {
+      return records == null ? 0 : records;
+    }
+
+    boolean isSameRange(String fileVersion, Range range) {
+      return Objects.equals(this.fileVersion, fileVersion)
+          && Objects.equals(start, range.getStart())
+          && Objects.equals(end, range.getEnd());
+    }
+  }
 }
 
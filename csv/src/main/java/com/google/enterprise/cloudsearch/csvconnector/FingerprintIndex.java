@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.csvconnector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Map of the unique ID of each csv record to a fingerprint of its values, persisted in a local
+ * file.
+ *
+ * <p>The index is written to a temporary file that then replaces the previous index, so that a
+ * failure while saving leaves the previous index in place.
+ */
+class FingerprintIndex {
+  private static final int MAGIC = 0x43534649;
+
+  private final Map<String, Long> fingerprints;
+
+  /** Creates an empty index. */
+  FingerprintIndex() {
+    this(new HashMap<>());
+  }
+
+  private FingerprintIndex(Map<String, Long> fingerprints) {
+    this.fingerprints = fingerprints;
+  }
+
+  /**
+   * Loads an index saved by {@link #save}.
+   *
+   * @param path index file
+   * @return loaded index, or {@code null} if the file does not exist
+   * @throws IOException if the file can not be read or is not an index file
+   */
+  @Nullable
+  static FingerprintIndex load(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a fingerprint index file: " + path);
+      }
+      int size = in.readInt();
+      Map<String, Long> fingerprints = new HashMap<>(Math.max(16, size * 4 / 3 + 1));
+      for (int i = 0; i < size; i++) {
+        fingerprints.put(in.readUTF(), in.readLong());
+      }
+      return new FingerprintIndex(fingerprints);
+    }
+  }
+
+  /**
+   * Saves the index, replacing any previous index file.
+   *
+   * @param path index file
+   * @throws IOException if the index can not be written
+   */
+  void save(Path path) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(fingerprints.size());
+      for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+    }
+    Files.move(
+        temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Sets the fingerprint of a record.
+   *
+   * @return previous fingerprint of the record, or {@code null} if there was none
+   */
+  @Nullable
+  Long put(String id, long fingerprint) {
+    return fingerprints.put(id, fingerprint);
+  }
+
+  /**
+   * Removes a record.
+   *
+   * @return fingerprint of the removed record, or {@code null} if there was none
+   */
+  @Nullable
+  Long remove(String id) {
+    return fingerprints.remove(id);
+  }
+
+  /** Returns IDs of the records in the index. */
+  Set<String> getIds() {
+    return fingerprints.keySet();
+  }
+
+  int size() {
+    return fingerprints.size();
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.csvconnector;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * Csv file read through memory-mapped chunks instead of a buffered stream.
+ *
+ * <p>The file can be split into byte ranges starting at record boundaries, so that each range can
+ * be parsed on its own. Boundaries are found by a single scan of the raw bytes that keeps track of
+ * quoted values, which is much cheaper than parsing the records. This requires the line feed,
+ * quote and escape characters to be encoded as single bytes that never occur inside other
+ * characters, as in UTF-8 and single byte charsets, and quote characters to only appear around
+ * values. Files in other charsets are returned as a single range.
+ */
+class MappedCSVFile {
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final Path path;
+  private final Charset charset;
+  private final int chunkSize;
+
+  /**
+   * Creates a mapped csv file.
+   *
+   * @param path csv file path
+   * @param charset character encoding of the file
+   */
+  MappedCSVFile(Path path, Charset charset) {
+    this(path, charset, DEFAULT_CHUNK_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedCSVFile(Path path, Charset charset, int chunkSize) {
+    this.path = checkNotNull(path);
+    this.charset = checkNotNull(charset);
+    checkArgument(chunkSize > 0, "chunk size should be greater than 0");
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Splits the file into at most {@code count} ranges of similar size, each starting at a record
+   * boundary.
+   *
+   * @param count maximum number of ranges
+   * @param quote quote character of the csv format, or {@code null} if values are not quoted
+   * @param escape escape character of the csv format, or {@code null} if there is none
+   * @return ranges covering the whole file, in file order
+   * @throws IOException if the file can not be read
+   */
+  List<Range> split(int count, @Nullable Character quote, @Nullable Character escape)
+      throws IOException {
+    checkArgument(count > 0, "count should be greater than 0");
+    int lineFeed = encode('\n');
+    int quoteByte = quote == null ? -1 : encode(quote);
+    int escapeByte = escape == null ? -1 : encode(escape);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (count == 1 || lineFeed < 0 || (quote != null && quoteByte < 0)
+          || (escape != null && escapeByte < 0)) {
+        return Collections.singletonList(new Range(0, size));
+      }
+      long target = size / count;
+      List<Range> ranges = new ArrayList<>(count);
+      long start = 0;
+      boolean quoted = false;
+      boolean escaped = false;
+      for (long position = 0; position < size && ranges.size() < count - 1; ) {
+        long length = Math.min(chunkSize, size - position);
+        MappedByteBuffer chunk = channel.map(MapMode.READ_ONLY, position, length);
+        while (chunk.hasRemaining()) {
+          int b = chunk.get() & 0xFF;
+          if (escaped) {
+            escaped = false;
+          } else if (b == escapeByte) {
+            escaped = true;
+          } else if (b == quoteByte) {
+            quoted = !quoted;
+          } else if (b == lineFeed && !quoted) {
+            long end = position + chunk.position();
+            if (end - start >= target && end < size) {
+              ranges.add(new Range(start, end));
+              start = end;
+              if (ranges.size() == count - 1) {
+                break;
+              }
+            }
+          }
+        }
+        position += length;
+      }
+      ranges.add(new Range(start, size));
+      return ranges;
+    }
+  }
+
+  /** Returns the size of the file in bytes. */
+  long size() throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return channel.size();
+    }
+  }
+
+  /**
+   * Opens a reader of the characters in {@code range}.
+   *
+   * @param range range of the file to read
+   * @return reader, to be closed by the caller
+   * @throws IOException if the file can not be opened
+   */
+  Reader openReader(Range range) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    return new InputStreamReader(
+        new MappedInputStream(channel, range.getStart(), range.getEnd(), chunkSize), charset);
+  }
+
+  /** Returns the single byte encoding {@code c}, or -1 if ranges can not be found by bytes. */
+  private int encode(char c) {
+    if (!charset.equals(UTF_8) && charset.newEncoder().maxBytesPerChar() > 1) {
+      return -1;
+    }
+    byte[] encoded = String.valueOf(c).getBytes(charset);
+    if (encoded.length != 1) {
+      return -1;
+    }
+    return encoded[0] & 0xFF;
+  }
+
+  /** Byte range of a csv file, from {@code start} inclusive to {@code end} exclusive. */
+  static final class Range {
+    private final long start;
+    private final long end;
+
+    Range(long start, long end) {
+      checkArgument(start >= 0 && start <= end, "invalid range [%s, %s)", start, end);
+      this.start = start;
+      this.end = end;
+    }
+
+    long getStart() {
+      return start;
+    }
+
+    long getEnd() {
+      return end;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Range)) {
+        return false;
+      }
+      Range range = (Range) other;
+      return start == range.start && end == range.end;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(start, end);
+    }
+
+    @Override
+    public String toString() {
+      return "[" + start + ", " + end + ")";
+    }
+  }
+
+  /** Stream of the bytes in a range of a file, mapped a chunk at a time. */
+  private static class MappedInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private final int chunkSize;
+    private long position;
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+
+    MappedInputStream(FileChannel channel, long start, long end, int chunkSize) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return nextChunk() ? chunk.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextChunk()) {
+        return -1;
+      }
+      int count = Math.min(len, chunk.remaining());
+      chunk.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return chunk.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+    private boolean nextChunk() throws IOException {
+      if (chunk.hasRemaining()) {
+        return true;
+      }
+      if (position >= end) {
+        return false;
+      }
+      long length = Math.min(chunkSize, end - position);
+      chunk = channel.map(MapMode.READ_ONLY, position, length);
+      position += length;
+      return true;
+    }
+  }
+}
@@ -39,8 +39,10 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.Set;
 import org.apache.commons.csv.CSVRecord;
 import org.junit.Rule;
 import org.junit.Test;
@@ -814,6 +816,111 @@ public class CSVFileManagerTest {
     assertEquals("symbol=" + utf8devanagarishorta, csvRecord.get("definition"));
   }
 
+  @Test
+  public void testMemoryMappedFile() throws IOException {
+    File tmpfile = temporaryFolder.newFile("testMemoryMapped.csv");
+    createFile(tmpfile, UTF_8, testCSVSingleWithMultiValueFields);
+    Properties config = new Properties();
+    config.put(CSVFileManager.FILEPATH, tmpfile.getAbsolutePath());
+    config.put(UrlBuilder.CONFIG_COLUMNS, "term");
+    config.put(CSVFileManager.UNIQUE_KEY_COLUMNS, "term");
+    config.put(CONTENT_TITLE, "term");
+    config.put(CSVFileManager.MULTIVALUE_COLUMNS, "author");
+    config.put(String.format(CSVFileManager.MULTIVALUE_FORMAT_COLUMN, "author"), ";");
+    config.put(CSVFileManager.PARSER_MEMORY_MAPPED, "true");
+    setupConfig.initConfig(config);
+
+    CSVFileManager csvFileManager = CSVFileManager.fromConfiguration();
+    CSVRecord csvRecord;
+    try (CloseableIterable<CSVRecord> csvFile = csvFileManager.getCSVFile()) {
+      csvRecord = getOnlyElement(csvFile);
+    }
+    Multimap<String, Object> multimap = csvFileManager.generateMultiMap(csvRecord);
+    assertEquals(ImmutableSet.of("term", "definition", "author", "updated"), multimap.keySet());
+    assertEquals(ImmutableSet.of("ID1", "ID2,A"), ImmutableSet.copyOf(multimap.get("author")));
+    Item item = csvFileManager.createItem(csvRecord, multimap);
+    assertEquals("momaSearch", item.getName());
+    assertEquals("momaSearch", item.getMetadata().getSourceRepositoryUrl());
+  }
+
+  @Test
+  public void testParallelParsing() throws IOException {
+    File tmpfile = temporaryFolder.newFile("testParallelParsing.csv");
+    StringBuilder content = new StringBuilder("term, definition, author\n");
+    Set<String> expected = new HashSet<>();
+    for (int i = 0; i < 5000; i++) {
+      content.append("term").append(i).append(", \"multi\nline, \"\"quoted\"\"\", ID")
+          .append(i).append('\n');
+      expected.add("term" + i);
+    }
+    createFile(tmpfile, UTF_8, content.toString());
+    Properties config = new Properties();
+    config.put(CSVFileManager.FILEPATH, tmpfile.getAbsolutePath());
+    config.put(UrlBuilder.CONFIG_COLUMNS, "term");
+    config.put(CSVFileManager.UNIQUE_KEY_COLUMNS, "term");
+    config.put(CONTENT_TITLE, "term");
+    config.put(CSVFileManager.PARSER_THREADS, "4");
+    setupConfig.initConfig(config);
+
+    CSVFileManager csvFileManager = CSVFileManager.fromConfiguration();
+    Set<String> names = new HashSet<>();
+    try (CloseableIterable<CSVRecord> csvFile = csvFileManager.getCSVFile()) {
+      for (CSVRecord csvRecord : csvFile) {
+        assertEquals("multi\nline, \"quoted\"", csvRecord.get("definition"));
+        Item item = csvFileManager.createItem(csvRecord);
+        assertEquals(
+            item.getName(), "ID" + item.getName().substring(4), csvRecord.get("author"));
+        assertTrue(item.getName(), names.add(item.getName()));
+      }
+    }
+    assertEquals(expected, names);
+  }
+
+  @Test
+  public void testParallelParsingSkipHeader() throws IOException {
+    File tmpfile = temporaryFolder.newFile("testParallelParsingSkipHeader.csv");
+    StringBuilder content = new StringBuilder("a, b\n");
+    for (int i = 0; i < 100; i++) {
+      content.append("term").append(i).append(", definition\n");
+    }
+    createFile(tmpfile, UTF_8, content.toString());
+    Properties config = new Properties();
+    config.put(CSVFileManager.FILEPATH, tmpfile.getAbsolutePath());
+    config.put(UrlBuilder.CONFIG_COLUMNS, "term");
+    config.put(CSVFileManager.UNIQUE_KEY_COLUMNS, "term");
+    config.put(CONTENT_TITLE, "term");
+    config.put(CSVFileManager.SKIP_HEADER, "true");
+    config.put(CSVFileManager.CSVCOLUMNS, "term, definition");
+    config.put(CSVFileManager.PARSER_THREADS, "3");
+    setupConfig.initConfig(config);
+
+    CSVFileManager csvFileManager = CSVFileManager.fromConfiguration();
+    int count = 0;
+    try (CloseableIterable<CSVRecord> csvFile = csvFileManager.getCSVFile()) {
+      for (CSVRecord csvRecord : csvFile) {
+        assertTrue(csvRecord.get("term").startsWith("term"));
+        assertEquals("definition", csvRecord.get("definition"));
+        count++;
+      }
+    }
+    assertEquals(100, count);
+  }
+
+  @Test
+  public void testParserThreadsInvalid() throws IOException {
+    File tmpfile = temporaryFolder.newFile("testParserThreads.csv");
+    Properties config = new Properties();
+    config.put(CSVFileManager.FILEPATH, tmpfile.getAbsolutePath());
+    config.put(UrlBuilder.CONFIG_COLUMNS, "term");
+    config.put(CONTENT_TITLE, "term");
+    config.put(CSVFileManager.PARSER_THREADS, "0");
+    setupConfig.initConfig(config);
+
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage(CSVFileManager.PARSER_THREADS);
+    CSVFileManager.fromConfiguration();
+  }
+
   @Test
   public void testCsvFileManagerEncodingInvalid() throws IOException {
     File tmpfile = temporaryFolder.newFile("testEncoding.csv");
@@ -50,6 +50,7 @@ import com.google.enterprise.cloudsearch.sdk.indexing.StructuredData;
 import com.google.enterprise.cloudsearch.sdk.indexing.StructuredData.ResetStructuredDataRule;
 import com.google.enterprise.cloudsearch.sdk.indexing.UrlBuilder;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.ApiOperation;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.ApiOperations;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryDoc;
 import java.io.File;
@@ -57,9 +58,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.TimeZone;
@@ -615,4 +618,241 @@ public class CSVRepositoryTest {
     thrown.expect(InvalidConfigurationException.class);
     csvRepository.init(localMockRepositoryContext);
   }
+
+  @Test
+  public void testGetPartitionIds() throws IOException, InterruptedException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    createFile(tmpfile, createRows(100));
+    Properties config = getPartitionConfig(tmpfile);
+    config.put(CSVRepository.PARTITIONS, "4");
+    setupConfig.initConfig(config);
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+
+    assertEquals(ImmutableList.of("0", "1", "2", "3"), csvRepository.getPartitionIds());
+    List<String> names = new ArrayList<>();
+    for (String partitionId : csvRepository.getPartitionIds()) {
+      byte[] checkpoint = null;
+      boolean hasMore;
+      do {
+        try (CheckpointCloseableIterable<ApiOperation> docs =
+            csvRepository.getAllDocs(partitionId, checkpoint)) {
+          names.addAll(getNames(docs));
+          checkpoint = docs.getCheckpoint();
+          hasMore = docs.hasMore();
+        }
+      } while (hasMore);
+      assertNull(checkpoint);
+    }
+    Collections.sort(names);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      expected.add("term" + i);
+    }
+    Collections.sort(expected);
+    assertEquals(expected, names);
+  }
+
+  @Test
+  public void testGetAllDocsPartitionCheckpoint() throws IOException, InterruptedException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    createFile(tmpfile, createRows(25));
+    setupConfig.initConfig(getPartitionConfig(tmpfile));
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+    assertEquals(ImmutableList.of("0"), csvRepository.getPartitionIds());
+    byte[] checkpoint;
+    try (CheckpointCloseableIterable<ApiOperation> docs = csvRepository.getAllDocs("0", null)) {
+      assertEquals(createNames(0, 10), getNames(docs));
+      checkpoint = docs.getCheckpoint();
+      assertTrue(docs.hasMore());
+    }
+    try (CheckpointCloseableIterable<ApiOperation> docs =
+        csvRepository.getAllDocs("0", checkpoint)) {
+      assertEquals(createNames(10, 20), getNames(docs));
+      checkpoint = docs.getCheckpoint();
+    }
+    csvRepository.close();
+
+    // Restarted traversal resumes after the checkpoint
+    CSVRepository restarted = new CSVRepository();
+    restarted.init(mockRepositoryContext);
+    restarted.getPartitionIds();
+    try (CheckpointCloseableIterable<ApiOperation> docs = restarted.getAllDocs("0", checkpoint)) {
+      assertEquals(createNames(20, 25), getNames(docs));
+      assertNull(docs.getCheckpoint());
+      assertFalse(docs.hasMore());
+    }
+  }
+
+  @Test
+  public void testGetAllDocsPartitionCheckpointFileChanged()
+      throws IOException, InterruptedException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    createFile(tmpfile, createRows(25));
+    setupConfig.initConfig(getPartitionConfig(tmpfile));
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+    csvRepository.getPartitionIds();
+    byte[] checkpoint;
+    try (CheckpointCloseableIterable<ApiOperation> docs = csvRepository.getAllDocs("0", null)) {
+      getNames(docs);
+      checkpoint = docs.getCheckpoint();
+    }
+
+    createFile(tmpfile, createRows(30));
+    csvRepository.getPartitionIds();
+    try (CheckpointCloseableIterable<ApiOperation> docs =
+        csvRepository.getAllDocs("0", checkpoint)) {
+      assertEquals(createNames(0, 10), getNames(docs));
+    }
+  }
+
+  @Test
+  public void testGetAllDocsPartitionInvalidCheckpoint() throws IOException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    createFile(tmpfile, createRows(5));
+    setupConfig.initConfig(getPartitionConfig(tmpfile));
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+    thrown.expect(RepositoryException.class);
+    csvRepository.getAllDocs("0", "not json".getBytes(UTF_8));
+  }
+
+  @Test
+  public void testInvalidPartitions() throws IOException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    createFile(tmpfile, createRows(5));
+    Properties config = getPartitionConfig(tmpfile);
+    config.put(CSVRepository.PARTITIONS, "0");
+    setupConfig.initConfig(config);
+
+    CSVRepository csvRepository = new CSVRepository();
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage(CSVRepository.PARTITIONS);
+    csvRepository.init(mockRepositoryContext);
+  }
+
+  @Test
+  public void testGetChangesNotConfigured() throws IOException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    createFile(tmpfile, createRows(5));
+    setupConfig.initConfig(getPartitionConfig(tmpfile));
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+    try (CheckpointCloseableIterable<ApiOperation> changes = csvRepository.getChanges(null)) {
+      assertFalse(changes.iterator().hasNext());
+      assertNull(changes.getCheckpoint());
+    }
+  }
+
+  @Test
+  public void testGetChanges() throws IOException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    File indexFile = new File(temporaryFolder.getRoot(), "fingerprints");
+    createFile(tmpfile, "term, definition\nterm1, a\nterm2, b\nterm3, c\n");
+    Properties config = getPartitionConfig(tmpfile);
+    config.put(CSVRepository.FINGERPRINT_INDEX_PATH, indexFile.getAbsolutePath());
+    setupConfig.initConfig(config);
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+    byte[] checkpoint;
+    try (CheckpointCloseableIterable<ApiOperation> changes = csvRepository.getChanges(null)) {
+      assertFalse(changes.iterator().hasNext());
+      checkpoint = changes.getCheckpoint();
+    }
+    assertTrue(indexFile.exists());
+
+    createFile(tmpfile, "term, definition\nterm1, a\nterm2, changed\nterm4, d\n");
+    List<String> changed = new ArrayList<>();
+    List<ApiOperation> deleted = new ArrayList<>();
+    try (CheckpointCloseableIterable<ApiOperation> changes =
+        csvRepository.getChanges(checkpoint)) {
+      for (ApiOperation operation : changes) {
+        if (operation instanceof RepositoryDoc) {
+          changed.add(((RepositoryDoc) operation).getItem().getName());
+        } else {
+          deleted.add(operation);
+        }
+      }
+      checkpoint = changes.getCheckpoint();
+    }
+    assertEquals(ImmutableList.of("term2", "term4"), changed);
+    assertEquals(ImmutableList.of(ApiOperations.deleteItem("term3")), deleted);
+
+    try (CheckpointCloseableIterable<ApiOperation> changes =
+        csvRepository.getChanges(checkpoint)) {
+      assertFalse(changes.iterator().hasNext());
+      assertEquals(new String(checkpoint, UTF_8), new String(changes.getCheckpoint(), UTF_8));
+    }
+  }
+
+  @Test
+  public void testGetChangesNotAllTraversed() throws IOException {
+    File tmpfile = temporaryFolder.newFile(testName.getMethodName() + ".csv");
+    File indexFile = new File(temporaryFolder.getRoot(), "fingerprints");
+    createFile(tmpfile, "term, definition\nterm1, a\n");
+    Properties config = getPartitionConfig(tmpfile);
+    config.put(CSVRepository.FINGERPRINT_INDEX_PATH, indexFile.getAbsolutePath());
+    setupConfig.initConfig(config);
+
+    CSVRepository csvRepository = new CSVRepository();
+    csvRepository.init(mockRepositoryContext);
+    byte[] checkpoint;
+    try (CheckpointCloseableIterable<ApiOperation> changes = csvRepository.getChanges(null)) {
+      assertFalse(changes.iterator().hasNext());
+      checkpoint = changes.getCheckpoint();
+    }
+
+    createFile(tmpfile, "term, definition\nterm1, changed\nterm2, b\n");
+    try (CheckpointCloseableIterable<ApiOperation> changes =
+        csvRepository.getChanges(checkpoint)) {
+      changes.iterator().next();
+      assertEquals(checkpoint, changes.getCheckpoint());
+    }
+    try (CheckpointCloseableIterable<ApiOperation> changes =
+        csvRepository.getChanges(checkpoint)) {
+      assertEquals(ImmutableList.of("term1", "term2"), getNames(changes));
+    }
+  }
+
+  private static Properties getPartitionConfig(File file) {
+    Properties config = new Properties();
+    config.put(CSVFileManager.FILEPATH, file.getAbsolutePath());
+    config.put(UrlBuilder.CONFIG_COLUMNS, "term");
+    config.put(CSVFileManager.UNIQUE_KEY_COLUMNS, "term");
+    config.put(CONTENT_TITLE, "term");
+    config.put(CSVRepository.CHECKPOINT_INTERVAL, "10");
+    return config;
+  }
+
+  private static String createRows(int count) {
+    StringBuilder rows = new StringBuilder("term, definition\n");
+    for (int i = 0; i < count; i++) {
+      rows.append("term").append(i).append(", \"definition\nof term ").append(i).append("\"\n");
+    }
+    return rows.toString();
+  }
+
+  private static List<String> createNames(int from, int to) {
+    List<String> names = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      names.add("term" + i);
+    }
+    return names;
+  }
+
+  private static List<String> getNames(Iterable<ApiOperation> docs) {
+    List<String> names = new ArrayList<>();
+    for (ApiOperation operation : docs) {
+      names.add(((RepositoryDoc) operation).getItem().getName());
+    }
+    return names;
+  }
 }
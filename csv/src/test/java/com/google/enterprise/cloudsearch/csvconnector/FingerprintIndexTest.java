@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.csvconnector;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link FingerprintIndex}. */
+public class FingerprintIndexTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testPutAndRemove() {
+    FingerprintIndex index = new FingerprintIndex();
+    assertNull(index.put("id1", 1L));
+    assertEquals(Long.valueOf(1L), index.put("id1", 2L));
+    assertNull(index.remove("id2"));
+    assertEquals(Long.valueOf(2L), index.remove("id1"));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("fingerprints");
+    FingerprintIndex index = new FingerprintIndex();
+    index.put("id1", 1L);
+    index.put("id€", Long.MIN_VALUE);
+    index.save(path);
+
+    FingerprintIndex loaded = FingerprintIndex.load(path);
+    assertEquals(ImmutableSet.of("id1", "id€"), loaded.getIds());
+    assertEquals(Long.valueOf(Long.MIN_VALUE), loaded.remove("id€"));
+    assertFalse(Files.exists(path.resolveSibling("fingerprints.tmp")));
+  }
+
+  @Test
+  public void testSaveReplacesIndex() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("fingerprints");
+    FingerprintIndex index = new FingerprintIndex();
+    index.put("id1", 1L);
+    index.save(path);
+    index.remove("id1");
+    index.put("id2", 2L);
+    index.save(path);
+    assertEquals(ImmutableSet.of("id2"), FingerprintIndex.load(path).getIds());
+  }
+
+  @Test
+  public void testLoadMissingFile() throws IOException {
+    assertNull(FingerprintIndex.load(temporaryFolder.getRoot().toPath().resolve("missing")));
+  }
+
+  @Test
+  public void testLoadInvalidFile() throws IOException {
+    Path path = temporaryFolder.newFile().toPath();
+    Files.write(path, "not an index".getBytes(UTF_8));
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Not a fingerprint index file");
+    FingerprintIndex.load(path);
+  }
+}
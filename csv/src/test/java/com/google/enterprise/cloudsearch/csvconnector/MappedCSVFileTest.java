@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.csvconnector;
+
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import com.google.enterprise.cloudsearch.csvconnector.MappedCSVFile.Range;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link MappedCSVFile}. */
+public class MappedCSVFileTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testReadInChunks() throws IOException {
+    String content = "term,definition\n€,\"euro\nsymbol\"\nü,umlaut\n";
+    MappedCSVFile file = new MappedCSVFile(createFile(content, UTF_8), UTF_8, 3);
+    assertEquals(content, read(file, new Range(0, file.size())));
+  }
+
+  @Test
+  public void testSplitSingleRange() throws IOException {
+    MappedCSVFile file = new MappedCSVFile(createFile("a,b\nc,d\n", UTF_8), UTF_8);
+    assertEquals(Collections.singletonList(new Range(0, 8)), file.split(1, '"', null));
+  }
+
+  @Test
+  public void testSplitEmptyFile() throws IOException {
+    MappedCSVFile file = new MappedCSVFile(createFile("", UTF_8), UTF_8);
+    assertEquals(Collections.singletonList(new Range(0, 0)), file.split(4, '"', null));
+  }
+
+  @Test
+  public void testSplitOnRecordBoundaries() throws IOException {
+    String content = "a,b\nc,d\ne,f\ng,h\n";
+    MappedCSVFile file = new MappedCSVFile(createFile(content, UTF_8), UTF_8, 5);
+    assertEquals(
+        ImmutableList.of(new Range(0, 4), new Range(4, 8), new Range(8, 12), new Range(12, 16)),
+        file.split(4, '"', null));
+  }
+
+  @Test
+  public void testSplitSkipsQuotedLineBreaks() throws IOException {
+    String content = "a,\"b\n\"\"c\"\"\nd\"\ne,f\ng,\"h\ni\"\n";
+    MappedCSVFile file = new MappedCSVFile(createFile(content, UTF_8), UTF_8, 4);
+    List<Range> ranges = file.split(8, '"', null);
+    assertEquals(
+        ImmutableList.of(new Range(0, 14), new Range(14, 18), new Range(18, 26)), ranges);
+    assertEquals("a,\"b\n\"\"c\"\"\nd\"\n", read(file, ranges.get(0)));
+  }
+
+  @Test
+  public void testSplitSkipsEscapedLineBreaks() throws IOException {
+    String content = "a,b\\\nc\nd,e\n";
+    MappedCSVFile file = new MappedCSVFile(createFile(content, UTF_8), UTF_8);
+    assertEquals(
+        ImmutableList.of(new Range(0, 7), new Range(7, 11)), file.split(4, null, '\\'));
+  }
+
+  @Test
+  public void testSplitCoversWholeFile() throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      content.append(i).append(",\"value\n").append(i).append("\"\n");
+    }
+    Path path = createFile(content.toString(), UTF_8);
+    MappedCSVFile file = new MappedCSVFile(path, UTF_8, 1000);
+    List<Range> ranges = file.split(7, '"', null);
+    assertEquals(7, ranges.size());
+    StringBuilder joined = new StringBuilder();
+    long start = 0;
+    for (Range range : ranges) {
+      assertEquals(start, range.getStart());
+      String text = read(file, range);
+      assertTrue(text, text.matches("(\\d+,\"value\n\\d+\"\n)+"));
+      joined.append(text);
+      start = range.getEnd();
+    }
+    assertEquals(Files.size(path), start);
+    assertEquals(content.toString(), joined.toString());
+  }
+
+  @Test
+  public void testSplitMultiByteCharsetSingleRange() throws IOException {
+    String content = "a,b\nc,d\ne,f\n";
+    MappedCSVFile file = new MappedCSVFile(createFile(content, UTF_16), UTF_16);
+    List<Range> ranges = file.split(3, '"', null);
+    assertEquals(Collections.singletonList(new Range(0, file.size())), ranges);
+    assertEquals(content, read(file, ranges.get(0)));
+  }
+
+  @Test
+  public void testInvalidRange() {
+    thrown.expect(IllegalArgumentException.class);
+    new Range(5, 4);
+  }
+
+  private Path createFile(String content, Charset charset) throws IOException {
+    Path path = temporaryFolder.newFile().toPath();
+    Files.write(path, content.getBytes(charset));
+    return path;
+  }
+
+  private static String read(MappedCSVFile file, Range range) throws IOException {
+    try (Reader reader = file.openReader(range)) {
+      return CharStreams.toString(reader);
+    }
+  }
+}
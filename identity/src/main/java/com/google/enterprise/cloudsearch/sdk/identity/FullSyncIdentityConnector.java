@@ -27,9 +27,9 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.cloudsearch.sdk.AbortCountExceptionHandler;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors;
 import com.google.enterprise.cloudsearch.sdk.ExceptionHandler;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.PaginationIterable;
@@ -42,7 +42,6 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -123,11 +122,7 @@ public class FullSyncIdentityConnector implements IdentityConnector {
             .get();
     logger.log(Level.CONFIG, "Identity Connector configured to sync [{0}]", identitySyncType);
     ExecutorService executor =
-        Executors.newCachedThreadPool(
-            new ThreadFactoryBuilder()
-                .setDaemon(false)
-                .setNameFormat("FullSyncIdentityConnector")
-                .build());
+        ConnectorExecutors.newCachedExecutor("FullSyncIdentityConnector", false);
     listeningExecutorService = MoreExecutors.listeningDecorator(executor);
     stateManager.init(
         identityStateLoader.orElse(
@@ -43,6 +43,7 @@ import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService;
 import com.google.enterprise.cloudsearch.sdk.CredentialFactory;
 import com.google.enterprise.cloudsearch.sdk.GoogleProxy;
+import com.google.enterprise.cloudsearch.sdk.HttpTransportPool;
 import com.google.enterprise.cloudsearch.sdk.PaginationIterable;
 import com.google.enterprise.cloudsearch.sdk.RetryPolicy;
 import com.google.enterprise.cloudsearch.sdk.StatsManager;
@@ -152,6 +153,7 @@ public class GroupsServiceImpl extends BaseApiService<CloudIdentity> implements
         .setBatchPolicy(BatchPolicy.fromConfiguration())
         .setRetryPolicy(RetryPolicy.fromConfiguration())
         .setProxy(GoogleProxy.fromConfiguration())
+        .setTransportPool(HttpTransportPool.fromConfiguration())
         .build();
   }
 
@@ -202,6 +204,7 @@ public class GroupsServiceImpl extends BaseApiService<CloudIdentity> implements
       if (batchService == null) {
         batchService =
             new BatchRequestService.Builder(service)
+                .setName("groups")
                 .setBatchPolicy(batchPolicy)
                 .setRetryPolicy(retryPolicy)
                 .setGoogleCredential(credentials)
@@ -33,7 +33,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors;
 import com.google.enterprise.cloudsearch.sdk.ExceptionHandler;
 import com.google.enterprise.cloudsearch.sdk.StatsManager;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
@@ -47,7 +47,6 @@ import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -78,11 +77,7 @@ class StateManagerImpl implements StateManager {
 
   StateManagerImpl() {
     ExecutorService executor =
-        Executors.newCachedThreadPool(
-            new ThreadFactoryBuilder()
-                .setDaemon(false)
-                .setNameFormat("identitystate-callback")
-                .build());
+        ConnectorExecutors.newCachedExecutor("identitystate-callback", false);
     this.callbackExecutor = MoreExecutors.listeningDecorator(executor);
     this.identityState = new AtomicReference<>();
     this.isRunning = new AtomicBoolean();
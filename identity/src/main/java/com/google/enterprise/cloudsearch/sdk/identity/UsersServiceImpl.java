@@ -39,6 +39,7 @@ import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService;
 import com.google.enterprise.cloudsearch.sdk.CredentialFactory;
 import com.google.enterprise.cloudsearch.sdk.GoogleProxy;
+import com.google.enterprise.cloudsearch.sdk.HttpTransportPool;
 import com.google.enterprise.cloudsearch.sdk.PaginationIterable;
 import com.google.enterprise.cloudsearch.sdk.RetryPolicy;
 import com.google.enterprise.cloudsearch.sdk.StatsManager;
@@ -81,6 +82,7 @@ public class UsersServiceImpl extends BaseApiService<Directory> implements Users
         .setRetryPolicy(RetryPolicy.fromConfiguration())
         .setCustomer(Configuration.getString(CUSTOMER_ID_CONFIG, null).get())
         .setProxy(GoogleProxy.fromConfiguration())
+        .setTransportPool(HttpTransportPool.fromConfiguration())
         .build();
   }
 
@@ -141,6 +143,7 @@ public class UsersServiceImpl extends BaseApiService<Directory> implements Users
       if (batchService == null) {
         batchService =
             new BatchRequestService.Builder(service)
+                .setName("users")
                 .setBatchPolicy(batchPolicy)
                 .setRetryPolicy(retryPolicy)
                 .setGoogleCredential(credentials)
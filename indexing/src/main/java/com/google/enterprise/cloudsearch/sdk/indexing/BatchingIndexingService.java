@@ -18,10 +18,12 @@ package com.google.enterprise.cloudsearch.sdk.indexing;
 import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items;
 import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.api.services.cloudsearch.v1.model.Operation;
+import com.google.api.services.cloudsearch.v1.model.UploadItemRef;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
 import java.util.concurrent.Executor;
 
@@ -38,18 +40,44 @@ import java.util.concurrent.Executor;
  * also use {@link ListenableFuture#addListener(Runnable, Executor)} or
  * {@link Futures#addCallback(ListenableFuture, FutureCallback)}
  * to register callback methods to retrieve results from the batched operation.
+ *
+ * <p>Index, push and delete requests may be given the {@link Priority} lane they are batched in.
+ * The default methods ignore it and batch such requests the same way as the methods without a
+ * priority.
  */
 public interface BatchingIndexingService extends Service {
   /** Adds an index item request to the batch. */
   ListenableFuture<Operation> indexItem(Items.Index indexItem) throws InterruptedException;
 
+  /** Adds an index item request to the batch, in the given lane. */
+  default ListenableFuture<Operation> indexItem(Items.Index indexItem, Priority priority)
+      throws InterruptedException {
+    return indexItem(indexItem);
+  }
+
   /** Adds a push item request to the batch. */
   ListenableFuture<Item> pushItem(Items.Push pushItem) throws InterruptedException;
 
+  /** Adds a push item request to the batch, in the given lane. */
+  default ListenableFuture<Item> pushItem(Items.Push pushItem, Priority priority)
+      throws InterruptedException {
+    return pushItem(pushItem);
+  }
+
   /** Adds a delete item request to the batch. */
   ListenableFuture<Operation> deleteItem(Items.Delete deleteItem) throws InterruptedException;
 
+  /** Adds a delete item request to the batch, in the given lane. */
+  default ListenableFuture<Operation> deleteItem(Items.Delete deleteItem, Priority priority)
+      throws InterruptedException {
+    return deleteItem(deleteItem);
+  }
+
   /** Adds an unreserve queue request to the batch. */
   ListenableFuture<Operation> unreserveItem(Items.Unreserve unreserveItem)
       throws InterruptedException;
+
+  /** Adds a start upload request to the batch. */
+  ListenableFuture<UploadItemRef> startUpload(Items.Upload startUpload)
+      throws InterruptedException;
 }
@@ -24,11 +24,16 @@ import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.I
 import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items.Index;
 import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items.Push;
 import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items.Unreserve;
+import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items.Upload;
 import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.api.services.cloudsearch.v1.model.Operation;
+import com.google.api.services.cloudsearch.v1.model.PushItem;
+import com.google.api.services.cloudsearch.v1.model.PushItemRequest;
+import com.google.api.services.cloudsearch.v1.model.UploadItemRef;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.enterprise.cloudsearch.sdk.AsyncRequest;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService;
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService.ExecutorFactory;
@@ -39,15 +44,38 @@ import com.google.enterprise.cloudsearch.sdk.StatsManager;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
 
 /**
  * Concrete class implementing {@link BatchingIndexingService}.
+ *
+ * <p>Index, push and delete requests are batched in the {@link Priority} lane given by the
+ * caller, or else in the lane of the caller's {@link PriorityContext}. Unreserving queued items and
+ * pushing repository errors use {@link Priority#INTERACTIVE}, start upload requests use
+ * {@link Priority#DEFAULT}.
+ *
+ * <p>Index, delete and push requests for the same item are queued in the order they were made,
+ * even if made in different lanes: a request for an item with requests not yet completed is queued
+ * in the lane of those requests. When coalescing is enabled, requests for an item still waiting to
+ * be batched are superseded by the next request of the same type for the item, see {@link
+ * RequestCoalescer}. Callers of superseded requests get the result of the request finally sent.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@value #CONFIG_COALESCE_REQUESTS} - Whether to coalesce queued requests of the
+ *       same type for the same item. Defaults to false.
+ * </ul>
  */
 public class BatchingIndexingServiceImpl extends AbstractIdleService
     implements BatchingIndexingService {
+  public static final String CONFIG_COALESCE_REQUESTS = "batch.coalesceRequests";
+
+  private static final String PUSH_TYPE_REPOSITORY_ERROR = "REPOSITORY_ERROR";
 
   private final BatchRequestService batchService;
   private final RetryPolicy retryPolicy;
+  private final RequestCoalescer coalescer;
   private final OperationStats operationStats =
       StatsManager.getComponent(BatchingIndexingServiceImpl.class.getName());
 
@@ -55,45 +83,87 @@ public class BatchingIndexingServiceImpl extends AbstractIdleService
     this.retryPolicy = checkNotNull(builder.retryPolicy, "retry policy cannot be null!");
     this.batchService =
         new BatchRequestService.Builder(builder.service)
+            .setName("indexing")
             .setBatchPolicy(builder.batchPolicy)
             .setRetryPolicy(builder.retryPolicy)
             .setExecutorFactory(builder.executorFactory)
             .setTimeProvider(builder.currentTimeProvider)
             .setGoogleCredential(builder.credential)
             .build();
+    this.coalescer = new RequestCoalescer(batchService, builder.coalesceRequests);
   }
 
   @Override
   public ListenableFuture<Operation> indexItem(Index indexItem) throws InterruptedException {
-    AsyncRequest<Operation> itemUpdate = new AsyncRequest<>(indexItem, retryPolicy, operationStats);
-    batchService.add(itemUpdate);
-    return itemUpdate.getFuture();
+    return indexItem(indexItem, PriorityContext.current());
+  }
+
+  @Override
+  public ListenableFuture<Operation> indexItem(Index indexItem, Priority priority)
+      throws InterruptedException {
+    AsyncRequest<Operation> itemUpdate =
+        new AsyncRequest<>(indexItem, retryPolicy, operationStats, checkNotNull(priority));
+    return coalescer.index(indexItem.getName(), itemUpdate);
   }
 
   @Override
   public ListenableFuture<Item> pushItem(Push pushItem) throws InterruptedException {
-    AsyncRequest<Item> itemPush = new AsyncRequest<>(pushItem, retryPolicy, operationStats);
-    batchService.add(itemPush);
-    return itemPush.getFuture();
+    return pushItem(pushItem, PriorityContext.current());
+  }
+
+  @Override
+  public ListenableFuture<Item> pushItem(Push pushItem, Priority priority)
+      throws InterruptedException {
+    Object content = pushItem.getJsonContent();
+    PushItem item =
+        content instanceof PushItemRequest ? ((PushItemRequest) content).getItem() : null;
+    AsyncRequest<Item> itemPush =
+        new AsyncRequest<>(pushItem, retryPolicy, operationStats, getPushPriority(item, priority));
+    return item == null
+        ? coalescer.push(pushItem.getName(), null, null, itemPush)
+        : coalescer.push(pushItem.getName(), item.getType(), item.getQueue(), itemPush);
   }
 
   @Override
   public ListenableFuture<Operation> deleteItem(Delete deleteItem) throws InterruptedException {
+    return deleteItem(deleteItem, PriorityContext.current());
+  }
+
+  @Override
+  public ListenableFuture<Operation> deleteItem(Delete deleteItem, Priority priority)
+      throws InterruptedException {
     AsyncRequest<Operation> itemDelete =
-        new AsyncRequest<>(deleteItem, retryPolicy, operationStats);
-    batchService.add(itemDelete);
-    return itemDelete.getFuture();
+        new AsyncRequest<>(deleteItem, retryPolicy, operationStats, checkNotNull(priority));
+    return coalescer.delete(deleteItem.getName(), itemDelete);
   }
 
   @Override
   public ListenableFuture<Operation> unreserveItem(Unreserve unreserveItem)
       throws InterruptedException {
     AsyncRequest<Operation> itemUnreserve =
-        new AsyncRequest<>(unreserveItem, retryPolicy, operationStats);
+        new AsyncRequest<>(unreserveItem, retryPolicy, operationStats, Priority.INTERACTIVE);
     batchService.add(itemUnreserve);
     return itemUnreserve.getFuture();
   }
 
+  @Override
+  public ListenableFuture<UploadItemRef> startUpload(Upload startUpload)
+      throws InterruptedException {
+    AsyncRequest<UploadItemRef> itemUpload =
+        new AsyncRequest<>(startUpload, retryPolicy, operationStats);
+    batchService.add(itemUpload);
+    return itemUpload.getFuture();
+  }
+
+  /** Returns lane for pushing given item, repository errors are always interactive. */
+  static Priority getPushPriority(@Nullable PushItem item, Priority priority) {
+    checkNotNull(priority);
+    if (item != null && PUSH_TYPE_REPOSITORY_ERROR.equals(item.getType())) {
+      return Priority.INTERACTIVE;
+    }
+    return priority;
+  }
+
   @Override
   protected void startUp() throws Exception {
     batchService.startAsync().awaitRunning();
@@ -111,6 +181,7 @@ public class BatchingIndexingServiceImpl extends AbstractIdleService
         .setService(service)
         .setBatchPolicy(BatchPolicy.fromConfiguration())
         .setCredential(credential)
+        .setCoalesceRequests(Configuration.getBoolean(CONFIG_COALESCE_REQUESTS, false).get())
         .build();
   }
 
@@ -122,6 +193,7 @@ public class BatchingIndexingServiceImpl extends AbstractIdleService
     private RetryPolicy retryPolicy = new RetryPolicy.Builder().build();
     private TimeProvider currentTimeProvider = new SystemTimeProvider();
     private GoogleCredential credential;
+    private boolean coalesceRequests = false;
 
     /**
      * Sets {@link CloudSearch} service client to be used for creating batch requests
@@ -179,6 +251,18 @@ public class BatchingIndexingServiceImpl extends AbstractIdleService
       return this;
     }
 
+    /**
+     * Sets whether requests for an item still waiting to be batched are superseded by later
+     * requests of the same type for the same item. Defaults to false.
+     *
+     * @param coalesceRequests whether to coalesce requests for the same item
+     * @return this builder instance
+     */
+    public Builder setCoalesceRequests(boolean coalesceRequests) {
+      this.coalesceRequests = coalesceRequests;
+      return this;
+    }
+
     /**
      * Builds an instance of {@link BatchingIndexingServiceImpl}
      *
@@ -0,0 +1,594 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.api.services.cloudsearch.v1.model.Item;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.io.CountingInputStream;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Local cache of the version and hashes of items last indexed by this connector, used by {@link
+ * IndexingServiceImpl} to skip index requests for unchanged items.
+ *
+ * <p>An item is unchanged if its version and its content, metadata and structured data hashes
+ * match those of the last successful index request for the same item ID. Items without any hash
+ * are never skipped. Connectors enabling the cache should set hashes covering all item data they
+ * want changes of to be indexed, including ACLs. Deleting the cache file forces all items to be
+ * indexed again.
+ *
+ * <p>Entries are kept in memory and persisted to an append-only journal file. The journal is
+ * replayed when the cache is opened, and rewritten with only current entries when obsolete
+ * records outnumber them. Entries are written to a temporary file without holding the cache lock,
+ * and the file replaces the journal once records written meanwhile are appended to it.
+ *
+ * <p>Index requests complete after items may have been deleted, so entries are recorded with the
+ * {@link #getGeneration generation} read when the index request was sent. {@link #remove} and
+ * {@link #removeQueue} advance the generation, and an entry sent before the removal of its item
+ * or queue is not recorded. Removals are remembered in memory for the most recently removed
+ * items only; entries sent before a forgotten removal are not recorded either.
+ *
+ * <p>Hits and misses are counted as results of the {@code lookup} operation in the {@value
+ * #STATS_COMPONENT} statistics component.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@value #CONFIG_PATH} - Journal file of the cache. Cache is disabled if not set.
+ * </ul>
+ */
+public class ContentHashCache implements Closeable {
+  private static final Logger logger = Logger.getLogger(ContentHashCache.class.getName());
+
+  public static final String CONFIG_PATH = "indexingService.contentHashCache.path";
+  public static final String STATS_COMPONENT = "ContentHashCache";
+  static final String LOOKUP = "lookup";
+  static final String RESULT_HIT = "HIT";
+  static final String RESULT_MISS = "MISS";
+  static final String GAUGE_ENTRIES = "entries";
+  @VisibleForTesting static final int MIN_RECORDS_TO_COMPACT = 10000;
+  @VisibleForTesting static final int MAX_REMOVED_GENERATIONS = 100000;
+
+  private static final int MAGIC = 0x43534843; // "CSHC"
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final OperationStats stats = StatsManager.getComponent(STATS_COMPONENT);
+
+  private final Path path;
+  private final int minRecordsToCompact;
+  private final int maxRemovedGenerations;
+  private final Map<String, Entry> entries = new HashMap<>();
+  // generation of the last removal of each recently removed item, oldest first
+  private final LinkedHashMap<String, Long> removedGenerations = new LinkedHashMap<>();
+  private final Map<String, Long> removedQueueGenerations = new HashMap<>();
+  private final LongSupplier entriesGauge = this::size;
+  private DataOutputStream journal;
+  // records written since the running compaction took its snapshot, null if none is running
+  private List<byte[]> compactionTail;
+  private long records;
+  private long generation;
+  // latest generation of removals no longer in removedGenerations
+  private long forgottenGeneration;
+
+  /**
+   * Opens a cache, replaying an existing journal file.
+   *
+   * @param path journal file of the cache
+   * @throws IOException if the journal can not be read or opened for writing
+   */
+  public ContentHashCache(Path path) throws IOException {
+    this(path, MIN_RECORDS_TO_COMPACT, MAX_REMOVED_GENERATIONS);
+  }
+
+  @VisibleForTesting
+  ContentHashCache(Path path, int minRecordsToCompact) throws IOException {
+    this(path, minRecordsToCompact, MAX_REMOVED_GENERATIONS);
+  }
+
+  @VisibleForTesting
+  ContentHashCache(Path path, int minRecordsToCompact, int maxRemovedGenerations)
+      throws IOException {
+    this.path = checkNotNull(path, "path can not be null");
+    checkArgument(minRecordsToCompact > 0, "minRecordsToCompact should be greater than 0");
+    checkArgument(maxRemovedGenerations > 0, "maxRemovedGenerations should be greater than 0");
+    this.minRecordsToCompact = minRecordsToCompact;
+    this.maxRemovedGenerations = maxRemovedGenerations;
+    if (Files.exists(path)) {
+      replay();
+    }
+    if (needsCompaction()) {
+      swapCompacted(writeCompacted(entries), entries.size(), Collections.emptyList());
+    } else {
+      openJournal();
+    }
+    stats.registerGauge(GAUGE_ENTRIES, entriesGauge);
+  }
+
+  /**
+   * Opens the cache configured by {@value #CONFIG_PATH}.
+   *
+   * @return the cache, or {@code null} if not configured
+   */
+  @Nullable
+  public static ContentHashCache fromConfiguration() {
+    checkState(Configuration.isInitialized(), "configuration not initialized");
+    String path = Configuration.getString(CONFIG_PATH, "").get();
+    if (Strings.isNullOrEmpty(path)) {
+      return null;
+    }
+    try {
+      return new ContentHashCache(Paths.get(path));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open content hash cache " + path, e);
+    }
+  }
+
+  /**
+   * Returns whether {@code entry} matches the entry of the last indexed version of item {@code
+   * id}, counting a cache hit or miss.
+   */
+  public synchronized boolean isUnchanged(String id, Entry entry) {
+    Entry cached = entry.hasHash() ? entries.get(id) : null;
+    boolean unchanged = (cached != null) && cached.sameVersionAndHashes(entry);
+    stats.logResult(LOOKUP, unchanged ? RESULT_HIT : RESULT_MISS);
+    return unchanged;
+  }
+
+  /**
+   * Returns the current generation, to be passed to {@link #put(String, Entry, long)} when the
+   * index request sent after this call completes.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /** Records {@code entry} as the last indexed version of item {@code id}. */
+  public void put(String id, Entry entry) throws IOException {
+    synchronized (this) {
+      checkState(journal != null, "cache is closed");
+      putEntry(id, entry);
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Records {@code entry} as the last indexed version of item {@code id}, unless the item or its
+   * queue was removed after {@code sentGeneration}.
+   *
+   * @param id item ID
+   * @param entry entry of the indexed item
+   * @param sentGeneration {@link #getGeneration} read before the index request was sent
+   * @return whether the entry was recorded
+   */
+  public boolean put(String id, Entry entry, long sentGeneration) throws IOException {
+    synchronized (this) {
+      checkState(journal != null, "cache is closed");
+      if (removedAfter(id, entry.queue, sentGeneration)) {
+        logger.log(Level.FINEST, "Not recording item {0} removed while being indexed", id);
+        return false;
+      }
+      putEntry(id, entry);
+    }
+    compactIfNeeded();
+    return true;
+  }
+
+  private void putEntry(String id, Entry entry) throws IOException {
+    if (!entry.hasHash()) {
+      deleteEntry(id);
+      return;
+    }
+    if (entry.equals(entries.put(id, entry))) {
+      return;
+    }
+    writeRecord(putRecord(id, entry));
+    journal.flush();
+  }
+
+  /**
+   * Removes the entry of item {@code id}, so that the item is indexed next time, even if an index
+   * request for it sent earlier completes afterwards.
+   */
+  public void remove(String id) throws IOException {
+    synchronized (this) {
+      checkState(journal != null, "cache is closed");
+      generation++;
+      // reinserted so that entries stay ordered by generation
+      removedGenerations.remove(id);
+      removedGenerations.put(id, generation);
+      if (removedGenerations.size() > maxRemovedGenerations) {
+        Iterator<Long> eldest = removedGenerations.values().iterator();
+        forgottenGeneration = eldest.next();
+        eldest.remove();
+      }
+      deleteEntry(id);
+    }
+    compactIfNeeded();
+  }
+
+  private void deleteEntry(String id) throws IOException {
+    if (entries.remove(id) == null) {
+      return;
+    }
+    writeRecord(removeRecord(id));
+    journal.flush();
+  }
+
+  /** Removes entries of all items last indexed or pushed into {@code queue}. */
+  public void removeQueue(String queue) throws IOException {
+    synchronized (this) {
+      checkState(journal != null, "cache is closed");
+      generation++;
+      removedQueueGenerations.put(queue, generation);
+      boolean removed = false;
+      for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+          it.hasNext(); ) {
+        Map.Entry<String, Entry> cached = it.next();
+        if (Objects.equals(queue, cached.getValue().queue)) {
+          it.remove();
+          writeRecord(removeRecord(cached.getKey()));
+          removed = true;
+        }
+      }
+      if (removed) {
+        journal.flush();
+      }
+    }
+    compactIfNeeded();
+  }
+
+  private boolean removedAfter(String id, @Nullable String queue, long sentGeneration) {
+    if (forgottenGeneration > sentGeneration) {
+      return true;
+    }
+    Long removed = removedGenerations.get(id);
+    if ((removed != null) && (removed > sentGeneration)) {
+      return true;
+    }
+    Long queueRemoved = (queue == null) ? null : removedQueueGenerations.get(queue);
+    return (queueRemoved != null) && (queueRemoved > sentGeneration);
+  }
+
+  /** Returns number of cached entries. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    // the gauge references this instance, so it must not outlive it
+    stats.unregisterGauge(GAUGE_ENTRIES, entriesGauge);
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+  }
+
+  /**
+   * Rewrites the journal with current entries only. Entries are written without holding the
+   * cache lock; the lock is held again only to append records written meanwhile and to replace
+   * the journal. Returns without rewriting if another compaction is running or the cache is
+   * closed.
+   */
+  @VisibleForTesting
+  void compact() throws IOException {
+    Map<String, Entry> snapshot;
+    synchronized (this) {
+      if ((journal == null) || (compactionTail != null)) {
+        return;
+      }
+      snapshot = new HashMap<>(entries);
+      compactionTail = new ArrayList<>();
+    }
+    Path compacted;
+    try {
+      compacted = writeCompacted(snapshot);
+    } catch (IOException e) {
+      synchronized (this) {
+        compactionTail = null;
+      }
+      throw e;
+    }
+    synchronized (this) {
+      List<byte[]> tail = compactionTail;
+      compactionTail = null;
+      if (journal == null) {
+        Files.deleteIfExists(compacted);
+        return;
+      }
+      swapCompacted(compacted, snapshot.size(), tail);
+    }
+  }
+
+  /** Writes a journal of {@code snapshot} only to a temporary file, and returns that file. */
+  private Path writeCompacted(Map<String, Entry> snapshot) throws IOException {
+    Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted)))) {
+      out.writeInt(MAGIC);
+      for (Map.Entry<String, Entry> cached : snapshot.entrySet()) {
+        out.write(putRecord(cached.getKey(), cached.getValue()));
+      }
+    }
+    return compacted;
+  }
+
+  /**
+   * Appends {@code tail} to the {@code compacted} journal of {@code snapshotSize} entries, and
+   * replaces the journal with it. Called holding the cache lock.
+   */
+  private void swapCompacted(Path compacted, int snapshotSize, List<byte[]> tail)
+      throws IOException {
+    if (!tail.isEmpty()) {
+      try (OutputStream out =
+          new BufferedOutputStream(
+              Files.newOutputStream(compacted, StandardOpenOption.APPEND))) {
+        for (byte[] record : tail) {
+          out.write(record);
+        }
+      }
+    }
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+    Files.move(
+        compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    records = snapshotSize + tail.size();
+    logger.log(
+        Level.FINE,
+        "Compacted content hash cache {0} to {1} records",
+        new Object[] {path, records});
+    openJournal();
+  }
+
+  @VisibleForTesting
+  synchronized long getRecordCount() {
+    return records;
+  }
+
+  private void openJournal() throws IOException {
+    boolean created = !Files.exists(path) || (Files.size(path) == 0);
+    journal =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                Files.newOutputStream(
+                    path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    if (created) {
+      journal.writeInt(MAGIC);
+      journal.flush();
+    }
+  }
+
+  private void replay() throws IOException {
+    long validLength = 0;
+    try (CountingInputStream counting =
+            new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        DataInputStream in = new DataInputStream(counting)) {
+      if (Files.size(path) == 0) {
+        return;
+      }
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a content hash cache file " + path);
+      }
+      validLength = counting.getCount();
+      while (true) {
+        int type = in.read();
+        if (type == -1) {
+          break;
+        }
+        String id = in.readUTF();
+        if (type == RECORD_PUT) {
+          entries.put(
+              id,
+              new Entry(
+                  readNullable(in),
+                  readNullable(in),
+                  readNullable(in),
+                  readNullable(in),
+                  readNullable(in)));
+        } else if (type == RECORD_REMOVE) {
+          entries.remove(id);
+        } else {
+          throw new IOException("Corrupted content hash cache file " + path);
+        }
+        records++;
+        validLength = counting.getCount();
+      }
+    } catch (EOFException e) {
+      // incomplete last record written before the connector stopped
+      logger.log(
+          Level.WARNING,
+          "Truncating incomplete record at offset {0} of content hash cache {1}",
+          new Object[] {validLength, path});
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.truncate(validLength);
+      }
+    }
+  }
+
+  private synchronized boolean needsCompaction() {
+    return (records >= minRecordsToCompact) && (records > 2L * entries.size());
+  }
+
+  private void compactIfNeeded() throws IOException {
+    if (needsCompaction()) {
+      compact();
+    }
+  }
+
+  private void writeRecord(byte[] record) throws IOException {
+    journal.write(record);
+    if (compactionTail != null) {
+      compactionTail.add(record);
+    }
+    records++;
+  }
+
+  private static byte[] putRecord(String id, Entry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_PUT);
+    out.writeUTF(id);
+    writeNullable(out, entry.version);
+    writeNullable(out, entry.contentHash);
+    writeNullable(out, entry.metadataHash);
+    writeNullable(out, entry.structuredDataHash);
+    writeNullable(out, entry.queue);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] removeRecord(String id) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_REMOVE);
+    out.writeUTF(id);
+    return bytes.toByteArray();
+  }
+
+  private static void writeNullable(DataOutputStream out, @Nullable String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  @Nullable
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /** Version, hashes and queue of an indexed item. */
+  public static final class Entry {
+    @Nullable private final String version;
+    @Nullable private final String contentHash;
+    @Nullable private final String metadataHash;
+    @Nullable private final String structuredDataHash;
+    @Nullable private final String queue;
+
+    /**
+     * Creates an entry.
+     *
+     * @param version encoded version set by the connector, {@code null} if assigned by the SDK
+     * @param contentHash hash of item content
+     * @param metadataHash hash of item metadata
+     * @param structuredDataHash hash of item structured data
+     * @param queue queue the item is indexed into
+     */
+    public Entry(
+        @Nullable String version,
+        @Nullable String contentHash,
+        @Nullable String metadataHash,
+        @Nullable String structuredDataHash,
+        @Nullable String queue) {
+      this.version = version;
+      this.contentHash = contentHash;
+      this.metadataHash = metadataHash;
+      this.structuredDataHash = structuredDataHash;
+      this.queue = queue;
+    }
+
+    /**
+     * Creates an entry from an item about to be indexed.
+     *
+     * @param item item to index, before the SDK assigns its version
+     * @param contentHash hash of content indexed with the item, or {@code null} to use the hash
+     *     of content already set on the item
+     * @return the entry
+     */
+    public static Entry of(Item item, @Nullable String contentHash) {
+      if ((contentHash == null) && (item.getContent() != null)) {
+        contentHash = item.getContent().getHash();
+      }
+      return new Entry(
+          item.getVersion(),
+          contentHash,
+          (item.getMetadata() == null) ? null : item.getMetadata().getHash(),
+          (item.getStructuredData() == null) ? null : item.getStructuredData().getHash(),
+          item.getQueue());
+    }
+
+    boolean hasHash() {
+      return (contentHash != null) || (metadataHash != null) || (structuredDataHash != null);
+    }
+
+    private boolean sameVersionAndHashes(Entry other) {
+      return Objects.equals(version, other.version)
+          && Objects.equals(contentHash, other.contentHash)
+          && Objects.equals(metadataHash, other.metadataHash)
+          && Objects.equals(structuredDataHash, other.structuredDataHash);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Entry)) {
+        return false;
+      }
+      Entry entry = (Entry) other;
+      return sameVersionAndHashes(entry) && Objects.equals(queue, entry.queue);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(version, contentHash, metadataHash, structuredDataHash, queue);
+    }
+
+    @Override
+    public String toString() {
+      return "Entry [version=" + version + ", contentHash=" + contentHash + ", metadataHash="
+          + metadataHash + ", structuredDataHash=" + structuredDataHash + ", queue=" + queue
+          + "]";
+    }
+  }
+}
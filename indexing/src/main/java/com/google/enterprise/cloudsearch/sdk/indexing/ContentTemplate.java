@@ -20,24 +20,26 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.escape.Escaper;
-import com.google.common.html.HtmlEscapers;
 import com.google.enterprise.cloudsearch.sdk.config.ConfigValue;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Utility to create an HTML template used for formatting content from repository field data
@@ -74,6 +76,10 @@ import java.util.stream.Collectors;
  *   // upload the content with this item
  *   ...}
  * </pre>
+ *
+ * <p>The template is compiled once when built into literal HTML segments separated by field
+ * values. Each {@link #apply} call renders into a per-thread buffer, escaping values in place, and
+ * {@link #apply(Multimap, OutputStream)} streams the rendered HTML without creating a string.
  */
 public class ContentTemplate {
   //configuration constants
@@ -107,8 +113,13 @@ public class ContentTemplate {
     APPEND
   }
 
-  // handles characters special to HTML.
-  private static final Escaper HTML_ESCAPER = HtmlEscapers.htmlEscaper();
+  // rendering buffers larger than this are not kept for reuse
+  private static final int MAX_POOLED_BUFFER_SIZE = 1 << 20;
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+  private static final ThreadLocal<StringBuilder> renderBuffer =
+      ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_BUFFER_SIZE));
+  private static final ThreadLocal<Utf8Encoder> utf8Encoder =
+      ThreadLocal.withInitial(Utf8Encoder::new);
 
   // builder variables
   private final String title;
@@ -119,6 +130,10 @@ public class ContentTemplate {
   private final String template;
   private final UnmappedColumnsMode unmappedColumnMode;
   private final boolean includeFieldName;
+  // compiled template, literals[i] precedes the value of valueFields[i]
+  private final String[] literals;
+  private final String[] valueFields;
+  private final Set<String> mappedFields;
 
   /** This object must be generated via its builder. */
   private ContentTemplate(Builder builder) {
@@ -135,6 +150,14 @@ public class ContentTemplate {
     this.template = builder.template;
     this.unmappedColumnMode = builder.unmappedColumnMode;
     this.includeFieldName = builder.includeFieldName;
+    this.literals = builder.literals.toArray(new String[0]);
+    List<String> fields = new ArrayList<>();
+    fields.add(this.title);
+    fields.add(this.title); // duplicate in body
+    fields.addAll(this.allOrderedContent);
+    this.valueFields = fields.toArray(new String[0]);
+    Set<String> mapped = new HashSet<>(fields);
+    this.mappedFields = Collections.unmodifiableSet(mapped);
   }
 
   /**
@@ -266,46 +289,134 @@ public class ContentTemplate {
    */
   public String apply(Multimap<String, Object> keyValues) {
     checkNotNull(keyValues, "Key Values map cannot be null.");
-    List<String> values = new ArrayList<>();
-    values.add(HTML_ESCAPER.escape(getOrDefault(keyValues, this.title, "Title")));
+    return render(keyValues).toString();
+  }
 
-    // add each field or empty if not present to preserve order, etc.
-    values.add(HTML_ESCAPER.escape(getOrDefault(keyValues, this.title, ""))); // duplicate in body
-    for (String field : this.allOrderedContent) {
-      values.add(HTML_ESCAPER.escape(getOrDefault(keyValues, field, "")));
-    }
+  /**
+   * Infuses the passed key value pairs into the previously generated template and writes the
+   * resulting HTML to {@code out} encoded as UTF-8. The stream is not closed.
+   *
+   * @param keyValues field name/field values pairs as {@link Multimap}
+   * @param out stream to write populated HTML to
+   * @throws IOException if writing to {@code out} fails
+   */
+  public void apply(Multimap<String, Object> keyValues, OutputStream out) throws IOException {
+    checkNotNull(keyValues, "Key Values map cannot be null.");
+    checkNotNull(out, "Output stream cannot be null.");
+    utf8Encoder.get().write(render(keyValues), out);
+  }
 
+  /** Renders the template into the per-thread buffer, valid until the next call. */
+  private StringBuilder render(Multimap<String, Object> keyValues) {
+    StringBuilder html = renderBuffer.get();
+    if (html.capacity() > MAX_POOLED_BUFFER_SIZE) {
+      html = new StringBuilder(INITIAL_BUFFER_SIZE);
+      renderBuffer.set(html);
+    }
+    html.setLength(0);
+    // add each field or default if not present to preserve order, etc.
+    html.append(literals[0]);
+    appendValue(html, keyValues, valueFields[0], "Title");
+    for (int i = 1; i < valueFields.length; i++) {
+      html.append(literals[i]);
+      appendValue(html, keyValues, valueFields[i], "");
+    }
+    html.append(literals[valueFields.length]);
     if (unmappedColumnMode == UnmappedColumnsMode.APPEND) {
-      Set<String> processed = new HashSet<>(allOrderedContent);
-      processed.add(title);
-      List<String> additionalValues = new ArrayList<>();
-      StringBuilder unmappedContent = new StringBuilder();
-      keyValues
-          .keySet()
-          .stream()
-          .filter(k -> !processed.contains(k))
-          .forEach(
-              field -> {
-                unmappedContent.append(getDiv(field, LOW_TAG, LOW_TAG_CLOSE, includeFieldName));
-                additionalValues.add(HTML_ESCAPER.escape(getOrDefault(keyValues, field, "")));
-              });
-      values.add(String.format(unmappedContent.toString(), additionalValues.toArray()));
+      for (String field : keyValues.keySet()) {
+        if (mappedFields.contains(field)) {
+          continue;
+        }
+        appendDivStart(html, field, LOW_TAG, includeFieldName);
+        appendValue(html, keyValues, field, "");
+        appendDivEnd(html, LOW_TAG_CLOSE);
+      }
+      html.append(literals[valueFields.length + 1]);
+    }
+    return html;
+  }
+
+  /**
+   * Appends escaped non-null values of {@code key} separated by ", ", or {@code defaultVal} if
+   * there are none.
+   */
+  private static void appendValue(
+      StringBuilder html, Multimap<String, Object> keyValues, String key, String defaultVal) {
+    boolean empty = true;
+    for (Object value : keyValues.get(key)) {
+      if (value == null) {
+        continue;
+      }
+      if (!empty) {
+        html.append(", ");
+      }
+      appendEscaped(html, value.toString());
+      empty = false;
+    }
+    if (empty) {
+      appendEscaped(html, defaultVal);
+    }
+  }
+
+  /** Appends {@code value} with characters special to HTML replaced by entities. */
+  @VisibleForTesting
+  static void appendEscaped(StringBuilder html, String value) {
+    int start = 0;
+    for (int i = 0; i < value.length(); i++) {
+      String replacement;
+      switch (value.charAt(i)) {
+        case '"':
+          replacement = "&quot;";
+          break;
+        case '\'':
+          replacement = "&#39;";
+          break;
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = "&gt;";
+          break;
+        default:
+          continue;
+      }
+      html.append(value, start, i).append(replacement);
+      start = i + 1;
     }
-    // infuse the values
-    return String.format(this.template, values.toArray());
+    html.append(value, start, value.length());
   }
 
-  private static String getOrDefault(
-      Multimap<String, Object> keyValues, String key, String defaultVal) {
-    if (!keyValues.containsKey(key)) {
-      return defaultVal;
+  /** Encodes rendered HTML as UTF-8 through a reusable byte buffer. */
+  private static class Utf8Encoder {
+    private final CharsetEncoder encoder =
+        StandardCharsets.UTF_8
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+
+    void write(CharSequence chars, OutputStream out) throws IOException {
+      CharBuffer in = CharBuffer.wrap(chars);
+      encoder.reset();
+      bytes.clear();
+      CoderResult result;
+      do {
+        result = encoder.encode(in, bytes, true);
+        drain(out);
+      } while (result.isOverflow());
+      do {
+        result = encoder.flush(bytes);
+        drain(out);
+      } while (result.isOverflow());
     }
-    Collection<Object> values =
-        keyValues.get(key).stream().filter(Objects::nonNull).collect(Collectors.toList());
-    if (values.isEmpty()) {
-      return defaultVal;
+
+    private void drain(OutputStream out) throws IOException {
+      out.write(bytes.array(), 0, bytes.position());
+      bytes.clear();
     }
-    return Joiner.on(", ").join(values);
   }
 
   public static class Builder {
@@ -315,6 +426,7 @@ public class ContentTemplate {
     private LinkedHashSet<String> mediumContent = new LinkedHashSet<>();
     private LinkedHashSet<String> lowContent = new LinkedHashSet<>();
     private String template = "";
+    private List<String> literals = new ArrayList<>();
     // include the field name in the content option
     private boolean includeFieldName = true;
     private UnmappedColumnsMode unmappedColumnMode = UnmappedColumnsMode.APPEND;
@@ -429,6 +541,8 @@ public class ContentTemplate {
      * will be preserved with highs preceding mediums preceding lows. Additionally, the order is
      * preserved within each priority based on the initial lists.</p>
      *
+     * <p>The literal HTML between each "%s" is kept in {@link #literals} for rendering.</p>
+     *
      * @return the HTML template
      */
     private String makeTemplate() {
@@ -439,30 +553,43 @@ public class ContentTemplate {
               || !this.lowContent.isEmpty(),
           "Cannot create content HTML without any content.");
       removeDuplicates();
-      StringBuilder stringBuilder = new StringBuilder();
-      stringBuilder
+      literals = new ArrayList<>();
+      StringBuilder literal = new StringBuilder();
+      literal
           .append("<!DOCTYPE html>\n")
           .append("<html lang='en'>\n")
           .append("<head>\n")
           .append("<meta http-equiv='Content-Type' content='text/html; charset=utf-8'/>\n")
-          .append("<title>%s</title>\n")
-          .append("</head>\n")
-          .append("<body>\n");
-      stringBuilder.append(getDiv(title, HIGH_TAG, HIGH_TAG_CLOSE, includeFieldName));
+          .append("<title>");
+      addLiteral(literal);
+      literal.append("</title>\n").append("</head>\n").append("<body>\n");
+      addDiv(literal, title, HIGH_TAG, HIGH_TAG_CLOSE);
       for (String field : highContent) {
-        stringBuilder.append(getDiv(field, HIGH_TAG, HIGH_TAG_CLOSE, includeFieldName));
+        addDiv(literal, field, HIGH_TAG, HIGH_TAG_CLOSE);
       }
       for (String field : mediumContent) {
-        stringBuilder.append(getDiv(field, MEDIUM_TAG, MEDIUM_TAG_CLOSE, includeFieldName));
+        addDiv(literal, field, MEDIUM_TAG, MEDIUM_TAG_CLOSE);
       }
       for (String field : lowContent) {
-        stringBuilder.append(getDiv(field, LOW_TAG, LOW_TAG_CLOSE, includeFieldName));
+        addDiv(literal, field, LOW_TAG, LOW_TAG_CLOSE);
       }
       if (unmappedColumnMode == UnmappedColumnsMode.APPEND) {
-        stringBuilder.append("%s");
+        addLiteral(literal);
       }
-      stringBuilder.append("</body>\n").append("</html>\n");
-      return stringBuilder.toString();
+      literal.append("</body>\n").append("</html>\n");
+      addLiteral(literal);
+      return String.join("%s", literals);
+    }
+
+    private void addDiv(StringBuilder literal, String field, String tag, String tagClose) {
+      appendDivStart(literal, field, tag, includeFieldName);
+      addLiteral(literal);
+      appendDivEnd(literal, tagClose);
+    }
+
+    private void addLiteral(StringBuilder literal) {
+      literals.add(literal.toString());
+      literal.setLength(0);
     }
 
     /**
@@ -502,16 +629,33 @@ public class ContentTemplate {
    */
   @VisibleForTesting
   static String getDiv(String key, String tag, String tagClose, boolean includeFieldName) {
+    StringBuilder html = new StringBuilder();
+    appendDivStart(html, key, tag, includeFieldName);
+    html.append("%s");
+    appendDivEnd(html, tagClose);
+    return html.toString();
+  }
+
+  /** Appends the part of {@link #getDiv} preceding the value. */
+  private static void appendDivStart(
+      StringBuilder html, String key, String tag, boolean includeFieldName) {
     checkArgument(!Strings.isNullOrEmpty(key), "Key cannot be null/empty.");
     checkArgument(!Strings.isNullOrEmpty(tag), "Tag cannot be null/empty.");
-    checkArgument(!Strings.isNullOrEmpty(tagClose), "Closing tag cannot be null/empty.");
-    StringBuilder html = new StringBuilder();
-    html.append("<div id='").append(HTML_ESCAPER.escape(key)).append("'>\n");
+    html.append("<div id='");
+    appendEscaped(html, key);
+    html.append("'>\n");
     if (includeFieldName) {
-      html.append("  <p>").append(HTML_ESCAPER.escape(key)).append(":").append("</p>\n");
+      html.append("  <p>");
+      appendEscaped(html, key);
+      html.append(":").append("</p>\n");
     }
-    html.append("  ").append(tag).append("%s").append(tagClose).append("\n");
+    html.append("  ").append(tag);
+  }
+
+  /** Appends the part of {@link #getDiv} following the value. */
+  private static void appendDivEnd(StringBuilder html, String tagClose) {
+    checkArgument(!Strings.isNullOrEmpty(tagClose), "Closing tag cannot be null/empty.");
+    html.append(tagClose).append("\n");
     html.append("</div>\n");
-    return html.toString();
   }
 }
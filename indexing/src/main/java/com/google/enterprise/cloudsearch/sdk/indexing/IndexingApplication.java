@@ -107,6 +107,7 @@ public class IndexingApplication
   @Override
   protected void shutDown() throws Exception {
     logger.log(Level.INFO, "Shutdown Indexing service");
+    StructuredData.stopSchemaRefresh();
     if ((indexingService != null) && indexingService.isRunning()) {
       indexingService.stopAsync().awaitTerminated();
     }
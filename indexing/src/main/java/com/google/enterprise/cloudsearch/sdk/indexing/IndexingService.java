@@ -24,12 +24,17 @@ import com.google.api.services.cloudsearch.v1.model.Schema;
 import com.google.api.services.cloudsearch.v1.model.UploadItemRef;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import java.io.IOException;
 import java.util.List;
 import javax.annotation.Nullable;
 
 /**
  * Access point between the connector developer and the indexing service API backend.
+ *
+ * <p>Index, delete and push requests may be given the {@link Priority} lane they are batched in.
+ * Implementations not supporting lanes ignore it, the default methods send such requests the same
+ * way as the methods without a priority. See also {@link PriorityContext}.
  */
 public interface IndexingService extends Service {
 
@@ -68,6 +73,22 @@ public interface IndexingService extends Service {
   ListenableFuture<Operation> deleteItem(String id, byte[] version, RequestMode requestMode)
       throws IOException;
 
+  /**
+   * Deletes an {@link Item}, batching the request in the given lane.
+   *
+   * @param id the item id.
+   * @param version the item version to compare against the previously stored item update version
+   * @param requestMode mode for delete request
+   * @param priority lane to batch the request in
+   * @return {@link ListenableFuture} that the caller uses to obtain the result of a delete
+   *     operation (using {@link ListenableFuture#get()}).
+   * @throws IOException when service throws an exception.
+   */
+  default ListenableFuture<Operation> deleteItem(
+      String id, byte[] version, RequestMode requestMode, Priority priority) throws IOException {
+    return deleteItem(id, version, requestMode);
+  }
+
   /**
    * Deletes items from a queue.
    *
@@ -107,6 +128,21 @@ public interface IndexingService extends Service {
    */
   ListenableFuture<Operation> indexItem(Item item, RequestMode requestMode) throws IOException;
 
+  /**
+   * Sends an {@link Item} for indexing, batching the request in the given lane.
+   *
+   * @param item the item
+   * @param requestMode {@link RequestMode} for {@link Item} index request
+   * @param priority lane to batch the request in
+   * @return {@link ListenableFuture} that the caller uses to obtain the result of an update
+   *     operation (using {@link ListenableFuture#get()})
+   * @throws IOException when service throws exception
+   */
+  default ListenableFuture<Operation> indexItem(
+      Item item, RequestMode requestMode, Priority priority) throws IOException {
+    return indexItem(item, requestMode);
+  }
+
   /**
    * Sends an {@link Item} and associated content for indexing.
    *
@@ -126,6 +162,30 @@ public interface IndexingService extends Service {
       RequestMode requestMode)
       throws IOException;
 
+  /**
+   * Sends an {@link Item} and associated content for indexing, batching the index request in the
+   * given lane.
+   *
+   * @param item the item
+   * @param content the item's content
+   * @param contentHash the hash of the item's content
+   * @param requestMode {@link RequestMode} for {@link Item} index request
+   * @param priority lane to batch the index request in
+   * @return {@link ListenableFuture} that the caller uses to obtain the result of an update
+   *     operation (using {@link ListenableFuture#get()})
+   * @throws IOException when service throws exception
+   */
+  default ListenableFuture<Operation> indexItemAndContent(
+      Item item,
+      AbstractInputStreamContent content,
+      @Nullable String contentHash,
+      ContentFormat contentFormat,
+      RequestMode requestMode,
+      Priority priority)
+      throws IOException {
+    return indexItemAndContent(item, content, contentHash, contentFormat, requestMode);
+  }
+
   /**
    * Fetches {@link Item} entries from the queue using custom API parameters.
    *
@@ -156,6 +216,22 @@ public interface IndexingService extends Service {
    */
   ListenableFuture<Item> push(String id, PushItem pushItem) throws IOException;
 
+  /**
+   * Pushes a {@link PushItem} object to indexing API Queue, batching the request in the given
+   * lane.
+   *
+   * @param id the item id
+   * @param pushItem the item to push
+   * @param priority lane to batch the request in
+   * @return {@link ListenableFuture} that the caller uses to obtain the result of a push operation
+   *     (using {@link ListenableFuture#get()})
+   * @throws IOException when service throws exception
+   */
+  default ListenableFuture<Item> push(String id, PushItem pushItem, Priority priority)
+      throws IOException {
+    return push(id, pushItem);
+  }
+
   /**
    * Unreserves previously polled {@link Item} entries in a specific queue.
    *
@@ -60,7 +60,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.escape.Escaper;
-import com.google.common.io.ByteStreams;
 import com.google.common.net.UrlEscapers;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -68,10 +67,13 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.ServiceManager;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.BaseApiService;
 import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors;
 import com.google.enterprise.cloudsearch.sdk.CredentialFactory;
 import com.google.enterprise.cloudsearch.sdk.GoogleProxy;
+import com.google.enterprise.cloudsearch.sdk.HttpTransportPool;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.LocalFileCredentialFactory;
 import com.google.enterprise.cloudsearch.sdk.QuotaServer;
@@ -83,6 +85,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -93,6 +97,11 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -105,6 +114,9 @@ import javax.annotation.Nullable;
  * com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items} objects are
  * processed through this object.
  *
+ * <p>Index, delete and push requests are batched in the {@link Priority} lane of the caller's
+ * {@link PriorityContext}, or in the lane given to the methods taking a {@link Priority}.
+ *
  * <p>Configuration parameters:
  *
  * <ul>
@@ -119,6 +131,11 @@ import javax.annotation.Nullable;
  *       separate upload.
  *   <li>{@value #INDEXING_SERVICE_REQUEST_MODE} - Specifies the default request mode for index and
  *       delete item requests
+ *   <li>{@value #CONTENT_UPLOAD_THREADS} - Specifies the number of threads used to upload content
+ *       above the upload threshold. If greater than 0, content uploads are pipelined: the start
+ *       upload requests are batched, content is uploaded concurrently and each index request is
+ *       batched once its upload completes, so that the calling thread does not wait for any of
+ *       these steps. Default is 0, which uploads content on the calling thread.
  * </ul>
  */
 public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements IndexingService {
@@ -130,6 +147,7 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
   public static final String CONNECTOR_ID = "api.connectorId";
   public static final String UPLOAD_THRESHOLD_BYTES = "api.contentUploadThresholdBytes";
   public static final String INDEXING_SERVICE_REQUEST_MODE = "api.defaultRequestMode";
+  public static final String CONTENT_UPLOAD_THREADS = "api.contentUploadThreads";
   public static final String REQUEST_CONNECT_TIMEOUT = "indexingService.connectTimeoutSeconds";
   public static final String REQUEST_READ_TIMEOUT = "indexingService.readTimeoutSeconds";
   public static final String ENABLE_API_DEBUGGING = "indexingService.enableDebugging";
@@ -150,6 +168,17 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
       Collections.singleton("https://www.googleapis.com/auth/cloud_search");
   private static final Escaper URL_PATH_SEGMENT_ESCAPER = UrlEscapers.urlPathSegmentEscaper();
   private static final RequestMode DEFAULT_REQUEST_MODE = RequestMode.SYNCHRONOUS;
+  // Same encoding as ItemContent.encodeInlineContent
+  private static final Base64.Encoder INLINE_CONTENT_ENCODER =
+      Base64.getUrlEncoder().withoutPadding();
+  // Read buffer for inline content, reused per thread; buffers larger than this are not kept
+  private static final int MAX_POOLED_INLINE_BUFFER_SIZE = 1 << 20;
+  private static final ThreadLocal<byte[]> inlineContentBuffer =
+      ThreadLocal.withInitial(() -> new byte[0]);
+  // counts whether inline content was read into the per thread buffer or a newly allocated one
+  static final String INLINE_CONTENT_BUFFER = "inlineContentBuffer";
+  static final String RESULT_BUFFER_REUSED = "REUSED";
+  static final String RESULT_BUFFER_ALLOCATED = "ALLOCATED";
 
   private final String sourceId;
   private final String identitySourceId;
@@ -167,6 +196,15 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
   private final RequestMode requestMode;
   private final boolean enableApiDebugging;
   private final boolean allowUnknownGsuitePrincipals;
+  /** Limits pipelined content uploads in flight, {@code null} if uploads are not pipelined. */
+  @Nullable private final Semaphore pipelinedUploads;
+  /**
+   * Runs pipelined index requests once quota is granted, {@code null} if uploads are not
+   * pipelined.
+   */
+  @Nullable private final ExecutorService contentUploadExecutor;
+  /** Skips index requests for unchanged items, {@code null} if disabled. */
+  @Nullable private final ContentHashCache contentHashCache;
 
   /** API Operations */
   public enum Operations {
@@ -247,6 +285,12 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     this.requestMode = builder.requestMode;
     this.enableApiDebugging = builder.enableApiDebugging;
     this.allowUnknownGsuitePrincipals = builder.allowUnknownGsuitePrincipals;
+    // Allow twice as many uploads in flight as upload threads, so that start upload requests for
+    // the next items are batched while content for earlier items is being uploaded.
+    this.pipelinedUploads =
+        builder.contentUploadThreads > 0 ? new Semaphore(2 * builder.contentUploadThreads) : null;
+    this.contentUploadExecutor = builder.contentUploadExecutor;
+    this.contentHashCache = builder.contentHashCache;
   }
 
   public static class Builder extends BaseApiService.AbstractBuilder<Builder, CloudSearch> {
@@ -266,6 +310,9 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     private int contentUploadReadTimeoutSeconds = DEFAULT_READ_TIMEOUT_SECONDS;
     private boolean enableApiDebugging;
     private boolean allowUnknownGsuitePrincipals;
+    private int contentUploadThreads;
+    private ExecutorService contentUploadExecutor;
+    private ContentHashCache contentHashCache;
 
     public Builder setSourceId(String sourceId) {
       this.sourceId = sourceId;
@@ -307,6 +354,11 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
       return this;
     }
 
+    public Builder setContentUploadThreads(int contentUploadThreads) {
+      this.contentUploadThreads = contentUploadThreads;
+      return this;
+    }
+
     public Builder setContentUploadRequestTimeout(
         int connectTimeoutSeconds, int readTimeoutSeconds) {
       this.contentUploadConnectTimeoutSeconds = connectTimeoutSeconds;
@@ -314,6 +366,16 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
       return this;
     }
 
+    /**
+     * Sets the cache used to skip index requests for items unchanged since they were last indexed.
+     *
+     * @param contentHashCache the cache, or {@code null} to index all items
+     */
+    public Builder setContentHashCache(@Nullable ContentHashCache contentHashCache) {
+      this.contentHashCache = contentHashCache;
+      return this;
+    }
+
     // TODO(bmj): revoke public after refactoring sdk.ConnectorTraverser
     @VisibleForTesting
     public Builder setBatchingIndexingService(BatchingIndexingService batchingService) {
@@ -348,6 +410,7 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
       checkNotNull(serviceManagerHelper, "Service Manager Helper can not be null");
       checkNotNull(versionProvider, "Version Provider can not be null");
       checkArgument(contentUploadThreshold >= 0, "Content Upload Threshold can not be less than 0");
+      checkArgument(contentUploadThreads >= 0, "Content Upload Threads can not be less than 0");
       checkNotNull(quotaServer, "quota server can not be null");
       checkNotNull(retryPolicy, "retry policy can not be null");
       checkNotNull(requestMode, "request mode can not be null");
@@ -373,6 +436,10 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
                 .setCredential(credential)
                 .build();
       }
+      if (contentUploadThreads > 0) {
+        contentUploadExecutor =
+            ConnectorExecutors.newBoundedExecutor("content-upload-%d", false, contentUploadThreads);
+      }
       if (contentUploadService == null) {
         contentUploadService =
             new ContentUploadServiceImpl.Builder()
@@ -381,8 +448,13 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
                 .setRootUrl(rootUrl)
                 .setRetryPolicy(retryPolicy)
                 .setProxy(googleProxy)
+                .setTransportPool(transportPool)
                 .setRequestTimeout(
                     contentUploadConnectTimeoutSeconds, contentUploadReadTimeoutSeconds)
+                .setExecutorService(
+                    contentUploadExecutor != null
+                        ? contentUploadExecutor
+                        : MoreExecutors.newDirectExecutorService())
                 .build();
       }
       return new IndexingServiceImpl(this);
@@ -425,6 +497,12 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
       boolean enableApiDebugging = Configuration.getBoolean(ENABLE_API_DEBUGGING, false).get();
       boolean allowUnknownGsuitePrincipals =
           Configuration.getBoolean(ALLOW_UNKNOWN_GSUITE_PRINCIPALS, false).get();
+      int contentUploadThreads = Configuration.getInteger(CONTENT_UPLOAD_THREADS, 0).get();
+      Configuration.checkConfiguration(
+          contentUploadThreads >= 0,
+          "Invalid content upload threads value [%s] for configuration key [%s]",
+          contentUploadThreads,
+          CONTENT_UPLOAD_THREADS);
 
       return new IndexingServiceImpl.Builder()
           .setSourceId(Configuration.getString(SOURCE_ID, null).get())
@@ -436,6 +514,7 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
           .setJsonFactory(JacksonFactory.getDefaultInstance())
           .setQuotaServer(QuotaServer.createFromConfiguration("indexingService", Operations.class))
           .setProxy(GoogleProxy.fromConfiguration())
+          .setTransportPool(HttpTransportPool.fromConfiguration())
           .setRootUrl(Configuration.getString(ROOT_URL, "").get())
           .setBatchPolicy(BatchPolicy.fromConfiguration())
           .setRetryPolicy(RetryPolicy.fromConfiguration())
@@ -449,7 +528,9 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
                       IndexingServiceImpl.DEFAULT_CONTENT_UPLOAD_THRESHOLD_BYTES)
                   .get())
           .setEnableDebugging(enableApiDebugging)
-          .setAllowUnknownGsuitePrincipals(allowUnknownGsuitePrincipals);
+          .setAllowUnknownGsuitePrincipals(allowUnknownGsuitePrincipals)
+          .setContentUploadThreads(contentUploadThreads)
+          .setContentHashCache(ContentHashCache.fromConfiguration());
     }
 
     @Override
@@ -506,6 +587,9 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     deleteRequest.setVersion(
         Base64.getEncoder()
             .encodeToString((version != null) ? version : versionProvider.getVersion()));
+    if (contentHashCache != null) {
+      contentHashCache.remove(id);
+    }
     try {
       acquireToken(Operations.DEFAULT);
       return batchingService.deleteItem(deleteRequest);
@@ -516,6 +600,26 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     }
   }
 
+  /**
+   * Deletes an {@link Item}, batching the request in lane {@code priority} rather than the lane of
+   * the caller's {@link PriorityContext}.
+   *
+   * @param id the item id.
+   * @param version the item's version used to compare against the previously indexed item's version
+   * @param requestMode mode for delete request
+   * @param priority lane to batch the request in
+   * @return {@link ListenableFuture} that the caller uses to obtain the result of a delete
+   *     operation (using {@link ListenableFuture#get()}).
+   * @throws IOException when service throws an exception.
+   */
+  @Override
+  public ListenableFuture<Operation> deleteItem(
+      String id, byte[] version, RequestMode requestMode, Priority priority) throws IOException {
+    try (PriorityContext.Scope scope = PriorityContext.enter(priority)) {
+      return deleteItem(id, version, requestMode);
+    }
+  }
+
   /**
    * Deletes items from a queue.
    *
@@ -528,6 +632,10 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
   public ListenableFuture<Operation> deleteQueueItems(String queueName) throws IOException {
     validateRunning();
     checkArgument(!Strings.isNullOrEmpty(queueName), "Queue name cannot be null.");
+    if (contentHashCache != null) {
+      // items still in the queue are deleted, so that they are indexed when seen again
+      contentHashCache.removeQueue(queueName);
+    }
 
     DeleteQueueItems request =
         this.service
@@ -708,26 +816,116 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     validateRunning();
     checkArgument(item != null, "Item cannot be null.");
     checkArgument(!Strings.isNullOrEmpty(item.getName()), "Item name cannot be null.");
+    return indexIfChanged(
+        item, null, () -> doIndexItem(item, requestMode, PriorityContext.current()));
+  }
+
+  /**
+   * Updates an {@link Item}, batching the request in lane {@code priority} rather than the lane of
+   * the caller's {@link PriorityContext}.
+   *
+   * @param item the item to update
+   * @param requestMode the {@link IndexingService.RequestMode} for the request
+   * @param priority lane to batch the request in
+   * @return {@link ListenableFuture}. Caller can use {@link ListenableFuture#get()} to obtain a
+   *     result of an update operation
+   * @throws IOException when the service throws an exception
+   */
+  @Override
+  public ListenableFuture<Operation> indexItem(
+      Item item, RequestMode requestMode, Priority priority) throws IOException {
+    try (PriorityContext.Scope scope = PriorityContext.enter(priority)) {
+      return indexItem(item, requestMode);
+    }
+  }
+
+  private ListenableFuture<Operation> doIndexItem(
+      Item item, RequestMode requestMode, Priority priority) throws IOException {
+    Index updateRequest = getIndexRequest(item, requestMode);
+    acquireToken(Operations.DEFAULT);
+    return batchIndexRequest(updateRequest, priority);
+  }
+
+  /** Sends an index request, unless {@link ContentHashCache} knows the item is unchanged. */
+  private interface IndexRequestSender {
+    ListenableFuture<Operation> send() throws IOException;
+  }
+
+  private ListenableFuture<Operation> indexIfChanged(
+      Item item, @Nullable String contentHash, IndexRequestSender sender) throws IOException {
+    if (contentHashCache == null) {
+      return sender.send();
+    }
+    // read before the request adds resource prefix to the name and assigns a version
+    String id = item.getName();
+    ContentHashCache.Entry entry = ContentHashCache.Entry.of(item, contentHash);
+    // deletes of the item after this point win over the entry recorded when the request completes
+    long generation = contentHashCache.getGeneration();
+    if (!contentHashCache.isUnchanged(id, entry)) {
+      ListenableFuture<Operation> indexed = sender.send();
+      indexed.addListener(
+          () -> {
+            if (isSuccessful(indexed)) {
+              recordIndexed(id, entry, generation);
+            }
+          },
+          MoreExecutors.directExecutor());
+      return indexed;
+    }
+    logger.log(Level.FINEST, "Skipping index request for unchanged item {0}", id);
+    if (item.getQueue() == null) {
+      return Futures.immediateFuture(new Operation().setDone(true));
+    }
+    // keep the item in its queue, so that it's not deleted with items not seen in a traversal
+    return Futures.transform(
+        push(id, new PushItem().setType("NOT_MODIFIED").setQueue(item.getQueue())),
+        pushed -> {
+          recordIndexed(id, entry, generation);
+          return new Operation().setDone(true);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static boolean isSuccessful(ListenableFuture<?> future) {
+    try {
+      Futures.getDone(future);
+      return true;
+    } catch (ExecutionException | CancellationException e) {
+      return false;
+    }
+  }
+
+  private void recordIndexed(String id, ContentHashCache.Entry entry, long generation) {
+    try {
+      contentHashCache.put(id, entry, generation);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to record indexed item " + id + " in hash cache", e);
+    }
+  }
+
+  private Index getIndexRequest(Item item, RequestMode requestMode) throws IOException {
     addResourcePrefix(item);
     if (item.decodeVersion() == null) {
       item.encodeVersion(versionProvider.getVersion());
     }
-    Index updateRequest =
-        service
-            .indexing()
-            .datasources()
-            .items()
-            .index(
-                item.getName(),
-                new IndexItemRequest()
-                    .setDebugOptions(new DebugOptions().setEnableDebugging(enableApiDebugging))
-                    .setIndexItemOptions(new IndexItemOptions()
-                        .setAllowUnknownGsuitePrincipals(allowUnknownGsuitePrincipals))
-                    .setItem(item)
-                    .setMode(getRequestMode(requestMode))
-                    .setConnectorName(connectorName));
-    try {
-      acquireToken(Operations.DEFAULT);
+    return service
+        .indexing()
+        .datasources()
+        .items()
+        .index(
+            item.getName(),
+            new IndexItemRequest()
+                .setDebugOptions(new DebugOptions().setEnableDebugging(enableApiDebugging))
+                .setIndexItemOptions(new IndexItemOptions()
+                    .setAllowUnknownGsuitePrincipals(allowUnknownGsuitePrincipals))
+                .setItem(item)
+                .setMode(getRequestMode(requestMode))
+                .setConnectorName(connectorName));
+  }
+
+  /** Batches an index request in lane {@code priority}, also when called by another thread. */
+  private ListenableFuture<Operation> batchIndexRequest(Index updateRequest, Priority priority) {
+    try (PriorityContext.Scope scope = PriorityContext.enter(priority)) {
       return batchingService.indexItem(updateRequest);
     } catch (InterruptedException e) {
       logger.log(Level.WARNING, "Interrupted while batching update request", e);
@@ -771,6 +969,49 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     checkArgument(item != null, "Item cannot be null.");
     checkArgument(!Strings.isNullOrEmpty(item.getName()), "Item ID cannot be null.");
     checkNotNull(content, "Item content cannot be null.");
+    return indexIfChanged(
+        item,
+        contentHash,
+        () -> doIndexItemAndContent(item, content, contentHash, contentFormat, requestMode));
+  }
+
+  /**
+   * Updates an {@link Item} and its content, batching the index request in lane {@code priority}
+   * rather than the lane of the caller's {@link PriorityContext}.
+   *
+   * @param item the item to update
+   * @param content the item's content
+   * @param contentHash the hash of the item's content
+   * @param contentFormat format of the content
+   * @param requestMode the {@link IndexingService.RequestMode} for the request
+   * @param priority lane to batch the index request in
+   * @return {@link ListenableFuture}. Caller can use {@link ListenableFuture#get()} to obtain the
+   *     result of an update operation
+   * @throws IOException when the service throws an exception
+   */
+  @Override
+  public ListenableFuture<Operation> indexItemAndContent(
+      Item item,
+      AbstractInputStreamContent content,
+      @Nullable String contentHash,
+      ContentFormat contentFormat,
+      RequestMode requestMode,
+      Priority priority)
+      throws IOException {
+    try (PriorityContext.Scope scope = PriorityContext.enter(priority)) {
+      return indexItemAndContent(item, content, contentHash, contentFormat, requestMode);
+    }
+  }
+
+  private ListenableFuture<Operation> doIndexItemAndContent(
+      Item item,
+      AbstractInputStreamContent content,
+      @Nullable String contentHash,
+      ContentFormat contentFormat,
+      RequestMode requestMode)
+      throws IOException {
+    // the index request may be batched by the thread completing the upload
+    Priority priority = PriorityContext.current();
     long length = content.getLength();
     boolean useInline = (length <= contentUploadThreshold) && (length >= 0);
     if (useInline) {
@@ -780,10 +1021,13 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
           new Object[] {item.getName(), length});
       item.setContent(
           new ItemContent()
-              .encodeInlineContent(convertStreamToByteArray(content))
+              .setInlineContent(encodeInlineContent(content, (int) length))
               .setHash(contentHash)
               .setContentFormat(contentFormat.name()));
-      return indexItem(item, requestMode);
+      return doIndexItem(item, requestMode, priority);
+    } else if (pipelinedUploads != null) {
+      return indexItemAndUploadContentAsync(
+          item, content, contentHash, contentFormat, requestMode, priority);
     } else {
       UploadItemRef uploadRef = startUpload(item.getName());
       logger.log(
@@ -803,10 +1047,80 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
               MoreExecutors.directExecutor());
 
       return Futures.transformAsync(
-          itemUploaded, i -> indexItem(i, requestMode), MoreExecutors.directExecutor());
+          itemUploaded,
+          i -> doIndexItem(i, requestMode, priority),
+          MoreExecutors.directExecutor());
     }
   }
 
+  /**
+   * Uploads content and indexes an {@link Item} without blocking the caller beyond batching the
+   * start upload request. Once the start upload request completes, content is uploaded by {@link
+   * ContentUploadService} and the index request is batched when the upload completes and quota
+   * for it is granted by {@link QuotaServer#acquireAsync}.
+   */
+  private ListenableFuture<Operation> indexItemAndUploadContentAsync(
+      Item item,
+      AbstractInputStreamContent content,
+      @Nullable String contentHash,
+      ContentFormat contentFormat,
+      RequestMode requestMode,
+      Priority priority)
+      throws IOException {
+    Upload uploadRequest = getStartUploadRequest(item.getName());
+    ListenableFuture<UploadItemRef> uploadRef;
+    try {
+      pipelinedUploads.acquire();
+    } catch (InterruptedException e) {
+      logger.log(Level.WARNING, "Interrupted while waiting for content upload", e);
+      Thread.currentThread().interrupt();
+      return getInterruptedFuture(e);
+    }
+    try {
+      acquireToken(Operations.DEFAULT);
+      uploadRef = batchingService.startUpload(uploadRequest);
+    } catch (InterruptedException e) {
+      pipelinedUploads.release();
+      logger.log(Level.WARNING, "Interrupted while batching start upload request", e);
+      Thread.currentThread().interrupt();
+      return getInterruptedFuture(e);
+    }
+    ListenableFuture<Item> itemUploaded =
+        Futures.transformAsync(
+            uploadRef,
+            ref -> {
+              logger.log(
+                  Level.FINEST,
+                  "Uploading content for {0}, upload ref {1}",
+                  new Object[] {item.getName(), ref.getName()});
+              return Futures.transform(
+                  contentUploadService.uploadContent(ref.getName(), content),
+                  voidVal ->
+                      item.setContent(
+                          new ItemContent()
+                              .setContentDataRef(ref)
+                              .setHash(contentHash)
+                              .setContentFormat(contentFormat.name())),
+                  MoreExecutors.directExecutor());
+            },
+            MoreExecutors.directExecutor());
+    // quota for the index request is acquired without parking the thread completing the upload;
+    // batching may block, so it runs on an upload thread rather than the quota scheduler thread
+    ListenableFuture<Operation> indexed =
+        Futures.transformAsync(
+            itemUploaded,
+            i -> {
+              Index updateRequest = getIndexRequest(i, requestMode);
+              return Futures.transformAsync(
+                  quotaServer.acquireAsync(Operations.DEFAULT),
+                  waited -> batchIndexRequest(updateRequest, priority),
+                  contentUploadExecutor);
+            },
+            MoreExecutors.directExecutor());
+    indexed.addListener(pipelinedUploads::release, MoreExecutors.directExecutor());
+    return indexed;
+  }
+
   /**
    * Polls the queue using custom API parameters.
    *
@@ -937,6 +1251,25 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     }
   }
 
+  /**
+   * Pushes a {@link PushItem} object to the indexing API Queue, batching the request in lane {@code
+   * priority} rather than the lane of the caller's {@link PriorityContext}. Repository errors are
+   * always pushed as {@link Priority#INTERACTIVE}.
+   *
+   * @param pushItem the item to push
+   * @param priority lane to batch the request in
+   * @return {@link ListenableFuture}. Caller can use {@link ListenableFuture#get()} to obtain the
+   *     result of a push operation
+   * @throws IOException when the service throws an exception
+   */
+  @Override
+  public ListenableFuture<Item> push(String id, PushItem pushItem, Priority priority)
+      throws IOException {
+    try (PriorityContext.Scope scope = PriorityContext.enter(priority)) {
+      return push(id, pushItem);
+    }
+  }
+
   /**
    * Unreserves the polled {@link Item} objects in a specific queue.
    *
@@ -1001,10 +1334,45 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
     }
   }
 
-  private byte[] convertStreamToByteArray(AbstractInputStreamContent content) throws IOException {
+  /**
+   * Reads content into a reusable per thread buffer and encodes it the same way as {@link
+   * ItemContent#encodeInlineContent}, without allocating an intermediate copy of the content.
+   * Whether the buffer was reused or had to be allocated is counted as a result of the {@value
+   * #INLINE_CONTENT_BUFFER} operation of the {@code IndexingService} statistics component.
+   *
+   * @param content content to encode
+   * @param expectedLength length reported by content, used to size the buffer
+   * @return web safe base64 encoded content
+   */
+  @VisibleForTesting
+  static String encodeInlineContent(AbstractInputStreamContent content, int expectedLength)
+      throws IOException {
+    byte[] pooled = inlineContentBuffer.get();
+    byte[] buffer = pooled;
+    // one extra byte so that a stream of exactly expectedLength bytes never needs to grow buffer
+    if (buffer.length <= expectedLength) {
+      buffer = new byte[expectedLength + 1];
+    }
+    int length = 0;
     try (InputStream is = content.getInputStream()) {
-      return ByteStreams.toByteArray(is);
+      int read;
+      while ((read = is.read(buffer, length, buffer.length - length)) != -1) {
+        length += read;
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+      }
     }
+    if (buffer == pooled) {
+      indexingServiceStats.logResult(INLINE_CONTENT_BUFFER, RESULT_BUFFER_REUSED);
+    } else {
+      indexingServiceStats.logResult(INLINE_CONTENT_BUFFER, RESULT_BUFFER_ALLOCATED);
+      if (buffer.length <= MAX_POOLED_INLINE_BUFFER_SIZE) {
+        inlineContentBuffer.set(buffer);
+      }
+    }
+    ByteBuffer encoded = INLINE_CONTENT_ENCODER.encode(ByteBuffer.wrap(buffer, 0, length));
+    return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
   }
 
   private void addResourcePrefix(Item item) {
@@ -1095,6 +1463,13 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
   @Override
   protected void shutDown() throws Exception {
     serviceManagerHelper.stopAndAwaitStopped(serviceManager);
+    if (contentUploadExecutor != null) {
+      MoreExecutors.shutdownAndAwaitTermination(contentUploadExecutor, 10, TimeUnit.SECONDS);
+    }
+    if (contentHashCache != null) {
+      contentHashCache.close();
+    }
+    quotaServer.close();
   }
 
   // TODO(bmj): revoke public after refactoring sdk.ConnectorTraverser
@@ -1116,20 +1491,23 @@ public class IndexingServiceImpl extends BaseApiService<CloudSearch> implements
 
   @Override
   public UploadItemRef startUpload(String itemId) throws IOException {
-    Upload uploadRequest =
-        service
-            .indexing()
-            .datasources()
-            .items()
-            .upload(
-                getItemResourceName(itemId),
-                new StartUploadItemRequest()
-                    .setConnectorName(connectorName)
-                    .setDebugOptions(new DebugOptions().setEnableDebugging(enableApiDebugging)));
+    Upload uploadRequest = getStartUploadRequest(itemId);
     acquireToken(Operations.DEFAULT);
     return executeRequest(uploadRequest, indexingServiceStats, true /* intializeDefaults */);
   }
 
+  private Upload getStartUploadRequest(String itemId) throws IOException {
+    return service
+        .indexing()
+        .datasources()
+        .items()
+        .upload(
+            getItemResourceName(itemId),
+            new StartUploadItemRequest()
+                .setConnectorName(connectorName)
+                .setDebugOptions(new DebugOptions().setEnableDebugging(enableApiDebugging)));
+  }
+
   @Override
   public Schema getSchema() throws IOException {
     GetSchema getSchemaRequest =
@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
+
+/**
+ * {@link Priority} lane of the indexing requests sent by the current thread.
+ *
+ * <p>{@link IndexingServiceImpl} and {@link BatchingIndexingServiceImpl} queue requests in the lane
+ * of the innermost scope entered by the sending thread, {@link Priority#DEFAULT} outside of any
+ * scope. Connector templates execute the operations of traversals as {@link Priority#BULK}:
+ *
+ * <pre>{@code
+ * try (PriorityContext.Scope scope = PriorityContext.enter(Priority.BULK)) {
+ *   operation.execute(indexingService);
+ * }
+ * }</pre>
+ */
+public final class PriorityContext {
+  private static final ThreadLocal<Priority> current =
+      ThreadLocal.withInitial(() -> Priority.DEFAULT);
+
+  private PriorityContext() {}
+
+  /**
+   * Gets the lane of requests sent by the current thread.
+   *
+   * @return lane of the innermost scope, {@link Priority#DEFAULT} outside of any scope
+   */
+  public static Priority current() {
+    return current.get();
+  }
+
+  /**
+   * Sends requests of the current thread in lane {@code priority} until the returned scope is
+   * closed.
+   *
+   * @param priority lane to send requests in
+   * @return scope restoring the previous lane when closed
+   */
+  public static Scope enter(Priority priority) {
+    checkNotNull(priority, "priority can not be null");
+    Scope scope = new Scope(current.get());
+    current.set(priority);
+    return scope;
+  }
+
+  /** Scope of a lane, closed by the thread that entered it. */
+  public static final class Scope implements AutoCloseable {
+    private final Priority previous;
+
+    private Scope(Priority previous) {
+      this.previous = previous;
+    }
+
+    /** Restores the lane in effect before the scope was entered. */
+    @Override
+    public void close() {
+      current.set(previous);
+    }
+  }
+}
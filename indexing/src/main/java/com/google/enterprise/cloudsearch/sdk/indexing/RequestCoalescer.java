@@ -0,0 +1,269 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.services.cloudsearch.v1.model.Item;
+import com.google.api.services.cloudsearch.v1.model.Operation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
+import com.google.enterprise.cloudsearch.sdk.BatchRequestService;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps index, delete and push requests for the same item in submission order, and optionally
+ * coalesces them while they wait in the queue of a {@link BatchRequestService}, used by {@link
+ * BatchingIndexingServiceImpl}.
+ *
+ * <p>Requests in different {@link Priority} lanes may be sent in any order, so a request for an
+ * item with requests not yet completed is queued in the lane of those requests, even if it was
+ * created for another lane.
+ *
+ * <p>When coalescing, a request is superseded by the next request for the same item if both are
+ * of the same type, as long as the earlier one has not been taken from the queue for execution:
+ *
+ * <ul>
+ *   <li>an index request is superseded by a later index request
+ *   <li>a delete request is superseded by a later delete request
+ *   <li>a push request is superseded by a later push request of the same push type to the same
+ *       queue
+ * </ul>
+ *
+ * <p>Superseded requests are never sent, and their callers share the future of the request finally
+ * executed. If a request superseding a queued request can't be added to the {@link
+ * BatchRequestService}, the superseded request is sent again. Superseded requests are counted as
+ * results of the {@value #OPERATION_SAVED} operation in the {@value #STATS_COMPONENT} statistics
+ * component.
+ */
+class RequestCoalescer {
+  private static final Logger logger = Logger.getLogger(RequestCoalescer.class.getName());
+
+  static final String STATS_COMPONENT = "RequestCoalescer";
+  static final String OPERATION_SAVED = "saved";
+  static final String RESULT_INDEX = "INDEX";
+  static final String RESULT_DELETE = "DELETE";
+  static final String RESULT_PUSH = "PUSH";
+
+  private final OperationStats stats = StatsManager.getComponent(STATS_COMPONENT);
+  private final BatchRequestService batchService;
+  private final boolean coalesce;
+  // guarded by this
+  private final Map<String, ItemRequests> items = new HashMap<>();
+
+  /**
+   * Creates an instance adding requests to {@code batchService}.
+   *
+   * @param batchService service batching the requests
+   * @param coalesce whether queued requests are superseded by later requests of the same type
+   */
+  RequestCoalescer(BatchRequestService batchService, boolean coalesce) {
+    this.batchService = checkNotNull(batchService);
+    this.coalesce = coalesce;
+  }
+
+  /**
+   * Adds an index request, superseding a queued index request for the same item.
+   *
+   * @param name item resource name
+   * @param request index request
+   * @return future shared by all coalesced requests
+   */
+  ListenableFuture<Operation> index(String name, AsyncRequest<Operation> request)
+      throws InterruptedException {
+    return add(name, RESULT_INDEX, request, RESULT_INDEX);
+  }
+
+  /**
+   * Adds a delete request, superseding a queued delete request for the same item.
+   *
+   * @param name item resource name
+   * @param request delete request
+   * @return future shared by all coalesced requests
+   */
+  ListenableFuture<Operation> delete(String name, AsyncRequest<Operation> request)
+      throws InterruptedException {
+    return add(name, RESULT_DELETE, request, RESULT_DELETE);
+  }
+
+  /**
+   * Adds a push request, superseding a queued push request of the same type for the same item and
+   * queue.
+   *
+   * @param name item resource name
+   * @param type push type, null if unknown
+   * @param queue queue the item is pushed to, null for the default queue
+   * @param request push request
+   * @return future shared by all coalesced requests
+   */
+  ListenableFuture<Item> push(
+      String name, @Nullable String type, @Nullable String queue, AsyncRequest<Item> request)
+      throws InterruptedException {
+    return add(name, RESULT_PUSH + "/" + type + "/" + queue, request, RESULT_PUSH);
+  }
+
+  /**
+   * Adds {@code request} to the batch service in the lane of the item's pending requests,
+   * superseding the latest of them if it's a queued request of the same kind.
+   *
+   * @param kind type of the request, requests of the same kind are for the same result type
+   */
+  private <T> ListenableFuture<T> add(
+      String name, String kind, AsyncRequest<T> request, String savedResult)
+      throws InterruptedException {
+    ItemRequests state;
+    Slot<T> slot = null;
+    AsyncRequest<T> previous = null;
+    AsyncRequest<T> sent;
+    synchronized (this) {
+      state = items.computeIfAbsent(name, n -> new ItemRequests(request.getPriority()));
+      // queued behind the item's pending requests, which may be in another lane
+      sent = request.getPriority() == state.lane ? request : request.copy(state.lane);
+      // counted before cancelling the superseded request, so that the state is kept
+      state.pending++;
+      Slot<T> last = getLast(state, kind);
+      if (coalesce && last != null) {
+        AsyncRequest<T> queued = last.request;
+        // set before cancelling, so that completion of the queued request is ignored
+        last.request = sent;
+        if (queued.cancelIfQueued()) {
+          stats.logResult(OPERATION_SAVED, savedResult);
+          slot = last;
+          previous = queued;
+        } else {
+          // already executing, completion of the queued request leaves the new slot in place
+          last.request = queued;
+        }
+      }
+      if (slot == null) {
+        slot = new Slot<>(kind, sent);
+        state.last = slot;
+      }
+    }
+    addListener(name, state, slot, sent);
+    try {
+      batchService.add(sent);
+    } catch (InterruptedException | RuntimeException e) {
+      if (previous != null) {
+        restore(name, state, slot, sent, previous, e);
+      }
+      sent.cancel();
+      throw e;
+    }
+    return slot.result;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  private static <T> Slot<T> getLast(ItemRequests state, String kind) {
+    // requests of the same kind have the same result type
+    return state.last != null && state.last.kind.equals(kind) ? (Slot<T>) state.last : null;
+  }
+
+  /**
+   * Sends the request superseded by {@code request} again, since {@code request} could not be
+   * added, unless a later request for the item was added in the meantime.
+   */
+  private <T> void restore(
+      String name,
+      ItemRequests state,
+      Slot<T> slot,
+      AsyncRequest<T> request,
+      AsyncRequest<T> previous,
+      Exception cause) {
+    AsyncRequest<T> resent = previous.copy();
+    synchronized (this) {
+      if (slot.request != request || state.last != slot) {
+        // resending would reorder the superseded request and later requests for the item
+        return;
+      }
+      slot.request = resent;
+      state.pending++;
+    }
+    addListener(name, state, slot, resent);
+    try {
+      batchService.add(resent);
+    } catch (InterruptedException | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to resend superseded request for item " + name, e);
+      if (e != cause) {
+        cause.addSuppressed(e);
+      }
+      resent.cancel();
+    }
+  }
+
+  private <T> void addListener(
+      String name, ItemRequests state, Slot<T> slot, AsyncRequest<T> request) {
+    request
+        .getFuture()
+        .addListener(
+            () -> complete(name, state, slot, request), MoreExecutors.directExecutor());
+  }
+
+  private <T> void complete(
+      String name, ItemRequests state, Slot<T> slot, AsyncRequest<T> request) {
+    synchronized (this) {
+      if (--state.pending == 0) {
+        items.remove(name, state);
+      }
+      if (slot.request != request) {
+        // superseded
+        return;
+      }
+      if (state.last == slot) {
+        state.last = null;
+      }
+    }
+    slot.result.setFuture(request.getFuture());
+  }
+
+  /** Number of items with requests not yet completed. */
+  synchronized int size() {
+    return items.size();
+  }
+
+  /** Lane and latest request of an item with requests not yet completed. */
+  private static class ItemRequests {
+    final Priority lane;
+    int pending;
+    @Nullable Slot<?> last;
+
+    ItemRequests(Priority lane) {
+      this.lane = lane;
+    }
+  }
+
+  /** Latest request of a kind and the future shared by the requests it superseded. */
+  private static class Slot<T> {
+    final SettableFuture<T> result = SettableFuture.create();
+    final String kind;
+    AsyncRequest<T> request;
+
+    Slot(String kind, AsyncRequest<T> request) {
+      this.kind = kind;
+      this.request = request;
+    }
+  }
+}
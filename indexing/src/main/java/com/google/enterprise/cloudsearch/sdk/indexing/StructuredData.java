@@ -38,11 +38,13 @@ import com.google.api.services.cloudsearch.v1.model.Schema;
 import com.google.api.services.cloudsearch.v1.model.StructuredDataObject;
 import com.google.api.services.cloudsearch.v1.model.TextValues;
 import com.google.api.services.cloudsearch.v1.model.TimestampValues;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Converter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.cloudsearch.sdk.Application;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.StartupException;
@@ -52,6 +54,7 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.ParsePosition;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.ZoneId;
@@ -76,7 +79,9 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -110,12 +115,18 @@ import org.junit.runners.model.Statement;
  *     // set other metadata such as setAcl, setItemType, setSourceRepositoryUrl, and so on
  *     .build();
  * }</pre>
+ *
+ * <p>The schema can be refreshed while the connector runs, see {@link #refreshSchema()}. Each
+ * schema version is held in an immutable snapshot that is swapped as a whole, so generating
+ * structured data never locks, and a call that started on the previous schema finishes on it.
  */
 public class StructuredData {
   private static final Logger logger = Logger.getLogger(StructuredData.class.getName());
 
   public static final String DATETIME_PATTERNS = "structuredData.dateTimePatterns";
   public static final String LOCAL_SCHEMA = "structuredData.localSchema";
+  public static final String SCHEMA_REFRESH_INTERVAL_SECONDS =
+      "structuredData.schemaRefreshIntervalSeconds";
 
   private static final String DATETIME_PATTERNS_DELIMITER = ";";
   private static final ImmutableList<DateTimeParser> DEFAULT_DATETIME_PARSERS =
@@ -128,15 +139,21 @@ public class StructuredData {
   private static final JsonObjectParser JSON_PARSER =
       new JsonObjectParser(JacksonFactory.getDefaultInstance());
 
-  private static final AtomicBoolean initialized = new AtomicBoolean();
   private static final List<DateTimeParser> dateTimeParsers = new ArrayList<>();
 
-  /** A map from object definition names to instances of this class. */
-  private static final Map<String, StructuredData> structuredDataMapping =
-      new HashMap<String, StructuredData>();
+  /** The current schema version, null until initialized. */
+  private static volatile SchemaSnapshot snapshot;
+
+  // guarded by StructuredData.class
+  private static SchemaSource schemaSource;
+  private static ScheduledExecutorService schemaRefresher;
 
-  /** A map from property definition names to a typed ValueExtractor that builds a NamedProperty. */
-  private final ImmutableMap<String, ValueExtractor<?>> conversionMap;
+  /**
+   * Property definition names and the typed ValueExtractor that builds a NamedProperty for each,
+   * compiled once per object definition.
+   */
+  private final String[] propertyNames;
+  private final ValueExtractor<?>[] extractors;
 
   /**
    * Initializes the {@link StructuredData} object as defined by a configured or default
@@ -149,6 +166,18 @@ public class StructuredData {
    *
    * <p>Only one of {@code initFromConfiguration} or {@link #init} can be called.
    *
+   * <p>Optional configuration parameters:
+   *
+   * <ul>
+   *   <li>{@code structuredData.dateTimePatterns} - additional date-time patterns, separated by
+   *       semicolons
+   *   <li>{@code structuredData.localSchema} - path to a local schema file used instead of the
+   *       data source schema
+   *   <li>{@code structuredData.schemaRefreshIntervalSeconds} - interval between reloads of the
+   *       schema from its source, see {@link #refreshSchema()}. Defaults to 0, which disables
+   *       periodic reloads.
+   * </ul>
+   *
    * @param indexingService {@link IndexingService} instance used to get the default schema
    */
   public static synchronized void initFromConfiguration(IndexingService indexingService) {
@@ -178,7 +207,15 @@ public class StructuredData {
       throw patternErrors;
     }
 
+    int refreshIntervalSeconds =
+        Configuration.getInteger(SCHEMA_REFRESH_INTERVAL_SECONDS, 0).get();
+    Configuration.checkConfiguration(
+        refreshIntervalSeconds >= 0,
+        "%s should be greater than or equal to 0",
+        SCHEMA_REFRESH_INTERVAL_SECONDS);
+
     Schema schema;
+    SchemaSource source;
     String localSchemaPath = Configuration.getString(LOCAL_SCHEMA, "").get();
     if (!localSchemaPath.isEmpty()) {
       Path localSchema = Paths.get(localSchemaPath);
@@ -187,21 +224,42 @@ public class StructuredData {
             "Local schema file " + localSchemaPath + " does not exist");
       }
 
+      source = () -> readLocalSchema(localSchema);
       try {
-        InputStreamReader inputStreamReader = new InputStreamReader(
-            localSchema.toUri().toURL().openStream(), defaultCharset());
-        schema = JSON_PARSER.parseAndClose(inputStreamReader, Schema.class);
+        schema = source.getSchema();
       } catch (IOException e) {
         throw new StartupException("Failed to parse local schema file " + localSchemaPath, e);
       }
     } else {
+      checkNotNull(indexingService, "indexingService cannot be null");
+      source = indexingService::getSchema;
       try {
-        schema = indexingService.getSchema();
+        schema = source.getSchema();
       } catch (IOException e) {
         throw new StartupException("Failed to initialize StructuredData", e);
       }
     }
     init(schema);
+    schemaSource = source;
+    if (refreshIntervalSeconds > 0) {
+      schemaRefresher =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setDaemon(true)
+                  .setNameFormat("structured-data-schema-refresh")
+                  .build());
+      schemaRefresher.scheduleWithFixedDelay(
+          StructuredData::refreshSchemaQuietly,
+          refreshIntervalSeconds,
+          refreshIntervalSeconds,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  private static Schema readLocalSchema(Path localSchema) throws IOException {
+    InputStreamReader inputStreamReader = new InputStreamReader(
+        localSchema.toUri().toURL().openStream(), defaultCharset());
+    return JSON_PARSER.parseAndClose(inputStreamReader, Schema.class);
   }
 
   /**
@@ -226,19 +284,64 @@ public class StructuredData {
       dateTimeParsers.addAll(DEFAULT_DATETIME_PARSERS);
     }
 
-    List<ObjectDefinition> objectDefinitions =
-        schema.getObjectDefinitions() == null
-            ? Collections.emptyList()
-            : schema.getObjectDefinitions();
-    Map<String, StructuredData> mappings =
-        objectDefinitions
-            .stream()
-            .collect(
-                Collectors.toMap(
-                    objDefinition -> objDefinition.getName(),
-                    objDefinition -> new StructuredData(objDefinition)));
-    structuredDataMapping.putAll(mappings);
-    initialized.set(true);
+    snapshot = new SchemaSnapshot(schema, 1);
+  }
+
+  /**
+   * Fetches the schema again from the source used by {@link #initFromConfiguration}, and swaps
+   * in converters for it if it changed.
+   *
+   * <p>This is called periodically if {@code structuredData.schemaRefreshIntervalSeconds} is
+   * configured. Structured data generated while the schema is swapped uses either the previous
+   * or the new schema throughout. If the new schema is invalid, the previous one is kept.
+   *
+   * @return {@code true} if the schema changed
+   * @throws IOException if fetching the schema fails
+   * @throws IllegalStateException if not initialized by {@link #initFromConfiguration}
+   */
+  public static synchronized boolean refreshSchema() throws IOException {
+    checkState(isInitialized(), "StructuredData not initialized");
+    checkState(schemaSource != null, "StructuredData not initialized from configuration");
+    Schema schema = checkNotNull(schemaSource.getSchema(), "schema cannot be null");
+    SchemaSnapshot current = snapshot;
+    if (schema.equals(current.schema)) {
+      return false;
+    }
+    snapshot = new SchemaSnapshot(schema, current.version + 1);
+    logger.log(Level.INFO, "Updated structured data to schema version {0}", snapshot.version);
+    return true;
+  }
+
+  private static void refreshSchemaQuietly() {
+    try {
+      refreshSchema();
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to refresh structured data schema", e);
+    }
+  }
+
+  /**
+   * Returns the version of the schema used to generate structured data. The version starts at 1
+   * when initialized and increases each time {@link #refreshSchema()} swaps in a changed schema.
+   *
+   * @return current schema version, 0 if not initialized
+   */
+  public static long getSchemaVersion() {
+    SchemaSnapshot current = snapshot;
+    return current == null ? 0 : current.version;
+  }
+
+  /** Stops periodic schema refresh, if started. */
+  static synchronized void stopSchemaRefresh() {
+    if (schemaRefresher != null) {
+      schemaRefresher.shutdownNow();
+      schemaRefresher = null;
+    }
+  }
+
+  @VisibleForTesting
+  static synchronized boolean isSchemaRefreshStarted() {
+    return schemaRefresher != null;
   }
 
   /**
@@ -249,7 +352,7 @@ public class StructuredData {
    * @return {@code true} if the {@link StructuredData} object has been initialized
    */
   public static boolean isInitialized() {
-    return initialized.get();
+    return snapshot != null;
   }
 
   /**
@@ -261,8 +364,9 @@ public class StructuredData {
    * @throws {@link IllegalStateException} if structured data object is not initialized yet.
    */
   public static boolean hasObjectDefinition(String objectType) {
-    checkState(isInitialized(), "StructuredData not initialized");
-    return structuredDataMapping.containsKey(objectType);
+    SchemaSnapshot current = snapshot;
+    checkState(current != null, "StructuredData not initialized");
+    return current.mapping.containsKey(objectType);
   }
 
   /**
@@ -282,8 +386,9 @@ public class StructuredData {
   }
 
   private static StructuredData getInstance(String objectType) {
-    checkState(isInitialized(), "StructuredData not initialized");
-    StructuredData structuredData = structuredDataMapping.get(objectType);
+    SchemaSnapshot current = snapshot;
+    checkState(current != null, "StructuredData not initialized");
+    StructuredData structuredData = current.mapping.get(objectType);
     checkArgument(structuredData != null, "invalid object type " + objectType);
     return structuredData;
   }
@@ -291,29 +396,64 @@ public class StructuredData {
   private StructuredData(ObjectDefinition objectDefinition) {
     checkNotNull(objectDefinition, "objectDefinition cannot be null");
     checkNotNull(objectDefinition.getPropertyDefinitions(), "property definitions cannot be null");
-    conversionMap =
+    ImmutableMap<String, ValueExtractor<?>> conversionMap =
         objectDefinition.getPropertyDefinitions()
             .stream()
             .collect(
                 ImmutableMap.toImmutableMap(
                     p -> p.getName(), p -> checkNotNull(getValueExtractor(p))));
+    propertyNames = conversionMap.keySet().toArray(new String[0]);
+    extractors = conversionMap.values().toArray(new ValueExtractor<?>[0]);
   }
 
   private StructuredDataObject getStructuredData(Multimap<String, Object> values) {
     checkNotNull(values, "values cannot be null");
-    List<NamedProperty> properties =
-        conversionMap.entrySet()
-            .stream()
-            .map(entry -> entry.getValue().getProperty(entry.getKey(), values.get(entry.getKey())))
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
+    List<NamedProperty> properties = new ArrayList<>(propertyNames.length);
+    for (int i = 0; i < propertyNames.length; i++) {
+      String name = propertyNames[i];
+      NamedProperty property = extractors[i].getProperty(name, values.get(name));
+      if (property != null) {
+        properties.add(property);
+      }
+    }
     return new StructuredDataObject().setProperties(properties);
   }
 
   private static synchronized void reset() {
+    stopSchemaRefresh();
+    schemaSource = null;
     dateTimeParsers.clear();
-    structuredDataMapping.clear();
-    initialized.set(false);
+    snapshot = null;
+  }
+
+  /** Fetches the schema for {@link #refreshSchema()}. */
+  private interface SchemaSource {
+    Schema getSchema() throws IOException;
+  }
+
+  /** Immutable converters for one version of the schema. */
+  private static final class SchemaSnapshot {
+    final Schema schema;
+    final long version;
+    /** A map from object definition names to instances of StructuredData. */
+    final ImmutableMap<String, StructuredData> mapping;
+
+    SchemaSnapshot(Schema schema, long version) {
+      List<ObjectDefinition> objectDefinitions =
+          schema.getObjectDefinitions() == null
+              ? Collections.emptyList()
+              : schema.getObjectDefinitions();
+      this.schema = schema;
+      this.version = version;
+      this.mapping =
+          ImmutableMap.copyOf(
+              objectDefinitions
+                  .stream()
+                  .collect(
+                      Collectors.toMap(
+                          objDefinition -> objDefinition.getName(),
+                          objDefinition -> new StructuredData(objDefinition))));
+    }
   }
 
   /**
@@ -350,22 +490,21 @@ public class StructuredData {
     }
 
     private NamedProperty getProperty(String propertyName, Collection<Object> values) {
-      List<Object> nonNullValues =
-          values.stream().filter(Objects::nonNull).collect(Collectors.toList());
-      if (nonNullValues.isEmpty()) {
-        return null;
-      }
-      if (!isRepeated) {
-        return propertyBuilder.getNamedProperty(
-            propertyName, Collections.singletonList(valueConverter.convert(nonNullValues.get(0))));
-      } else {
-        return propertyBuilder.getNamedProperty(
-            propertyName,
-            nonNullValues
-                .stream()
-                .map(v -> valueConverter.convert(v))
-                .collect(Collectors.toList()));
+      List<T> converted = null;
+      for (Object value : values) {
+        if (value == null) {
+          continue;
+        }
+        if (!isRepeated) {
+          return propertyBuilder.getNamedProperty(
+              propertyName, Collections.singletonList(valueConverter.convert(value)));
+        }
+        if (converted == null) {
+          converted = new ArrayList<>(values.size());
+        }
+        converted.add(valueConverter.convert(value));
       }
+      return converted == null ? null : propertyBuilder.getNamedProperty(propertyName, converted);
     }
   }
 
@@ -386,7 +525,7 @@ public class StructuredData {
     }
     if (definition.getTimestampPropertyOptions() != null) {
       return new ValueExtractor<>(
-          DATETIME_CONVERTER, DATETIME_PROPERTY_BUILDER, isRepeatable);
+          new DateTimeConverter(), DATETIME_PROPERTY_BUILDER, isRepeatable);
     }
     if (definition.getDoublePropertyOptions() != null) {
       return new ValueExtractor<>(
@@ -409,7 +548,7 @@ public class StructuredData {
     }
     if (definition.getDatePropertyOptions() != null) {
       return new ValueExtractor<>(
-          DATE_CONVERTER, DATE_PROPERTY_BUILDER, isRepeatable);
+          new DateConverter(), DATE_PROPERTY_BUILDER, isRepeatable);
     }
     if (definition.getEnumPropertyOptions() != null) {
       return new ValueExtractor<>(
@@ -492,58 +631,64 @@ public class StructuredData {
         }
       };
 
-  // TODO(jlacey): Support java.time classes as inputs, here and in DATE_CONVERTER.
-  static final Converter<Object, DateTime> DATETIME_CONVERTER =
-      new Converter<Object, DateTime>() {
+  static final Converter<Object, DateTime> DATETIME_CONVERTER = new DateTimeConverter();
 
-        @Override
-        protected DateTime doForward(Object a) {
-          if (a instanceof DateTime) {
-            return (DateTime) a;
-          }
-          if (a instanceof Long) {
-            return new DateTime((Long) a);
-          }
-          if (a instanceof String) {
-            return toDateTime(parseDateTime((String) a));
-          }
-          if (a instanceof Date) {
-            return new DateTime((Date) a);
-          }
-          throw new NumberFormatException("Cannot convert \"" + a + "\" to DateTime");
-        }
+  static final Converter<Object, com.google.api.services.cloudsearch.v1.model.Date> DATE_CONVERTER =
+      new DateConverter();
 
-        @Override
-        protected Object doBackward(DateTime b) {
-          return b;
-        }
-      };
+  // TODO(jlacey): Support java.time classes as inputs, here and in DateConverter.
+  private static class DateTimeConverter extends Converter<Object, DateTime> {
+    private final DateTimeInputParser parser = new DateTimeInputParser();
 
-  static final Converter<Object, com.google.api.services.cloudsearch.v1.model.Date> DATE_CONVERTER =
-      new Converter<Object, com.google.api.services.cloudsearch.v1.model.Date>() {
+    @Override
+    protected DateTime doForward(Object a) {
+      if (a instanceof DateTime) {
+        return (DateTime) a;
+      }
+      if (a instanceof Long) {
+        return new DateTime((Long) a);
+      }
+      if (a instanceof String) {
+        return toDateTime(parser.parse((String) a));
+      }
+      if (a instanceof Date) {
+        return new DateTime((Date) a);
+      }
+      throw new NumberFormatException("Cannot convert \"" + a + "\" to DateTime");
+    }
 
-        @Override
-        protected com.google.api.services.cloudsearch.v1.model.Date doForward(Object a) {
-          if (a instanceof com.google.api.services.cloudsearch.v1.model.Date) {
-            return (com.google.api.services.cloudsearch.v1.model.Date) a;
-          } else if (a instanceof Date) {
-            return getApiDate((Date) a);
-          } else if (a instanceof Long) {
-            return getApiDate(new Date((long) a));
-          } else if (a instanceof DateTime) {
-            Date input = new Date(((DateTime) a).getValue());
-            return getApiDate(input);
-          } else if (a instanceof String) {
-            return getApiDate(parseDateTime((String) a));
-          }
-          throw new NumberFormatException("Cannot convert \"" + a + "\" to Date");
-        }
+    @Override
+    protected Object doBackward(DateTime b) {
+      return b;
+    }
+  }
 
-        @Override
-        protected Object doBackward(com.google.api.services.cloudsearch.v1.model.Date b) {
-          return b;
-        }
-      };
+  private static class DateConverter
+      extends Converter<Object, com.google.api.services.cloudsearch.v1.model.Date> {
+    private final DateTimeInputParser parser = new DateTimeInputParser();
+
+    @Override
+    protected com.google.api.services.cloudsearch.v1.model.Date doForward(Object a) {
+      if (a instanceof com.google.api.services.cloudsearch.v1.model.Date) {
+        return (com.google.api.services.cloudsearch.v1.model.Date) a;
+      } else if (a instanceof Date) {
+        return getApiDate((Date) a);
+      } else if (a instanceof Long) {
+        return getApiDate(new Date((long) a));
+      } else if (a instanceof DateTime) {
+        Date input = new Date(((DateTime) a).getValue());
+        return getApiDate(input);
+      } else if (a instanceof String) {
+        return getApiDate(parser.parse((String) a));
+      }
+      throw new NumberFormatException("Cannot convert \"" + a + "\" to Date");
+    }
+
+    @Override
+    protected Object doBackward(com.google.api.services.cloudsearch.v1.model.Date b) {
+      return b;
+    }
+  }
 
   private static class ObjectConverter extends Converter<Object, StructuredDataObject> {
 
@@ -634,46 +779,74 @@ public class StructuredData {
   }
 
   /**
-   * Parses a {@code ZonedDateTime} object from a string input. Loops over the built-in and
-   * configured date-time formats.
+   * Parses date-time strings for a single converter, typically of a single property.
    *
-   * @param input a date-time string, not null
-   * @return a {@code ZonedDateTime} object
-   * @throws NumberFormatException if parsing fails
+   * <p>The built-in and configured date-time formats are tried in order, and the first one
+   * matching the input is used. Formats are probed without resolving the parsed fields, so
+   * formats that do not match do not throw exceptions. The format that matched last is parsed
+   * directly once all formats before it have been probed, as values of a property usually share
+   * a format.
    */
-  private static ZonedDateTime parseDateTime(String input) {
-    checkState(isInitialized(), "StructuredData not initialized");
-    for (DateTimeParser parser : dateTimeParsers) {
-      try {
-        TemporalAccessor accessor = parser.formatter.parse(input);
-        LocalDate localDate = LocalDate.from(accessor);
-
-        // Check for a time zone or use the default zone.
-        ZoneId zoneId = accessor.query(TemporalQueries.zone());
-        String tzMessage;
-        if (zoneId == null) {
-          zoneId = ZoneId.systemDefault();
-          tzMessage = "time zone";
-        } else {
-          tzMessage = "no time zone";
-        }
+  private static class DateTimeInputParser {
+    // index in dateTimeParsers of the last matching parser, updated without synchronization
+    private volatile int lastMatch;
 
-        // Check for a time of day or use the earliest time.
-        LocalTime localTime = accessor.query(TemporalQueries.localTime());
-        if (localTime == null) {
-          logger.log(Level.FINEST, "Input string {0} matched {1} as date-only.",
-              new Object[] { input, parser.name });
-          return localDate.atStartOfDay(zoneId);
-        } else {
-          logger.log(Level.FINEST, "Input string {0} matched {1} with {2}.",
-              new Object[] { input, parser.name, tzMessage });
-          return localDate.atTime(localTime).atZone(zoneId);
+    /**
+     * Parses a {@code ZonedDateTime} object from a string input.
+     *
+     * @param input a date-time string, not null
+     * @return a {@code ZonedDateTime} object
+     * @throws NumberFormatException if parsing fails
+     */
+    ZonedDateTime parse(String input) {
+      checkState(isInitialized(), "StructuredData not initialized");
+      int hint = lastMatch;
+      for (int i = 0; i < dateTimeParsers.size(); i++) {
+        DateTimeParser parser = dateTimeParsers.get(i);
+        if (i != hint && !parser.matches(input)) {
+          continue;
+        }
+        TemporalAccessor accessor;
+        try {
+          accessor = parser.formatter.parse(input);
+        } catch (DateTimeParseException e) {
+          logger.log(Level.FINEST, "{0} with {1}", new Object[] { e, parser.name });
+          continue;
         }
-      } catch (DateTimeParseException e) {
-        logger.log(Level.FINEST, "{0} with {1}", new Object[] { e, parser.name });
+        if (i != hint) {
+          lastMatch = i;
+        }
+        return toZonedDateTime(input, accessor, parser);
       }
+      throw new NumberFormatException("Cannot convert \"" + input + "\" to DateTime");
+    }
+  }
+
+  private static ZonedDateTime toZonedDateTime(
+      String input, TemporalAccessor accessor, DateTimeParser parser) {
+    LocalDate localDate = LocalDate.from(accessor);
+
+    // Check for a time zone or use the default zone.
+    ZoneId zoneId = accessor.query(TemporalQueries.zone());
+    String tzMessage;
+    if (zoneId == null) {
+      zoneId = ZoneId.systemDefault();
+      tzMessage = "time zone";
+    } else {
+      tzMessage = "no time zone";
+    }
+
+    // Check for a time of day or use the earliest time.
+    LocalTime localTime = accessor.query(TemporalQueries.localTime());
+    if (localTime == null) {
+      logger.log(Level.FINEST, "Input string {0} matched {1} as date-only.",
+          new Object[] { input, parser.name });
+      return localDate.atStartOfDay(zoneId);
+    } else {
+      logger.log(Level.FINEST, "Input string {0} matched {1} with {2}.",
+          new Object[] { input, parser.name, tzMessage });
+      return localDate.atTime(localTime).atZone(zoneId);
     }
-    throw new NumberFormatException("Cannot convert \"" + input + "\" to DateTime");
   }
 
   /**
@@ -700,6 +873,17 @@ public class StructuredData {
       this.formatter = formatter;
       this.name = name;
     }
+
+    /**
+     * Checks whether the whole input parses, without resolving the parsed fields or throwing
+     * {@link DateTimeParseException}.
+     */
+    boolean matches(String input) {
+      ParsePosition position = new ParsePosition(0);
+      return formatter.parseUnresolved(input, position) != null
+          && position.getErrorIndex() < 0
+          && position.getIndex() == input.length();
+    }
   }
 
   /*
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import com.google.api.services.cloudsearch.v1.model.Item;
+import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link Repository} that can fetch several documents in one round-trip, such as a single SQL
+ * {@code IN (...)} query or a bulk REST request.
+ *
+ * <p>The {@link ListingConnector} registers itself as a batch item retriever for a {@link
+ * BatchRepository}, passing batches of polled queue items to {@link #getDocs(List)}. Set {@code
+ * traverser.microBatchSize} to split each poll response into batches of at most that many items
+ * processed by up to {@code traverser.hostload} threads in parallel.
+ */
+public interface BatchRepository extends Repository {
+
+  /**
+   * Fetches a batch of documents from the data repository.
+   *
+   * <p>This method may be called concurrently for different batches. Like {@link #getDoc(Item)},
+   * it typically returns a {@link RepositoryDoc} for each item, or a {@link DeleteItem} for items
+   * no longer in the data repository.
+   *
+   * @param items the polled {@link Item} objects to process
+   * @return an {@link ApiOperation} for each of {@code items}, in the same order
+   * @throws RepositoryException when fetching the batch fails
+   */
+  List<ApiOperation> getDocs(List<Item> items) throws RepositoryException;
+
+  /**
+   * Fetches a single document by calling {@link #getDocs(List)} with a batch of one item.
+   */
+  @Override
+  default ApiOperation getDoc(Item item) throws RepositoryException {
+    return getDocs(Collections.singletonList(item)).get(0);
+  }
+}
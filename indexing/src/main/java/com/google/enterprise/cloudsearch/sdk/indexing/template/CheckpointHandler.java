@@ -15,6 +15,8 @@
  */
 package com.google.enterprise.cloudsearch.sdk.indexing.template;
 
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import java.io.IOException;
 
 /**
@@ -22,6 +24,20 @@ import java.io.IOException;
  * IOException} if reading or writing of the checkpoint fails.
  */
 public interface CheckpointHandler {
+  /**
+   * Configuration parameter selecting the checkpoint store used by connector templates when no
+   * {@link CheckpointHandler} is supplied:
+   *
+   * <ul>
+   *   <li>{@code file} - the default, one file per checkpoint, rewritten on every save
+   *   <li>{@code journal} - a single append-only journal, written in batches, see {@code
+   *       connector.checkpointJournal.flushIntervalMillis}
+   * </ul>
+   *
+   * <p>Both stores use the directory set by {@code connector.checkpointDirectory}.
+   */
+  String CONNECTOR_CHECKPOINT_STORE = "connector.checkpointStore";
+
   /**
    * Read current value of saved checkpoint.
    *
@@ -39,4 +55,22 @@ public interface CheckpointHandler {
    * @throws IOException if checkpoint save fails
    */
   void saveCheckpoint(String checkpointName, byte[] checkpoint) throws IOException;
+
+  /**
+   * Creates the checkpoint store selected by {@value #CONNECTOR_CHECKPOINT_STORE}.
+   *
+   * @return checkpoint handler, to be closed if it implements {@link java.io.Closeable}
+   */
+  static CheckpointHandler fromConfiguration() {
+    String store = Configuration.getString(CONNECTOR_CHECKPOINT_STORE, "file").get().trim();
+    switch (store) {
+      case "file":
+        return LocalFileCheckpointHandler.fromConfiguration();
+      case "journal":
+        return JournalCheckpointHandler.fromConfiguration();
+      default:
+        throw new InvalidConfigurationException(
+            "Unknown checkpoint store " + store + " in " + CONNECTOR_CHECKPOINT_STORE);
+    }
+  }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.enterprise.cloudsearch.sdk.BatchRequestService.TimeProvider;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves intermediate checkpoints while items of a {@link CheckpointCloseableIterable} are
+ * processed, so that an interrupted traversal resumes close to where it stopped instead of from
+ * the start of the iterable.
+ *
+ * <p>Items are numbered in the order they are read. Every {@link Interval#operations} items read,
+ * or once {@link Interval#millis} elapsed since the previous capture, the value of {@link
+ * CheckpointCloseableIterable#getIntermediateCheckpoint()} is captured along with the number of
+ * the last item read. Items may complete out of order on several threads, so a captured checkpoint
+ * is saved only once the watermark, the highest number up to which all items completed, reaches
+ * it. A resumed traversal repeats at most the items in flight and the items read since the
+ * previous capture.
+ *
+ * <p>Items that failed and were skipped count as completed. An item that aborts the traversal
+ * never completes, which holds the watermark before it.
+ *
+ * @param <T> type of items
+ */
+class CheckpointWatermark<T> {
+  private static final Logger logger = Logger.getLogger(CheckpointWatermark.class.getName());
+
+  /** Configuration key to define number of operations read between intermediate checkpoints. */
+  static final String TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS =
+      "traverse.checkpointIntervalOperations";
+  /** Configuration key to define number of seconds between intermediate checkpoints. */
+  static final String TRAVERSE_CHECKPOINT_INTERVAL_SECONDS = "traverse.checkpointIntervalSeconds";
+
+  /** Saves a checkpoint value. */
+  @FunctionalInterface
+  interface CheckpointSaver {
+    void save(byte[] checkpoint) throws IOException;
+  }
+
+  private final CheckpointCloseableIterable<T> items;
+  private final Interval interval;
+  private final CheckpointSaver saver;
+
+  // accessed only by the thread reading items
+  private long nextSequence;
+  private int readSinceCapture;
+  private long lastCaptureMillis;
+
+  // guarded by this
+  private long watermark = -1;
+  private final Queue<Long> completedAhead = new PriorityQueue<>();
+  private final Queue<Capture> captured = new ArrayDeque<>();
+
+  /**
+   * Creates a watermark for a single pass over {@code items}.
+   *
+   * @param items source of items and intermediate checkpoints
+   * @param interval how often intermediate checkpoints are captured
+   * @param saver to save intermediate checkpoints with
+   */
+  CheckpointWatermark(
+      CheckpointCloseableIterable<T> items, Interval interval, CheckpointSaver saver) {
+    this.items = checkNotNull(items, "items can not be null");
+    this.interval = checkNotNull(interval, "interval can not be null");
+    this.saver = checkNotNull(saver, "saver can not be null");
+    this.lastCaptureMillis = interval.timeProvider.currentTimeMillis();
+  }
+
+  /**
+   * Returns a view of the items, numbering each item as it is read. Each returned item is expected
+   * to be {@link Tracked#completed} once processed.
+   */
+  Iterable<Tracked<T>> track() {
+    return Iterables.transform(items, this::read);
+  }
+
+  /**
+   * Returns a view of the items for processing one at a time on the reading thread. Reading an
+   * item completes the item read before it.
+   */
+  Iterable<T> trackSequentially() {
+    return () ->
+        new Iterator<T>() {
+          private final Iterator<Tracked<T>> delegate = track().iterator();
+          private Tracked<T> previous;
+
+          @Override
+          public boolean hasNext() {
+            return delegate.hasNext();
+          }
+
+          @Override
+          public T next() {
+            if (previous != null) {
+              previous.completed();
+            }
+            previous = delegate.next();
+            return previous.getItem();
+          }
+        };
+  }
+
+  /** Returns the highest item number up to which all items completed, -1 if none. */
+  @VisibleForTesting
+  synchronized long getWatermark() {
+    return watermark;
+  }
+
+  private Tracked<T> read(T item) {
+    long sequence = nextSequence++;
+    if (interval.isEnabled() && isCaptureDue()) {
+      byte[] checkpoint = items.getIntermediateCheckpoint();
+      if (checkpoint != null) {
+        synchronized (this) {
+          captured.add(new Capture(sequence, checkpoint));
+        }
+      }
+    }
+    return new Tracked<>(item, sequence, this);
+  }
+
+  private boolean isCaptureDue() {
+    readSinceCapture++;
+    boolean due = interval.operations > 0 && readSinceCapture >= interval.operations;
+    long now = 0;
+    if (interval.millis > 0) {
+      now = interval.timeProvider.currentTimeMillis();
+      due |= now - lastCaptureMillis >= interval.millis;
+    }
+    if (due) {
+      readSinceCapture = 0;
+      lastCaptureMillis = now;
+    }
+    return due;
+  }
+
+  private void completed(long sequence) {
+    if (!interval.isEnabled()) {
+      return;
+    }
+    synchronized (this) {
+      if (sequence != watermark + 1) {
+        completedAhead.add(sequence);
+        return;
+      }
+      watermark = sequence;
+      while (!completedAhead.isEmpty() && completedAhead.peek() == watermark + 1) {
+        watermark = completedAhead.poll();
+      }
+      Capture latest = null;
+      while (!captured.isEmpty() && captured.peek().sequence <= watermark) {
+        latest = captured.poll();
+      }
+      if (latest == null) {
+        return;
+      }
+      // saved while holding the lock, so that an older checkpoint never overwrites a newer one
+      try {
+        saver.save(latest.checkpoint);
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to save intermediate checkpoint", e);
+      }
+    }
+  }
+
+  /** Item read from the iterable, along with its number in read order. */
+  static final class Tracked<T> {
+    private final T item;
+    private final long sequence;
+    private final CheckpointWatermark<T> watermark;
+
+    private Tracked(T item, long sequence, CheckpointWatermark<T> watermark) {
+      this.item = item;
+      this.sequence = sequence;
+      this.watermark = watermark;
+    }
+
+    T getItem() {
+      return item;
+    }
+
+    /** Marks the item as processed, successfully or not. */
+    void completed() {
+      watermark.completed(sequence);
+    }
+  }
+
+  /** How often intermediate checkpoints are captured. */
+  static final class Interval {
+    static final Interval DISABLED = new Interval(0, 0, System::currentTimeMillis);
+
+    final int operations;
+    final long millis;
+    final TimeProvider timeProvider;
+
+    /**
+     * Creates an interval. A checkpoint is captured when either limit is reached.
+     *
+     * @param operations number of items read between captures, 0 to ignore
+     * @param millis milliseconds between captures, 0 to ignore
+     * @param timeProvider source of current time
+     */
+    Interval(int operations, long millis, TimeProvider timeProvider) {
+      checkArgument(operations >= 0, "operations can not be negative");
+      checkArgument(millis >= 0, "millis can not be negative");
+      this.operations = operations;
+      this.millis = millis;
+      this.timeProvider = checkNotNull(timeProvider, "time provider can not be null");
+    }
+
+    /**
+     * Creates an interval using {@value #TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS} and {@value
+     * #TRAVERSE_CHECKPOINT_INTERVAL_SECONDS}, both disabled by default.
+     */
+    static Interval fromConfiguration() {
+      int operations = Configuration.getInteger(TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS, 0).get();
+      Configuration.checkConfiguration(
+          operations >= 0,
+          "%s can not be negative. Configured value %s",
+          TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS,
+          operations);
+      int seconds = Configuration.getInteger(TRAVERSE_CHECKPOINT_INTERVAL_SECONDS, 0).get();
+      Configuration.checkConfiguration(
+          seconds >= 0,
+          "%s can not be negative. Configured value %s",
+          TRAVERSE_CHECKPOINT_INTERVAL_SECONDS,
+          seconds);
+      return new Interval(
+          operations, TimeUnit.SECONDS.toMillis(seconds), System::currentTimeMillis);
+    }
+
+    boolean isEnabled() {
+      return operations > 0 || millis > 0;
+    }
+  }
+
+  private static final class Capture {
+    final long sequence;
+    final byte[] checkpoint;
+
+    Capture(long sequence, byte[] checkpoint) {
+      this.sequence = sequence;
+      this.checkpoint = checkpoint;
+    }
+  }
+}
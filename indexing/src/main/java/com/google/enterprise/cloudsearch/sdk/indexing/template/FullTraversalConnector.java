@@ -24,6 +24,7 @@ import com.google.api.services.cloudsearch.v1.model.ItemMetadata;
 import com.google.api.services.cloudsearch.v1.model.Operation;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
@@ -31,26 +32,38 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors;
 import com.google.enterprise.cloudsearch.sdk.IncrementalChangeHandler;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import com.google.enterprise.cloudsearch.sdk.indexing.DefaultAcl;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingConnector;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingConnectorContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
+import com.google.enterprise.cloudsearch.sdk.indexing.PriorityContext;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.CheckpointWatermark.Tracked;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -85,6 +98,9 @@ import java.util.logging.Logger;
  * gets a version timestamp to prevent a late update from the full traversal from overwriting a more
  * recent incremental update.
  *
+ * <p>Operations returned by traversals are executed in a {@link Priority#BULK} {@link
+ * PriorityContext}, so that they don't delay asynchronously pushed operations.
+ *
  * <p>Optional configuration parameters:
  *
  * <ul>
@@ -92,7 +108,33 @@ import java.util.logging.Logger;
  *       allow for parallel processing. A single iterator fetches operations serially (typically
  *       {@link RepositoryDoc} objects), but the API calls process in parallel using this number of
  *       threads.
+ *   <li>{@value #NUM_PARTITION_THREADS} - Specifies the number of partitions of a {@link
+ *       PartitionedRepository} traversed concurrently during a full traversal. Each partition
+ *       executes at most {@value #TRAVERSE_PARTITION_SIZE} operations at a time, bounding the
+ *       number of operations in flight. Defaults to 4.
+ *   <li>{@value #TRAVERSE_USE_PIPELINE} - Specifies whether operations are executed by a
+ *       pipeline instead of in batches of {@value #TRAVERSE_PARTITION_SIZE} operations. The
+ *       pipeline reads operations from the repository while earlier operations are executed,
+ *       limited only by the number of operations in flight. Defaults to false.
+ *   <li>{@value #TRAVERSE_PIPELINE_MAX_IN_FLIGHT} - Specifies the number of operations read from
+ *       the repository but not yet executed by the pipeline, across all traversals. Reading from
+ *       the repository blocks while this many operations are in flight. Defaults to twice the
+ *       number of worker threads.
+ *   <li>{@code traverse.checkpointIntervalOperations} - Specifies the number of operations read
+ *       from the repository between intermediate checkpoints. Defaults to 0, disabled.
+ *   <li>{@code traverse.checkpointIntervalSeconds} - Specifies the number of seconds between
+ *       intermediate checkpoints. Defaults to 0, disabled.
  * </ul>
+ *
+ * <p>If either checkpoint interval is set and the repository supplies {@link
+ * CheckpointCloseableIterable#getIntermediateCheckpoint()}, checkpoints are saved while operations
+ * execute, once all operations read before the checkpoint completed. An interrupted traversal then
+ * resumes from the latest such checkpoint instead of from the start of the iterable.
+ *
+ * <p>When the pipeline is used, statistics of its read and execute stages are recorded by the
+ * {@link StatsManager} component {@value #PIPELINE_STATS}, including {@code read} and {@code
+ * process} event counts and latency, and {@code process.queueDepth}, {@code process.active} and
+ * {@code credits.available} gauges, registered until the connector is destroyed.
  */
 public class FullTraversalConnector implements IndexingConnector, IncrementalChangeHandler {
 
@@ -107,6 +149,21 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
    */
   public static final String TRAVERSE_PARTITION_SIZE = "traverse.partitionSize";
 
+  /**
+   * Configuration key to define number of {@link PartitionedRepository} partitions traversed
+   * concurrently.
+   */
+  public static final String NUM_PARTITION_THREADS = "traverse.repositoryPartitionThreads";
+
+  /** Configuration key to indicate if operations are executed by a pipeline. */
+  public static final String TRAVERSE_USE_PIPELINE = "traverse.usePipeline";
+
+  /** Configuration key to define number of operations in flight in the pipeline. */
+  public static final String TRAVERSE_PIPELINE_MAX_IN_FLIGHT = "traverse.pipeline.maxInFlight";
+
+  /** {@link StatsManager} component recording pipeline statistics. */
+  public static final String PIPELINE_STATS = "FullTraversalPipeline";
+
   /** Configuration key to define queue name prefix used by connector. */
   public static final String TRAVERSE_QUEUE_TAG = "traverse.queueTag";
 
@@ -124,6 +181,7 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
 
   static final int DEFAULT_THREAD_NUM = 50;
   static final int DEFAULT_PARTITION_SIZE = 50;
+  static final int DEFAULT_PARTITION_THREADS = 4;
   static final String IGNORE_FAILURE = "ignore";
   private static final boolean DEFAULT_USE_QUEUES = true;
   private static final Logger logger = Logger.getLogger(FullTraversalConnector.class.getName());
@@ -136,9 +194,14 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
   private ListeningExecutorService listeningExecutorService;
   private RepositoryContext repositoryContext;
   private CheckpointHandler checkpointHandler;
+  private boolean closeCheckpointHandler;
   private boolean useQueues;
   @VisibleForTesting QueueCheckpoint queueCheckpoint;
   private int partitionSize;
+  private int numPartitionThreads;
+  private OperationPipeline<Tracked<ApiOperation>> pipeline;
+  private final Map<String, LongSupplier> pipelineGauges = new LinkedHashMap<>();
+  private CheckpointWatermark.Interval checkpointInterval;
 
   /**
    * Creates an instance of {@link FullTraversalConnector} for performing full traversal over given
@@ -186,7 +249,8 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
             .setDefaultAclMode(defaultAcl.getDefaultAclMode())
             .build();
     if (checkpointHandler == null) {
-      checkpointHandler = LocalFileCheckpointHandler.fromConfiguration();
+      checkpointHandler = CheckpointHandler.fromConfiguration();
+      closeCheckpointHandler = checkpointHandler instanceof Closeable;
     }
 
     useQueues = Configuration.getBoolean(TRAVERSE_USE_QUEUES, DEFAULT_USE_QUEUES).get();
@@ -230,6 +294,26 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
         partitionSize > 0,
         "Partition size can not be less than or equal to 0. Configured value %s",
         partitionSize);
+    numPartitionThreads =
+        Configuration.getInteger(NUM_PARTITION_THREADS, DEFAULT_PARTITION_THREADS).get();
+    Configuration.checkConfiguration(
+        numPartitionThreads > 0,
+        "Number of partition threads should be greater than 0. Configured value %s",
+        numPartitionThreads);
+    checkpointInterval = CheckpointWatermark.Interval.fromConfiguration();
+    if (Configuration.getBoolean(TRAVERSE_USE_PIPELINE, false).get()) {
+      int maxInFlight =
+          Configuration.getInteger(TRAVERSE_PIPELINE_MAX_IN_FLIGHT, 2 * numThreads).get();
+      Configuration.checkConfiguration(
+          maxInFlight > 0 && maxInFlight <= 65535,
+          "Pipeline operations in flight should be between 1 and 65535. Configured value %s",
+          maxInFlight);
+      OperationStats pipelineStats = StatsManager.getComponent(PIPELINE_STATS);
+      pipelineGauges.put("process.queueDepth", threadPoolExecutor.getQueue()::size);
+      pipelineGauges.put("process.active", threadPoolExecutor::getActiveCount);
+      pipelineGauges.forEach(pipelineStats::registerGauge);
+      pipeline = new OperationPipeline<>(threadPoolExecutor, maxInFlight, pipelineStats);
+    }
     repositoryContext.getEventBus().register(this);
     repository.init(repositoryContext);
     logger.log(Level.INFO, "start full traversal connector executors");
@@ -241,6 +325,9 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
    * <p>numToAbort determines what will happen when upload exceptions occur. Either ignore the
    * exceptions or force a traversal termination after a set number of exceptions occur.
    *
+   * <p>Partitions of a {@link PartitionedRepository} are traversed concurrently, sharing the
+   * exception count.
+   *
    * @throws IOException on SDK upload errors
    * @throws InterruptedException if exception handler is interrupted
    */
@@ -268,7 +355,10 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
       }
     }
 
-    if (!doTraverse("full traversal", CHECKPOINT_FULL, queueName, repository::getAllDocs)) {
+    if (repository instanceof PartitionedRepository) {
+      doPartitionedTraverse((PartitionedRepository) repository, queueName);
+    } else if (!doTraverse(
+        "full traversal", CHECKPOINT_FULL, queueName, repository::getAllDocs)) {
       throw new NullPointerException("getAllDocs returned null");
     }
 
@@ -313,8 +403,13 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
   private boolean doTraverse(String traversalType, String checkpointName, String queueName,
       GetDocsFunction getDocs)
       throws IOException, InterruptedException {
+    return doTraverse(traversalType, checkpointName, queueName, getDocs, new ExecuteCounter());
+  }
+
+  private boolean doTraverse(String traversalType, String checkpointName, String queueName,
+      GetDocsFunction getDocs, ExecuteCounter executeCounter)
+      throws IOException, InterruptedException {
     logger.log(Level.INFO, "Begin {0} traversal.", traversalType);
-    ExecuteCounter executeCounter = new ExecuteCounter();
     byte[] checkpoint = checkpointHandler.readCheckpoint(checkpointName);
     boolean hasMore = false;
     do {
@@ -323,7 +418,12 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
           logger.log(Level.INFO, "End {0} traversal.", traversalType);
           return false;
         }
-        processApiOperations(allDocs, executeCounter, queueName);
+        CheckpointWatermark<ApiOperation> watermark =
+            new CheckpointWatermark<>(
+                allDocs,
+                checkpointInterval,
+                intermediate -> checkpointHandler.saveCheckpoint(checkpointName, intermediate));
+        processApiOperations(watermark.track(), executeCounter, queueName);
         logCounters(executeCounter);
         checkpoint = allDocs.getCheckpoint();
         checkpointHandler.saveCheckpoint(checkpointName, checkpoint);
@@ -334,6 +434,68 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
     return true;
   }
 
+  /**
+   * Performs a full traversal of all partitions of a {@link PartitionedRepository}, using up to
+   * {@link #numPartitionThreads} threads to read partitions. Operations are executed by the shared
+   * traversal executor. The first partition failing stops the traversal of other partitions.
+   *
+   * @throws IOException on SDK upload errors
+   * @throws InterruptedException if exception handler is interrupted
+   */
+  private void doPartitionedTraverse(PartitionedRepository partitioned, String queueName)
+      throws IOException, InterruptedException {
+    List<String> partitionIds = partitioned.getPartitionIds();
+    checkState(
+        partitionIds != null && !partitionIds.isEmpty(), "getPartitionIds returned no partitions");
+    ExecuteCounter executeCounter = new ExecuteCounter();
+    ExecutorService partitionExecutor =
+        ConnectorExecutors.newBoundedExecutor(
+            "traverse-partition-%d", false, Math.min(numPartitionThreads, partitionIds.size()));
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (String partitionId : partitionIds) {
+        results.add(
+            partitionExecutor.submit(
+                () ->
+                    doTraverse(
+                        "full traversal of partition " + partitionId,
+                        getPartitionCheckpointName(partitionId),
+                        queueName,
+                        checkpoint -> partitioned.getAllDocs(partitionId, checkpoint),
+                        executeCounter)));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        boolean traversed;
+        try {
+          traversed = results.get(i).get();
+        } catch (ExecutionException e) {
+          partitionExecutor.shutdownNow();
+          Throwable cause = e.getCause();
+          Throwables.throwIfInstanceOf(cause, IOException.class);
+          Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+          Throwables.throwIfUnchecked(cause);
+          throw new IOException(cause);
+        }
+        if (!traversed) {
+          partitionExecutor.shutdownNow();
+          throw new NullPointerException(
+              "getAllDocs returned null for partition " + partitionIds.get(i));
+        }
+      }
+    } catch (InterruptedException e) {
+      partitionExecutor.shutdownNow();
+      throw e;
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(partitionExecutor, 5L, TimeUnit.MINUTES);
+    }
+  }
+
+  /** Returns name of the full traversal checkpoint of a {@link PartitionedRepository} partition. */
+  @VisibleForTesting
+  static String getPartitionCheckpointName(String partitionId) {
+    return CHECKPOINT_FULL + "_" + partitionId;
+  }
+
   /**
    * Performs the asynchronously pushed operation from the {@link Repository}.
    *
@@ -377,6 +539,19 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
       logger.log(Level.INFO, "Shutting down the full traversal connector executor");
       MoreExecutors.shutdownAndAwaitTermination(listeningExecutorService, 5L, TimeUnit.MINUTES);
     }
+    if (pipeline != null) {
+      // gauges reference the executor, so they must not outlive the connector
+      pipeline.close();
+      pipelineGauges.forEach(StatsManager.getComponent(PIPELINE_STATS)::unregisterGauge);
+      pipelineGauges.clear();
+    }
+    if (closeCheckpointHandler) {
+      try {
+        ((Closeable) checkpointHandler).close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close checkpoint handler", e);
+      }
+    }
   }
 
   /**
@@ -406,12 +581,21 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
   }
 
   private void processApiOperations(
-      Iterable<ApiOperation> allDocs, ExecuteCounter executeCounter, String queueName)
+      Iterable<Tracked<ApiOperation>> allDocs, ExecuteCounter executeCounter, String queueName)
       throws IOException, InterruptedException {
+    if (pipeline != null) {
+      pipeline.process(
+          allDocs,
+          operation ->
+              new ExecuteOperationCallable(operation, executeCounter, numToAbort, queueName)
+                  .call(),
+          () -> executeCounter.getFail() > numToAbort);
+      return;
+    }
     // Split list of operations into partitions to reduce memory usage
-    for (List<ApiOperation> partition : Iterables.partition(allDocs, partitionSize)) {
+    for (List<Tracked<ApiOperation>> partition : Iterables.partition(allDocs, partitionSize)) {
       List<ListenableFuture<List<GenericJson>>> futures = new ArrayList<>();
-      for (ApiOperation operation : partition) {
+      for (Tracked<ApiOperation> operation : partition) {
         // check if abort the traverse based on configuration
         if (executeCounter.getFail() > numToAbort) {
           break;
@@ -430,9 +614,13 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
     }
   }
 
-  /** A {@link Runnable} that executes one {@link ApiOperation}. */
+  /**
+   * A {@link Runnable} that executes one {@link ApiOperation}, in a {@link Priority#BULK} {@link
+   * PriorityContext} if the operation is tracked by a traversal.
+   */
   private class ExecuteOperationCallable implements Callable<List<GenericJson>> {
 
+    private Tracked<ApiOperation> tracked;
     private ApiOperation operation;
     private ExecuteCounter executeCounter;
     private long localNumToAbort;
@@ -446,9 +634,24 @@ public class FullTraversalConnector implements IndexingConnector, IncrementalCha
       this.queueName = queueName;
     }
 
+    public ExecuteOperationCallable(Tracked<ApiOperation> tracked,
+        ExecuteCounter executeCounter, Long numToAbort, String queueName) {
+      this(tracked.getItem(), executeCounter, numToAbort, queueName);
+      this.tracked = tracked;
+    }
+
     @Override
-    public List<GenericJson> call() throws Exception {
-      return executeOperation(operation, executeCounter);
+    public List<GenericJson> call() throws IOException, InterruptedException {
+      List<GenericJson> results;
+      try (PriorityContext.Scope scope =
+          PriorityContext.enter(tracked == null ? Priority.DEFAULT : Priority.BULK)) {
+        results = executeOperation(operation, executeCounter);
+      }
+      // not reached when the operation aborts the traversal
+      if (tracked != null) {
+        tracked.completed();
+      }
+      return results;
     }
 
     /**
@@ -0,0 +1,453 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * {@link CheckpointHandler} keeping all checkpoints in a single append-only journal file.
+ *
+ * <p>Saved checkpoints are visible to {@link #readCheckpoint} immediately, and are written to the
+ * journal in batches, each appended with a single write and forced to disk. A batch is written
+ * every {@code flushIntervalMillis}, or on every save if the interval is 0, so a crash loses at
+ * most the checkpoints saved since the last batch. Each record carries a checksum, and a torn or
+ * corrupted tail left by a crash is dropped when the journal is opened. Once obsolete records
+ * make up most of the journal, it is rewritten with current checkpoints only to a temporary file
+ * that atomically replaces it.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@value LocalFileCheckpointHandler#CONNECTOR_CHECKPOINT_DIRECTORY} - Directory of the
+ *       journal file, named {@value #JOURNAL_FILE_NAME}. Default is the current directory.
+ *   <li>{@value #CONFIG_FLUSH_INTERVAL_MILLIS} - Interval between writes of saved checkpoints to
+ *       the journal. Default is 1000.
+ * </ul>
+ */
+class JournalCheckpointHandler implements CheckpointHandler, Closeable {
+  private static final Logger logger = Logger.getLogger(JournalCheckpointHandler.class.getName());
+
+  public static final String CONFIG_FLUSH_INTERVAL_MILLIS =
+      "connector.checkpointJournal.flushIntervalMillis";
+  static final String JOURNAL_FILE_NAME = "checkpoints.journal";
+  static final int DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+  @VisibleForTesting static final long MIN_BYTES_TO_COMPACT = 1 << 20;
+
+  private static final int MAGIC = 0x43534350; // "CSCP"
+  private static final int HEADER_LENGTH = 4;
+  // record length and checksum
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private final Path path;
+  private final long minBytesToCompact;
+  private final Object writeLock = new Object();
+  private final ScheduledExecutorService flushExecutor;
+
+  // guarded by this
+  private final Map<String, byte[]> checkpoints = new HashMap<>();
+  private List<ByteBuffer> pending = new ArrayList<>();
+  private long liveBytes;
+  private IOException flushFailure;
+  private boolean closed;
+
+  // guarded by writeLock
+  private FileChannel journal;
+  private long journalBytes;
+  private boolean compactOnFlush;
+  private boolean journalClosed;
+
+  /**
+   * Opens a journal, replaying existing checkpoints.
+   *
+   * @param path journal file
+   * @param flushIntervalMillis interval between writes of saved checkpoints, 0 to write each
+   *     checkpoint as it is saved
+   * @throws IOException if the journal can not be read or opened for writing
+   */
+  JournalCheckpointHandler(Path path, long flushIntervalMillis) throws IOException {
+    this(path, flushIntervalMillis, MIN_BYTES_TO_COMPACT);
+  }
+
+  @VisibleForTesting
+  JournalCheckpointHandler(Path path, long flushIntervalMillis, long minBytesToCompact)
+      throws IOException {
+    this.path = checkNotNull(path, "path can not be null");
+    checkArgument(flushIntervalMillis >= 0, "flushIntervalMillis can not be negative");
+    checkArgument(minBytesToCompact > 0, "minBytesToCompact should be greater than 0");
+    this.minBytesToCompact = minBytesToCompact;
+    synchronized (writeLock) {
+      if (Files.exists(path) && Files.size(path) > 0) {
+        replay();
+      }
+      if (needsCompaction(0)) {
+        compact(new HashMap<>(checkpoints));
+      } else {
+        openJournal();
+      }
+    }
+    if (flushIntervalMillis > 0) {
+      flushExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setDaemon(true)
+                  .setNameFormat("checkpoint-journal-flush")
+                  .build());
+      flushExecutor.scheduleWithFixedDelay(
+          this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      flushExecutor = null;
+    }
+  }
+
+  /** Opens the journal in the configured checkpoint directory. */
+  static JournalCheckpointHandler fromConfiguration() {
+    checkState(Configuration.isInitialized(), "Configuration object not initialized");
+    String directory =
+        Configuration.getString(
+                LocalFileCheckpointHandler.CONNECTOR_CHECKPOINT_DIRECTORY,
+                LocalFileCheckpointHandler.DEFAULT_CHECKPOINT_DIRECTORY)
+            .get()
+            .trim();
+    int flushIntervalMillis =
+        Configuration.getInteger(CONFIG_FLUSH_INTERVAL_MILLIS, DEFAULT_FLUSH_INTERVAL_MILLIS).get();
+    Configuration.checkConfiguration(
+        flushIntervalMillis >= 0, "%s can not be negative", CONFIG_FLUSH_INTERVAL_MILLIS);
+    Path path = Paths.get(directory).resolve(JOURNAL_FILE_NAME);
+    try {
+      return new JournalCheckpointHandler(path, flushIntervalMillis);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open checkpoint journal " + path, e);
+    }
+  }
+
+  @Override
+  public synchronized byte[] readCheckpoint(String checkpointName) throws IOException {
+    checkState(!isNullOrEmpty(checkpointName), "checkpoint name can't be null or empty");
+    byte[] checkpoint = checkpoints.get(checkpointName);
+    return checkpoint == null ? null : Arrays.copyOf(checkpoint, checkpoint.length);
+  }
+
+  /**
+   * Saves checkpoint value, written to the journal with the next batch.
+   *
+   * <p>If the interval between batches is 0, a failed write of the previous batch is retried,
+   * rewriting the journal, before the checkpoint is saved.
+   *
+   * @throws IOException if writing the previous batch failed
+   */
+  @Override
+  public void saveCheckpoint(String checkpointName, byte[] checkpoint) throws IOException {
+    checkState(!isNullOrEmpty(checkpointName), "checkpoint name can't be null or empty");
+    ByteBuffer record = encode(checkpointName, checkpoint);
+    if (flushExecutor == null && hasFlushFailure()) {
+      // no background flush would ever recover the journal, so this save has to
+      flush();
+    }
+    synchronized (this) {
+      checkState(!closed, "checkpoint journal closed");
+      if (flushFailure != null) {
+        throw new IOException("Failed to write checkpoint journal " + path, flushFailure);
+      }
+      byte[] previous =
+          checkpoint == null
+              ? checkpoints.remove(checkpointName)
+              : checkpoints.put(checkpointName, Arrays.copyOf(checkpoint, checkpoint.length));
+      if (previous != null) {
+        liveBytes -= recordLength(checkpointName, previous);
+      }
+      if (checkpoint != null) {
+        liveBytes += record.remaining();
+      }
+      pending.add(record);
+    }
+    if (flushExecutor == null) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes checkpoints saved since the last batch to the journal and forces them to disk.
+   *
+   * @throws IOException if writing the journal fails
+   */
+  void flush() throws IOException {
+    synchronized (writeLock) {
+      if (journalClosed) {
+        // a scheduled flush close() stopped waiting for; close() wrote all checkpoints
+        return;
+      }
+      List<ByteBuffer> batch;
+      Map<String, byte[]> snapshot = null;
+      synchronized (this) {
+        if (pending.isEmpty() && !compactOnFlush) {
+          return;
+        }
+        batch = pending;
+        pending = new ArrayList<>();
+        long batchBytes = batch.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (compactOnFlush || needsCompaction(batchBytes)) {
+          snapshot = new HashMap<>(checkpoints);
+        }
+      }
+      try {
+        if (snapshot != null) {
+          compact(snapshot);
+        } else {
+          append(batch);
+        }
+      } catch (IOException e) {
+        // a partial write leaves a corrupted tail, so rewrite the journal on the next flush
+        compactOnFlush = true;
+        synchronized (this) {
+          flushFailure = e;
+        }
+        throw e;
+      }
+      synchronized (this) {
+        flushFailure = null;
+      }
+    }
+  }
+
+  private synchronized boolean hasFlushFailure() {
+    return flushFailure != null;
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to write checkpoint journal " + path, e);
+    }
+  }
+
+  /** Writes pending checkpoints and closes the journal. */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    if (flushExecutor != null) {
+      // waits for a running flush, without interrupting it since that closes the journal channel
+      MoreExecutors.shutdownAndAwaitTermination(flushExecutor, 10, TimeUnit.SECONDS);
+    }
+    synchronized (writeLock) {
+      try {
+        flush();
+      } finally {
+        journalClosed = true;
+        journal.close();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  long getJournalBytes() {
+    synchronized (writeLock) {
+      return journalBytes;
+    }
+  }
+
+  private void append(List<ByteBuffer> batch) throws IOException {
+    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+    long expected = 0;
+    for (ByteBuffer buffer : buffers) {
+      expected += buffer.remaining();
+    }
+    long written = 0;
+    while (written < expected) {
+      written += journal.write(buffers);
+    }
+    journal.force(false);
+    journalBytes += written;
+  }
+
+  /** Rewrites the journal with {@code snapshot} only. */
+  private void compact(Map<String, byte[]> snapshot) throws IOException {
+    Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+    long written = HEADER_LENGTH;
+    try (FileChannel out =
+        FileChannel.open(
+            compacted,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(out, header());
+      for (Map.Entry<String, byte[]> checkpoint : snapshot.entrySet()) {
+        ByteBuffer record = encode(checkpoint.getKey(), checkpoint.getValue());
+        written += record.remaining();
+        writeFully(out, record);
+      }
+      out.force(true);
+    }
+    if (journal != null) {
+      journal.close();
+    }
+    Files.move(
+        compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    journalBytes = written;
+    compactOnFlush = false;
+    logger.log(
+        Level.FINE,
+        "Compacted checkpoint journal {0} to {1} checkpoints",
+        new Object[] {path, snapshot.size()});
+    journal = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private void openJournal() throws IOException {
+    journal =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (journal.size() == 0) {
+      writeFully(journal, header());
+      journal.force(true);
+    }
+    journalBytes = journal.size();
+  }
+
+  private void replay() throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+    if (data.remaining() < HEADER_LENGTH || data.getInt() != MAGIC) {
+      throw new IOException("Not a checkpoint journal file " + path);
+    }
+    CRC32 crc = new CRC32();
+    int validLength = data.position();
+    while (data.remaining() >= RECORD_HEADER_LENGTH) {
+      int length = data.getInt();
+      int checksum = data.getInt();
+      if (length < 0 || length > data.remaining()) {
+        break;
+      }
+      crc.reset();
+      crc.update(data.array(), data.position(), length);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.wrap(data.array(), data.position(), length).slice();
+      data.position(data.position() + length);
+      byte[] name = new byte[body.getShort() & 0xFFFF];
+      body.get(name);
+      String checkpointName = new String(name, StandardCharsets.UTF_8);
+      int valueLength = body.getInt();
+      if (valueLength < 0) {
+        checkpoints.remove(checkpointName);
+      } else {
+        byte[] value = new byte[valueLength];
+        body.get(value);
+        checkpoints.put(checkpointName, value);
+      }
+      validLength = data.position();
+    }
+    if (validLength < data.limit()) {
+      // incomplete or corrupted records written before the connector stopped
+      logger.log(
+          Level.WARNING,
+          "Truncating incomplete record at offset {0} of checkpoint journal {1}",
+          new Object[] {validLength, path});
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.truncate(validLength);
+      }
+    }
+    for (Map.Entry<String, byte[]> checkpoint : checkpoints.entrySet()) {
+      liveBytes += recordLength(checkpoint.getKey(), checkpoint.getValue());
+    }
+    journalBytes = validLength;
+  }
+
+  private boolean needsCompaction(long batchBytes) {
+    long bytes = journalBytes + batchBytes;
+    return (bytes >= minBytesToCompact) && (bytes > 2 * (HEADER_LENGTH + liveBytes));
+  }
+
+  private static ByteBuffer header() {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.putInt(MAGIC).flip();
+    return header;
+  }
+
+  /** Encodes a record of a saved checkpoint, or of a deleted one if {@code checkpoint} is null. */
+  private static ByteBuffer encode(String checkpointName, byte[] checkpoint) throws IOException {
+    ByteArrayOutputStream bytes =
+        new ByteArrayOutputStream(
+            RECORD_HEADER_LENGTH + 64 + (checkpoint == null ? 0 : checkpoint.length));
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(0); // record header, filled in below
+    byte[] name = checkpointName.getBytes(StandardCharsets.UTF_8);
+    checkArgument(name.length <= 0xFFFF, "checkpoint name too long");
+    out.writeShort(name.length);
+    out.write(name);
+    if (checkpoint == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(checkpoint.length);
+      out.write(checkpoint);
+    }
+    ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+    int length = record.limit() - RECORD_HEADER_LENGTH;
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+    record.putInt(0, length).putInt(4, (int) crc.getValue());
+    return record;
+  }
+
+  private static long recordLength(String checkpointName, byte[] checkpoint) {
+    return RECORD_HEADER_LENGTH
+        + 2
+        + checkpointName.getBytes(StandardCharsets.UTF_8).length
+        + 4
+        + checkpoint.length;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -21,23 +21,28 @@ import static com.google.common.base.Preconditions.checkState;
 import com.google.api.client.json.GenericJson;
 import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.ExceptionHandler;
 import com.google.enterprise.cloudsearch.sdk.IncrementalChangeHandler;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException;
 import com.google.enterprise.cloudsearch.sdk.config.ConfigValue;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import com.google.enterprise.cloudsearch.sdk.indexing.BatchItemRetriever;
 import com.google.enterprise.cloudsearch.sdk.indexing.DefaultAcl;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingConnector;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingConnectorContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.ItemRetriever;
+import com.google.enterprise.cloudsearch.sdk.indexing.PriorityContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.traverser.TraverserConfiguration;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +50,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -69,12 +75,27 @@ import java.util.logging.Logger;
  * <p>If the repository supports document change detection, the connector can perform an incremental
  * change traversal, which reads and re-indexes just the newly modified documents.
  *
+ * <p>If the repository is a {@link BatchRepository}, polled documents are fetched in batches with
+ * {@link BatchRepository#getDocs(List)} and the resulting operations are executed in parallel.
+ *
+ * <p>Operations returned by traversals are executed in a {@link Priority#BULK} {@link
+ * PriorityContext}, so that they don't delay operations for polled and asynchronously pushed
+ * documents.
+ *
  * <ul>
  *   <li>{@value #CONFIG_TRAVERSER} - Specifies the traverser names. If not specified it is set to
  *       default {@link TraverserConfiguration}.
+ *   <li>{@code traverse.checkpointIntervalOperations} - Specifies the number of operations read
+ *       from the repository between intermediate checkpoints. Defaults to 0, disabled.
+ *   <li>{@code traverse.checkpointIntervalSeconds} - Specifies the number of seconds between
+ *       intermediate checkpoints. Defaults to 0, disabled.
  * </ul>
+ *
+ * <p>If either checkpoint interval is set and the repository supplies {@link
+ * CheckpointCloseableIterable#getIntermediateCheckpoint()}, checkpoints are saved as operations
+ * of a traversal execute, so that an interrupted traversal resumes from the latest of them.
  */
-public class ListingConnector implements IndexingConnector, ItemRetriever,
+public class ListingConnector implements IndexingConnector, ItemRetriever, BatchItemRetriever,
     IncrementalChangeHandler {
   private static final Logger logger = Logger.getLogger(ListingConnector.class.getName());
 
@@ -94,10 +115,12 @@ public class ListingConnector implements IndexingConnector, ItemRetriever,
   private ListeningExecutorService listeningExecutorService;
   private RepositoryContext repositoryContext;
   private CheckpointHandler checkpointHandler;
+  private boolean closeCheckpointHandler;
   private ConfigValue<List<String>> traverserConfigKey = Configuration
       .getMultiValue(CONFIG_TRAVERSER,
           Arrays.asList("default"), Configuration.STRING_PARSER);
   private DefaultAcl defaultAcl;
+  private CheckpointWatermark.Interval checkpointInterval;
 
   /**
    * Creates an instance of {@link ListingConnector} for performing listing traversal over given
@@ -134,8 +157,13 @@ public class ListingConnector implements IndexingConnector, ItemRetriever,
     exceptionHandler = TraverseExceptionHandlerFactory.createFromConfig();
     indexingService = checkNotNull(context.getIndexingService());
     for (String traverseName : traverserConfigKey.get()) {
-      context.registerTraverser(
-          new TraverserConfiguration.Builder(traverseName).itemRetriever(this).build());
+      TraverserConfiguration.Builder traverser = new TraverserConfiguration.Builder(traverseName);
+      if (repository instanceof BatchRepository) {
+        traverser.itemRetriever((BatchItemRetriever) this);
+      } else {
+        traverser.itemRetriever((ItemRetriever) this);
+      }
+      context.registerTraverser(traverser.build());
     }
     defaultAcl = DefaultAcl.fromConfiguration(indexingService);
     threadPoolExecutor =
@@ -154,8 +182,10 @@ public class ListingConnector implements IndexingConnector, ItemRetriever,
                     "EventBus-" + ListingConnector.class.getName(), listeningExecutorService))
             .setDefaultAclMode(defaultAcl.getDefaultAclMode())
             .build();
+    checkpointInterval = CheckpointWatermark.Interval.fromConfiguration();
     if (checkpointHandler == null) {
-      checkpointHandler = LocalFileCheckpointHandler.fromConfiguration();
+      checkpointHandler = CheckpointHandler.fromConfiguration();
+      closeCheckpointHandler = checkpointHandler instanceof Closeable;
     }
     repositoryContext.getEventBus().register(this);
     repository.init(repositoryContext);
@@ -191,7 +221,14 @@ public class ListingConnector implements IndexingConnector, ItemRetriever,
         if (allIds == null) {
           return false;
         }
-        execute(allIds, traversalType);
+        CheckpointWatermark<ApiOperation> watermark =
+            new CheckpointWatermark<>(
+                allIds,
+                checkpointInterval,
+                intermediate -> checkpointHandler.saveCheckpoint(checkpointName, intermediate));
+        try (PriorityContext.Scope scope = PriorityContext.enter(Priority.BULK)) {
+          execute(watermark.trackSequentially(), traversalType);
+        }
         checkpoint = allIds.getCheckpoint();
         checkpointHandler.saveCheckpoint(checkpointName, checkpoint);
         hasMore = allIds.hasMore();
@@ -283,6 +320,13 @@ public class ListingConnector implements IndexingConnector, ItemRetriever,
       logger.log(Level.INFO, "Shutting down the executor service.");
       MoreExecutors.shutdownAndAwaitTermination(listeningExecutorService, 5L, TimeUnit.MINUTES);
     }
+    if (closeCheckpointHandler) {
+      try {
+        ((Closeable) checkpointHandler).close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close checkpoint handler", e);
+      }
+    }
   }
 
   /**
@@ -301,6 +345,72 @@ public class ListingConnector implements IndexingConnector, ItemRetriever,
     execute(Collections.singleton(apiOperation), "process");
   }
 
+  /**
+   * Processes a batch of polled documents from the Cloud Search queue when the {@link Repository}
+   * is a {@link BatchRepository}.
+   *
+   * <p>Retrieve all documents with a single {@link BatchRepository#getDocs(List)} call, then
+   * execute the returned operations in parallel. An operation failing with an {@link IOException}
+   * is handled as an error of its own item only: the error is logged and, when it is a {@link
+   * RepositoryException}, pushed to the queue as the {@code REPOSITORY_ERROR} of that item, the
+   * same as for an item processed by {@link #process(Item)}.
+   *
+   * @param items batch of {@link Item} representing polled documents
+   * @throws IOException on repository errors fetching the batch
+   * @throws InterruptedException if exception handler is interrupted
+   */
+  @Override
+  public void processBatch(List<Item> items) throws IOException, InterruptedException {
+    checkState(repository instanceof BatchRepository, "repository does not fetch batches");
+    List<ApiOperation> operations = ((BatchRepository) repository).getDocs(items);
+    checkState(
+        (operations != null) && (operations.size() == items.size()),
+        "batch of %s items returned %s operations",
+        items.size(),
+        (operations == null) ? null : operations.size());
+    List<ListenableFuture<List<GenericJson>>> futures = new ArrayList<>(operations.size());
+    for (ApiOperation operation : operations) {
+      futures.add(
+          listeningExecutorService.submit(
+              () -> execute(Collections.singleton(operation), "process")));
+    }
+    Throwable batchFailure = null;
+    int failureCount = 0;
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            failureCount++;
+            logger.log(Level.WARNING, "Error processing queue item " + items.get(i), cause);
+            RepositoryDocError.pushRepositoryError(
+                indexingService, items.get(i), (IOException) cause);
+          } else if (batchFailure == null) {
+            batchFailure = cause;
+          } else {
+            batchFailure.addSuppressed(cause);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      futures.forEach(f -> f.cancel(true));
+      throw e;
+    }
+    if (failureCount > 0) {
+      logger.log(
+          Level.WARNING,
+          "{0} operations failed out of batch of {1}",
+          new Object[] {failureCount, items.size()});
+    }
+    if (batchFailure != null) {
+      Throwables.throwIfInstanceOf(batchFailure, InterruptedException.class);
+      Throwables.throwIfUnchecked(batchFailure);
+      throw new IOException("failed to execute operations of batch", batchFailure);
+    }
+  }
+
   /**
    * Performs all actions necessary for incremental traversals.
    *
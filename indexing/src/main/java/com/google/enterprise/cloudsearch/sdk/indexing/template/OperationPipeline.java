@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Throwables;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats.Event;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Two stage pipeline reading items from an {@link Iterable} on the calling thread and processing
+ * them on an {@link Executor}, with credit based backpressure.
+ *
+ * <p>The reader takes a credit before reading each item and the credit is returned when
+ * processing of the item completes, so at most {@code maxInFlight} items are read but not yet
+ * processed, across all concurrent calls to {@link #process}. A slow processing stage blocks the
+ * reader instead of queueing more work, and a slow reader leaves processing threads idle, which
+ * shows in the stage statistics recorded to the given {@link OperationStats}:
+ *
+ * <ul>
+ *   <li>{@code read} and {@code process} events, counting items and their latency per stage
+ *   <li>{@code credits.available} gauge, credits not taken by the reader
+ * </ul>
+ *
+ * @param <T> type of items
+ */
+class OperationPipeline<T> {
+  static final String STAGE_READ = "read";
+  static final String STAGE_PROCESS = "process";
+
+  /** Processing stage applied to each item. */
+  @FunctionalInterface
+  interface ItemProcessor<T> {
+    void process(T item) throws IOException, InterruptedException;
+  }
+
+  private final Executor executor;
+  private final Semaphore credits;
+  private final OperationStats stats;
+  private final LongSupplier creditsAvailable;
+
+  /**
+   * Creates a pipeline.
+   *
+   * @param executor executor of the processing stage
+   * @param maxInFlight number of credits, between 1 and 65535
+   * @param stats to record stage statistics to
+   */
+  OperationPipeline(Executor executor, int maxInFlight, OperationStats stats) {
+    this.executor = checkNotNull(executor, "executor can not be null");
+    checkArgument(
+        maxInFlight > 0 && maxInFlight <= 65535, "maxInFlight should be between 1 and 65535");
+    this.credits = new Semaphore(maxInFlight);
+    this.stats = checkNotNull(stats, "stats can not be null");
+    this.creditsAvailable = credits::availablePermits;
+    stats.registerGauge("credits.available", creditsAvailable);
+  }
+
+  /** Unregisters the gauges of this pipeline, once it no longer processes items. */
+  void close() {
+    stats.unregisterGauge("credits.available", creditsAvailable);
+  }
+
+  /**
+   * Reads all items and processes them, returning when all items read were processed.
+   *
+   * <p>Reading stops early when {@code stop} returns true or an item fails to process. The first
+   * failure is rethrown after items already read finished processing.
+   *
+   * @param items to read
+   * @param processor processing stage
+   * @param stop checked before reading each item
+   * @throws IOException if processing of an item failed
+   * @throws InterruptedException if interrupted while waiting for credits or processing
+   */
+  void process(Iterable<T> items, ItemProcessor<T> processor, BooleanSupplier stop)
+      throws IOException, InterruptedException {
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    // the reader is one registered party, and each item in flight is another
+    Phaser inFlight = new Phaser(1);
+    try {
+      Iterator<T> iterator = items.iterator();
+      while (true) {
+        credits.acquire();
+        // checked after waiting for a credit, which may have been returned by a failed item
+        if (failure.get() != null || stop.getAsBoolean()) {
+          credits.release();
+          break;
+        }
+        T item;
+        Event read = stats.event(STAGE_READ).start();
+        try {
+          if (!iterator.hasNext()) {
+            credits.release();
+            break;
+          }
+          item = iterator.next();
+          read.success();
+        } catch (RuntimeException e) {
+          read.failure();
+          credits.release();
+          throw e;
+        }
+        inFlight.register();
+        try {
+          executor.execute(() -> processItem(item, processor, failure, inFlight));
+        } catch (RejectedExecutionException e) {
+          credits.release();
+          inFlight.arriveAndDeregister();
+          throw e;
+        }
+      }
+    } finally {
+      inFlight.awaitAdvanceInterruptibly(inFlight.arrive());
+    }
+    Throwable cause = failure.get();
+    if (cause != null) {
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  private void processItem(
+      T item, ItemProcessor<T> processor, AtomicReference<Throwable> failure, Phaser inFlight) {
+    Event event = stats.event(STAGE_PROCESS).start();
+    try {
+      processor.process(item);
+      event.success();
+    } catch (Exception e) {
+      event.failure();
+      failure.compareAndSet(null, e);
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+    } finally {
+      credits.release();
+      inFlight.arriveAndDeregister();
+    }
+  }
+}
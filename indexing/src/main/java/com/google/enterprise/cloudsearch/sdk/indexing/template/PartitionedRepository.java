@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Repository} whose documents can be enumerated as independent partitions, such as
+ * ranges of primary keys or separate tables.
+ *
+ * <p>The {@link FullTraversalConnector} traverses the partitions of a {@link
+ * PartitionedRepository} concurrently, calling {@link #getAllDocs(String, byte[])} for each
+ * partition instead of {@link #getAllDocs(byte[])}. Each partition keeps its own traversal
+ * checkpoint, so a partition returning {@link CheckpointCloseableIterable#hasMore()} resumes from
+ * its own last checkpoint, independently of the progress of other partitions.
+ *
+ * <p>Partition IDs are used to name checkpoints and should stay stable across traversals and
+ * connector restarts.
+ */
+public interface PartitionedRepository extends Repository {
+
+  /**
+   * Returns IDs of the partitions to traverse in the next full traversal.
+   *
+   * @return non-empty list of distinct partition IDs
+   * @throws RepositoryException when listing partitions of the data repository fails
+   */
+  List<String> getPartitionIds() throws RepositoryException;
+
+  /**
+   * Fetches all the documents from a single partition of the data repository.
+   *
+   * <p>This method may be called concurrently for different partitions.
+   *
+   * @param partitionId one of the IDs returned by {@link #getPartitionIds()}
+   * @param checkpoint encoded checkpoint bytes of the partition
+   * @return {@link CheckpointCloseableIterable} object containing list of {@link ApiOperation} to
+   *     execute with new checkpoint value of the partition
+   * @throws RepositoryException when fetching documents from the data repository fails
+   */
+  CheckpointCloseableIterable<ApiOperation> getAllDocs(
+      String partitionId, @Nullable byte[] checkpoint) throws RepositoryException;
+
+  /**
+   * Not used by {@link FullTraversalConnector} for a {@link PartitionedRepository}.
+   *
+   * @throws UnsupportedOperationException unless overridden
+   */
+  @Override
+  default CheckpointCloseableIterable<ApiOperation> getAllDocs(@Nullable byte[] checkpoint)
+      throws RepositoryException {
+    throw new UnsupportedOperationException("use getAllDocs(partitionId, checkpoint)");
+  }
+}
@@ -19,19 +19,25 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.json.GenericJson;
+import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.api.services.cloudsearch.v1.model.PushItem;
+import com.google.api.services.cloudsearch.v1.model.RepositoryError;
 import com.google.common.base.Strings;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link ApiOperation} to push repository error while processing an item from a content repository.
  */
 public class RepositoryDocError implements ApiOperation {
+  private static final Logger logger = Logger.getLogger(RepositoryDocError.class.getName());
 
   private final String itemId;
   private final RepositoryException repositoryDocException;
@@ -56,4 +62,43 @@ public class RepositoryDocError implements ApiOperation {
       throw new IOException("Error pushing repository error", e.getCause());
     }
   }
+
+  /**
+   * Pushes the {@link RepositoryError} of a polled item that failed processing back to the item's
+   * queue, keeping its payload. Nothing is pushed unless {@code exception} or its cause is a
+   * {@link RepositoryException}. Failures to push are logged.
+   *
+   * @param service indexing service to push with
+   * @param polledItem polled item that failed processing
+   * @param exception processing failure
+   */
+  public static void pushRepositoryError(
+      IndexingService service, Item polledItem, IOException exception) {
+    Optional<RepositoryError> error = getRepositoryError(exception);
+    if (!error.isPresent()) {
+      return;
+    }
+    PushItem errorEntry =
+        new PushItem()
+            .setQueue(polledItem.getQueue())
+            .setType("REPOSITORY_ERROR")
+            .setRepositoryError(error.get())
+            .encodePayload(polledItem.decodePayload());
+    logger.log(Level.INFO, "Pushing repository errors for item {0}", polledItem.getName());
+    try {
+      service.push(polledItem.getName(), errorEntry);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Error pushing item", e);
+    }
+  }
+
+  private static Optional<RepositoryError> getRepositoryError(IOException exception) {
+    if (exception instanceof RepositoryException) {
+      return Optional.of(((RepositoryException) exception).getRepositoryError());
+    }
+    if (exception.getCause() instanceof RepositoryException) {
+      return Optional.of(((RepositoryException) exception.getCause()).getRepositoryError());
+    }
+    return Optional.empty();
+  }
 }
@@ -16,20 +16,33 @@
 package com.google.enterprise.cloudsearch.sdk.indexing.traverser;
 
 import com.google.api.services.cloudsearch.v1.model.PollItemsRequest;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.TimeLimiter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 abstract class AbstractTraverserWorker implements TraverserWorker {
-  private final Logger logger = Logger.getLogger(AbstractTraverserWorker.class.getName());
+  /** {@link StatsManager} component with per traverser statistics, such as timed out calls. */
+  static final String TIMEOUT_STATS = "TraverserWorker";
+  static final String RESULT_TIMEOUT = "TIMEOUT";
 
-  /* used as named constant for calling TimeLimiter methods */
-  protected static final boolean AM_INTERRUPTIBLE = true;
+  /**
+   * Timer shared by all traversers, interrupting calls running past their deadline. Cancelled
+   * deadlines are removed right away, so the queue only holds calls in progress.
+   */
+  private static final ScheduledThreadPoolExecutor deadlineTimer = createDeadlineTimer();
+
+  private static final OperationStats timeoutStats = StatsManager.getComponent(TIMEOUT_STATS);
 
   protected final String name;
   protected final IndexingService indexingService;
@@ -37,8 +50,8 @@ abstract class AbstractTraverserWorker implements TraverserWorker {
   protected final long timeout;
   protected final TimeUnit timeunit;
 
-  private final ExecutorService timeLimiterExecutor;
-  protected final TimeLimiter timeLimiter;
+  private final AtomicBoolean isShutdown = new AtomicBoolean();
+  private final AtomicLong timeoutCount = new AtomicLong();
 
   public AbstractTraverserWorker(TraverserConfiguration conf, IndexingService indexingService) {
     this.name = conf.getName();
@@ -46,30 +59,139 @@ abstract class AbstractTraverserWorker implements TraverserWorker {
     this.pollRequest = conf.getPollRequest();
     this.timeout = conf.getTimeout();
     this.timeunit = conf.getTimeunit();
-
-    timeLimiterExecutor = Executors.newCachedThreadPool();
-    timeLimiter = SimpleTimeLimiter.create(timeLimiterExecutor);
   }
+
   @Override
   public String getName() {
     return name;
   }
 
+  /** Returns number of calls of this traverser that timed out. */
+  long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Runs {@code callable} on the calling thread, interrupting it if it does not complete within
+   * the configured timeout.
+   *
+   * <p>Unlike {@code TimeLimiter.callWithTimeout}, the caller is not released at the deadline: the
+   * deadline only interrupts the calling thread, and this method returns once {@code callable}
+   * does. A callable ignoring interrupts runs to completion past the deadline, and its result or
+   * exception is then discarded in favor of a {@link TimeoutException}. The interrupt raised by the
+   * deadline is cleared before returning.
+   *
+   * @throws TimeoutException if the deadline passed before {@code callable} completed
+   * @throws ExecutionException if {@code callable} threw a checked exception
+   * @throws UncheckedExecutionException if {@code callable} threw an unchecked exception
+   * @throws InterruptedException if the calling thread was interrupted by something else than
+   *     the deadline
+   */
+  protected <T> T callWithTimeout(Callable<T> callable)
+      throws TimeoutException, ExecutionException, InterruptedException {
+    Deadline deadline = new Deadline(Thread.currentThread());
+    deadline.schedule(timeout, timeunit);
+    T result;
+    try {
+      result = callable.call();
+    } catch (InterruptedException e) {
+      if (deadline.complete()) {
+        throw e;
+      }
+      throw timedOut(e);
+    } catch (RuntimeException e) {
+      if (deadline.complete()) {
+        throw new UncheckedExecutionException(e);
+      }
+      throw timedOut(e);
+    } catch (Exception e) {
+      if (deadline.complete()) {
+        throw new ExecutionException(e);
+      }
+      throw timedOut(e);
+    } catch (Error e) {
+      deadline.complete();
+      throw e;
+    }
+    if (!deadline.complete()) {
+      throw timedOut(null);
+    }
+    return result;
+  }
+
+  private TimeoutException timedOut(Exception cause) {
+    timeoutCount.incrementAndGet();
+    timeoutStats.logResult(name, RESULT_TIMEOUT);
+    TimeoutException timeoutException =
+        new TimeoutException(String.format("[%s] timed out after %d %s", name, timeout, timeunit));
+    if (cause != null) {
+      timeoutException.initCause(cause);
+    }
+    return timeoutException;
+  }
+
   @Override
   public final void shutdown() {
-    if (timeLimiterExecutor.isShutdown()) {
+    if (!isShutdown.compareAndSet(false, true)) {
       return;
     }
-    timeLimiterExecutor.shutdown();
-    try {
-      timeLimiterExecutor.awaitTermination(10L, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      logger.log(Level.WARNING, "Interrupted during executor termination.", e);
-      Thread.currentThread().interrupt();
-    }
-    timeLimiterExecutor.shutdownNow();
     shutdownWorker();
   }
 
   abstract void shutdownWorker();
+
+  @VisibleForTesting
+  static int getPendingDeadlines() {
+    return deadlineTimer.getQueue().size();
+  }
+
+  private static ScheduledThreadPoolExecutor createDeadlineTimer() {
+    ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("traverser-deadline").build());
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
+
+  /**
+   * Deadline of a single call. The timer and the calling thread race to move it out of the running
+   * state, under a lock so that the calling thread is never interrupted after it completed.
+   */
+  private static final class Deadline implements Runnable {
+    private final Thread caller;
+    private ScheduledFuture<?> timer;
+    private boolean running = true;
+
+    Deadline(Thread caller) {
+      this.caller = caller;
+    }
+
+    void schedule(long timeout, TimeUnit unit) {
+      timer = deadlineTimer.schedule(this, timeout, unit);
+    }
+
+    @Override
+    public synchronized void run() {
+      if (running) {
+        running = false;
+        caller.interrupt();
+      }
+    }
+
+    /**
+     * Marks the call completed, clearing the interrupt raised by an expired deadline.
+     *
+     * @return true if the call completed before the deadline
+     */
+    synchronized boolean complete() {
+      timer.cancel(false);
+      if (running) {
+        running = false;
+        return true;
+      }
+      Thread.interrupted();
+      return false;
+    }
+  }
 }
@@ -42,7 +42,7 @@ class BatchProcessingTraverserWorker extends AbstractTraverserWorker implements
   public void poll() {
     logger.info("polling entries from queue " + pollRequest.getQueue());
     try {
-      timeLimiter.callWithTimeout(new ProcessingFunction(), timeout, timeunit);
+      callWithTimeout(new ProcessingFunction());
     } catch (Exception e) {
       logger.log(Level.WARNING, "[" + name + "] Error executing poll request " + pollRequest, e);
     }
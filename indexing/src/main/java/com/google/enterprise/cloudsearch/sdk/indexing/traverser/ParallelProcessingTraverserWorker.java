@@ -15,20 +15,25 @@
  */
 package com.google.enterprise.cloudsearch.sdk.indexing.traverser;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import com.google.api.services.cloudsearch.v1.model.Item;
-import com.google.api.services.cloudsearch.v1.model.PushItem;
-import com.google.api.services.cloudsearch.v1.model.RepositoryError;
-import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats.Event;
+import com.google.enterprise.cloudsearch.sdk.indexing.BatchItemRetriever;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.ItemRetriever;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryDocError;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -40,14 +45,36 @@ import javax.annotation.Nullable;
 /**
  * Implementation of the multiprocess Traverser. This implementation uses CachedThreadpool, which
  * can use maximum of <i>hostload</i> threads to process periodically polled items.
+ *
+ * <p>By default each {@link #poll()} polls until the first empty response or until the polled
+ * items waiting for processing reach the high watermark. With {@link
+ * TraverserConfiguration#isPrefetchEnabled()} {@link #poll()} keeps polling until shutdown: it
+ * fills the buffer of waiting items up to the high watermark, polls again once processing drains
+ * it to the low watermark, and backs off exponentially while poll responses are empty.
+ *
+ * <p>With a {@link BatchItemRetriever} and a positive {@link
+ * TraverserConfiguration#getMicroBatchSize()}, each thread passes up to micro-batch size polled
+ * items to a single {@link BatchItemRetriever#processBatch(List)} call, so that the connector can
+ * fetch them from the repository in one round-trip. Latency of each batch is recorded under
+ * {@code batch.<traverser name>} in the {@code TraverserWorker} statistics component.
  */
 class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implements TraverserWorker {
   private final Logger logger = Logger.getLogger(ParallelProcessingTraverserWorker.class.getName());
 
-  private static final int MIN_QUEUE_LOAD_TO_SKIP = 1000;
+  static final String BATCH_OPERATION_PREFIX = "batch.";
 
-  private final ItemRetriever itemRetriever;
+  private static final OperationStats workerStats = StatsManager.getComponent(TIMEOUT_STATS);
+
+  @Nullable private final ItemRetriever itemRetriever;
+  @Nullable private final BatchItemRetriever batchItemRetriever;
+  private final int microBatchSize;
+  private final String batchOperation;
   private final int hostload;
+  private final boolean prefetchEnabled;
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
 
   private final boolean sharedExecutor;
   private final ExecutorService executor;
@@ -55,6 +82,9 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
 
   private final AtomicBoolean isShutdown = new AtomicBoolean(false);
   private final ConcurrentLinkedQueue<Item> queue;
+  // ConcurrentLinkedQueue.size() traverses the queue, so waiting items are counted separately
+  private final AtomicInteger queued = new AtomicInteger(0);
+  private final Object prefetchMonitor = new Object();
 
   public ParallelProcessingTraverserWorker(
       TraverserConfiguration conf,
@@ -62,16 +92,34 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
       @Nullable ExecutorService executor) {
     super(conf, indexingService);
     this.itemRetriever = conf.getItemRetriever();
+    this.batchItemRetriever = conf.getBatchItemRetriever();
+    this.microBatchSize = conf.getMicroBatchSize();
+    checkArgument(
+        (batchItemRetriever == null) || (microBatchSize > 0),
+        "micro-batch size should be greater than 0 to process batches in parallel");
+    this.batchOperation = BATCH_OPERATION_PREFIX + name;
     this.hostload = conf.getHostload();
+    this.prefetchEnabled = conf.isPrefetchEnabled();
+    this.lowWatermark = conf.getPrefetchLowWatermark();
+    this.highWatermark = conf.getPrefetchHighWatermark();
+    this.initialBackoffMillis = conf.getPrefetchInitialBackoffMillis();
+    this.maxBackoffMillis = conf.getPrefetchMaxBackoffMillis();
     this.sharedExecutor = executor != null;
-    this.executor = sharedExecutor ? executor : Executors.newCachedThreadPool();
+    this.executor =
+        sharedExecutor
+            ? executor
+            : ConnectorExecutors.newCachedExecutor("traverser-" + name + "-%d", false);
     queue = new ConcurrentLinkedQueue<>();
   }
 
   @Override
   public void poll() {
+    if (prefetchEnabled) {
+      prefetch();
+      return;
+    }
     while (!isShutdown.get()) {
-      if (queue.size() >= MIN_QUEUE_LOAD_TO_SKIP) {
+      if (queued.get() >= highWatermark) {
         logger.info("skipping poll request since queue is full");
         break;
       }
@@ -83,10 +131,73 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
     }
   }
 
+  private void prefetch() {
+    long backoffMillis = initialBackoffMillis;
+    while (!isShutdown.get()) {
+      if (queued.get() >= highWatermark) {
+        logger.log(Level.FINE, "[{0}] queue is full, waiting for it to drain", name);
+        if (!awaitDrained()) {
+          return;
+        }
+        continue;
+      }
+      if (pollNextBatch()) {
+        backoffMillis = initialBackoffMillis;
+        continue;
+      }
+      logger.log(
+          Level.FINE,
+          "[{0}] Empty poll response, polling again in {1} ms",
+          new Object[] {name, backoffMillis});
+      if (!awaitBackoff(backoffMillis)) {
+        return;
+      }
+      backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+    }
+  }
+
+  /** Waits until waiting items drop to the low watermark, returns false if interrupted. */
+  private boolean awaitDrained() {
+    synchronized (prefetchMonitor) {
+      try {
+        while (!isShutdown.get() && queued.get() > lowWatermark) {
+          prefetchMonitor.wait();
+        }
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /** Waits for backoff to pass or shutdown, returns false if interrupted. */
+  private boolean awaitBackoff(long backoffMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+    synchronized (prefetchMonitor) {
+      try {
+        long remaining;
+        while (!isShutdown.get() && (remaining = deadline - System.nanoTime()) > 0) {
+          TimeUnit.NANOSECONDS.timedWait(prefetchMonitor, remaining);
+        }
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  private void wakeUpPrefetch() {
+    synchronized (prefetchMonitor) {
+      prefetchMonitor.notifyAll();
+    }
+  }
+
   private boolean pollNextBatch() {
     List<Item> entries;
     try {
-      entries = timeLimiter.callWithTimeout(new PollingFunction(), timeout, timeunit);
+      entries = callWithTimeout(new PollingFunction());
     } catch (TimeoutException | ExecutionException e) {
       logger.log(
           Level.WARNING,
@@ -105,12 +216,26 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
       return false;
     }
     queue.addAll(entries);
+    queued.addAndGet(entries.size());
+    startRunners();
+    return true;
+  }
 
-    while (currentLoad.get() < hostload) {
-      executor.execute(new PollAndProcessRunnable());
-      currentLoad.incrementAndGet();
+  private void startRunners() {
+    int load;
+    while ((load = currentLoad.get()) < hostload) {
+      if (currentLoad.compareAndSet(load, load + 1)) {
+        try {
+          executor.execute(new PollAndProcessRunnable());
+        } catch (RejectedExecutionException e) {
+          currentLoad.decrementAndGet();
+          if (isShutdown.get()) {
+            return;
+          }
+          throw e;
+        }
+      }
     }
-    return true;
   }
 
   private final class PollingFunction implements Callable<List<Item>> {
@@ -123,6 +248,7 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
   @Override
   void shutdownWorker() {
     isShutdown.set(true);
+    wakeUpPrefetch();
     if (sharedExecutor) {
       if ((executor == null) || executor.isShutdown()) {
         return;
@@ -147,34 +273,95 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
       try {
         Thread.currentThread()
             .setName("TraverserRunner-" + name + "-" + Thread.currentThread().getId());
-        Item polledItem = null;
-        while ((polledItem = queue.poll()) != null) {
-          try {
-            timeLimiter.callWithTimeout(new ProcessingFunction(polledItem), timeout, timeunit);
-            // TODO(imysak): should we return entry in Queue in case of TimeOutException ?
-          } catch (InterruptedException e) {
-            logger.log(
-                Level.WARNING,
-                String.format("Interrupted while processing queue entry %s", polledItem),
-                e);
-            Thread.currentThread().interrupt();
-          } catch (TimeoutException e) {
-            logger.log(
-                Level.WARNING,
-                String.format(
-                    "Processing queue entry %s timed out, limit %d %s",
-                    polledItem, timeout, timeunit),
-                e);
-          } catch (ExecutionException e) {
-            logger.log(
-                Level.WARNING,
-                String.format("Exception while processing queue entry %s", polledItem),
-                e);
-          }
+        if (batchItemRetriever == null) {
+          processItems();
+        } else {
+          processBatches();
         }
       } finally {
         currentLoad.decrementAndGet();
       }
+      // items queued after this runner found the queue empty, but before it released its load
+      if (!queue.isEmpty() && !isShutdown.get()) {
+        startRunners();
+      }
+    }
+
+    private void processItems() {
+      Item polledItem = null;
+      while ((polledItem = takeItem()) != null) {
+        try {
+          callWithTimeout(new ProcessingFunction(polledItem));
+          // TODO(imysak): should we return entry in Queue in case of TimeOutException ?
+        } catch (InterruptedException e) {
+          logger.log(
+              Level.WARNING,
+              String.format("Interrupted while processing queue entry %s", polledItem),
+              e);
+          Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+          logger.log(
+              Level.WARNING,
+              String.format(
+                  "Processing queue entry %s timed out, limit %d %s",
+                  polledItem, timeout, timeunit),
+              e);
+        } catch (ExecutionException e) {
+          logger.log(
+              Level.WARNING,
+              String.format("Exception while processing queue entry %s", polledItem),
+              e);
+        }
+      }
+    }
+
+    private void processBatches() {
+      List<Item> batch;
+      while (!(batch = takeBatch()).isEmpty()) {
+        Event event = workerStats.event(batchOperation).start();
+        boolean success = false;
+        try {
+          success = callWithTimeout(new BatchProcessingFunction(batch));
+        } catch (InterruptedException e) {
+          logger.log(
+              Level.WARNING,
+              String.format("Interrupted while processing batch of %d items", batch.size()),
+              e);
+          Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+          logger.log(
+              Level.WARNING,
+              String.format(
+                  "Processing batch of %d items timed out, limit %d %s",
+                  batch.size(), timeout, timeunit),
+              e);
+        } catch (ExecutionException e) {
+          logger.log(
+              Level.WARNING,
+              String.format("Exception while processing batch of %d items", batch.size()),
+              e);
+        } finally {
+          event.end(success);
+        }
+      }
+    }
+
+    @Nullable
+    private Item takeItem() {
+      Item item = queue.poll();
+      if ((item != null) && (queued.decrementAndGet() == lowWatermark)) {
+        wakeUpPrefetch();
+      }
+      return item;
+    }
+
+    private List<Item> takeBatch() {
+      List<Item> batch = new ArrayList<>(microBatchSize);
+      Item item;
+      while ((batch.size() < microBatchSize) && ((item = takeItem()) != null)) {
+        batch.add(item);
+      }
+      return batch;
     }
 
     private final class ProcessingFunction implements Callable<Void> {
@@ -186,7 +373,6 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
 
       @Override
       public Void call() throws Exception {
-        PushItem errorEntry = null;
         try {
           logger.log(Level.INFO, "processing queue item {0}", queueItem);
           itemRetriever.process(queueItem);
@@ -194,43 +380,33 @@ class ParallelProcessingTraverserWorker extends AbstractTraverserWorker implemen
           // TODO(tvartak) : Allow connector to throw RepositoryException and
           // catch RepositoryException here instead of {@link IOException}.
           logger.log(Level.WARNING, "Error processing queue item " + queueItem, io);
-          Optional<RepositoryError> error = getRepositoryError(io);
-          if (error.isPresent()) {
-            errorEntry =
-                new PushItem()
-                    .setQueue(queueItem.getQueue())
-                    .setType("REPOSITORY_ERROR")
-                    .setRepositoryError(error.get())
-                    .encodePayload(queueItem.decodePayload());
-          }
-        }
-
-        if (errorEntry != null) {
-          logger.log(Level.INFO, "Pushing repository errors for item {0}", queueItem.getName());
-          try {
-            indexingService.push(queueItem.getName(), errorEntry);
-          } catch (IOException e) {
-            logger.log(Level.WARNING, "Error pushing item", e);
-          }
+          RepositoryDocError.pushRepositoryError(indexingService, queueItem, io);
         }
         return null;
       }
     }
-  }
 
-  private static Optional<RepositoryError> getRepositoryError(IOException exception) {
-    boolean isRepositoryException = (exception instanceof RepositoryException);
-    boolean isCauseRepositoryException =
-        !isRepositoryException && (exception.getCause() instanceof RepositoryException);
-    if (!isRepositoryException && !isCauseRepositoryException) {
-      return Optional.empty();
-    }
-    if (isRepositoryException) {
-      return Optional.of(((RepositoryException) exception).getRepositoryError());
-    }
-    if (isCauseRepositoryException) {
-      return Optional.of(((RepositoryException) (exception.getCause())).getRepositoryError());
+    private final class BatchProcessingFunction implements Callable<Boolean> {
+      private final List<Item> batch;
+
+      private BatchProcessingFunction(List<Item> batch) {
+        this.batch = batch;
+      }
+
+      @Override
+      public Boolean call() throws Exception {
+        try {
+          logger.log(Level.FINE, "processing batch of {0} queue items", batch.size());
+          batchItemRetriever.processBatch(batch);
+          return true;
+        } catch (IOException io) {
+          logger.log(Level.WARNING, "Error processing queue entries batch " + batch, io);
+          for (Item queueItem : batch) {
+            RepositoryDocError.pushRepositoryError(indexingService, queueItem, io);
+          }
+          return false;
+        }
+      }
     }
-    return Optional.empty();
   }
 }
@@ -45,6 +45,12 @@ public class TraverserConfiguration {
   private final long timeout;
   private final int hostload;
   private final TimeUnit timeunit;
+  private final int microBatchSize;
+  private final boolean prefetchEnabled;
+  private final int prefetchLowWatermark;
+  private final int prefetchHighWatermark;
+  private final long prefetchInitialBackoffMillis;
+  private final long prefetchMaxBackoffMillis;
 
   /**
    * Returns the traverser configuration name that is used for logging.
@@ -128,6 +134,71 @@ public class TraverserConfiguration {
     return hostload;
   }
 
+  /**
+   * Returns the maximum number of polled items passed to a single {@link
+   * BatchItemRetriever#processBatch(List)} call by each of the {@link #getHostload()} parallel
+   * threads.
+   *
+   * <p>A value of 0 passes all items of a poll response to a single call on one thread.
+   *
+   * @return the micro-batch size, or 0 to process each poll response as one batch
+   */
+  public int getMicroBatchSize() {
+    return microBatchSize;
+  }
+
+  /**
+   * Returns whether the traverser polls continuously, keeping the number of polled items waiting
+   * for processing between {@link #getPrefetchLowWatermark()} and {@link
+   * #getPrefetchHighWatermark()}.
+   *
+   * <p>When disabled, each scheduled poll stops at the first empty poll response.
+   *
+   * @return {@code true} if continuous prefetching is enabled
+   */
+  public boolean isPrefetchEnabled() {
+    return prefetchEnabled;
+  }
+
+  /**
+   * Returns the number of waiting items at or below which a prefetching traverser polls again.
+   *
+   * @return the low watermark of polled items
+   */
+  public int getPrefetchLowWatermark() {
+    return prefetchLowWatermark;
+  }
+
+  /**
+   * Returns the number of waiting items at which the traverser stops polling.
+   *
+   * @return the high watermark of polled items
+   */
+  public int getPrefetchHighWatermark() {
+    return prefetchHighWatermark;
+  }
+
+  /**
+   * Returns the delay before a prefetching traverser polls again after an empty poll response.
+   * The delay doubles after each consecutive empty response, up to {@link
+   * #getPrefetchMaxBackoffMillis()}.
+   *
+   * @return the initial backoff in milliseconds
+   */
+  public long getPrefetchInitialBackoffMillis() {
+    return prefetchInitialBackoffMillis;
+  }
+
+  /**
+   * Returns the maximum delay between polls of a prefetching traverser receiving empty poll
+   * responses.
+   *
+   * @return the maximum backoff in milliseconds
+   */
+  public long getPrefetchMaxBackoffMillis() {
+    return prefetchMaxBackoffMillis;
+  }
+
   private TraverserConfiguration(Builder builder) {
     this.name = builder.name;
     this.pollRequest = builder.pollRequest;
@@ -136,6 +207,12 @@ public class TraverserConfiguration {
     this.timeout = builder.timeout;
     this.timeunit = builder.timeunit;
     this.hostload = builder.hostload;
+    this.microBatchSize = builder.microBatchSize;
+    this.prefetchEnabled = builder.prefetchEnabled;
+    this.prefetchLowWatermark = builder.prefetchLowWatermark;
+    this.prefetchHighWatermark = builder.prefetchHighWatermark;
+    this.prefetchInitialBackoffMillis = builder.prefetchInitialBackoffMillis;
+    this.prefetchMaxBackoffMillis = builder.prefetchMaxBackoffMillis;
   }
 
   /**
@@ -155,6 +232,20 @@ public class TraverserConfiguration {
    *     Default: SECONDS
    * <li>{@code traverser.hostload} - Specifies the maximum number of active
    *     parallel threads available for polling. Default: {@code 5}
+   * <li>{@code traverser.microBatchSize} - Specifies the maximum number of polled items passed
+   *     to each {@link BatchItemRetriever#processBatch(List)} call, made by up to {@code hostload}
+   *     parallel threads. Default: {@code 0} (a single call per poll response)
+   * <li>{@code traverser.prefetch.enabled} - Specifies whether the traverser polls continuously
+   *     instead of stopping at the first empty poll response. Default: {@code false}
+   * <li>{@code traverser.prefetch.lowWatermark} - Specifies the number of polled items waiting
+   *     for processing at or below which a prefetching traverser polls again. Default: {@code 100}
+   * <li>{@code traverser.prefetch.highWatermark} - Specifies the number of polled items waiting
+   *     for processing at which the traverser stops polling. Default: {@code 1000}
+   * <li>{@code traverser.prefetch.initialBackoffMillis} - Specifies the delay before polling
+   *     again after an empty poll response, doubled for each consecutive empty response.
+   *     Default: {@code 1000}
+   * <li>{@code traverser.prefetch.maxBackoffMillis} - Specifies the maximum delay between
+   *     polls returning empty responses. Default: {@code 60000}
    * </ul>
    */
   public static class Builder {
@@ -166,9 +257,20 @@ public class TraverserConfiguration {
     public static final String CONFIG_TIMEUNIT = ".timeunit";
     public static final String CONFIG_TIMEOUT = ".timeout";
     public static final String CONFIG_HOSTLOAD = ".hostload";
+    public static final String CONFIG_MICRO_BATCH_SIZE = ".microBatchSize";
+    public static final String CONFIG_PREFETCH_ENABLED = ".prefetch.enabled";
+    public static final String CONFIG_PREFETCH_LOW_WATERMARK = ".prefetch.lowWatermark";
+    public static final String CONFIG_PREFETCH_HIGH_WATERMARK = ".prefetch.highWatermark";
+    public static final String CONFIG_PREFETCH_INITIAL_BACKOFF_MILLIS =
+        ".prefetch.initialBackoffMillis";
+    public static final String CONFIG_PREFETCH_MAX_BACKOFF_MILLIS = ".prefetch.maxBackoffMillis";
 
     public static final int CONFIG_HOSTLOAD_DEFAULT = 5;
     public static final int CONFIG_TIMEOUT_DEFAULT = 60;
+    public static final int CONFIG_PREFETCH_LOW_WATERMARK_DEFAULT = 100;
+    public static final int CONFIG_PREFETCH_HIGH_WATERMARK_DEFAULT = 1000;
+    public static final int CONFIG_PREFETCH_INITIAL_BACKOFF_MILLIS_DEFAULT = 1000;
+    public static final int CONFIG_PREFETCH_MAX_BACKOFF_MILLIS_DEFAULT = 60000;
 
     private final ConfigValue<Integer> defaultTimeout =
         Configuration.getInteger(TRAVERSER + CONFIG_TIMEOUT, CONFIG_TIMEOUT_DEFAULT);
@@ -186,6 +288,24 @@ public class TraverserConfiguration {
                 Configuration.STRING_PARSER);
     private final ConfigValue<Integer> defaultPollLimit =
         Configuration.getInteger(TRAVERSER + CONFIG_POLL_REQUEST_LIMIT, 0);
+    private final ConfigValue<Integer> defaultMicroBatchSize =
+        Configuration.getInteger(TRAVERSER + CONFIG_MICRO_BATCH_SIZE, 0);
+    private final ConfigValue<Boolean> defaultPrefetchEnabled =
+        Configuration.getBoolean(TRAVERSER + CONFIG_PREFETCH_ENABLED, false);
+    private final ConfigValue<Integer> defaultPrefetchLowWatermark =
+        Configuration.getInteger(
+            TRAVERSER + CONFIG_PREFETCH_LOW_WATERMARK, CONFIG_PREFETCH_LOW_WATERMARK_DEFAULT);
+    private final ConfigValue<Integer> defaultPrefetchHighWatermark =
+        Configuration.getInteger(
+            TRAVERSER + CONFIG_PREFETCH_HIGH_WATERMARK, CONFIG_PREFETCH_HIGH_WATERMARK_DEFAULT);
+    private final ConfigValue<Integer> defaultPrefetchInitialBackoffMillis =
+        Configuration.getInteger(
+            TRAVERSER + CONFIG_PREFETCH_INITIAL_BACKOFF_MILLIS,
+            CONFIG_PREFETCH_INITIAL_BACKOFF_MILLIS_DEFAULT);
+    private final ConfigValue<Integer> defaultPrefetchMaxBackoffMillis =
+        Configuration.getInteger(
+            TRAVERSER + CONFIG_PREFETCH_MAX_BACKOFF_MILLIS,
+            CONFIG_PREFETCH_MAX_BACKOFF_MILLIS_DEFAULT);
 
     private String name;
     private String queueName;
@@ -197,6 +317,12 @@ public class TraverserConfiguration {
     private int hostload;
     private TimeUnit timeunit;
     private int pollRequestLimit;
+    private int microBatchSize;
+    private boolean prefetchEnabled;
+    private int prefetchLowWatermark;
+    private int prefetchHighWatermark;
+    private long prefetchInitialBackoffMillis;
+    private long prefetchMaxBackoffMillis;
 
     /**
      * Creates a builder instance with default configuration properties.
@@ -220,6 +346,12 @@ public class TraverserConfiguration {
       this.queueName = defaultQueueName.get();
       this.requestStatuses = defaultRequestStatuses.get();
       this.pollRequestLimit = defaultPollLimit.get();
+      this.microBatchSize = defaultMicroBatchSize.get();
+      this.prefetchEnabled = defaultPrefetchEnabled.get();
+      this.prefetchLowWatermark = defaultPrefetchLowWatermark.get();
+      this.prefetchHighWatermark = defaultPrefetchHighWatermark.get();
+      this.prefetchInitialBackoffMillis = defaultPrefetchInitialBackoffMillis.get();
+      this.prefetchMaxBackoffMillis = defaultPrefetchMaxBackoffMillis.get();
     }
 
     // TODO(normang): use enum strings for status values in examples below
@@ -271,6 +403,29 @@ public class TraverserConfiguration {
               .get();
       this.pollRequestLimit =
           Configuration.getOverriden(prefix + CONFIG_POLL_REQUEST_LIMIT, defaultPollLimit).get();
+      this.microBatchSize =
+          Configuration.getOverriden(prefix + CONFIG_MICRO_BATCH_SIZE, defaultMicroBatchSize)
+              .get();
+      this.prefetchEnabled =
+          Configuration.getOverriden(prefix + CONFIG_PREFETCH_ENABLED, defaultPrefetchEnabled)
+              .get();
+      this.prefetchLowWatermark =
+          Configuration.getOverriden(
+                  prefix + CONFIG_PREFETCH_LOW_WATERMARK, defaultPrefetchLowWatermark)
+              .get();
+      this.prefetchHighWatermark =
+          Configuration.getOverriden(
+                  prefix + CONFIG_PREFETCH_HIGH_WATERMARK, defaultPrefetchHighWatermark)
+              .get();
+      this.prefetchInitialBackoffMillis =
+          Configuration.getOverriden(
+                  prefix + CONFIG_PREFETCH_INITIAL_BACKOFF_MILLIS,
+                  defaultPrefetchInitialBackoffMillis)
+              .get();
+      this.prefetchMaxBackoffMillis =
+          Configuration.getOverriden(
+                  prefix + CONFIG_PREFETCH_MAX_BACKOFF_MILLIS, defaultPrefetchMaxBackoffMillis)
+              .get();
     }
 
     /**
@@ -336,6 +491,18 @@ public class TraverserConfiguration {
       checkArgument(hostload > 0, "hostload should be greater than 0");
       checkArgument(
           pollRequestLimit >= 0, "poll request limit should be greater than or equal to 0");
+      checkArgument(
+          microBatchSize >= 0, "micro-batch size should be greater than or equal to 0");
+      checkArgument(
+          prefetchLowWatermark >= 0, "prefetch low watermark should be greater than or equal to 0");
+      checkArgument(
+          prefetchHighWatermark > prefetchLowWatermark,
+          "prefetch high watermark should be greater than low watermark");
+      checkArgument(
+          prefetchInitialBackoffMillis > 0, "prefetch initial backoff should be greater than 0");
+      checkArgument(
+          prefetchMaxBackoffMillis >= prefetchInitialBackoffMillis,
+          "prefetch max backoff should be greater than or equal to initial backoff");
 
       pollRequest = new PollItemsRequest();
       if (!Strings.isNullOrEmpty(queueName)) {
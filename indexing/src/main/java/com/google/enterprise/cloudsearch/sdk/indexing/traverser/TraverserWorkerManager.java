@@ -62,7 +62,7 @@ public class TraverserWorkerManager {
     checkNotNull(conf, "configuration should be defined");
     checkNotNull(indexingService, "indexingService should be defined");
 
-    if (conf.getBatchItemRetriever() != null) {
+    if ((conf.getBatchItemRetriever() != null) && (conf.getMicroBatchSize() == 0)) {
       return new BatchProcessingTraverserWorker(conf, indexingService);
     } else {
       checkArgument(conf.getHostload() > 0, "hostload should be greater than 0");
@@ -16,6 +16,7 @@
 package com.google.enterprise.cloudsearch.sdk.indexing;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
@@ -23,7 +24,9 @@ import static org.mockito.Mockito.when;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.services.cloudsearch.v1.CloudSearch;
 import com.google.api.services.cloudsearch.v1.CloudSearch.Indexing.Datasources.Items;
+import com.google.api.services.cloudsearch.v1.model.PushItem;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService.ExecutorFactory;
 import java.util.concurrent.ScheduledExecutorService;
@@ -105,4 +108,16 @@ public class BatchingIndexingServiceImplTest {
     thrown.expect(IllegalStateException.class);
     batchingService.deleteItem(deleteItemRequest);
   }
+
+  @Test
+  public void testPushPriority() {
+    PushItem error = new PushItem().setType("REPOSITORY_ERROR");
+    assertEquals(
+        Priority.INTERACTIVE, BatchingIndexingServiceImpl.getPushPriority(error, Priority.BULK));
+    PushItem modified = new PushItem().setType("MODIFIED");
+    assertEquals(
+        Priority.BULK, BatchingIndexingServiceImpl.getPushPriority(modified, Priority.BULK));
+    assertEquals(
+        Priority.DEFAULT, BatchingIndexingServiceImpl.getPushPriority(null, Priority.DEFAULT));
+  }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.api.services.cloudsearch.v1.model.Item;
+import com.google.api.services.cloudsearch.v1.model.ItemContent;
+import com.google.api.services.cloudsearch.v1.model.ItemMetadata;
+import com.google.api.services.cloudsearch.v1.model.ItemStructuredData;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.google.enterprise.cloudsearch.sdk.indexing.ContentHashCache.Entry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link ContentHashCache}. */
+public class ContentHashCacheTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Rule public ResetStatsRule resetStats = new ResetStatsRule();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = temporaryFolder.getRoot().toPath().resolve("hashes");
+  }
+
+  @Test
+  public void testUnchangedItem() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      assertFalse(cache.isUnchanged("id1", entry("v1", "content", "queue")));
+      cache.put("id1", entry("v1", "content", "queue"));
+      assertTrue(cache.isUnchanged("id1", entry("v1", "content", "queue")));
+      // queue is not compared
+      assertTrue(cache.isUnchanged("id1", entry("v1", "content", "otherQueue")));
+      assertFalse(cache.isUnchanged("id1", entry("v2", "content", "queue")));
+      assertFalse(cache.isUnchanged("id1", entry("v1", "changed", "queue")));
+      assertFalse(cache.isUnchanged("id2", entry("v1", "content", "queue")));
+    }
+    OperationStats stats = StatsManager.getComponent(ContentHashCache.STATS_COMPONENT);
+    assertEquals(
+        2, stats.getLogResultCounter(ContentHashCache.LOOKUP, ContentHashCache.RESULT_HIT));
+    assertEquals(
+        4, stats.getLogResultCounter(ContentHashCache.LOOKUP, ContentHashCache.RESULT_MISS));
+  }
+
+  @Test
+  public void testEntryWithoutHashNotCached() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      Entry noHash = new Entry("v1", null, null, null, null);
+      cache.put("id1", noHash);
+      assertFalse(cache.isUnchanged("id1", noHash));
+      assertEquals(0, cache.size());
+    }
+  }
+
+  @Test
+  public void testEntryOfItem() {
+    Item item =
+        new Item()
+            .setVersion("djE=")
+            .setQueue("queue")
+            .setContent(new ItemContent().setHash("itemContent"))
+            .setMetadata(new ItemMetadata().setHash("metadata"))
+            .setStructuredData(new ItemStructuredData().setHash("structured"));
+    assertEquals(
+        new Entry("djE=", "itemContent", "metadata", "structured", "queue"),
+        Entry.of(item, null));
+    assertEquals(
+        new Entry("djE=", "content", "metadata", "structured", "queue"),
+        Entry.of(item, "content"));
+    assertEquals(new Entry(null, null, null, null, null), Entry.of(new Item(), null));
+  }
+
+  @Test
+  public void testEntriesPersisted() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      cache.put("id1", entry("v1", "content1", "queue"));
+      cache.put("id2", entry(null, "content2", null));
+      cache.put("id3", entry("v1", "content3", "queue"));
+      cache.remove("id3");
+    }
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      assertEquals(2, cache.size());
+      assertTrue(cache.isUnchanged("id1", entry("v1", "content1", "queue")));
+      assertTrue(cache.isUnchanged("id2", entry(null, "content2", null)));
+      assertFalse(cache.isUnchanged("id3", entry("v1", "content3", "queue")));
+    }
+  }
+
+  @Test
+  public void testRemoveQueue() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      cache.put("id1", entry("v1", "content1", "queueA"));
+      cache.put("id2", entry("v1", "content2", "queueB"));
+      cache.put("id3", entry("v1", "content3", "queueA"));
+      cache.removeQueue("queueA");
+      assertEquals(1, cache.size());
+    }
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      assertEquals(1, cache.size());
+      assertTrue(cache.isUnchanged("id2", entry("v1", "content2", "queueB")));
+    }
+  }
+
+  @Test
+  public void testPutSkippedWhenRemovedAfterSent() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      long sent = cache.getGeneration();
+      cache.remove("id1");
+      assertFalse(cache.put("id1", entry("v1", "content", null), sent));
+      assertFalse(cache.isUnchanged("id1", entry("v1", "content", null)));
+      // other items and requests sent after the removal are recorded
+      assertTrue(cache.put("id2", entry("v1", "content", null), sent));
+      assertTrue(cache.put("id1", entry("v1", "content", null), cache.getGeneration()));
+      assertTrue(cache.isUnchanged("id1", entry("v1", "content", null)));
+    }
+  }
+
+  @Test
+  public void testPutSkippedWhenQueueRemovedAfterSent() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      long sent = cache.getGeneration();
+      cache.removeQueue("queueA");
+      assertFalse(cache.put("id1", entry("v1", "content", "queueA"), sent));
+      assertTrue(cache.put("id2", entry("v1", "content", "queueB"), sent));
+      assertEquals(1, cache.size());
+    }
+  }
+
+  @Test
+  public void testPutSkippedWhenRemovalForgotten() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path, 10, 2)) {
+      long sent = cache.getGeneration();
+      cache.remove("id1");
+      cache.remove("id2");
+      cache.remove("id3");
+      // removal of id1 is no longer remembered, so entries sent before it are not trusted
+      assertFalse(cache.put("id4", entry("v1", "content", null), sent));
+      assertTrue(cache.put("id4", entry("v1", "content", null), cache.getGeneration()));
+    }
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path, 10)) {
+      cache.put("id1", entry("v1", "content", null));
+      for (int i = 0; i < 25; i++) {
+        cache.put("id2", entry("v" + i, "content", null));
+      }
+      assertTrue(cache.getRecordCount() < 10);
+      assertEquals(2, cache.size());
+    }
+    try (ContentHashCache cache = new ContentHashCache(path, 10)) {
+      assertEquals(2, cache.size());
+      assertTrue(cache.isUnchanged("id1", entry("v1", "content", null)));
+      assertTrue(cache.isUnchanged("id2", entry("v24", "content", null)));
+    }
+  }
+
+  @Test
+  public void testCompactionAfterClose() throws IOException {
+    ContentHashCache cache = new ContentHashCache(path, 10);
+    cache.put("id1", entry("v1", "content", null));
+    cache.close();
+    cache.compact();
+    assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".compact")));
+    try (ContentHashCache reopened = new ContentHashCache(path, 10)) {
+      assertTrue(reopened.isUnchanged("id1", entry("v1", "content", null)));
+    }
+  }
+
+  @Test
+  public void testCloseUnregistersGauge() throws IOException {
+    OperationStats stats = StatsManager.getComponent(ContentHashCache.STATS_COMPONENT);
+    ContentHashCache cache = new ContentHashCache(path);
+    StatsVisitor registered = mock(StatsVisitor.class);
+    stats.visit(ContentHashCache.STATS_COMPONENT, registered);
+    verify(registered)
+        .visitGauge(
+            eq(ContentHashCache.STATS_COMPONENT), eq(ContentHashCache.GAUGE_ENTRIES), anyLong());
+
+    cache.close();
+    StatsVisitor unregistered = mock(StatsVisitor.class);
+    stats.visit(ContentHashCache.STATS_COMPONENT, unregistered);
+    verify(unregistered, never()).visitGauge(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testIncompleteRecordTruncated() throws IOException {
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      cache.put("id1", entry("v1", "content", null));
+    }
+    long length = Files.size(path);
+    Files.write(path, new byte[] {1, 0, 10, 'i'}, StandardOpenOption.APPEND);
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      assertEquals(1, cache.size());
+      assertEquals(length, Files.size(path));
+      cache.put("id2", entry("v1", "content", null));
+    }
+    try (ContentHashCache cache = new ContentHashCache(path)) {
+      assertEquals(2, cache.size());
+    }
+  }
+
+  @Test
+  public void testNotCacheFile() throws IOException {
+    Files.write(path, "not a cache".getBytes());
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Not a content hash cache file");
+    new ContentHashCache(path);
+  }
+
+  @Test
+  public void testClosed() throws IOException {
+    ContentHashCache cache = new ContentHashCache(path);
+    cache.close();
+    thrown.expect(IllegalStateException.class);
+    cache.put("id1", entry("v1", "content", null));
+  }
+
+  @Test
+  public void testFromConfigurationNotConfigured() {
+    setupConfig.initConfig(new Properties());
+    assertNull(ContentHashCache.fromConfiguration());
+  }
+
+  @Test
+  public void testFromConfiguration() throws IOException {
+    Properties config = new Properties();
+    config.put(ContentHashCache.CONFIG_PATH, path.toString());
+    setupConfig.initConfig(config);
+    try (ContentHashCache cache = ContentHashCache.fromConfiguration()) {
+      cache.put("id1", entry("v1", "content", null));
+    }
+    assertTrue(Files.exists(path));
+  }
+
+  private static Entry entry(String version, String contentHash, String queue) {
+    return new Entry(version, contentHash, null, null, queue);
+  }
+}
@@ -16,15 +16,23 @@
 package com.google.enterprise.cloudsearch.sdk.indexing;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.escape.Escaper;
+import com.google.common.html.HtmlEscapers;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sdk.indexing.ContentTemplate.Builder;
 import com.google.enterprise.cloudsearch.sdk.indexing.ContentTemplate.UnmappedColumnsMode;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -528,4 +536,84 @@ public class ContentTemplateTest {
         .append("</body>\n</html>\n");
     assertEquals(target.toString(), template.apply(keyVals));
   }
+
+  @Test
+  public void testTemplateApplyMatchesFormattedTemplate() {
+    ContentTemplate template =
+        new Builder()
+            .setTitle("TField")
+            .setHighContent(Arrays.asList("HField1", "HField2"))
+            .setMediumContent(Arrays.asList("MField1"))
+            .setLowContent(Arrays.asList("LField1"))
+            .setUnmappedColumnMode(UnmappedColumnsMode.IGNORE)
+            .build();
+    Multimap<String, Object> keyVals = ArrayListMultimap.create();
+    keyVals.put("TField", "Tom & Jerry's <show>");
+    keyVals.putAll("HField1", Arrays.asList("\"quoted\"", null, 42));
+    keyVals.put("HField2", null);
+    keyVals.put("MField1", "100% & %s");
+    Escaper escaper = HtmlEscapers.htmlEscaper();
+    String expected =
+        String.format(
+            template.getTemplate(),
+            escaper.escape("Tom & Jerry's <show>"),
+            escaper.escape("Tom & Jerry's <show>"),
+            escaper.escape("\"quoted\", 42"),
+            "",
+            escaper.escape("100% & %s"),
+            "");
+    assertEquals(expected, template.apply(keyVals));
+  }
+
+  @Test
+  public void testTemplateApplyFieldNameWithPercent() {
+    ContentTemplate template =
+        new Builder().setTitle("TField").setHighContent(Arrays.asList("H%d")).build();
+    Multimap<String, Object> keyVals = LinkedListMultimap.create();
+    keyVals.put("TField", "My Title");
+    keyVals.put("H%d", "HValue");
+    keyVals.put("U%s", "UValue");
+    StringBuilder target = new StringBuilder();
+    target.append("<!DOCTYPE html>\n<html lang='en'>\n<head>\n")
+        .append("<meta http-equiv='Content-Type' content='text/html; charset=utf-8'/>\n")
+        .append("<title>My Title</title>\n</head>\n<body>\n")
+        .append("<div id='TField'>\n  <p>TField:</p>\n  <h1>My Title</h1>\n</div>\n")
+        .append("<div id='H%d'>\n  <p>H%d:</p>\n  <h1>HValue</h1>\n</div>\n")
+        .append("<div id='U%s'>\n  <p>U%s:</p>\n  <p><small>UValue</small></p>\n</div>\n")
+        .append("</body>\n</html>\n");
+    assertEquals(target.toString(), template.apply(keyVals));
+  }
+
+  @Test
+  public void testAppendEscaped() {
+    StringBuilder html = new StringBuilder("prefix ");
+    String value = "<a href=\"x\">Tom & Jerry's</a> \u00e9";
+    ContentTemplate.appendEscaped(html, value);
+    assertEquals("prefix " + HtmlEscapers.htmlEscaper().escape(value), html.toString());
+  }
+
+  @Test
+  public void testTemplateApplyToOutputStream() throws IOException {
+    ContentTemplate template =
+        new Builder().setTitle("TField").setLowContent(Arrays.asList("LField1")).build();
+    Multimap<String, Object> keyVals = ArrayListMultimap.create();
+    keyVals.put("TField", "Caf\u00e9 \ud83d\ude00 & co");
+    // larger than the encoder buffer to write in several chunks
+    keyVals.put("LField1", Strings.repeat("\u00fcber<>", 5000));
+    keyVals.put("Extra", "x");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    template.apply(keyVals, out);
+    String html = template.apply(keyVals);
+    assertArrayEquals(html.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+
+    // per-thread buffers do not leak content from previous, larger documents
+    Multimap<String, Object> small = ArrayListMultimap.create();
+    small.put("TField", "Small");
+    out.reset();
+    template.apply(small, out);
+    String smallHtml = template.apply(small);
+    assertEquals(smallHtml, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertThat(smallHtml, containsString("<title>Small</title>"));
+    assertEquals(html, template.apply(keyVals));
+  }
 }
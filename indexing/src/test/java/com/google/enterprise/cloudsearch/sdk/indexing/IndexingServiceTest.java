@@ -51,6 +51,7 @@ import com.google.api.services.cloudsearch.v1.model.DebugOptions;
 import com.google.api.services.cloudsearch.v1.model.IndexItemRequest;
 import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.api.services.cloudsearch.v1.model.ItemContent;
+import com.google.api.services.cloudsearch.v1.model.ItemMetadata;
 import com.google.api.services.cloudsearch.v1.model.ItemStatus;
 import com.google.api.services.cloudsearch.v1.model.ListItemsResponse;
 import com.google.api.services.cloudsearch.v1.model.Operation;
@@ -67,11 +68,14 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service.State;
 import com.google.common.util.concurrent.ServiceManager;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.BatchPolicy;
 import com.google.enterprise.cloudsearch.sdk.CredentialFactory;
 import com.google.enterprise.cloudsearch.sdk.LocalFileCredentialFactory;
 import com.google.enterprise.cloudsearch.sdk.QuotaServer;
 import com.google.enterprise.cloudsearch.sdk.RetryPolicy;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.ContentFormat;
@@ -92,7 +96,9 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.StreamSupport;
 import org.junit.Before;
 import org.junit.Rule;
@@ -101,6 +107,7 @@ import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -134,6 +141,7 @@ public class IndexingServiceTest {
   private CloudSearch cloudSearch;
   private TestingHttpTransport transport;
   private IndexingService indexingService;
+  private ContentHashCache contentHashCache;
 
   private static final GoogleJsonError NOT_FOUND_ERROR =
       new GoogleJsonError()
@@ -154,6 +162,12 @@ public class IndexingServiceTest {
 
   private void createService(boolean enableDebugging, boolean allowUnknownGsuitePrincipals)
       throws IOException, GeneralSecurityException {
+    createService(enableDebugging, allowUnknownGsuitePrincipals, 0);
+  }
+
+  private void createService(
+      boolean enableDebugging, boolean allowUnknownGsuitePrincipals, int contentUploadThreads)
+      throws IOException, GeneralSecurityException {
     this.transport = new TestingHttpTransport("datasources/source/connectors/unitTest");
     JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
     CredentialFactory credentialFactory =
@@ -191,6 +205,8 @@ public class IndexingServiceTest {
             .setConnectorId("unitTest")
             .setEnableDebugging(enableDebugging)
             .setAllowUnknownGsuitePrincipals(allowUnknownGsuitePrincipals)
+            .setContentUploadThreads(contentUploadThreads)
+            .setContentHashCache(contentHashCache)
             .build();
     this.indexingService.startAsync().awaitRunning();
   }
@@ -562,6 +578,79 @@ public class IndexingServiceTest {
     verify(quotaServer, times(1)).acquire(Operations.DEFAULT);
   }
 
+  @Test
+  public void testRequestPriority() throws Exception {
+    List<Priority> priorities = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              priorities.add(PriorityContext.current());
+              return Futures.immediateFuture(new Operation());
+            })
+        .when(batchingService)
+        .indexItem(any());
+    doAnswer(
+            invocation -> {
+              priorities.add(PriorityContext.current());
+              return Futures.immediateFuture(new Item());
+            })
+        .when(batchingService)
+        .pushItem(any());
+    doAnswer(
+            invocation -> {
+              priorities.add(PriorityContext.current());
+              return Futures.immediateFuture(new Operation());
+            })
+        .when(batchingService)
+        .deleteItem(any());
+    this.indexingService.indexItem(new Item().setName(GOOD_ID), RequestMode.SYNCHRONOUS);
+    this.indexingService.indexItem(
+        new Item().setName(GOOD_ID), RequestMode.SYNCHRONOUS, Priority.BULK);
+    this.indexingService.push(GOOD_ID, new PushItem(), Priority.BULK);
+    this.indexingService.deleteItem(GOOD_ID, null, RequestMode.SYNCHRONOUS, Priority.BULK);
+    try (PriorityContext.Scope scope = PriorityContext.enter(Priority.INTERACTIVE)) {
+      this.indexingService.push(GOOD_ID, new PushItem());
+    }
+    assertEquals(
+        Arrays.asList(
+            Priority.DEFAULT, Priority.BULK, Priority.BULK, Priority.BULK, Priority.INTERACTIVE),
+        priorities);
+    assertEquals(Priority.DEFAULT, PriorityContext.current());
+  }
+
+  @Test
+  public void testPipelinedContentUploadKeepsPriority() throws Exception {
+    createService(/*debugging*/ false, /*allowUnknownGsuitePrincipals*/ false, 1);
+    when(batchingService.startUpload(any()))
+        .thenReturn(Futures.immediateFuture(new UploadItemRef().setName("ref")));
+    SettableFuture<Double> indexQuota = SettableFuture.create();
+    when(quotaServer.acquireAsync(Operations.DEFAULT)).thenReturn(indexQuota);
+    InputStreamContent content =
+        new InputStreamContent(
+            "text/html", new ByteArrayInputStream("Hello World.".getBytes(UTF_8)));
+    when(contentUploadService.uploadContent("ref", content))
+        .thenReturn(Futures.immediateFuture(null));
+    SettableFuture<Priority> priority = SettableFuture.create();
+    doAnswer(
+            invocation -> {
+              priority.set(PriorityContext.current());
+              return Futures.immediateFuture(OPERATION_DONE);
+            })
+        .when(batchingService)
+        .indexItem(any());
+    ListenableFuture<Operation> result =
+        this.indexingService.indexItemAndContent(
+            new Item().setName(GOOD_ID),
+            content,
+            null,
+            ContentFormat.TEXT,
+            RequestMode.ASYNCHRONOUS,
+            Priority.BULK);
+    // the index request is batched by an upload thread
+    indexQuota.set(0.0);
+    assertEquals(Priority.BULK, priority.get(5, TimeUnit.SECONDS));
+    assertEquals(OPERATION_DONE, result.get(5, TimeUnit.SECONDS));
+  }
+
   @Test
   public void testUpdateItemDebugOptionsEnabled() throws Exception {
     createService(/*debugging*/ true, /*allowUnknownGsuitePrincipals*/ false);
@@ -679,6 +768,180 @@ public class IndexingServiceTest {
     verify(quotaServer, times(2)).acquire(Operations.DEFAULT);
   }
 
+  @Test
+  public void testContentHashCacheSkipsUnchangedItem() throws Exception {
+    createServiceWithContentHashCache();
+    when(batchingService.indexItem(any())).thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    indexHashedItem("contentHash", null).get();
+    verify(batchingService, times(1)).indexItem(any());
+
+    assertEquals(OPERATION_DONE, indexHashedItem("contentHash", null).get());
+    verify(batchingService, times(1)).indexItem(any());
+    verify(batchingService, times(0)).pushItem(any());
+
+    indexHashedItem("changedHash", null).get();
+    verify(batchingService, times(2)).indexItem(any());
+  }
+
+  @Test
+  public void testContentHashCachePushesUnchangedItemToQueue() throws Exception {
+    createServiceWithContentHashCache();
+    when(batchingService.indexItem(any())).thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    when(batchingService.pushItem(any())).thenReturn(Futures.immediateFuture(new Item()));
+    indexHashedItem("contentHash", "queueA").get();
+    indexHashedItem("contentHash", "queueB").get();
+    verify(batchingService, times(1)).indexItem(any());
+    ArgumentCaptor<Items.Push> pushRequest = ArgumentCaptor.forClass(Items.Push.class);
+    verify(batchingService).pushItem(pushRequest.capture());
+    assertEquals(ITEMS_RESOURCE_PREFIX + GOOD_ID, pushRequest.getValue().getName());
+    assertEquals(
+        new PushItem().setType("NOT_MODIFIED").setQueue("queueB"),
+        ((PushItemRequest) pushRequest.getValue().getJsonContent()).getItem());
+  }
+
+  @Test
+  public void testContentHashCacheFailedIndexNotCached() throws Exception {
+    createServiceWithContentHashCache();
+    when(batchingService.indexItem(any()))
+        .thenReturn(Futures.immediateFailedFuture(new IOException("failed")))
+        .thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    indexHashedItem("contentHash", null);
+    indexHashedItem("contentHash", null).get();
+    verify(batchingService, times(2)).indexItem(any());
+  }
+
+  @Test
+  public void testContentHashCacheDeleteItem() throws Exception {
+    createServiceWithContentHashCache();
+    when(batchingService.indexItem(any())).thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    when(batchingService.deleteItem(any())).thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    indexHashedItem("contentHash", null).get();
+    this.indexingService.deleteItem(GOOD_ID, null, RequestMode.ASYNCHRONOUS).get();
+    indexHashedItem("contentHash", null).get();
+    verify(batchingService, times(2)).indexItem(any());
+  }
+
+  @Test
+  public void testContentHashCacheDeleteWhileIndexInFlight() throws Exception {
+    createServiceWithContentHashCache();
+    SettableFuture<Operation> inFlight = SettableFuture.create();
+    when(batchingService.indexItem(any()))
+        .thenReturn(inFlight)
+        .thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    when(batchingService.deleteItem(any())).thenReturn(Futures.immediateFuture(OPERATION_DONE));
+    ListenableFuture<Operation> indexed = indexHashedItem("contentHash", null);
+    this.indexingService.deleteItem(GOOD_ID, null, RequestMode.ASYNCHRONOUS).get();
+    // index request completing after the delete does not bring back the deleted entry
+    inFlight.set(OPERATION_DONE);
+    indexed.get();
+    indexHashedItem("contentHash", null).get();
+    verify(batchingService, times(2)).indexItem(any());
+  }
+
+  private void createServiceWithContentHashCache() throws Exception {
+    contentHashCache = new ContentHashCache(temporaryFolder.newFile().toPath());
+    createService(/*debugging*/ false, /*allowUnknownGsuitePrincipals*/ false);
+  }
+
+  private ListenableFuture<Operation> indexHashedItem(String contentHash, String queue)
+      throws IOException {
+    Item item =
+        new Item()
+            .setName(GOOD_ID)
+            .setQueue(queue)
+            .setMetadata(new ItemMetadata().setHash("metadataHash"));
+    return this.indexingService.indexItemAndContent(
+        item,
+        ByteArrayContent.fromString("text/plain", "Hello World."),
+        contentHash,
+        ContentFormat.TEXT,
+        RequestMode.ASYNCHRONOUS);
+  }
+
+  @Test
+  public void testUpdateItemWithPipelinedContentUpload() throws Exception {
+    createService(/*debugging*/ false, /*allowUnknownGsuitePrincipals*/ false, 2);
+    SettableFuture<UploadItemRef> uploadRef = SettableFuture.create();
+    SettableFuture<Void> uploaded = SettableFuture.create();
+    SettableFuture<Operation> indexed = SettableFuture.create();
+    SettableFuture<Double> indexQuota = SettableFuture.create();
+    when(batchingService.startUpload(any())).thenReturn(uploadRef);
+    when(quotaServer.acquireAsync(Operations.DEFAULT)).thenReturn(indexQuota);
+    InputStreamContent content =
+        new InputStreamContent(
+            "text/html", new ByteArrayInputStream("Hello World.".getBytes(UTF_8)));
+    when(contentUploadService.uploadContent(testName.getMethodName(), content))
+        .thenReturn(uploaded);
+    SettableFuture<String> indexThread = SettableFuture.create();
+    doAnswer(
+            invocation -> {
+              indexThread.set(Thread.currentThread().getName());
+              return indexed;
+            })
+        .when(batchingService)
+        .indexItem(any());
+
+    Item item = new Item().setName(GOOD_ID);
+    ListenableFuture<Operation> result =
+        this.indexingService.indexItemAndContent(
+            item, content, null, ContentFormat.TEXT, RequestMode.ASYNCHRONOUS);
+    // caller is not blocked on any of the pipeline stages
+    assertFalse(result.isDone());
+    verify(batchingService).startUpload(any());
+    verify(contentUploadService, times(0)).uploadContent(any(), any());
+
+    uploadRef.set(new UploadItemRef().setName(testName.getMethodName()));
+    verify(contentUploadService).uploadContent(testName.getMethodName(), content);
+    verify(batchingService, times(0)).indexItem(any());
+
+    uploaded.set(null);
+    assertEquals(
+        new ItemContent()
+            .setContentDataRef(new UploadItemRef().setName(testName.getMethodName()))
+            .setContentFormat("TEXT"),
+        item.getContent());
+    // index request waits for quota without blocking the upload thread
+    verify(batchingService, times(0)).indexItem(any());
+    indexQuota.set(0.0);
+    // batching the index request may block, so it is not run on the thread granting quota
+    String threadName = indexThread.get(5, TimeUnit.SECONDS);
+    assertTrue(threadName, threadName.startsWith("content-upload-"));
+    verify(batchingService).indexItem(any());
+    indexed.set(OPERATION_DONE);
+    assertEquals(OPERATION_DONE, result.get());
+    verify(quotaServer, times(1)).acquire(Operations.DEFAULT);
+    verify(quotaServer, times(1)).acquireAsync(Operations.DEFAULT);
+  }
+
+  @Test
+  public void testUpdateItemWithPipelinedContentUploadFailure() throws Exception {
+    createService(/*debugging*/ false, /*allowUnknownGsuitePrincipals*/ false, 1);
+    when(batchingService.startUpload(any()))
+        .thenReturn(Futures.immediateFuture(new UploadItemRef().setName("ref")));
+    InputStreamContent content =
+        new InputStreamContent(
+            "text/html", new ByteArrayInputStream("Hello World.".getBytes(UTF_8)));
+    when(contentUploadService.uploadContent("ref", content))
+        .thenReturn(Futures.immediateFailedFuture(new IOException("upload failed")));
+    // failed uploads release their pipeline slot, so a single slot pipeline keeps accepting items
+    for (int i = 0; i < 3; i++) {
+      ListenableFuture<Operation> result =
+          this.indexingService.indexItemAndContent(
+              new Item().setName(GOOD_ID),
+              content,
+              null,
+              ContentFormat.TEXT,
+              RequestMode.ASYNCHRONOUS);
+      try {
+        result.get();
+        fail("missing ExecutionException");
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof IOException);
+      }
+    }
+    verify(batchingService, times(0)).indexItem(any());
+  }
+
   @Test
   public void testUpdateItemWithEmptyFileContent() throws IOException {
     File emptyFile = temporaryFolder.newFile();
@@ -1083,6 +1346,76 @@ public class IndexingServiceTest {
     assertEquals(operationName, result.getName());
   }
 
+  @Test
+  public void testShutDownClosesQuotaServer() throws IOException {
+    indexingService.stopAsync().awaitTerminated();
+    verify(quotaServer).close();
+  }
+
+  @Test
+  public void testEncodeInlineContentMatchesItemContent() throws IOException {
+    for (int size : new int[] {0, 1, 2, 3, 4, 100, 1023, 1024, 1025, 100000, (1 << 20) + 1}) {
+      byte[] bytes = randomBytes(size);
+      String expected = new ItemContent().encodeInlineContent(bytes).getInlineContent();
+      assertEquals(
+          expected,
+          IndexingServiceImpl.encodeInlineContent(new ByteArrayContent(null, bytes), size));
+      // declared length smaller or larger than actual content
+      assertEquals(
+          expected,
+          IndexingServiceImpl.encodeInlineContent(
+              new InputStreamContent(null, new ByteArrayInputStream(bytes)), size / 2));
+      assertEquals(
+          expected,
+          IndexingServiceImpl.encodeInlineContent(
+              new InputStreamContent(null, new ByteArrayInputStream(bytes)), size + 10));
+    }
+  }
+
+  @Test
+  public void testEncodeInlineContentReusesBuffer() throws IOException {
+    OperationStats stats = StatsManager.getComponent("IndexingService");
+    byte[] small = randomBytes(100000);
+    byte[] large = randomBytes((1 << 20) + 1);
+    // may allocate the per thread buffer, depending on content encoded earlier by this thread
+    IndexingServiceImpl.encodeInlineContent(new ByteArrayContent(null, small), small.length);
+    int reused = getInlineContentBufferCount(stats, IndexingServiceImpl.RESULT_BUFFER_REUSED);
+    int allocated =
+        getInlineContentBufferCount(stats, IndexingServiceImpl.RESULT_BUFFER_ALLOCATED);
+
+    for (int i = 0; i < 3; i++) {
+      IndexingServiceImpl.encodeInlineContent(new ByteArrayContent(null, small), small.length);
+    }
+    assertEquals(
+        reused + 3,
+        getInlineContentBufferCount(stats, IndexingServiceImpl.RESULT_BUFFER_REUSED));
+    assertEquals(
+        allocated,
+        getInlineContentBufferCount(stats, IndexingServiceImpl.RESULT_BUFFER_ALLOCATED));
+
+    // buffers above the pooled size are allocated for each call and not kept
+    for (int i = 0; i < 2; i++) {
+      IndexingServiceImpl.encodeInlineContent(new ByteArrayContent(null, large), large.length);
+    }
+    IndexingServiceImpl.encodeInlineContent(new ByteArrayContent(null, small), small.length);
+    assertEquals(
+        reused + 4,
+        getInlineContentBufferCount(stats, IndexingServiceImpl.RESULT_BUFFER_REUSED));
+    assertEquals(
+        allocated + 2,
+        getInlineContentBufferCount(stats, IndexingServiceImpl.RESULT_BUFFER_ALLOCATED));
+  }
+
+  private static int getInlineContentBufferCount(OperationStats stats, String result) {
+    return stats.getLogResultCounter(IndexingServiceImpl.INLINE_CONTENT_BUFFER, result);
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
   private void validateApiError(ExecutionException e, int errorCode) {
     assertTrue(e.getCause() instanceof GoogleJsonResponseException);
     GoogleJsonResponseException jsonError = (GoogleJsonResponseException) (e.getCause());
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link PriorityContext}. */
+public class PriorityContextTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testDefault() {
+    assertEquals(Priority.DEFAULT, PriorityContext.current());
+  }
+
+  @Test
+  public void testNestedScopes() {
+    try (PriorityContext.Scope bulk = PriorityContext.enter(Priority.BULK)) {
+      assertEquals(Priority.BULK, PriorityContext.current());
+      try (PriorityContext.Scope interactive = PriorityContext.enter(Priority.INTERACTIVE)) {
+        assertEquals(Priority.INTERACTIVE, PriorityContext.current());
+      }
+      assertEquals(Priority.BULK, PriorityContext.current());
+    }
+    assertEquals(Priority.DEFAULT, PriorityContext.current());
+  }
+
+  @Test
+  public void testScopeIsPerThread() throws Exception {
+    SettableFuture<Priority> other = SettableFuture.create();
+    try (PriorityContext.Scope bulk = PriorityContext.enter(Priority.BULK)) {
+      Thread thread = new Thread(() -> other.set(PriorityContext.current()));
+      thread.start();
+      assertEquals(Priority.DEFAULT, other.get(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testNullPriority() {
+    thrown.expect(NullPointerException.class);
+    PriorityContext.enter(null);
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing;
+
+import static com.google.enterprise.cloudsearch.sdk.indexing.RequestCoalescer.OPERATION_SAVED;
+import static com.google.enterprise.cloudsearch.sdk.indexing.RequestCoalescer.RESULT_DELETE;
+import static com.google.enterprise.cloudsearch.sdk.indexing.RequestCoalescer.RESULT_INDEX;
+import static com.google.enterprise.cloudsearch.sdk.indexing.RequestCoalescer.RESULT_PUSH;
+import static com.google.enterprise.cloudsearch.sdk.indexing.RequestCoalescer.STATS_COMPONENT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.cloudsearch.v1.model.Item;
+import com.google.api.services.cloudsearch.v1.model.Operation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
+import com.google.enterprise.cloudsearch.sdk.BatchRequestService;
+import com.google.enterprise.cloudsearch.sdk.RetryPolicy;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/** Tests for {@link RequestCoalescer}. */
+@RunWith(MockitoJUnitRunner.class)
+public class RequestCoalescerTest {
+  private static final String ITEM = "datasources/source/items/item";
+
+  @Mock private BatchRequestService batchService;
+  @Mock private AbstractGoogleJsonClientRequest<Operation> updateRequest;
+  @Mock private AbstractGoogleJsonClientRequest<Item> pushRequest;
+  @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+  private OperationStats operationStats;
+
+  @Rule public ResetStatsRule resetStats = new ResetStatsRule();
+
+  private RequestCoalescer coalescer;
+
+  @Before
+  public void setUp() {
+    coalescer = new RequestCoalescer(batchService, true);
+  }
+
+  private AsyncRequest<Operation> update() {
+    return update(Priority.DEFAULT);
+  }
+
+  private AsyncRequest<Operation> update(Priority priority) {
+    return new AsyncRequest<>(
+        updateRequest, new RetryPolicy.Builder().build(), operationStats, priority);
+  }
+
+  private AsyncRequest<Item> push() {
+    return new AsyncRequest<>(pushRequest, new RetryPolicy.Builder().build(), operationStats);
+  }
+
+  private static <T> void succeed(AsyncRequest<T> request, T result) throws IOException {
+    request.getCallback().onStart();
+    request.getCallback().onSuccess(result, new HttpHeaders());
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<AsyncRequest<Operation>> getAddedUpdates(int count) throws InterruptedException {
+    ArgumentCaptor<AsyncRequest<Operation>> added = ArgumentCaptor.forClass(AsyncRequest.class);
+    verify(batchService, times(count)).add(added.capture());
+    return added.getAllValues();
+  }
+
+  private static int getSaved(String result) {
+    return StatsManager.getComponent(STATS_COMPONENT).getLogResultCounter(OPERATION_SAVED, result);
+  }
+
+  @Test
+  public void testIndexSupersedesQueuedIndex() throws Exception {
+    AsyncRequest<Operation> first = update();
+    AsyncRequest<Operation> second = update();
+    ListenableFuture<Operation> firstResult = coalescer.index(ITEM, first);
+    ListenableFuture<Operation> secondResult = coalescer.index(ITEM, second);
+    assertSame(firstResult, secondResult);
+    assertTrue(first.getFuture().isCancelled());
+    assertFalse(secondResult.isDone());
+    verify(batchService).add(first);
+    verify(batchService).add(second);
+
+    Operation operation = new Operation().setName("second");
+    succeed(second, operation);
+    assertEquals(operation, firstResult.get());
+    assertEquals(1, getSaved(RESULT_INDEX));
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testDeleteDoesNotSupersedeQueuedIndex() throws Exception {
+    AsyncRequest<Operation> index = update();
+    AsyncRequest<Operation> delete = update();
+    ListenableFuture<Operation> indexResult = coalescer.index(ITEM, index);
+    ListenableFuture<Operation> deleteResult = coalescer.delete(ITEM, delete);
+    assertNotSame(indexResult, deleteResult);
+    assertFalse(index.getFuture().isDone());
+
+    Operation indexed = new Operation().setName("index");
+    Operation deleted = new Operation().setName("delete");
+    succeed(index, indexed);
+    succeed(delete, deleted);
+    assertEquals(indexed, indexResult.get());
+    assertEquals(deleted, deleteResult.get());
+    assertEquals(0, getSaved(RESULT_INDEX));
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testIndexAfterDeleteDoesNotSupersedeEarlierIndex() throws Exception {
+    AsyncRequest<Operation> first = update();
+    AsyncRequest<Operation> delete = update();
+    AsyncRequest<Operation> second = update();
+    ListenableFuture<Operation> firstResult = coalescer.index(ITEM, first);
+    coalescer.delete(ITEM, delete);
+    assertNotSame(firstResult, coalescer.index(ITEM, second));
+    assertFalse(first.getFuture().isDone());
+    assertFalse(delete.getFuture().isDone());
+    assertEquals(0, getSaved(RESULT_INDEX));
+  }
+
+  @Test
+  public void testDeleteSupersedesQueuedDelete() throws Exception {
+    AsyncRequest<Operation> first = update();
+    AsyncRequest<Operation> second = update();
+    assertSame(coalescer.delete(ITEM, first), coalescer.delete(ITEM, second));
+    assertTrue(first.getFuture().isCancelled());
+    assertEquals(1, getSaved(RESULT_DELETE));
+  }
+
+  @Test
+  public void testIndexDoesNotSupersedeQueuedDelete() throws Exception {
+    AsyncRequest<Operation> delete = update();
+    AsyncRequest<Operation> index = update();
+    ListenableFuture<Operation> deleteResult = coalescer.delete(ITEM, delete);
+    ListenableFuture<Operation> indexResult = coalescer.index(ITEM, index);
+    assertNotSame(deleteResult, indexResult);
+    assertFalse(delete.getFuture().isDone());
+
+    Operation deleted = new Operation().setName("delete");
+    Operation indexed = new Operation().setName("index");
+    succeed(delete, deleted);
+    succeed(index, indexed);
+    assertEquals(deleted, deleteResult.get());
+    assertEquals(indexed, indexResult.get());
+    assertEquals(0, getSaved(RESULT_INDEX));
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testDifferentItemsNotCoalesced() throws Exception {
+    AsyncRequest<Operation> first = update();
+    AsyncRequest<Operation> second = update();
+    assertNotSame(coalescer.index(ITEM, first), coalescer.index(ITEM + "2", second));
+    assertFalse(first.getFuture().isDone());
+    assertEquals(2, coalescer.size());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRequestAlreadyExecutingNotSuperseded() throws Exception {
+    AsyncRequest<Operation> executing = mock(AsyncRequest.class);
+    SettableFuture<Operation> executingFuture = SettableFuture.create();
+    when(executing.getFuture()).thenReturn(executingFuture);
+    when(executing.cancelIfQueued()).thenReturn(false);
+    when(executing.getPriority()).thenReturn(Priority.DEFAULT);
+    AsyncRequest<Operation> next = update();
+    ListenableFuture<Operation> executingResult = coalescer.index(ITEM, executing);
+    ListenableFuture<Operation> nextResult = coalescer.index(ITEM, next);
+    assertNotSame(executingResult, nextResult);
+
+    Operation first = new Operation().setName("first");
+    executingFuture.set(first);
+    assertEquals(first, executingResult.get());
+    assertEquals(1, coalescer.size());
+
+    // the request queued after the executing one is still coalesced
+    AsyncRequest<Operation> last = update();
+    assertSame(nextResult, coalescer.index(ITEM, last));
+    assertTrue(next.getFuture().isCancelled());
+    assertEquals(1, getSaved(RESULT_INDEX));
+  }
+
+  @Test
+  public void testPushSupersedesQueuedPushOfSameTypeToSameQueue() throws Exception {
+    AsyncRequest<Item> first = push();
+    AsyncRequest<Item> second = push();
+    AsyncRequest<Item> otherQueue = push();
+    ListenableFuture<Item> firstResult = coalescer.push(ITEM, "MODIFIED", null, first);
+    assertSame(firstResult, coalescer.push(ITEM, "MODIFIED", null, second));
+    assertNotSame(firstResult, coalescer.push(ITEM, "MODIFIED", "queue", otherQueue));
+    assertTrue(first.getFuture().isCancelled());
+    assertFalse(second.getFuture().isDone());
+
+    Item item = new Item().setName(ITEM);
+    succeed(second, item);
+    assertEquals(item, firstResult.get());
+    assertEquals(1, getSaved(RESULT_PUSH));
+  }
+
+  @Test
+  public void testPushOfOtherTypeDoesNotSupersedeQueuedPush() throws Exception {
+    AsyncRequest<Item> modified = push();
+    AsyncRequest<Item> error = push();
+    AsyncRequest<Item> next = push();
+    ListenableFuture<Item> modifiedResult = coalescer.push(ITEM, "MODIFIED", null, modified);
+    ListenableFuture<Item> errorResult =
+        coalescer.push(ITEM, "REPOSITORY_ERROR", null, error);
+    assertNotSame(modifiedResult, errorResult);
+    // only the latest request of the item is superseded
+    assertNotSame(modifiedResult, coalescer.push(ITEM, "MODIFIED", null, next));
+    assertFalse(modified.getFuture().isDone());
+    assertFalse(error.getFuture().isDone());
+    assertEquals(0, getSaved(RESULT_PUSH));
+  }
+
+  @Test
+  public void testRequestQueuedInLaneOfPendingRequests() throws Exception {
+    AsyncRequest<Operation> index = update(Priority.BULK);
+    AsyncRequest<Operation> delete = update(Priority.INTERACTIVE);
+    ListenableFuture<Operation> indexResult = coalescer.index(ITEM, index);
+    ListenableFuture<Operation> deleteResult = coalescer.delete(ITEM, delete);
+    List<AsyncRequest<Operation>> added = getAddedUpdates(2);
+    assertSame(index, added.get(0));
+    AsyncRequest<Operation> sentDelete = added.get(1);
+    assertSame(updateRequest, sentDelete.getRequest());
+    assertEquals(Priority.BULK, sentDelete.getPriority());
+
+    Operation deleted = new Operation().setName("delete");
+    succeed(index, new Operation().setName("index"));
+    succeed(sentDelete, deleted);
+    assertEquals(deleted, deleteResult.get());
+    assertTrue(indexResult.isDone());
+    assertEquals(0, coalescer.size());
+
+    // lane is no longer pinned once the item's requests completed
+    AsyncRequest<Operation> next = update(Priority.INTERACTIVE);
+    coalescer.index(ITEM, next);
+    verify(batchService).add(next);
+  }
+
+  @Test
+  public void testSupersedingRequestQueuedInLaneOfSupersededRequest() throws Exception {
+    AsyncRequest<Operation> first = update(Priority.BULK);
+    ListenableFuture<Operation> firstResult = coalescer.index(ITEM, first);
+    assertSame(firstResult, coalescer.index(ITEM, update(Priority.DEFAULT)));
+    assertTrue(first.getFuture().isCancelled());
+    assertEquals(Priority.BULK, getAddedUpdates(2).get(1).getPriority());
+  }
+
+  @Test
+  public void testNotCoalescingKeepsOrder() throws Exception {
+    coalescer = new RequestCoalescer(batchService, false);
+    AsyncRequest<Operation> first = update(Priority.BULK);
+    AsyncRequest<Operation> second = update(Priority.DEFAULT);
+    ListenableFuture<Operation> firstResult = coalescer.index(ITEM, first);
+    ListenableFuture<Operation> secondResult = coalescer.index(ITEM, second);
+    assertNotSame(firstResult, secondResult);
+    assertFalse(first.getFuture().isDone());
+    AsyncRequest<Operation> sent = getAddedUpdates(2).get(1);
+    assertEquals(Priority.BULK, sent.getPriority());
+
+    Operation operation = new Operation().setName("second");
+    succeed(first, new Operation().setName("first"));
+    succeed(sent, operation);
+    assertEquals(operation, secondResult.get());
+    assertEquals(0, getSaved(RESULT_INDEX));
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testFailureSharedByCoalescedCallers() throws Exception {
+    AsyncRequest<Operation> first = update();
+    AsyncRequest<Operation> second = update();
+    ListenableFuture<Operation> result = coalescer.index(ITEM, first);
+    coalescer.index(ITEM, second);
+    second.cancel();
+    assertTrue(result.isCancelled());
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testAddFailureReleasesItem() throws Exception {
+    AsyncRequest<Operation> request = update();
+    doThrow(new IllegalStateException("not running")).when(batchService).add(any());
+    try {
+      coalescer.index(ITEM, request);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    assertTrue(request.getFuture().isCancelled());
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testAddFailureAfterSupersedingResendsIndex() throws Exception {
+    AsyncRequest<Operation> first = update();
+    AsyncRequest<Operation> second = update();
+    ListenableFuture<Operation> firstResult = coalescer.index(ITEM, first);
+    doThrow(new IllegalStateException("full")).doNothing().when(batchService).add(any());
+    try {
+      coalescer.index(ITEM, second);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    assertTrue(first.getFuture().isCancelled());
+    assertTrue(second.getFuture().isCancelled());
+    assertFalse(firstResult.isDone());
+
+    AsyncRequest<Operation> resent = getAddedUpdates(3).get(2);
+    assertSame(updateRequest, resent.getRequest());
+    Operation operation = new Operation().setName("resent");
+    succeed(resent, operation);
+    assertEquals(operation, firstResult.get());
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testAddFailureAfterSupersedingResendFails() throws Exception {
+    AsyncRequest<Operation> first = update();
+    ListenableFuture<Operation> firstResult = coalescer.index(ITEM, first);
+    doThrow(new IllegalStateException("stopping"), new IllegalStateException("not running"))
+        .when(batchService)
+        .add(any());
+    try {
+      coalescer.index(ITEM, update());
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      assertEquals(1, expected.getSuppressed().length);
+    }
+    assertTrue(firstResult.isCancelled());
+    assertEquals(0, coalescer.size());
+  }
+}
@@ -796,6 +796,212 @@ public class StructuredDataTest {
     converter.convert("2018-08-08T15:48:17.000-07:00 and so on");
   }
 
+  @Test
+  public void testDateConverter_firstMatchingPatternWins() throws IOException {
+    when(mockIndexingService.getSchema()).thenReturn(new Schema());
+    Properties config = new Properties();
+    config.put(StructuredData.DATETIME_PATTERNS, "M/d/yy; d/M/yy");
+    setupConfig.initConfig(config);
+    StructuredData.initFromConfiguration(mockIndexingService);
+
+    Converter<Object, Date> converter = StructuredData.DATE_CONVERTER;
+    // Only the second pattern resolves a 13th month.
+    assertEquals(
+        new Date().setYear(2018).setMonth(1).setDay(13), converter.convert("13/1/18"));
+    // Both patterns match, the first one is used even though the second one matched last.
+    assertEquals(new Date().setYear(2018).setMonth(1).setDay(2), converter.convert("1/2/18"));
+    assertEquals(new Date().setYear(2018).setMonth(8).setDay(9), converter.convert("2018-08-09"));
+    assertEquals(new Date().setYear(2018).setMonth(2).setDay(1), converter.convert("2/1/18"));
+  }
+
+  @Test
+  public void testGetStructuredData_dateFormatsPerProperty() throws IOException {
+    PropertyDefinition created =
+        new PropertyDefinition()
+            .setName("created")
+            .setIsRepeatable(true)
+            .setDatePropertyOptions(new DatePropertyOptions());
+    PropertyDefinition modified =
+        new PropertyDefinition()
+            .setName("modified")
+            .setDatePropertyOptions(new DatePropertyOptions());
+    Schema schema = new Schema();
+    schema.setObjectDefinitions(
+        Collections.singletonList(
+            getObjectDefinition("myObject", Arrays.asList(created, modified))));
+    when(mockIndexingService.getSchema()).thenReturn(schema);
+    Properties config = new Properties();
+    config.put(StructuredData.DATETIME_PATTERNS, "dd MMM uuuu; M/d/yy");
+    setupConfig.initConfig(config);
+    StructuredData.initFromConfiguration(mockIndexingService);
+
+    for (int day = 1; day <= 3; day++) {
+      Multimap<String, Object> values = ArrayListMultimap.create();
+      values.put("created", day + "/8/18");
+      values.put("created", "2018-08-1" + day);
+      values.put("modified", "0" + day + " Sep 2018");
+      StructuredDataObject expected =
+          new StructuredDataObject()
+              .setProperties(
+                  Arrays.asList(
+                      new NamedProperty()
+                          .setName("created")
+                          .setDateValues(
+                              new DateValues()
+                                  .setValues(
+                                      Arrays.asList(
+                                          new Date().setYear(2018).setMonth(day).setDay(8),
+                                          new Date().setYear(2018).setMonth(8).setDay(10 + day)))),
+                      new NamedProperty()
+                          .setName("modified")
+                          .setDateValues(
+                              new DateValues()
+                                  .setValues(
+                                      Collections.singletonList(
+                                          new Date().setYear(2018).setMonth(9).setDay(day))))));
+      assertEquals(expected, StructuredData.getStructuredData("myObject", values));
+    }
+  }
+
+  @Test
+  public void testGetSchemaVersion_notInitialized() {
+    assertEquals(0, StructuredData.getSchemaVersion());
+  }
+
+  @Test
+  public void testRefreshSchema_unchanged() throws IOException {
+    setupConfig.initConfig(new Properties());
+    when(mockIndexingService.getSchema())
+        .thenReturn(getSchema("myObject"))
+        .thenReturn(getSchema("myObject"));
+    StructuredData.initFromConfiguration(mockIndexingService);
+    assertEquals(1, StructuredData.getSchemaVersion());
+    assertFalse(StructuredData.refreshSchema());
+    assertEquals(1, StructuredData.getSchemaVersion());
+    assertTrue(StructuredData.hasObjectDefinition("myObject"));
+  }
+
+  @Test
+  public void testRefreshSchema_changed() throws IOException {
+    setupConfig.initConfig(new Properties());
+    when(mockIndexingService.getSchema())
+        .thenReturn(getSchema("myObject"))
+        .thenReturn(getSchema("otherObject"));
+    StructuredData.initFromConfiguration(mockIndexingService);
+    assertTrue(StructuredData.refreshSchema());
+    assertEquals(2, StructuredData.getSchemaVersion());
+    assertFalse(StructuredData.hasObjectDefinition("myObject"));
+    assertTrue(StructuredData.hasObjectDefinition("otherObject"));
+    Multimap<String, Object> values = ArrayListMultimap.create();
+    values.put("textProperty", "v1");
+    assertEquals(
+        new StructuredDataObject()
+            .setProperties(
+                Collections.singletonList(
+                    new NamedProperty()
+                        .setName("textProperty")
+                        .setTextValues(
+                            new TextValues().setValues(Collections.singletonList("v1"))))),
+        StructuredData.getStructuredData("otherObject", values));
+  }
+
+  @Test
+  public void testRefreshSchema_invalidSchemaKeepsPrevious() throws IOException {
+    setupConfig.initConfig(new Properties());
+    Schema invalid = new Schema();
+    invalid.setObjectDefinitions(
+        Collections.singletonList(
+            getObjectDefinition(
+                "otherObject",
+                Collections.singletonList(new PropertyDefinition().setName("untyped")))));
+    when(mockIndexingService.getSchema()).thenReturn(getSchema("myObject")).thenReturn(invalid);
+    StructuredData.initFromConfiguration(mockIndexingService);
+    try {
+      StructuredData.refreshSchema();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), containsString("Unknown type"));
+    }
+    assertEquals(1, StructuredData.getSchemaVersion());
+    assertTrue(StructuredData.hasObjectDefinition("myObject"));
+    assertFalse(StructuredData.hasObjectDefinition("otherObject"));
+  }
+
+  @Test
+  public void testRefreshSchema_localSchema() throws IOException {
+    String schema =
+        "{ \"objectDefinitions\" : [\n"
+            + "{ \"name\" : \"%s\", \"propertyDefinitions\" : "
+            + "[{\"name\" :\"textProperty\", \"textPropertyOptions\" : {}}] } ] }";
+    File schemaFile = temporaryFolder.newFile("schema.json");
+    Files.asCharSink(schemaFile, UTF_8).write(String.format(schema, "myObject"));
+
+    Properties config = new Properties();
+    config.put(StructuredData.LOCAL_SCHEMA, schemaFile.getAbsolutePath());
+    setupConfig.initConfig(config);
+    StructuredData.initFromConfiguration(mockIndexingService);
+    assertFalse(StructuredData.refreshSchema());
+    Files.asCharSink(schemaFile, UTF_8).write(String.format(schema, "otherObject"));
+    assertTrue(StructuredData.refreshSchema());
+    assertEquals(2, StructuredData.getSchemaVersion());
+    assertTrue(StructuredData.hasObjectDefinition("otherObject"));
+  }
+
+  @Test
+  public void testRefreshSchema_initWithSchema() throws IOException {
+    StructuredData.init(getSchema("myObject"));
+    thrown.expect(IllegalStateException.class);
+    StructuredData.refreshSchema();
+  }
+
+  @Test
+  public void testRefreshSchema_notInitialized() throws IOException {
+    thrown.expect(IllegalStateException.class);
+    StructuredData.refreshSchema();
+  }
+
+  @Test
+  public void testInitFromConfiguration_schemaRefreshInterval() throws IOException {
+    Properties config = new Properties();
+    config.put(StructuredData.SCHEMA_REFRESH_INTERVAL_SECONDS, "60");
+    setupConfig.initConfig(config);
+    when(mockIndexingService.getSchema()).thenReturn(getSchema("myObject"));
+    StructuredData.initFromConfiguration(mockIndexingService);
+    assertTrue(StructuredData.isSchemaRefreshStarted());
+    StructuredData.stopSchemaRefresh();
+    assertFalse(StructuredData.isSchemaRefreshStarted());
+  }
+
+  @Test
+  public void testInitFromConfiguration_defaultNoSchemaRefresh() throws IOException {
+    setupConfig.initConfig(new Properties());
+    when(mockIndexingService.getSchema()).thenReturn(getSchema("myObject"));
+    StructuredData.initFromConfiguration(mockIndexingService);
+    assertFalse(StructuredData.isSchemaRefreshStarted());
+  }
+
+  @Test
+  public void testInitFromConfiguration_negativeSchemaRefreshInterval() {
+    Properties config = new Properties();
+    config.put(StructuredData.SCHEMA_REFRESH_INTERVAL_SECONDS, "-1");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    StructuredData.initFromConfiguration(mockIndexingService);
+  }
+
+  private Schema getSchema(String objectType) {
+    Schema schema = new Schema();
+    schema.setObjectDefinitions(
+        Collections.singletonList(
+            getObjectDefinition(
+                objectType,
+                Collections.singletonList(
+                    new PropertyDefinition()
+                        .setName("textProperty")
+                        .setTextPropertyOptions(new TextPropertyOptions())))));
+    return schema;
+  }
+
   private void setupSchema() {
     Schema schema = new Schema();
     schema.setObjectDefinitions(
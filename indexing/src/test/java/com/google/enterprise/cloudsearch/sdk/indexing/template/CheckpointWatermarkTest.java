@@ -0,0 +1,255 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.CheckpointWatermark.Interval;
+import com.google.enterprise.cloudsearch.sdk.indexing.template.CheckpointWatermark.Tracked;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link CheckpointWatermark}. */
+public class CheckpointWatermarkTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  private final List<String> saved = new CopyOnWriteArrayList<>();
+  private final AtomicLong clock = new AtomicLong(1000);
+
+  /**
+   * Creates items 0 to count - 1, with an intermediate checkpoint naming the number of items read.
+   */
+  private static CheckpointCloseableIterable<Integer> items(int count) {
+    AtomicInteger read = new AtomicInteger();
+    Iterator<Integer> iterator =
+        IntStream.range(0, count).boxed().peek(i -> read.incrementAndGet()).iterator();
+    return new CheckpointCloseableIterableImpl.Builder<>(iterator)
+        .setIntermediateCheckpoint(() -> Integer.toString(read.get()).getBytes(UTF_8))
+        .build();
+  }
+
+  private CheckpointWatermark<Integer> watermark(
+      CheckpointCloseableIterable<Integer> items, int operations, long millis) {
+    return new CheckpointWatermark<>(
+        items,
+        new Interval(operations, millis, clock::get),
+        checkpoint -> saved.add(new String(checkpoint, UTF_8)));
+  }
+
+  private static <T> List<Tracked<T>> readAll(CheckpointWatermark<T> watermark) {
+    return ImmutableList.copyOf(watermark.track());
+  }
+
+  @Test
+  public void testDisabled_noCheckpointsSaved() {
+    CheckpointWatermark<Integer> watermark = watermark(items(5), 0, 0);
+    List<Tracked<Integer>> tracked = readAll(watermark);
+    tracked.forEach(Tracked::completed);
+    assertEquals(
+        ImmutableList.of(0, 1, 2, 3, 4),
+        tracked.stream().map(Tracked::getItem).collect(Collectors.toList()));
+    assertEquals(Collections.emptyList(), saved);
+  }
+
+  @Test
+  public void testOperationInterval_inOrderCompletion() {
+    CheckpointWatermark<Integer> watermark = watermark(items(10), 3, 0);
+    readAll(watermark).forEach(Tracked::completed);
+    assertEquals(ImmutableList.of("3", "6", "9"), saved);
+    assertEquals(9, watermark.getWatermark());
+  }
+
+  @Test
+  public void testOperationInterval_outOfOrderCompletion() {
+    CheckpointWatermark<Integer> watermark = watermark(items(6), 2, 0);
+    List<Tracked<Integer>> tracked = readAll(watermark);
+    tracked.get(3).completed();
+    tracked.get(2).completed();
+    tracked.get(1).completed();
+    assertEquals(Collections.emptyList(), saved);
+    assertEquals(-1, watermark.getWatermark());
+
+    tracked.get(0).completed();
+    assertEquals(ImmutableList.of("4"), saved);
+    assertEquals(3, watermark.getWatermark());
+
+    tracked.get(5).completed();
+    assertEquals(ImmutableList.of("4"), saved);
+    tracked.get(4).completed();
+    assertEquals(ImmutableList.of("4", "6"), saved);
+  }
+
+  @Test
+  public void testIncompleteItemHoldsWatermark() {
+    CheckpointWatermark<Integer> watermark = watermark(items(8), 2, 0);
+    List<Tracked<Integer>> tracked = readAll(watermark);
+    for (int i = 0; i < tracked.size(); i++) {
+      if (i != 3) {
+        tracked.get(i).completed();
+      }
+    }
+    assertEquals(ImmutableList.of("2"), saved);
+    assertEquals(2, watermark.getWatermark());
+  }
+
+  @Test
+  public void testTimeInterval() {
+    CheckpointWatermark<Integer> watermark = watermark(items(5), 0, 100);
+    Iterator<Tracked<Integer>> iterator = watermark.track().iterator();
+    iterator.next().completed();
+    clock.addAndGet(100);
+    iterator.next().completed();
+    clock.addAndGet(50);
+    iterator.next().completed();
+    clock.addAndGet(50);
+    iterator.next().completed();
+    iterator.next().completed();
+    assertEquals(ImmutableList.of("2", "4"), saved);
+  }
+
+  @Test
+  public void testEitherIntervalTriggersCapture() {
+    CheckpointWatermark<Integer> watermark = watermark(items(5), 2, 100);
+    Iterator<Tracked<Integer>> iterator = watermark.track().iterator();
+    clock.addAndGet(100);
+    iterator.next().completed();
+    iterator.next().completed();
+    iterator.next().completed();
+    assertEquals(ImmutableList.of("1", "3"), saved);
+  }
+
+  @Test
+  public void testIntermediateCheckpointNotSupported() {
+    CheckpointWatermark<Integer> watermark =
+        watermark(
+            new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of(1, 2, 3)).build(), 1, 0);
+    readAll(watermark).forEach(Tracked::completed);
+    assertEquals(Collections.emptyList(), saved);
+    assertEquals(2, watermark.getWatermark());
+  }
+
+  @Test
+  public void testTrackSequentially_readCompletesPreviousItem() {
+    CheckpointWatermark<Integer> watermark = watermark(items(5), 2, 0);
+    Iterator<Integer> iterator = watermark.trackSequentially().iterator();
+    assertEquals(0, (int) iterator.next());
+    assertEquals(1, (int) iterator.next());
+    assertEquals(Collections.emptyList(), saved);
+    assertEquals(2, (int) iterator.next());
+    assertEquals(ImmutableList.of("2"), saved);
+    assertEquals(3, (int) iterator.next());
+    assertEquals(4, (int) iterator.next());
+    assertFalse(iterator.hasNext());
+    assertEquals(ImmutableList.of("2", "4"), saved);
+    assertEquals(3, watermark.getWatermark());
+  }
+
+  @Test
+  public void testSaveFailureIgnored() {
+    List<String> attempts = new ArrayList<>();
+    CheckpointWatermark<Integer> watermark =
+        new CheckpointWatermark<>(
+            items(4),
+            new Interval(2, 0, clock::get),
+            checkpoint -> {
+              attempts.add(new String(checkpoint, UTF_8));
+              throw new IOException("disk full");
+            });
+    readAll(watermark).forEach(Tracked::completed);
+    assertEquals(ImmutableList.of("2", "4"), attempts);
+    assertEquals(3, watermark.getWatermark());
+  }
+
+  @Test
+  public void testConcurrentCompletion() throws Exception {
+    int count = 10_000;
+    CheckpointWatermark<Integer> watermark = watermark(items(count), 100, 0);
+    List<Tracked<Integer>> tracked = new ArrayList<>(readAll(watermark));
+    Collections.shuffle(tracked);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Tracked<Integer> item : tracked) {
+        futures.add(executor.submit(item::completed));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 10, TimeUnit.SECONDS);
+    }
+    assertEquals(count - 1, watermark.getWatermark());
+    assertFalse(saved.isEmpty());
+    assertEquals(Integer.toString(count), saved.get(saved.size() - 1));
+    List<Integer> values = saved.stream().map(Integer::parseInt).collect(Collectors.toList());
+    assertEquals(values.stream().sorted().collect(Collectors.toList()), values);
+  }
+
+  @Test
+  public void testIntervalFromConfiguration() {
+    Properties config = new Properties();
+    config.put(CheckpointWatermark.TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS, "500");
+    config.put(CheckpointWatermark.TRAVERSE_CHECKPOINT_INTERVAL_SECONDS, "30");
+    setupConfig.initConfig(config);
+    Interval interval = Interval.fromConfiguration();
+    assertTrue(interval.isEnabled());
+    assertEquals(500, interval.operations);
+    assertEquals(30_000, interval.millis);
+  }
+
+  @Test
+  public void testIntervalFromConfiguration_disabledByDefault() {
+    setupConfig.initConfig(new Properties());
+    assertFalse(Interval.fromConfiguration().isEnabled());
+  }
+
+  @Test
+  public void testIntervalFromConfiguration_negative() {
+    Properties config = new Properties();
+    config.put(CheckpointWatermark.TRAVERSE_CHECKPOINT_INTERVAL_SECONDS, "-1");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    Interval.fromConfiguration();
+  }
+}
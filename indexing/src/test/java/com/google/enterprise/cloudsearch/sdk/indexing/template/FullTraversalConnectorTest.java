@@ -24,10 +24,12 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -40,13 +42,19 @@ import com.google.api.services.cloudsearch.v1.model.Item;
 import com.google.api.services.cloudsearch.v1.model.ItemAcl;
 import com.google.api.services.cloudsearch.v1.model.Operation;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
 import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sdk.indexing.Acl;
@@ -57,15 +65,19 @@ import com.google.enterprise.cloudsearch.sdk.indexing.IndexingConnectorContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.ContentFormat;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.RequestMode;
+import com.google.enterprise.cloudsearch.sdk.indexing.PriorityContext;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Rule;
@@ -110,6 +122,7 @@ public class FullTraversalConnectorTest {
 
   @Mock private IndexingService indexingServiceMock;
   @Mock private Repository repositoryMock;
+  @Mock private PartitionedRepository partitionedRepositoryMock;
   @Mock private IndexingConnectorContext connectorContextMock;
   @Mock private CheckpointHandler checkpointHandlerMock;
 
@@ -785,6 +798,32 @@ public class FullTraversalConnectorTest {
     connector.traverse();
   }
 
+  @Test
+  public void testTraverseBulkPriority() throws Exception {
+    setConfig("0", DefaultAclChoices.PUBLIC);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(repositoryMock, checkpointHandlerMock);
+    connector.init(connectorContextMock);
+    when(repositoryMock.getAllDocs(null))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(
+                    Collections.singletonList(ApiOperations.deleteItem("Delete id")))
+                .build());
+    List<Priority> priorities = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              priorities.add(PriorityContext.current());
+              return Futures.immediateFuture(new Operation());
+            })
+        .when(indexingServiceMock)
+        .deleteItem("Delete id", null, RequestMode.UNSPECIFIED);
+    when(indexingServiceMock.deleteQueueItems(any()))
+        .thenReturn(Futures.immediateFuture(new Operation().setDone(true)));
+    connector.traverse();
+    assertEquals(Collections.singletonList(Priority.BULK), priorities);
+    assertEquals(Priority.DEFAULT, PriorityContext.current());
+  }
+
   @Test
   public void testTraverseExceptionInDeleteQueueItems() throws Exception {
     SettableFuture<Operation> result = SettableFuture.create();
@@ -1527,4 +1566,312 @@ public class FullTraversalConnectorTest {
     }
     verifyNoMoreInteractions(dontExecute);
   }
+
+  private FullTraversalConnector createPartitionedConnector(String partitionThreads)
+      throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_QUEUES, "false");
+    p.put(FullTraversalConnector.NUM_PARTITION_THREADS, partitionThreads);
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(partitionedRepositoryMock, checkpointHandlerMock);
+    connector.init(connectorContextMock);
+    return connector;
+  }
+
+  @Test
+  public void testInvalidPartitionThreads() throws Exception {
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage(containsString("partition threads"));
+    createPartitionedConnector("0");
+  }
+
+  @Test
+  public void testPartitionedRepositoryTraversedConcurrently() throws Exception {
+    FullTraversalConnector connector = createPartitionedConnector("2");
+    CountDownLatch bothPartitionsRunning = new CountDownLatch(2);
+    ApiOperation awaitOtherPartition = new ApiOperation() {
+        @Override
+        public List<GenericJson> execute(IndexingService service) throws IOException {
+          bothPartitionsRunning.countDown();
+          try {
+            assertTrue(
+                "partitions should be traversed concurrently",
+                bothPartitionsRunning.await(30, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          return Collections.emptyList();
+        }
+      };
+    byte[] checkpointA = "checkpointA".getBytes(UTF_8);
+    byte[] checkpointB = "checkpointB".getBytes(UTF_8);
+    when(partitionedRepositoryMock.getPartitionIds()).thenReturn(ImmutableList.of("a", "b"));
+    when(partitionedRepositoryMock.getAllDocs("a", null))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(
+                    ImmutableList.of(awaitOtherPartition, successOperation))
+                .setCheckpoint(checkpointA)
+                .build());
+    when(partitionedRepositoryMock.getAllDocs("b", null))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of(awaitOtherPartition))
+                .setCheckpoint(checkpointB)
+                .build());
+
+    connector.traverse();
+
+    verify(successOperation).execute(eq(indexingServiceMock), any());
+    verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.getPartitionCheckpointName("a"), checkpointA);
+    verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.getPartitionCheckpointName("b"), checkpointB);
+    verify(checkpointHandlerMock, times(0))
+        .saveCheckpoint(eq(FullTraversalConnector.CHECKPOINT_FULL), any());
+  }
+
+  @Test
+  public void testPartitionedRepositoryResumesFromPartitionCheckpoint() throws Exception {
+    FullTraversalConnector connector = createPartitionedConnector("1");
+    byte[] savedCheckpoint = "saved".getBytes(UTF_8);
+    byte[] nextCheckpoint = "next".getBytes(UTF_8);
+    when(checkpointHandlerMock.readCheckpoint(
+            FullTraversalConnector.getPartitionCheckpointName("a")))
+        .thenReturn(savedCheckpoint);
+    when(partitionedRepositoryMock.getPartitionIds()).thenReturn(ImmutableList.of("a"));
+    when(partitionedRepositoryMock.getAllDocs("a", savedCheckpoint))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of(successOperation))
+                .setCheckpoint(nextCheckpoint)
+                .setHasMore(true)
+                .build());
+    when(partitionedRepositoryMock.getAllDocs("a", nextCheckpoint))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of(successOperation))
+                .build());
+
+    connector.traverse();
+
+    verify(successOperation, times(2)).execute(eq(indexingServiceMock), any());
+    InOrder inOrder = inOrder(checkpointHandlerMock);
+    inOrder
+        .verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.getPartitionCheckpointName("a"), nextCheckpoint);
+    inOrder
+        .verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.getPartitionCheckpointName("a"), null);
+  }
+
+  @Test
+  public void testPartitionedRepositoryFailure() throws Exception {
+    FullTraversalConnector connector = createPartitionedConnector("2");
+    when(partitionedRepositoryMock.getPartitionIds()).thenReturn(ImmutableList.of("a", "b"));
+    when(partitionedRepositoryMock.getAllDocs(eq("a"), any()))
+        .thenThrow(new RepositoryException.Builder().setErrorMessage("partition a").build());
+    when(partitionedRepositoryMock.getAllDocs(eq("b"), any()))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of(successOperation))
+                .build());
+    thrown.expect(RepositoryException.class);
+    thrown.expectMessage("partition a");
+    connector.traverse();
+  }
+
+  @Test
+  public void testPartitionedRepositoryNullPartition() throws Exception {
+    FullTraversalConnector connector = createPartitionedConnector("2");
+    when(partitionedRepositoryMock.getPartitionIds()).thenReturn(ImmutableList.of("a"));
+    when(partitionedRepositoryMock.getAllDocs("a", null)).thenReturn(null);
+    thrown.expect(NullPointerException.class);
+    thrown.expectMessage("partition a");
+    connector.traverse();
+  }
+
+  @Test
+  public void testInvalidPipelineMaxInFlight() throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_PIPELINE, "true");
+    p.put(FullTraversalConnector.TRAVERSE_PIPELINE_MAX_IN_FLIGHT, "0");
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector = new FullTraversalConnector(repositoryMock);
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage(containsString("in flight"));
+    connector.init(connectorContextMock);
+  }
+
+  @Test
+  public void testPipelineOverlapsReadingAndExecution() throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_QUEUES, "false");
+    p.put(FullTraversalConnector.TRAVERSE_PARTITION_SIZE, "2");
+    p.put(FullTraversalConnector.TRAVERSE_USE_PIPELINE, "true");
+    p.put(FullTraversalConnector.TRAVERSE_PIPELINE_MAX_IN_FLIGHT, "3");
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(repositoryMock, checkpointHandlerMock);
+    CountDownLatch laterOperationExecuted = new CountDownLatch(1);
+    // with batches of 2 operations, the first operation would wait for the third forever
+    ApiOperation waitForLaterOperation = new ApiOperation() {
+        @Override
+        public List<GenericJson> execute(IndexingService service) throws IOException {
+          try {
+            assertTrue(
+                "later operation should execute before this one completes",
+                laterOperationExecuted.await(30, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          return Collections.emptyList();
+        }
+      };
+    ApiOperation laterOperation = new ApiOperation() {
+        @Override
+        public List<GenericJson> execute(IndexingService service) throws IOException {
+          laterOperationExecuted.countDown();
+          return Collections.emptyList();
+        }
+      };
+    connector.init(connectorContextMock);
+    when(repositoryMock.getAllDocs(null))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(
+                    ImmutableList.of(waitForLaterOperation, successOperation, laterOperation))
+                .build());
+
+    OperationStats pipelineStats =
+        StatsManager.getComponent(FullTraversalConnector.PIPELINE_STATS);
+    int processedBefore = pipelineStats.getSuccessCount(OperationPipeline.STAGE_PROCESS);
+
+    connector.traverse();
+
+    verify(successOperation).execute(eq(indexingServiceMock), any());
+    assertEquals(
+        processedBefore + 3, pipelineStats.getSuccessCount(OperationPipeline.STAGE_PROCESS));
+  }
+
+  @Test
+  public void testDestroyUnregistersPipelineGauges() throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_PIPELINE, "true");
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(repositoryMock, checkpointHandlerMock);
+    connector.init(connectorContextMock);
+    OperationStats pipelineStats =
+        StatsManager.getComponent(FullTraversalConnector.PIPELINE_STATS);
+    StatsVisitor registered = Mockito.mock(StatsVisitor.class);
+    pipelineStats.visit(FullTraversalConnector.PIPELINE_STATS, registered);
+    verify(registered)
+        .visitGauge(eq(FullTraversalConnector.PIPELINE_STATS), eq("process.queueDepth"), anyLong());
+
+    connector.destroy();
+    StatsVisitor unregistered = Mockito.mock(StatsVisitor.class);
+    pipelineStats.visit(FullTraversalConnector.PIPELINE_STATS, unregistered);
+    verify(unregistered, never()).visitGauge(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testPipelineAbortsTraversal() throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_QUEUES, "false");
+    p.put(FullTraversalConnector.TRAVERSE_USE_PIPELINE, "true");
+    p.put(FullTraversalConnector.TRAVERSE_PIPELINE_MAX_IN_FLIGHT, "1");
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(repositoryMock, checkpointHandlerMock);
+    ApiOperation dontExecute = spy(new ApiOperation() {
+        @Override
+        public List<GenericJson> execute(IndexingService service) throws IOException {
+          return null;
+        }
+      });
+    connector.init(connectorContextMock);
+    when(repositoryMock.getAllDocs(null))
+        .thenReturn(
+            new CheckpointCloseableIterableImpl.Builder<>(
+                    ImmutableList.of(successOperation, errorOperation, dontExecute))
+                .build());
+    thrown.expect(IOException.class);
+    try {
+      connector.traverse();
+    } finally {
+      verifyNoMoreInteractions(dontExecute);
+    }
+  }
+
+  /** Wraps operations, supplying the number of operations read as intermediate checkpoint. */
+  private static CheckpointCloseableIterable<ApiOperation> withIntermediateCheckpoints(
+      List<ApiOperation> operations, byte[] checkpoint) {
+    AtomicInteger read = new AtomicInteger();
+    Iterator<ApiOperation> iterator =
+        Iterators.transform(
+            operations.iterator(),
+            operation -> {
+              read.incrementAndGet();
+              return operation;
+            });
+    return new CheckpointCloseableIterableImpl.Builder<>(iterator)
+        .setCheckpoint(checkpoint)
+        .setIntermediateCheckpoint(() -> ("read" + read.get()).getBytes())
+        .build();
+  }
+
+  @Test
+  public void testTraverseSavesIntermediateCheckpoints() throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_QUEUES, "false");
+    p.put(FullTraversalConnector.TRAVERSE_PARTITION_SIZE, "2");
+    p.put(CheckpointWatermark.TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS, "2");
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(repositoryMock, checkpointHandlerMock);
+    connector.init(connectorContextMock);
+    when(repositoryMock.getAllDocs(null))
+        .thenReturn(
+            withIntermediateCheckpoints(
+                Collections.nCopies(5, successOperation), defaultCheckPoint));
+
+    connector.traverse();
+
+    InOrder inOrder = inOrder(checkpointHandlerMock);
+    inOrder.verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, "read2".getBytes());
+    inOrder.verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, "read4".getBytes());
+    inOrder.verify(checkpointHandlerMock)
+        .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, defaultCheckPoint);
+  }
+
+  @Test
+  public void testPipelineAbortKeepsIntermediateCheckpoint() throws Exception {
+    Properties p = new Properties();
+    p.put(FullTraversalConnector.TRAVERSE_USE_QUEUES, "false");
+    p.put(FullTraversalConnector.TRAVERSE_USE_PIPELINE, "true");
+    p.put(FullTraversalConnector.TRAVERSE_PIPELINE_MAX_IN_FLIGHT, "1");
+    p.put(CheckpointWatermark.TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS, "1");
+    setConfig("0", DefaultAclChoices.PUBLIC, p);
+    FullTraversalConnector connector =
+        new FullTraversalConnector(repositoryMock, checkpointHandlerMock);
+    connector.init(connectorContextMock);
+    when(repositoryMock.getAllDocs(null))
+        .thenReturn(
+            withIntermediateCheckpoints(
+                ImmutableList.of(successOperation, successOperation, errorOperation),
+                defaultCheckPoint));
+
+    thrown.expect(IOException.class);
+    try {
+      connector.traverse();
+    } finally {
+      InOrder inOrder = inOrder(checkpointHandlerMock);
+      inOrder.verify(checkpointHandlerMock)
+          .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, "read1".getBytes());
+      inOrder.verify(checkpointHandlerMock)
+          .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, "read2".getBytes());
+      verify(checkpointHandlerMock, never())
+          .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, "read3".getBytes());
+      verify(checkpointHandlerMock, never())
+          .saveCheckpoint(FullTraversalConnector.CHECKPOINT_FULL, defaultCheckPoint);
+    }
+  }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link JournalCheckpointHandler}. */
+public class JournalCheckpointHandlerTest {
+  private static final long NO_FLUSH = 3_600_000;
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = temporaryFolder.getRoot().toPath().resolve("checkpoints.journal");
+  }
+
+  @Test
+  public void testSaveAndRead() throws IOException {
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertNull(handler.readCheckpoint("full"));
+      byte[] checkpoint = bytes("golden");
+      handler.saveCheckpoint("full", checkpoint);
+      checkpoint[0] = 'x';
+      assertArrayEquals(bytes("golden"), handler.readCheckpoint("full"));
+      handler.readCheckpoint("full")[0] = 'x';
+      assertArrayEquals(bytes("golden"), handler.readCheckpoint("full"));
+      handler.saveCheckpoint("full", null);
+      assertNull(handler.readCheckpoint("full"));
+    }
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      handler.saveCheckpoint("full", bytes("v1"));
+      handler.saveCheckpoint("incremental", bytes("i1"));
+      handler.saveCheckpoint("full", bytes("v2"));
+      handler.saveCheckpoint("deleted", bytes("d1"));
+      handler.saveCheckpoint("deleted", null);
+      handler.saveCheckpoint("empty", new byte[0]);
+    }
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("v2"), handler.readCheckpoint("full"));
+      assertArrayEquals(bytes("i1"), handler.readCheckpoint("incremental"));
+      assertNull(handler.readCheckpoint("deleted"));
+      assertArrayEquals(new byte[0], handler.readCheckpoint("empty"));
+    }
+  }
+
+  @Test
+  public void testBatchWrittenOnFlush() throws IOException {
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, NO_FLUSH)) {
+      long size = Files.size(path);
+      handler.saveCheckpoint("full", bytes("v1"));
+      handler.saveCheckpoint("full", bytes("v2"));
+      assertArrayEquals(bytes("v2"), handler.readCheckpoint("full"));
+      assertEquals(size, Files.size(path));
+      handler.flush();
+      assertTrue(Files.size(path) > size);
+      assertEquals(Files.size(path), handler.getJournalBytes());
+      try (JournalCheckpointHandler reopened = new JournalCheckpointHandler(path, 0)) {
+        assertArrayEquals(bytes("v2"), reopened.readCheckpoint("full"));
+      }
+      handler.saveCheckpoint("full", bytes("v3"));
+    }
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("v3"), handler.readCheckpoint("full"));
+    }
+  }
+
+  @Test
+  public void testTornRecordTruncated() throws IOException {
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      handler.saveCheckpoint("full", bytes("v1"));
+    }
+    long validSize = Files.size(path);
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      handler.saveCheckpoint("full", bytes("v2"));
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(Files.size(path) - 1);
+    }
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("v1"), handler.readCheckpoint("full"));
+      assertEquals(validSize, Files.size(path));
+      handler.saveCheckpoint("full", bytes("v3"));
+    }
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("v3"), handler.readCheckpoint("full"));
+    }
+  }
+
+  @Test
+  public void testCorruptedRecordDropped() throws IOException {
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      handler.saveCheckpoint("full", bytes("v1"));
+      handler.saveCheckpoint("full", bytes("v2"));
+    }
+    byte[] data = Files.readAllBytes(path);
+    data[data.length - 1] = 'x';
+    Files.write(path, data);
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("v1"), handler.readCheckpoint("full"));
+    }
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0, 256)) {
+      handler.saveCheckpoint("other", bytes("o1"));
+      for (int i = 0; i < 100; i++) {
+        handler.saveCheckpoint("full", bytes("value" + i));
+        assertTrue(handler.getJournalBytes() < 512);
+      }
+      assertEquals(Files.size(path), handler.getJournalBytes());
+    }
+    assertTrue(Files.notExists(path.resolveSibling("checkpoints.journal.compact")));
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("value99"), handler.readCheckpoint("full"));
+      assertArrayEquals(bytes("o1"), handler.readCheckpoint("other"));
+    }
+  }
+
+  @Test
+  public void testSaveRecoversFromFailedWriteWithoutFlushInterval() throws IOException {
+    Path compacted = path.resolveSibling("checkpoints.journal.compact");
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0, 256)) {
+      handler.saveCheckpoint("other", bytes("o1"));
+      // a non-empty directory in place of the compacted journal fails the next compaction
+      Files.createDirectories(compacted.resolve("blocker"));
+      IOException failure = null;
+      for (int i = 0; i < 100 && failure == null; i++) {
+        try {
+          handler.saveCheckpoint("full", bytes("value" + i));
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      assertNotNull(failure);
+      Files.delete(compacted.resolve("blocker"));
+      Files.delete(compacted);
+
+      handler.saveCheckpoint("full", bytes("recovered"));
+      assertArrayEquals(bytes("recovered"), handler.readCheckpoint("full"));
+    }
+    try (JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("recovered"), handler.readCheckpoint("full"));
+      assertArrayEquals(bytes("o1"), handler.readCheckpoint("other"));
+    }
+  }
+
+  @Test
+  public void testNotAJournalFile() throws IOException {
+    Files.write(path, bytes("not a journal"));
+    thrown.expect(IOException.class);
+    new JournalCheckpointHandler(path, 0);
+  }
+
+  @Test
+  public void testSaveAfterClose() throws IOException {
+    JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 0);
+    handler.close();
+    handler.close();
+    thrown.expect(IllegalStateException.class);
+    handler.saveCheckpoint("full", bytes("v1"));
+  }
+
+  @Test
+  public void testCloseWhileFlushing() throws IOException {
+    for (int i = 0; i < 20; i++) {
+      JournalCheckpointHandler handler = new JournalCheckpointHandler(path, 1);
+      for (int j = 0; j < 100; j++) {
+        handler.saveCheckpoint("full", bytes("v" + i + "." + j));
+      }
+      handler.close();
+      // a flush after close, like one left running by close, does not touch the journal
+      handler.flush();
+      try (JournalCheckpointHandler reopened = new JournalCheckpointHandler(path, 0)) {
+        assertArrayEquals(bytes("v" + i + ".99"), reopened.readCheckpoint("full"));
+      }
+    }
+  }
+
+  @Test
+  public void testFromConfiguration() throws IOException {
+    Properties config = new Properties();
+    config.put(CheckpointHandler.CONNECTOR_CHECKPOINT_STORE, "journal");
+    config.put(
+        LocalFileCheckpointHandler.CONNECTOR_CHECKPOINT_DIRECTORY,
+        temporaryFolder.getRoot().getAbsolutePath());
+    config.put(JournalCheckpointHandler.CONFIG_FLUSH_INTERVAL_MILLIS, "0");
+    setupConfig.initConfig(config);
+    CheckpointHandler handler = CheckpointHandler.fromConfiguration();
+    assertThat(handler, instanceOf(JournalCheckpointHandler.class));
+    handler.saveCheckpoint("full", bytes("v1"));
+    ((Closeable) handler).close();
+    try (JournalCheckpointHandler reopened = new JournalCheckpointHandler(path, 0)) {
+      assertArrayEquals(bytes("v1"), reopened.readCheckpoint("full"));
+    }
+  }
+
+  @Test
+  public void testFromConfigurationDefaultStore() {
+    setupConfig.initConfig(new Properties());
+    assertThat(CheckpointHandler.fromConfiguration(), instanceOf(LocalFileCheckpointHandler.class));
+  }
+
+  @Test
+  public void testFromConfigurationUnknownStore() {
+    Properties config = new Properties();
+    config.put(CheckpointHandler.CONNECTOR_CHECKPOINT_STORE, "database");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    CheckpointHandler.fromConfiguration();
+  }
+
+  @Test
+  public void testFromConfigurationNegativeFlushInterval() {
+    Properties config = new Properties();
+    config.put(CheckpointHandler.CONNECTOR_CHECKPOINT_STORE, "journal");
+    config.put(JournalCheckpointHandler.CONFIG_FLUSH_INTERVAL_MILLIS, "-1");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    CheckpointHandler.fromConfiguration();
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+}
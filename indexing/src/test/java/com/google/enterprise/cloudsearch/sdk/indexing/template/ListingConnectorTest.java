@@ -17,12 +17,14 @@ package com.google.enterprise.cloudsearch.sdk.indexing.template;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -36,13 +38,17 @@ import com.google.api.services.cloudsearch.v1.model.ItemMetadata;
 import com.google.api.services.cloudsearch.v1.model.Operation;
 import com.google.api.services.cloudsearch.v1.model.PushItem;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
 import com.google.enterprise.cloudsearch.sdk.CloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.RepositoryException;
+import com.google.enterprise.cloudsearch.sdk.RepositoryException.ErrorType;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sdk.indexing.Acl;
@@ -54,8 +60,11 @@ import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingItemBuilder.FieldOrValue;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService.RequestMode;
+import com.google.enterprise.cloudsearch.sdk.indexing.PriorityContext;
 import com.google.enterprise.cloudsearch.sdk.indexing.template.RepositoryDoc.Builder;
+import com.google.enterprise.cloudsearch.sdk.indexing.traverser.TraverserConfiguration;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -63,6 +72,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -93,10 +103,12 @@ public class ListingConnectorTest {
 
   @Mock private IndexingService mockIndexingService;
   @Mock private Repository mockRepository;
+  @Mock private BatchRepository mockBatchRepository;
   @Mock private IndexingConnectorContext mockConnectorContext;
   @Mock private CheckpointHandler mockCheckpointHandler;
   @Captor private ArgumentCaptor<Item> itemListCaptor;
   @Captor private ArgumentCaptor<RepositoryContext> repositoryContextCaptor;
+  @Captor private ArgumentCaptor<TraverserConfiguration> traverserConfigurationCaptor;
   // Mocks don't call default interface methods, so use an implementation here, wrapped
   // with spy() to allow for verify calls.
   @Spy private ApiOperation errorOperation = new ApiOperation() {
@@ -258,6 +270,30 @@ public class ListingConnectorTest {
     assertTrue(delegate.isClosed());
   }
 
+  @Test
+  public void testTraverseBulkPriority() throws Exception {
+    setDefaultConfig();
+    ApiOperation deleteOperation = ApiOperations.deleteItem("deletedItem");
+    CheckpointCloseableIterable<ApiOperation> testIterable =
+        new CheckpointCloseableIterableImpl.Builder<>(Collections.singletonList(deleteOperation))
+            .build();
+    when(mockRepository.getIds(any())).thenReturn(testIterable);
+    when(mockRepository.getDoc(any())).thenReturn(deleteOperation);
+    ListingConnector connector = new ListingConnector(mockRepository, mockCheckpointHandler);
+    connector.init(mockConnectorContext);
+    List<Priority> priorities = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              priorities.add(PriorityContext.current());
+              return Futures.immediateFuture(new Operation());
+            })
+        .when(mockIndexingService)
+        .deleteItem("deletedItem", null, RequestMode.UNSPECIFIED);
+    connector.traverse();
+    connector.process(new Item().setName("deletedItem"));
+    assertEquals(Arrays.asList(Priority.BULK, Priority.DEFAULT), priorities);
+  }
+
   @Test
   public void testTraverseBatches() throws Exception {
     setDefaultConfig();
@@ -425,6 +461,50 @@ public class ListingConnectorTest {
     assertTrue(delegate.isClosed());
   }
 
+  @Test
+  public void testTraverseAbortKeepsIntermediateCheckpoint() throws Exception {
+    Properties config = new Properties();
+    config.put(CheckpointWatermark.TRAVERSE_CHECKPOINT_INTERVAL_OPERATIONS, "2");
+    overrideDefaultConfig(config);
+    Collection<ApiOperation> operations =
+        Arrays.asList(
+            ApiOperations.deleteItem("id1"),
+            ApiOperations.deleteItem("id2"),
+            ApiOperations.deleteItem("id3"),
+            errorOperation,
+            ApiOperations.deleteItem("id4"));
+    Iterator<ApiOperation> iterator = operations.iterator();
+    AtomicInteger read = new AtomicInteger();
+    CheckpointCloseableIterable<ApiOperation> testIterable =
+        new CheckpointCloseableIterableImpl.Builder<>(
+                Iterators.transform(
+                    iterator,
+                    operation -> {
+                      read.incrementAndGet();
+                      return operation;
+                    }))
+            .setCheckpoint("final".getBytes())
+            .setIntermediateCheckpoint(() -> ("read" + read.get()).getBytes())
+            .build();
+    when(mockRepository.getIds(any())).thenReturn(testIterable);
+    when(mockIndexingService.deleteItem(anyString(), any(), any()))
+        .thenReturn(completedOperationFuture);
+    ListingConnector connector = new ListingConnector(mockRepository, mockCheckpointHandler);
+    connector.init(mockConnectorContext);
+    try {
+      connector.traverse();
+      fail("missing IOException");
+    } catch (IOException expected) {
+    }
+    verify(mockCheckpointHandler)
+        .saveCheckpoint(ListingConnector.CHECKPOINT_FULL, "read2".getBytes());
+    verify(mockCheckpointHandler, never())
+        .saveCheckpoint(ListingConnector.CHECKPOINT_FULL, "read4".getBytes());
+    verify(mockCheckpointHandler, never())
+        .saveCheckpoint(ListingConnector.CHECKPOINT_FULL, "final".getBytes());
+    verify(mockIndexingService, never()).deleteItem(eq("id4"), any(), any());
+  }
+
   @Test
   public void testTraverseIgnoreError() throws Exception {
     Properties properties = new Properties();
@@ -571,6 +651,127 @@ public class ListingConnectorTest {
     verify(mockIndexingService).deleteItem("deleteThis", null, RequestMode.UNSPECIFIED);
   }
 
+  @Test
+  public void testBatchRepositoryRegistersBatchItemRetriever() throws Exception {
+    setDefaultConfig();
+    ListingConnector connector = new ListingConnector(mockBatchRepository);
+    connector.init(mockConnectorContext);
+    verify(mockConnectorContext).registerTraverser(traverserConfigurationCaptor.capture());
+    TraverserConfiguration traverser = traverserConfigurationCaptor.getValue();
+    assertEquals(connector, traverser.getBatchItemRetriever());
+    assertNull(traverser.getItemRetriever());
+  }
+
+  @Test
+  public void testProcessBatch() throws Exception {
+    setDefaultConfig();
+    List<Item> polledItems =
+        Arrays.asList(new Item().setName("deleteThis"), new Item().setName("deleteThat"));
+    when(mockIndexingService.deleteItem(anyString(), eq(null), eq(RequestMode.UNSPECIFIED)))
+        .thenReturn(completedOperationFuture);
+    when(mockBatchRepository.getDocs(polledItems))
+        .thenReturn(
+            Arrays.asList(
+                ApiOperations.deleteItem("deleteThis"), ApiOperations.deleteItem("deleteThat")));
+    ListingConnector connector = new ListingConnector(mockBatchRepository);
+    connector.init(mockConnectorContext);
+    connector.processBatch(polledItems);
+    verify(mockBatchRepository).getDocs(polledItems);
+    verify(mockIndexingService).deleteItem("deleteThis", null, RequestMode.UNSPECIFIED);
+    verify(mockIndexingService).deleteItem("deleteThat", null, RequestMode.UNSPECIFIED);
+  }
+
+  @Test
+  public void testProcessBatchOperationFailure() throws Exception {
+    setDefaultConfig();
+    List<Item> polledItems =
+        Arrays.asList(new Item().setName("deleteThis"), new Item().setName("error"));
+    when(mockIndexingService.deleteItem("deleteThis", null, RequestMode.UNSPECIFIED))
+        .thenReturn(completedOperationFuture);
+    when(mockBatchRepository.getDocs(polledItems))
+        .thenReturn(Arrays.asList(ApiOperations.deleteItem("deleteThis"), errorOperation));
+    ListingConnector connector = new ListingConnector(mockBatchRepository);
+    connector.init(mockConnectorContext);
+    // failure of a single operation does not fail the batch
+    connector.processBatch(polledItems);
+    verify(mockIndexingService).deleteItem("deleteThis", null, RequestMode.UNSPECIFIED);
+    // not a RepositoryException, so there is no repository error to push
+    verify(mockIndexingService, never()).push(any(), any());
+  }
+
+  @Test
+  public void testProcessBatchOperationRepositoryError() throws Exception {
+    setDefaultConfig();
+    Item failedItem = new Item().setName("error").setQueue("custom").encodePayload(new byte[] {1});
+    List<Item> polledItems = Arrays.asList(new Item().setName("deleteThis"), failedItem);
+    when(mockIndexingService.deleteItem("deleteThis", null, RequestMode.UNSPECIFIED))
+        .thenReturn(completedOperationFuture);
+    ApiOperation repositoryErrorOperation =
+        new ApiOperation() {
+          @Override
+          public List<GenericJson> execute(IndexingService service) throws IOException {
+            throw new RepositoryException.Builder()
+                .setErrorMessage("Repository Error")
+                .setErrorType(ErrorType.SERVER_ERROR)
+                .build();
+          }
+        };
+    when(mockBatchRepository.getDocs(polledItems))
+        .thenReturn(
+            Arrays.asList(ApiOperations.deleteItem("deleteThis"), repositoryErrorOperation));
+    ListingConnector connector = new ListingConnector(mockBatchRepository);
+    connector.init(mockConnectorContext);
+    connector.processBatch(polledItems);
+    verify(mockIndexingService).deleteItem("deleteThis", null, RequestMode.UNSPECIFIED);
+    ArgumentCaptor<PushItem> pushItem = ArgumentCaptor.forClass(PushItem.class);
+    verify(mockIndexingService).push(eq("error"), pushItem.capture());
+    assertEquals("custom", pushItem.getValue().getQueue());
+    assertEquals("REPOSITORY_ERROR", pushItem.getValue().getType());
+    assertEquals(failedItem.getPayload(), pushItem.getValue().getPayload());
+    assertEquals(
+        "Repository Error", pushItem.getValue().getRepositoryError().getErrorMessage());
+    assertEquals(
+        ErrorType.SERVER_ERROR.toString(), pushItem.getValue().getRepositoryError().getType());
+    verify(mockIndexingService, never()).push(eq("deleteThis"), any());
+  }
+
+  @Test
+  public void testProcessBatchUncheckedFailure() throws Exception {
+    setDefaultConfig();
+    List<Item> polledItems =
+        Arrays.asList(new Item().setName("deleteThis"), new Item().setName("error"));
+    when(mockIndexingService.deleteItem("deleteThis", null, RequestMode.UNSPECIFIED))
+        .thenReturn(completedOperationFuture);
+    ApiOperation failingOperation =
+        new ApiOperation() {
+          @Override
+          public List<GenericJson> execute(IndexingService service) {
+            throw new IllegalStateException("bug");
+          }
+        };
+    when(mockBatchRepository.getDocs(polledItems))
+        .thenReturn(Arrays.asList(ApiOperations.deleteItem("deleteThis"), failingOperation));
+    ListingConnector connector = new ListingConnector(mockBatchRepository);
+    connector.init(mockConnectorContext);
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("bug");
+    connector.processBatch(polledItems);
+  }
+
+  @Test
+  public void testProcessBatchMissingOperations() throws Exception {
+    setDefaultConfig();
+    List<Item> polledItems =
+        Arrays.asList(new Item().setName("deleteThis"), new Item().setName("deleteThat"));
+    when(mockBatchRepository.getDocs(polledItems))
+        .thenReturn(Collections.singletonList(ApiOperations.deleteItem("deleteThis")));
+    ListingConnector connector = new ListingConnector(mockBatchRepository);
+    connector.init(mockConnectorContext);
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("batch of 2 items returned 1 operations");
+    connector.processBatch(polledItems);
+  }
+
   @Test
   public void testGetDocDefaultAclOverride() throws Exception {
     Properties config = new Properties();
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk.indexing.template;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link OperationPipeline}. */
+public class OperationPipelineTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetStatsRule resetStats = new ResetStatsRule();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final OperationStats stats = StatsManager.getComponent("OperationPipelineTest");
+
+  @After
+  public void tearDown() {
+    MoreExecutors.shutdownAndAwaitTermination(executor, 10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testInvalidMaxInFlight() {
+    thrown.expect(IllegalArgumentException.class);
+    new OperationPipeline<String>(executor, 0, stats);
+  }
+
+  @Test
+  public void testProcessesAllItems() throws Exception {
+    OperationPipeline<Integer> pipeline = new OperationPipeline<>(executor, 3, stats);
+    List<Integer> processed = new CopyOnWriteArrayList<>();
+    List<Integer> items = ImmutableList.of(1, 2, 3, 4, 5, 6, 7);
+
+    pipeline.process(items, processed::add, () -> false);
+
+    assertEquals(items, ImmutableList.sortedCopyOf(processed));
+    assertEquals(7, stats.getSuccessCount(OperationPipeline.STAGE_READ));
+    assertEquals(7, stats.getSuccessCount(OperationPipeline.STAGE_PROCESS));
+  }
+
+  @Test
+  public void testReaderBlockedByCredits() throws Exception {
+    OperationPipeline<Integer> pipeline = new OperationPipeline<>(executor, 2, stats);
+    AtomicInteger read = new AtomicInteger();
+    Iterable<Integer> items = () -> countingIterator(10, read);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(2);
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> result =
+          reader.submit(
+              () -> {
+                pipeline.process(
+                    items,
+                    item -> {
+                      started.countDown();
+                      release.await();
+                    },
+                    () -> false);
+                return null;
+              });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      // reader waits for a credit while both items are being processed
+      Thread.sleep(100);
+      assertEquals(2, read.get());
+      assertFalse(result.isDone());
+      release.countDown();
+      result.get(10, TimeUnit.SECONDS);
+      assertEquals(10, read.get());
+    } finally {
+      reader.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailureStopsReading() throws Exception {
+    OperationPipeline<Integer> pipeline =
+        new OperationPipeline<>(MoreExecutors.directExecutor(), 1, stats);
+    AtomicInteger read = new AtomicInteger();
+    try {
+      pipeline.process(
+          () -> countingIterator(10, read),
+          item -> {
+            if (item == 3) {
+              throw new IOException("failed " + item);
+            }
+          },
+          () -> false);
+      throw new AssertionError("expected IOException");
+    } catch (IOException e) {
+      assertEquals("failed 3", e.getMessage());
+    }
+    assertEquals(4, read.get());
+    assertEquals(
+        1,
+        StatsManager.getInstance()
+            .takeSnapshot()
+            .getComponent("OperationPipelineTest")
+            .getFailureCount(OperationPipeline.STAGE_PROCESS));
+  }
+
+  @Test
+  public void testStopCondition() throws Exception {
+    OperationPipeline<Integer> pipeline =
+        new OperationPipeline<>(MoreExecutors.directExecutor(), 1, stats);
+    AtomicInteger read = new AtomicInteger();
+    List<Integer> processed = new CopyOnWriteArrayList<>();
+    pipeline.process(() -> countingIterator(10, read), processed::add, () -> read.get() >= 5);
+    assertEquals(ImmutableList.of(0, 1, 2, 3, 4), processed);
+  }
+
+  private static Iterator<Integer> countingIterator(int size, AtomicInteger read) {
+    Iterator<Integer> delegate = IntStream.range(0, size).iterator();
+    return new Iterator<Integer>() {
+      @Override
+      public boolean hasNext() {
+        return delegate.hasNext();
+      }
+
+      @Override
+      public Integer next() {
+        read.incrementAndGet();
+        return delegate.next();
+      }
+    };
+  }
+}
@@ -16,13 +16,27 @@
 package com.google.enterprise.cloudsearch.sdk.indexing.traverser;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
 
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -40,10 +54,16 @@ public class AbstractTraverserWorkerTest {
     @Override public void poll() {}
 
     @Override
-    void shutdownWorker() {}
+    void shutdownWorker() {
+      shutdownCount.incrementAndGet();
+    }
 
   }
 
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final AtomicInteger shutdownCount = new AtomicInteger();
+
   @Mock TraverserConfiguration conf;
   @Mock IndexingService indexingService;
 
@@ -61,4 +81,100 @@ public class AbstractTraverserWorkerTest {
     assertEquals(my.getName(), "TestName");
   }
 
+  private AbstractTraverserWorker createWorker(String name, long timeoutMillis) {
+    when(conf.getName()).thenReturn(name);
+    when(conf.getTimeout()).thenReturn(timeoutMillis);
+    when(conf.getTimeunit()).thenReturn(TimeUnit.MILLISECONDS);
+    return new AbstractTraverserWorkerMock(conf, indexingService);
+  }
+
+  @Test
+  public void testCallWithTimeoutCompletes() throws Exception {
+    AbstractTraverserWorker worker = createWorker("completes", 10000);
+    assertEquals("done", worker.callWithTimeout(() -> "done"));
+    assertEquals(0, worker.getTimeoutCount());
+    assertEquals(0, AbstractTraverserWorker.getPendingDeadlines());
+  }
+
+  @Test
+  public void testCallWithTimeoutInterruptsOverdueCall() throws Exception {
+    AbstractTraverserWorker worker = createWorker("overdue", 50);
+    int timeoutsBefore =
+        StatsManager.getComponent(AbstractTraverserWorker.TIMEOUT_STATS)
+            .getLogResultCounter("overdue", AbstractTraverserWorker.RESULT_TIMEOUT);
+    try {
+      worker.callWithTimeout(
+          () -> {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            return null;
+          });
+      fail("expected TimeoutException");
+    } catch (TimeoutException e) {
+      assertTrue(e.getCause() instanceof InterruptedException);
+    }
+    assertFalse("interrupt should be cleared", Thread.currentThread().isInterrupted());
+    assertEquals(1, worker.getTimeoutCount());
+    assertEquals(
+        timeoutsBefore + 1,
+        StatsManager.getComponent(AbstractTraverserWorker.TIMEOUT_STATS)
+            .getLogResultCounter("overdue", AbstractTraverserWorker.RESULT_TIMEOUT));
+  }
+
+  @Test
+  public void testCallWithTimeoutWaitsForCallIgnoringInterrupt() throws Exception {
+    AbstractTraverserWorker worker = createWorker("ignoresInterrupt", 50);
+    AtomicBoolean completed = new AtomicBoolean();
+    try {
+      worker.callWithTimeout(
+          () -> {
+            Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+            completed.set(true);
+            return "late";
+          });
+      fail("expected TimeoutException");
+    } catch (TimeoutException e) {
+      // result of the overdue call is discarded once it completes
+      assertTrue(completed.get());
+    }
+    assertFalse("interrupt should be cleared", Thread.currentThread().isInterrupted());
+    assertEquals(1, worker.getTimeoutCount());
+  }
+
+  @Test
+  public void testCallWithTimeoutCheckedException() throws Exception {
+    AbstractTraverserWorker worker = createWorker("checked", 10000);
+    thrown.expect(ExecutionException.class);
+    worker.callWithTimeout(
+        () -> {
+          throw new IOException("failed");
+        });
+  }
+
+  @Test
+  public void testCallWithTimeoutUncheckedException() throws Exception {
+    AbstractTraverserWorker worker = createWorker("unchecked", 10000);
+    thrown.expect(UncheckedExecutionException.class);
+    worker.callWithTimeout(
+        () -> {
+          throw new IllegalStateException("failed");
+        });
+  }
+
+  @Test
+  public void testCallWithTimeoutInterruptedByCaller() throws Exception {
+    AbstractTraverserWorker worker = createWorker("interrupted", 10000);
+    thrown.expect(InterruptedException.class);
+    worker.callWithTimeout(
+        () -> {
+          throw new InterruptedException();
+        });
+  }
+
+  @Test
+  public void testShutdownOnce() {
+    AbstractTraverserWorker worker = createWorker("shutdown", 10000);
+    worker.shutdown();
+    worker.shutdown();
+    assertEquals(1, shutdownCount.get());
+  }
 }
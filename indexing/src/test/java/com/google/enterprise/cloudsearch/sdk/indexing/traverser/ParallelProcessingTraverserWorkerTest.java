@@ -15,12 +15,18 @@
  */
 package com.google.enterprise.cloudsearch.sdk.indexing.traverser;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.api.services.cloudsearch.v1.model.Item;
@@ -30,21 +36,28 @@ import com.google.api.services.cloudsearch.v1.model.RepositoryError;
 import com.google.common.util.concurrent.Futures;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException;
 import com.google.enterprise.cloudsearch.sdk.RepositoryException.ErrorType;
+import com.google.enterprise.cloudsearch.sdk.StatsManager;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.google.enterprise.cloudsearch.sdk.indexing.BatchItemRetriever;
 import com.google.enterprise.cloudsearch.sdk.indexing.IndexingService;
 import com.google.enterprise.cloudsearch.sdk.indexing.ItemRetriever;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Rule;
@@ -62,9 +75,11 @@ public class ParallelProcessingTraverserWorkerTest {
   @Rule public ExpectedException thrown = ExpectedException.none();
   @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
   @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public ResetStatsRule resetStats = new ResetStatsRule();
 
   @Mock IndexingService indexingService;
   @Mock ItemRetriever itemRetriever;
+  @Mock BatchItemRetriever batchItemRetriever;
   @Spy ExecutorService executorService = Executors.newCachedThreadPool();
   TraverserConfiguration conf;
 
@@ -77,7 +92,12 @@ public class ParallelProcessingTraverserWorkerTest {
     config.put("traverser.test.hostload", "2");
     config.put("traverser.test.timeout", "60");
     config.put("traverser.test.timeunit", "SECONDS");
-    setupConfig.initConfig(new Properties());
+    Properties prefetchConfig = new Properties();
+    addPrefetchConfig(prefetchConfig, "prefetch", 2);
+    addPrefetchConfig(prefetchConfig, "singleRunnerPrefetch", 1);
+    prefetchConfig.put("traverser.microBatch.hostload", "2");
+    prefetchConfig.put("traverser.microBatch.microBatchSize", "2");
+    setupConfig.initConfig(prefetchConfig);
     conf = (new TraverserConfiguration.Builder("test"))
           .name("name")
           .itemRetriever(itemRetriever)
@@ -235,6 +255,178 @@ public class ParallelProcessingTraverserWorkerTest {
     assertTrue(latch.await(2, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void testPrefetchPollsAgainAfterEmptyResponses() throws Exception {
+    TraverserConfiguration prefetchConf = createPrefetchConfiguration("prefetch");
+    ParallelProcessingTraverserWorker worker =
+        new ParallelProcessingTraverserWorker(prefetchConf, indexingService, executorService);
+    CountDownLatch processed = new CountDownLatch(2);
+    when(indexingService.poll(any(PollItemsRequest.class)))
+        .thenReturn(Collections.singletonList(new Item().setName("id-1")))
+        .thenReturn(Collections.emptyList())
+        .thenReturn(Collections.emptyList())
+        .thenReturn(Collections.singletonList(new Item().setName("id-2")))
+        .thenReturn(Collections.emptyList());
+    doCallRealMethod().when(executorService).execute(any());
+    doAnswer(
+            invocation -> {
+              processed.countDown();
+              return null;
+            })
+        .when(itemRetriever)
+        .process(any());
+
+    ExecutorService pollExecutor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> polling = pollExecutor.submit(worker::poll);
+      assertTrue(processed.await(5, TimeUnit.SECONDS));
+      verify(indexingService, atLeast(4)).poll(any(PollItemsRequest.class));
+      worker.shutdown();
+      polling.get(5, TimeUnit.SECONDS);
+    } finally {
+      pollExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testPrefetchWaitsForQueueToDrain() throws Exception {
+    TraverserConfiguration prefetchConf = createPrefetchConfiguration("singleRunnerPrefetch");
+    ParallelProcessingTraverserWorker worker =
+        new ParallelProcessingTraverserWorker(prefetchConf, indexingService, executorService);
+    List<Item> twoItems = Arrays.asList(new Item().setName("id-1"), new Item().setName("id-2"));
+    when(indexingService.poll(any(PollItemsRequest.class)))
+        .thenReturn(twoItems)
+        .thenReturn(twoItems)
+        .thenReturn(twoItems)
+        .thenReturn(Collections.emptyList());
+    doCallRealMethod().when(executorService).execute(any());
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              release.await();
+              return null;
+            })
+        .when(itemRetriever)
+        .process(any());
+
+    ExecutorService pollExecutor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> polling = pollExecutor.submit(worker::poll);
+      verify(indexingService, timeout(5000).times(2)).poll(any(PollItemsRequest.class));
+      // buffer is above the high watermark while the only runner is blocked
+      Thread.sleep(100);
+      verify(indexingService, times(2)).poll(any(PollItemsRequest.class));
+      release.countDown();
+      verify(indexingService, timeout(5000).atLeast(3)).poll(any(PollItemsRequest.class));
+      worker.shutdown();
+      polling.get(5, TimeUnit.SECONDS);
+    } finally {
+      release.countDown();
+      pollExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMicroBatches() throws Exception {
+    TraverserConfiguration batchConf =
+        new TraverserConfiguration.Builder("microBatch")
+            .name("microBatch")
+            .itemRetriever(batchItemRetriever)
+            .build();
+    ParallelProcessingTraverserWorker worker =
+        new ParallelProcessingTraverserWorker(batchConf, indexingService, executorService);
+    List<Item> entries = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      entries.add(new Item().setName("id-" + i));
+    }
+    when(indexingService.poll(any(PollItemsRequest.class)))
+        .thenReturn(entries)
+        .thenReturn(Collections.emptyList());
+    doCallRealMethod().when(executorService).execute(any());
+    Set<String> processedIds = ConcurrentHashMap.newKeySet();
+    CountDownLatch batches = new CountDownLatch(3);
+    doAnswer(
+            invocation -> {
+              List<Item> batch = invocation.getArgument(0);
+              assertTrue(batch.size() <= 2);
+              batch.forEach(item -> processedIds.add(item.getName()));
+              batches.countDown();
+              return null;
+            })
+        .when(batchItemRetriever)
+        .processBatch(any());
+
+    worker.poll();
+    assertTrue(batches.await(5, TimeUnit.SECONDS));
+    assertEquals(5, processedIds.size());
+    OperationStats stats = StatsManager.getComponent(AbstractTraverserWorker.TIMEOUT_STATS);
+    // latency is recorded right after the batch returns
+    for (int i = 0; i < 50 && stats.getLatencySnapshot("batch.microBatch").getCount() < 3; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(3, stats.getSuccessCount("batch.microBatch"));
+    assertEquals(3, stats.getLatencySnapshot("batch.microBatch").getCount());
+  }
+
+  @Test
+  public void testMicroBatchRepositoryException() throws Exception {
+    TraverserConfiguration batchConf =
+        new TraverserConfiguration.Builder("microBatch").itemRetriever(batchItemRetriever).build();
+    ParallelProcessingTraverserWorker worker =
+        new ParallelProcessingTraverserWorker(batchConf, indexingService, executorService);
+    List<Item> entries =
+        Arrays.asList(
+            new Item().setName("id-1").setQueue("custom"),
+            new Item().setName("id-2").setQueue("custom"));
+    when(indexingService.poll(any(PollItemsRequest.class)))
+        .thenReturn(entries)
+        .thenReturn(Collections.emptyList());
+    doCallRealMethod().when(executorService).execute(any());
+    CountDownLatch pushed = new CountDownLatch(2);
+    doThrow(
+            new RepositoryException.Builder()
+                .setErrorMessage("Repository Error")
+                .setErrorType(ErrorType.SERVER_ERROR)
+                .build())
+        .when(batchItemRetriever)
+        .processBatch(entries);
+    doAnswer(
+            invocation -> {
+              pushed.countDown();
+              return Futures.immediateFuture(new Item());
+            })
+        .when(indexingService)
+        .push(any(), any());
+
+    worker.poll();
+    assertTrue(pushed.await(5, TimeUnit.SECONDS));
+    verify(indexingService).push(eq("id-1"), any());
+    verify(indexingService).push(eq("id-2"), any());
+  }
+
+  @Test
+  public void testBatchItemRetrieverWithoutMicroBatchSize() {
+    TraverserConfiguration batchConf =
+        new TraverserConfiguration.Builder("test").itemRetriever(batchItemRetriever).build();
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("micro-batch size should be greater than 0");
+    new ParallelProcessingTraverserWorker(batchConf, indexingService, executorService);
+  }
+
+  private static void addPrefetchConfig(Properties config, String configKey, int hostload) {
+    String prefix = "traverser." + configKey;
+    config.put(prefix + ".hostload", Integer.toString(hostload));
+    config.put(prefix + ".prefetch.enabled", "true");
+    config.put(prefix + ".prefetch.lowWatermark", "1");
+    config.put(prefix + ".prefetch.highWatermark", "3");
+    config.put(prefix + ".prefetch.initialBackoffMillis", "10");
+    config.put(prefix + ".prefetch.maxBackoffMillis", "20");
+  }
+
+  private TraverserConfiguration createPrefetchConfiguration(String configKey) {
+    return new TraverserConfiguration.Builder(configKey).itemRetriever(itemRetriever).build();
+  }
+
   /**
    * Test method for {@link ParallelProcessingTraverserWorker#shutdown()}.
    * @throws InterruptedException
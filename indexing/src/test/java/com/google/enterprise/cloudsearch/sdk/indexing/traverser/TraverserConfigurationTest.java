@@ -16,7 +16,9 @@
 package com.google.enterprise.cloudsearch.sdk.indexing.traverser;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.api.services.cloudsearch.v1.model.PollItemsRequest;
 import com.google.common.collect.ImmutableList;
@@ -132,6 +134,89 @@ public class TraverserConfigurationTest {
         .build();
   }
 
+  @Test
+  public void testMicroBatchSize() {
+    Properties config = new Properties();
+    config.put("traverser.test.microBatchSize", "20");
+    setupConfig.initConfig(config);
+    assertEquals(
+        0,
+        new TraverserConfiguration.Builder()
+            .itemRetriever(batchItemRetriever)
+            .build()
+            .getMicroBatchSize());
+    assertEquals(
+        20,
+        new TraverserConfiguration.Builder("test")
+            .itemRetriever(batchItemRetriever)
+            .build()
+            .getMicroBatchSize());
+  }
+
+  @Test
+  public void testNegativeMicroBatchSize() {
+    Properties config = new Properties();
+    config.put("traverser.test.microBatchSize", "-1");
+    setupConfig.initConfig(config);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("micro-batch size should be greater than or equal to 0");
+    new TraverserConfiguration.Builder("test").itemRetriever(batchItemRetriever).build();
+  }
+
+  @Test
+  public void testPrefetchDefaults() {
+    setupConfig.initConfig(new Properties());
+    TraverserConfiguration conf =
+        new TraverserConfiguration.Builder("test").itemRetriever(itemRetriever).build();
+    assertFalse(conf.isPrefetchEnabled());
+    assertEquals(100, conf.getPrefetchLowWatermark());
+    assertEquals(1000, conf.getPrefetchHighWatermark());
+    assertEquals(1000, conf.getPrefetchInitialBackoffMillis());
+    assertEquals(60000, conf.getPrefetchMaxBackoffMillis());
+  }
+
+  @Test
+  public void testPrefetchOverriddenConfig() {
+    Properties config = new Properties();
+    config.put("traverser.prefetch.enabled", "true");
+    config.put("traverser.prefetch.highWatermark", "500");
+    config.put("traverser.test.prefetch.lowWatermark", "50");
+    config.put("traverser.test.prefetch.maxBackoffMillis", "5000");
+    setupConfig.initConfig(config);
+    TraverserConfiguration conf =
+        new TraverserConfiguration.Builder("test").itemRetriever(itemRetriever).build();
+    assertTrue(conf.isPrefetchEnabled());
+    assertEquals(50, conf.getPrefetchLowWatermark());
+    assertEquals(500, conf.getPrefetchHighWatermark());
+    assertEquals(1000, conf.getPrefetchInitialBackoffMillis());
+    assertEquals(5000, conf.getPrefetchMaxBackoffMillis());
+  }
+
+  @Test
+  public void testPrefetchHighWatermarkNotAboveLowWatermark() {
+    Properties config = new Properties();
+    config.put("traverser.test.prefetch.lowWatermark", "10");
+    config.put("traverser.test.prefetch.highWatermark", "10");
+    setupConfig.initConfig(config);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("prefetch high watermark should be greater than low watermark");
+    new TraverserConfiguration.Builder("test").itemRetriever(itemRetriever).build();
+  }
+
+  @Test
+  public void testPrefetchMaxBackoffBelowInitialBackoff() {
+    Properties config = new Properties();
+    config.put("traverser.test.prefetch.initialBackoffMillis", "100");
+    config.put("traverser.test.prefetch.maxBackoffMillis", "10");
+    setupConfig.initConfig(config);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("prefetch max backoff should be greater than or equal to initial backoff");
+    new TraverserConfiguration.Builder("test").itemRetriever(itemRetriever).build();
+  }
+
   @Test
   public void testNewWorkerWithIncorrectTimeoutParam() {
     Properties config = new Properties();
@@ -54,6 +54,7 @@ public class TraverserWorkerManagerTest {
     properties.setProperty("traverser.test.hostload", "2");
     properties.setProperty("traverser.test.timeout", "60");
     properties.setProperty("traverser.test.timeunit", "SECONDS");
+    properties.setProperty("traverser.microBatch.microBatchSize", "10");
     setupConfig.initConfig(properties);
   }
 
@@ -96,6 +97,15 @@ public class TraverserWorkerManagerTest {
     assertEquals(BatchProcessingTraverserWorker.class, worker.getClass());
   }
 
+  @Test
+  public void testNewWorkerWithBatchItemRetrieverAndMicroBatchSize() {
+    TraverserConfiguration conf = (new TraverserConfiguration.Builder("microBatch"))
+        .itemRetriever(batchItemRetriever)
+        .build();
+    TraverserWorker worker = TraverserWorkerManager.newWorker(conf, indexingService, executor);
+    assertEquals(ParallelProcessingTraverserWorker.class, worker.getClass());
+  }
+
   @Test
   public void testNewWorkerWithItemRetriever() {
     TraverserConfiguration conf = (new TraverserConfiguration.Builder("test"))
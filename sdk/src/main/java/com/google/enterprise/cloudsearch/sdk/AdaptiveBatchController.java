@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controls batch size and number of concurrently executing batches for {@link
+ * BatchRequestService}.
+ *
+ * <p>If {@link BatchPolicy#isAdaptive()} is false, values from {@link BatchPolicy} are used as is.
+ * Otherwise, values are adjusted after each executed batch using additive increase, multiplicative
+ * decrease: a batch completed within {@link BatchPolicy#getAdaptiveTargetLatencyMillis()} and with
+ * retryable error ratio at or below {@link BatchPolicy#getAdaptiveMaxRetryableErrorRatio()} grows
+ * both values by one, any other batch halves them. Decisions are counted under the
+ * "AdaptiveBatching" {@link StatsManager} component. Current values are published by {@link
+ * BatchRequestService} as its {@code batchSize} and {@code activeBatchesLimit} gauges.
+ */
+class AdaptiveBatchController {
+  private static final Logger logger = Logger.getLogger(AdaptiveBatchController.class.getName());
+
+  @VisibleForTesting
+  static final OperationStats ADAPTIVE_BATCHING_STATS =
+      StatsManager.getComponent("AdaptiveBatching");
+
+  @VisibleForTesting static final String OPERATION_DECISION = "decision";
+
+  enum Decision {
+    INCREASE,
+    DECREASE,
+    UNCHANGED
+  }
+
+  private final BatchPolicy policy;
+  private final ResizableSemaphore activeBatches;
+  private volatile int batchSize;
+  private int activeBatchesLimit;
+
+  AdaptiveBatchController(BatchPolicy policy) {
+    this.policy = checkNotNull(policy);
+    this.batchSize = policy.getMaxBatchSize();
+    this.activeBatchesLimit = policy.getMaxActiveBatches();
+    this.activeBatches = new ResizableSemaphore(activeBatchesLimit);
+  }
+
+  /** Gets number of requests to drain into next batch. */
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  /** Gets current limit on number of concurrently executing batches. */
+  synchronized int getActiveBatchesLimit() {
+    return activeBatchesLimit;
+  }
+
+  /** Blocks until one more batch is allowed to execute. */
+  void acquireBatchPermit() throws InterruptedException {
+    activeBatches.acquire();
+  }
+
+  /** Releases batch permit acquired by {@link #acquireBatchPermit}. */
+  void releaseBatchPermit() {
+    activeBatches.release();
+  }
+
+  /**
+   * Records outcome of single batch execution attempt and adjusts batch size and number of active
+   * batches if adaptive batching is enabled.
+   *
+   * @param requestCount number of requests sent in batch
+   * @param retryableErrorCount number of requests in batch failed with retryable errors
+   * @param latencyMillis round trip time for batch execution
+   * @return decision taken
+   */
+  Decision onBatchExecuted(int requestCount, int retryableErrorCount, long latencyMillis) {
+    if (!policy.isAdaptive() || requestCount <= 0) {
+      return Decision.UNCHANGED;
+    }
+    double errorRatio = (double) retryableErrorCount / requestCount;
+    boolean healthy =
+        latencyMillis <= policy.getAdaptiveTargetLatencyMillis()
+            && errorRatio <= policy.getAdaptiveMaxRetryableErrorRatio();
+    Decision decision;
+    int newBatchSize;
+    int newActiveBatchesLimit;
+    synchronized (this) {
+      if (healthy) {
+        newBatchSize = Math.min(batchSize + 1, policy.getAdaptiveMaxBatchSize());
+        newActiveBatchesLimit = Math.min(activeBatchesLimit + 1, policy.getMaxActiveBatches());
+      } else {
+        newBatchSize = Math.max(batchSize / 2, policy.getAdaptiveMinBatchSize());
+        newActiveBatchesLimit =
+            Math.max(activeBatchesLimit / 2, policy.getAdaptiveMinActiveBatches());
+      }
+      decision =
+          (newBatchSize == batchSize && newActiveBatchesLimit == activeBatchesLimit)
+              ? Decision.UNCHANGED
+              : (healthy ? Decision.INCREASE : Decision.DECREASE);
+      batchSize = newBatchSize;
+      activeBatches.resize(activeBatchesLimit, newActiveBatchesLimit);
+      activeBatchesLimit = newActiveBatchesLimit;
+    }
+    ADAPTIVE_BATCHING_STATS.logResult(OPERATION_DECISION, decision.name());
+    if (decision != Decision.UNCHANGED) {
+      logger.log(
+          Level.FINE,
+          "Adaptive batching {0}: batch size {1}, active batches {2} "
+              + "(latency {3} ms, retryable errors {4}/{5})",
+          new Object[] {
+            decision,
+            newBatchSize,
+            newActiveBatchesLimit,
+            latencyMillis,
+            retryableErrorCount,
+            requestCount
+          });
+    }
+    return decision;
+  }
+
+  /** {@link Semaphore} which allows number of permits to be changed after creation. */
+  private static class ResizableSemaphore extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    ResizableSemaphore(int permits) {
+      super(permits);
+    }
+
+    void resize(int oldLimit, int newLimit) {
+      if (newLimit > oldLimit) {
+        release(newLimit - oldLimit);
+      } else if (newLimit < oldLimit) {
+        reducePermits(oldLimit - newLimit);
+      }
+    }
+  }
+}
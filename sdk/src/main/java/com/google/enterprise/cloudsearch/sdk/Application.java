@@ -129,6 +129,7 @@ public class Application<
       helper.getRuntimeInstance().addShutdownHook(shutdownThread);
       shutdownHolder = () -> shutdownThread.start();
     }
+    StatsManager.getInstance().initConfig();
   }
 
   protected T startConnector() throws InterruptedException {
@@ -217,7 +218,11 @@ public class Application<
     if ((connectorScheduler != null) && connectorScheduler.isStarted()) {
       connectorScheduler.stop();
     }
-    connector.destroy();
+    try {
+      connector.destroy();
+    } finally {
+      HttpTransportPool.closeShared();
+    }
   }
 
   protected abstract static class AbstractBuilder<B extends AbstractBuilder<B, H, T>,
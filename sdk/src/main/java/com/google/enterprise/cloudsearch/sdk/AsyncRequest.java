@@ -29,6 +29,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats.Event;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +38,8 @@ public class AsyncRequest<T> {
   private static final Logger logger = Logger.getLogger(AsyncRequest.class.getName());
   private final AbstractGoogleJsonClientRequest<T> requestToExecute;
   private final SettableFutureCallback<T> callback;
+  private final Priority priority;
+  private final AtomicBoolean claimed = new AtomicBoolean();
 
   private RetryPolicy retryPolicy;
   private int retries = 0;
@@ -50,13 +53,44 @@ public class AsyncRequest<T> {
     CANCELLED
   }
 
+  /**
+   * Lane a request is queued in by {@link BatchRequestService}. Lanes are drained into batches in
+   * proportion to their weights, see {@link BatchPolicy#getPriorityWeight}, so that requests in
+   * one lane do not wait behind a backlog of requests in another.
+   */
+  public enum Priority {
+    /** Latency sensitive requests, such as pushing repository errors or unreserving items. */
+    INTERACTIVE,
+    /** Requests without particular latency or throughput needs. */
+    DEFAULT,
+    /** Throughput oriented requests, such as updates sent by a traversal. */
+    BULK
+  }
+
   public AsyncRequest(
       AbstractGoogleJsonClientRequest<T> requestToExecute,
       RetryPolicy retryPolicy,
       OperationStats operationStats) {
+    this(requestToExecute, retryPolicy, operationStats, Priority.DEFAULT);
+  }
+
+  /**
+   * Creates a request queued in the lane of given {@link Priority}.
+   *
+   * @param requestToExecute request to be batched
+   * @param retryPolicy retry policy for the request
+   * @param operationStats to record request execution to
+   * @param priority lane to queue the request in
+   */
+  public AsyncRequest(
+      AbstractGoogleJsonClientRequest<T> requestToExecute,
+      RetryPolicy retryPolicy,
+      OperationStats operationStats,
+      Priority priority) {
     this.requestToExecute = checkNotNull(requestToExecute, "request can not be null");
     this.callback = new SettableFutureCallback<>(this, operationStats);
     this.retryPolicy = checkNotNull(retryPolicy, "retry policy cannot be null!");
+    this.priority = checkNotNull(priority, "priority can not be null");
   }
 
   /** Cancel this request. */
@@ -65,6 +99,50 @@ public class AsyncRequest<T> {
     callback.cancel();
   }
 
+  /**
+   * Cancels this request if {@link BatchRequestService} has not yet taken it from its queue for
+   * execution, so that a request superseded by a later one is never sent.
+   *
+   * @return true if the request was cancelled, false if it is already executing or done
+   */
+  public boolean cancelIfQueued() {
+    if (!claimed.compareAndSet(false, true)) {
+      return false;
+    }
+    cancel();
+    return true;
+  }
+
+  /**
+   * Creates a new request executing the same request in the same lane, such as to resend a request
+   * cancelled by {@link #cancelIfQueued()}.
+   *
+   * @return new request with the same request, retry policy and priority
+   */
+  public AsyncRequest<T> copy() {
+    return copy(priority);
+  }
+
+  /**
+   * Creates a new request executing the same request in lane {@code priority}, such as to queue a
+   * request behind earlier requests in another lane.
+   *
+   * @param priority lane of the new request
+   * @return new request with the same request and retry policy
+   */
+  public AsyncRequest<T> copy(Priority priority) {
+    return new AsyncRequest<>(requestToExecute, retryPolicy, callback.operationStats, priority);
+  }
+
+  /**
+   * Claims this request for execution in a batch.
+   *
+   * @return false if the request was cancelled by {@link #cancelIfQueued()}
+   */
+  boolean claimForExecution() {
+    return claimed.compareAndSet(false, true);
+  }
+
   /**
    * Gets request to be batched.
    *
@@ -74,6 +152,15 @@ public class AsyncRequest<T> {
     return requestToExecute;
   }
 
+  /**
+   * Gets {@link Priority} lane of the request.
+   *
+   * @return priority lane of the request.
+   */
+  public Priority getPriority() {
+    return priority;
+  }
+
   /**
    * Gets {@link ListenableFuture} instance representing pending result from {@link AsyncRequest}
    * execution.
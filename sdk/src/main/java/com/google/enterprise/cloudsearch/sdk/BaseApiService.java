@@ -79,6 +79,7 @@ public abstract class BaseApiService<T extends AbstractGoogleJsonClient>
     protected RetryPolicy retryPolicy = new RetryPolicy.Builder().build();
     protected HttpRequestInitializer requestTimeoutInitializer;
     protected GoogleProxy googleProxy = new GoogleProxy.Builder().build();
+    protected HttpTransportPool transportPool;
 
     /**
      * Sets root URL for Google API client as set on {@link
@@ -105,6 +106,19 @@ public abstract class BaseApiService<T extends AbstractGoogleJsonClient>
       return getThis();
     }
 
+    /**
+     * Sets {@link HttpTransportPool} providing connections for the {@link HttpTransport} of
+     * {@link AbstractGoogleJsonClient}, if no transport is set with {@link #setTransport}. Services
+     * built with the same pool share its connections.
+     *
+     * @param transportPool pool of connections, or null for a transport with its own connections
+     * @return this Builder instance
+     */
+    public B setTransportPool(HttpTransportPool transportPool) {
+      this.transportPool = transportPool;
+      return getThis();
+    }
+
     /**
      * Sets instance of {@link GoogleProxy} to be used for creating an instance of {@link
      * AbstractGoogleJsonClient}.
@@ -251,7 +265,10 @@ public abstract class BaseApiService<T extends AbstractGoogleJsonClient>
         }
 
         if (transport == null) {
-          transport = googleProxy.getHttpTransport();
+          transport =
+              transportPool != null
+                  ? transportPool.getHttpTransport(googleProxy)
+                  : googleProxy.getHttpTransport();
         }
 
         if (requestInitializer == null) {
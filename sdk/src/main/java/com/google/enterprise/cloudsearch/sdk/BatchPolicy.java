@@ -21,7 +21,10 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -38,6 +41,18 @@ public class BatchPolicy {
   private static final int DEFAULT_MAX_QUEUE_LENGTH = 1000;
   private static final int DEFAULT_MAX_ACTIVE_BATCHES = 20;
   private static final int DEFAULT_BATCH_REQUEST_TIMEOUT_SECONDS = 120;
+  private static final int DEFAULT_ADAPTIVE_MIN_BATCH_SIZE = 1;
+  private static final int DEFAULT_ADAPTIVE_MIN_ACTIVE_BATCHES = 1;
+  private static final int DEFAULT_ADAPTIVE_TARGET_LATENCY_MILLIS = 10000;
+  private static final double DEFAULT_ADAPTIVE_MAX_RETRYABLE_ERROR_RATIO = 0.1;
+  private static final Map<Priority, Integer> DEFAULT_PRIORITY_WEIGHTS =
+      new EnumMap<>(Priority.class);
+
+  static {
+    DEFAULT_PRIORITY_WEIGHTS.put(Priority.INTERACTIVE, 4);
+    DEFAULT_PRIORITY_WEIGHTS.put(Priority.DEFAULT, 2);
+    DEFAULT_PRIORITY_WEIGHTS.put(Priority.BULK, 1);
+  }
 
   @VisibleForTesting static final String CONFIG_BATCH_FLUSH_ON_SHUTDOWN = "batch.flushOnShutdown";
   static final String CONFIG_BATCH_SIZE = "batch.batchSize";
@@ -46,7 +61,17 @@ public class BatchPolicy {
   static final String CONFIG_BATCH_MAX_ACTIVE_BATCHES = "batch.maxActiveBatches";
   static final String CONFIG_BATCH_READ_TIMEOUT_SECONDS = "batch.readTimeoutSeconds";
   static final String CONFIG_BATCH_CONNECT_TIMEOUT_SECONDS = "batch.connectTimeoutSeconds";
-
+  static final String CONFIG_BATCH_ADAPTIVE = "batch.adaptive";
+  static final String CONFIG_BATCH_ADAPTIVE_MIN_BATCH_SIZE = "batch.adaptive.minBatchSize";
+  static final String CONFIG_BATCH_ADAPTIVE_MAX_BATCH_SIZE = "batch.adaptive.maxBatchSize";
+  static final String CONFIG_BATCH_ADAPTIVE_MIN_ACTIVE_BATCHES = "batch.adaptive.minActiveBatches";
+  static final String CONFIG_BATCH_ADAPTIVE_TARGET_LATENCY_MILLIS =
+      "batch.adaptive.targetLatencyMillis";
+  static final String CONFIG_BATCH_ADAPTIVE_MAX_RETRYABLE_ERROR_RATIO =
+      "batch.adaptive.maxRetryableErrorRatio";
+  static final String CONFIG_BATCH_PRIORITY_PREFIX = "batch.priority.";
+  static final String CONFIG_BATCH_PRIORITY_WEIGHT_SUFFIX = ".weight";
+  static final String CONFIG_BATCH_PRIORITY_MAX_QUEUE_LENGTH_SUFFIX = ".maxQueueLength";
 
   private final int maxBatchSize;
   private final int maxBatchDelay;
@@ -56,6 +81,14 @@ public class BatchPolicy {
   private final int maxActiveBatches;
   private final int batchReadTimeout;
   private final int batchConnectTimeout;
+  private final boolean adaptive;
+  private final int adaptiveMinBatchSize;
+  private final int adaptiveMaxBatchSize;
+  private final int adaptiveMinActiveBatches;
+  private final long adaptiveTargetLatencyMillis;
+  private final double adaptiveMaxRetryableErrorRatio;
+  private final Map<Priority, Integer> priorityWeights;
+  private final Map<Priority, Integer> priorityQueueLengths;
 
   private BatchPolicy(Builder builder) {
     maxBatchSize = builder.maxBatchSize;
@@ -66,6 +99,20 @@ public class BatchPolicy {
     maxActiveBatches = builder.maxActiveBatches;
     batchReadTimeout = builder.batchReadTimeout;
     batchConnectTimeout = builder.batchConnectTimeout;
+    adaptive = builder.adaptive;
+    adaptiveMinBatchSize = builder.adaptiveMinBatchSize;
+    adaptiveMaxBatchSize =
+        builder.adaptiveMaxBatchSize == null ? builder.maxBatchSize : builder.adaptiveMaxBatchSize;
+    adaptiveMinActiveBatches = builder.adaptiveMinActiveBatches;
+    adaptiveTargetLatencyMillis = builder.adaptiveTargetLatencyMillis;
+    adaptiveMaxRetryableErrorRatio = builder.adaptiveMaxRetryableErrorRatio;
+    priorityWeights = new EnumMap<>(DEFAULT_PRIORITY_WEIGHTS);
+    priorityWeights.putAll(builder.priorityWeights);
+    priorityQueueLengths = new EnumMap<>(Priority.class);
+    for (Priority priority : Priority.values()) {
+      priorityQueueLengths.put(
+          priority, builder.priorityQueueLengths.getOrDefault(priority, queueLength));
+    }
   }
 
   /**
@@ -82,19 +129,53 @@ public class BatchPolicy {
    *   <li>batch.maxActiveBatches = 20 number of allowable concurrently executing batches
    *   <li>batch.readTimeoutSeconds = 120 read timeout in seconds for batch request
    *   <li>batch.connectTimeoutSeconds = 120 connect timeout in seconds for batch request
+   *   <li>batch.adaptive = false to size batches at runtime from observed batch latency and
+   *       retryable error ratio. See {@link #isAdaptive()}.
+   *   <li>batch.adaptive.minBatchSize = 1 lower bound for adaptive batch size
+   *   <li>batch.adaptive.maxBatchSize = value of batch.batchSize, upper bound for adaptive batch
+   *       size
+   *   <li>batch.adaptive.minActiveBatches = 1 lower bound for adaptive number of concurrently
+   *       executing batches
+   *   <li>batch.adaptive.targetLatencyMillis = 10000 batch round trip time above which batch size
+   *       and concurrency are reduced
+   *   <li>batch.adaptive.maxRetryableErrorRatio = 0.1 ratio of requests in a batch failing with
+   *       retryable errors above which batch size and concurrency are reduced
+   *   <li>batch.priority.interactive.weight = 4, batch.priority.default.weight = 2 and
+   *       batch.priority.bulk.weight = 1 relative share of each {@link Priority} lane in a batch
+   *   <li>batch.priority.interactive.maxQueueLength, batch.priority.default.maxQueueLength and
+   *       batch.priority.bulk.maxQueueLength = value of batch.maxQueueLength, maximum number of
+   *       requests in each {@link Priority} lane
    * </ul>
    */
   public static BatchPolicy fromConfiguration() {
     checkState(Configuration.isInitialized(), "config not initialized");
-    return new BatchPolicy.Builder()
+    int batchSize = Configuration.getInteger(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE).get();
+    int queueLength =
+        Configuration.getInteger(CONFIG_BATCH_MAX_QUEUE_LENGTH, DEFAULT_MAX_QUEUE_LENGTH).get();
+    Builder builder = new Builder();
+    for (Priority priority : Priority.values()) {
+      String prefix = CONFIG_BATCH_PRIORITY_PREFIX + priority.name().toLowerCase();
+      builder
+          .setPriorityWeight(
+              priority,
+              Configuration.getInteger(
+                      prefix + CONFIG_BATCH_PRIORITY_WEIGHT_SUFFIX,
+                      DEFAULT_PRIORITY_WEIGHTS.get(priority))
+                  .get())
+          .setPriorityQueueLength(
+              priority,
+              Configuration.getInteger(
+                      prefix + CONFIG_BATCH_PRIORITY_MAX_QUEUE_LENGTH_SUFFIX, queueLength)
+                  .get());
+    }
+    return builder
         .setFlushOnShutdown(Configuration.getBoolean(CONFIG_BATCH_FLUSH_ON_SHUTDOWN, true).get())
         .setMaxBatchDelay(
             Configuration.getInteger(CONFIG_BATCH_MAX_DELAY_SECONDS, DEFAULT_BATCH_DELAY_SECONDS)
                 .get(),
             TimeUnit.SECONDS)
-        .setMaxBatchSize(Configuration.getInteger(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE).get())
-        .setQueueLength(
-            Configuration.getInteger(CONFIG_BATCH_MAX_QUEUE_LENGTH, DEFAULT_MAX_QUEUE_LENGTH).get())
+        .setMaxBatchSize(batchSize)
+        .setQueueLength(queueLength)
         .setMaxActiveBatches(
             Configuration.getInteger(CONFIG_BATCH_MAX_ACTIVE_BATCHES, DEFAULT_MAX_ACTIVE_BATCHES)
                 .get())
@@ -104,6 +185,24 @@ public class BatchPolicy {
         .setBatchConnectTimeoutSeconds(
             Configuration.getInteger(
                 CONFIG_BATCH_CONNECT_TIMEOUT_SECONDS, DEFAULT_BATCH_REQUEST_TIMEOUT_SECONDS).get())
+        .setAdaptive(Configuration.getBoolean(CONFIG_BATCH_ADAPTIVE, false).get())
+        .setAdaptiveBatchSizeRange(
+            Configuration.getInteger(
+                CONFIG_BATCH_ADAPTIVE_MIN_BATCH_SIZE, DEFAULT_ADAPTIVE_MIN_BATCH_SIZE).get(),
+            Configuration.getInteger(CONFIG_BATCH_ADAPTIVE_MAX_BATCH_SIZE, batchSize).get())
+        .setAdaptiveMinActiveBatches(
+            Configuration.getInteger(
+                    CONFIG_BATCH_ADAPTIVE_MIN_ACTIVE_BATCHES, DEFAULT_ADAPTIVE_MIN_ACTIVE_BATCHES)
+                .get())
+        .setAdaptiveTargetLatencyMillis(
+            Configuration.getInteger(
+                CONFIG_BATCH_ADAPTIVE_TARGET_LATENCY_MILLIS, DEFAULT_ADAPTIVE_TARGET_LATENCY_MILLIS)
+                .get())
+        .setAdaptiveMaxRetryableErrorRatio(
+            Configuration.getValue(
+                CONFIG_BATCH_ADAPTIVE_MAX_RETRYABLE_ERROR_RATIO,
+                DEFAULT_ADAPTIVE_MAX_RETRYABLE_ERROR_RATIO,
+                Configuration.DOUBLE_PARSER).get())
         .build();
   }
 
@@ -156,6 +255,28 @@ public class BatchPolicy {
     return queueLength;
   }
 
+  /**
+   * Gets relative share of requests of given {@link Priority} lane in a batch, when other lanes
+   * have requests too.
+   *
+   * @param priority lane of requests
+   * @return weight of the lane, greater than 0
+   */
+  public int getPriorityWeight(Priority priority) {
+    return priorityWeights.get(checkNotNull(priority));
+  }
+
+  /**
+   * Gets number of requests of given {@link Priority} lane allowed to be batched before blocking
+   * batching of additional requests in that lane. Defaults to {@link #getQueueLength()}.
+   *
+   * @param priority lane of requests
+   * @return maximum number of requests in the lane
+   */
+  public int getPriorityQueueLength(Priority priority) {
+    return priorityQueueLengths.get(checkNotNull(priority));
+  }
+
   /**
    * Gets maximum number of allowed active batch requests under processing at a given instance.
    *
@@ -183,6 +304,67 @@ public class BatchPolicy {
     return batchConnectTimeout;
   }
 
+  /**
+   * Gets flag indicating if batch size and number of active batches are adjusted at runtime.
+   *
+   * <p>When enabled, {@link BatchRequestService} starts with {@link #getMaxBatchSize()} and {@link
+   * #getMaxActiveBatches()} and uses an additive increase, multiplicative decrease policy after
+   * each executed batch: both values grow by one while batches complete within {@link
+   * #getAdaptiveTargetLatencyMillis()} and with a retryable error ratio at or below {@link
+   * #getAdaptiveMaxRetryableErrorRatio()}, and are halved otherwise.
+   *
+   * @return true if batch size and number of active batches are adjusted at runtime
+   */
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * Gets lower bound for adaptive batch size.
+   *
+   * @return lower bound for adaptive batch size
+   */
+  public int getAdaptiveMinBatchSize() {
+    return adaptiveMinBatchSize;
+  }
+
+  /**
+   * Gets upper bound for adaptive batch size.
+   *
+   * @return upper bound for adaptive batch size
+   */
+  public int getAdaptiveMaxBatchSize() {
+    return adaptiveMaxBatchSize;
+  }
+
+  /**
+   * Gets lower bound for adaptive number of concurrently executing batches. The upper bound is
+   * {@link #getMaxActiveBatches()}.
+   *
+   * @return lower bound for adaptive number of concurrently executing batches
+   */
+  public int getAdaptiveMinActiveBatches() {
+    return adaptiveMinActiveBatches;
+  }
+
+  /**
+   * Gets batch round trip time in milliseconds above which adaptive batching backs off.
+   *
+   * @return batch round trip time in milliseconds above which adaptive batching backs off
+   */
+  public long getAdaptiveTargetLatencyMillis() {
+    return adaptiveTargetLatencyMillis;
+  }
+
+  /**
+   * Gets ratio of requests failed with retryable errors above which adaptive batching backs off.
+   *
+   * @return ratio of requests failed with retryable errors above which adaptive batching backs off
+   */
+  public double getAdaptiveMaxRetryableErrorRatio() {
+    return adaptiveMaxRetryableErrorRatio;
+  }
+
   /** Builder object for creating an instance of {@link BatchRequest}. */
   public static final class Builder {
     private boolean flushOnShutdown = true;
@@ -193,6 +375,14 @@ public class BatchPolicy {
     private int maxActiveBatches = DEFAULT_MAX_ACTIVE_BATCHES;
     private int batchReadTimeout = DEFAULT_BATCH_REQUEST_TIMEOUT_SECONDS;
     private int batchConnectTimeout = DEFAULT_BATCH_REQUEST_TIMEOUT_SECONDS;
+    private boolean adaptive = false;
+    private int adaptiveMinBatchSize = DEFAULT_ADAPTIVE_MIN_BATCH_SIZE;
+    private Integer adaptiveMaxBatchSize;
+    private int adaptiveMinActiveBatches = DEFAULT_ADAPTIVE_MIN_ACTIVE_BATCHES;
+    private long adaptiveTargetLatencyMillis = DEFAULT_ADAPTIVE_TARGET_LATENCY_MILLIS;
+    private double adaptiveMaxRetryableErrorRatio = DEFAULT_ADAPTIVE_MAX_RETRYABLE_ERROR_RATIO;
+    private final Map<Priority, Integer> priorityWeights = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> priorityQueueLengths = new EnumMap<>(Priority.class);
 
     /**
      * Sets maximum number of requests to be batched together.
@@ -277,6 +467,92 @@ public class BatchPolicy {
       return this;
     }
 
+    /**
+     * Sets flag to indicate if batch size and number of active batches should be adjusted at
+     * runtime based on observed batch latency and retryable error ratio.
+     *
+     * @param adaptive Set to {@code true} to enable adaptive batching
+     * @return this Builder instance
+     */
+    public Builder setAdaptive(boolean adaptive) {
+      this.adaptive = adaptive;
+      return this;
+    }
+
+    /**
+     * Sets lower and upper bound for adaptive batch size. If not set, upper bound is same as
+     * {@link #setMaxBatchSize}.
+     *
+     * @param minBatchSize lower bound for adaptive batch size
+     * @param maxBatchSize upper bound for adaptive batch size
+     * @return this Builder instance
+     */
+    public Builder setAdaptiveBatchSizeRange(int minBatchSize, int maxBatchSize) {
+      this.adaptiveMinBatchSize = minBatchSize;
+      this.adaptiveMaxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Sets lower bound for adaptive number of concurrently executing batches.
+     *
+     * @param minActiveBatches lower bound for adaptive number of concurrently executing batches
+     * @return this Builder instance
+     */
+    public Builder setAdaptiveMinActiveBatches(int minActiveBatches) {
+      this.adaptiveMinActiveBatches = minActiveBatches;
+      return this;
+    }
+
+    /**
+     * Sets batch round trip time in milliseconds above which adaptive batching backs off.
+     *
+     * @param targetLatencyMillis batch round trip time in milliseconds
+     * @return this Builder instance
+     */
+    public Builder setAdaptiveTargetLatencyMillis(long targetLatencyMillis) {
+      this.adaptiveTargetLatencyMillis = targetLatencyMillis;
+      return this;
+    }
+
+    /**
+     * Sets ratio of requests failed with retryable errors above which adaptive batching backs off.
+     *
+     * @param maxRetryableErrorRatio ratio between 0 and 1
+     * @return this Builder instance
+     */
+    public Builder setAdaptiveMaxRetryableErrorRatio(double maxRetryableErrorRatio) {
+      this.adaptiveMaxRetryableErrorRatio = maxRetryableErrorRatio;
+      return this;
+    }
+
+    /**
+     * Sets relative share of requests of given {@link Priority} lane in a batch. Defaults to 4 for
+     * {@link Priority#INTERACTIVE}, 2 for {@link Priority#DEFAULT} and 1 for {@link
+     * Priority#BULK}.
+     *
+     * @param priority lane of requests
+     * @param weight weight of the lane, greater than 0
+     * @return this Builder instance
+     */
+    public Builder setPriorityWeight(Priority priority, int weight) {
+      this.priorityWeights.put(checkNotNull(priority), weight);
+      return this;
+    }
+
+    /**
+     * Sets maximum number of requests in given {@link Priority} lane. If not set, the lane uses
+     * {@link #setQueueLength}.
+     *
+     * @param priority lane of requests
+     * @param queueLength maximum number of requests in the lane
+     * @return this Builder instance
+     */
+    public Builder setPriorityQueueLength(Priority priority, int queueLength) {
+      this.priorityQueueLengths.put(checkNotNull(priority), queueLength);
+      return this;
+    }
+
     /**
      * Builds an instance of {@link BatchPolicy}.
      *
@@ -290,6 +566,29 @@ public class BatchPolicy {
       checkArgument(maxActiveBatches > 0, "maxActiveBatches should be greater than 0");
       checkArgument(batchReadTimeout > 0, "batchReadTimeout should be greater than 0");
       checkArgument(batchReadTimeout > 0, "batchReadTimeout should be greater than 0");
+      priorityWeights.forEach(
+          (priority, weight) ->
+              checkArgument(weight > 0, "%s weight should be greater than 0", priority));
+      priorityQueueLengths.forEach(
+          (priority, length) ->
+              checkArgument(length > 0, "%s queueLength should be greater than 0", priority));
+      if (adaptive) {
+        int maxSize = adaptiveMaxBatchSize == null ? maxBatchSize : adaptiveMaxBatchSize;
+        checkArgument(
+            adaptiveMinBatchSize > 0, "adaptive minBatchSize should be greater than 0");
+        checkArgument(
+            adaptiveMinBatchSize <= maxBatchSize && maxBatchSize <= maxSize,
+            "maxBatchSize should be between adaptive minBatchSize and maxBatchSize");
+        checkArgument(
+            adaptiveMinActiveBatches > 0 && adaptiveMinActiveBatches <= maxActiveBatches,
+            "adaptive minActiveBatches should be between 1 and maxActiveBatches");
+        checkArgument(
+            adaptiveTargetLatencyMillis > 0,
+            "adaptive targetLatencyMillis should be greater than 0");
+        checkArgument(
+            adaptiveMaxRetryableErrorRatio >= 0 && adaptiveMaxRetryableErrorRatio <= 1,
+            "adaptive maxRetryableErrorRatio should be between 0 and 1");
+      }
       return new BatchPolicy(this);
     }
   }
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded multi-producer queue used by {@link BatchRequestService} to collect requests for
+ * batching without taking a lock on the add path.
+ *
+ * <p>Capacity is enforced by a {@link Semaphore}, so {@link #put} blocks only when the queue is
+ * full. Elements are counted after they are enqueued and consumers claim a number of elements by
+ * atomically decrementing that count before polling them, which guarantees that claimed elements
+ * are available and that concurrent consumers never split or overfill a batch.
+ *
+ * <p>The queue may be split into lanes, each with its own capacity and weight. A full lane blocks
+ * only producers adding to it. Claimed elements are taken from lanes holding elements in
+ * proportion to their weights, lower lane numbers first, and any remainder is filled from the
+ * lowest numbered lane with elements left. Order is preserved within each lane.
+ */
+class BatchRequestQueue<T> {
+  private final Lane<T>[] lanes;
+  private final AtomicInteger unclaimed = new AtomicInteger();
+
+  /**
+   * Creates a queue with a single lane.
+   *
+   * @param capacity maximum number of elements in the queue
+   */
+  BatchRequestQueue(int capacity) {
+    this(new int[] {capacity}, new int[] {1});
+  }
+
+  /**
+   * Creates a queue with a lane for each element of {@code capacities}.
+   *
+   * @param capacities maximum number of elements in each lane
+   * @param weights relative share of each lane in drained elements
+   */
+  @SuppressWarnings("unchecked")
+  BatchRequestQueue(int[] capacities, int[] weights) {
+    checkArgument(capacities.length > 0, "at least one lane is required");
+    checkArgument(capacities.length == weights.length, "capacities and weights differ in length");
+    lanes = new Lane[capacities.length];
+    for (int i = 0; i < lanes.length; i++) {
+      checkArgument(capacities[i] > 0, "capacity should be greater than 0");
+      checkArgument(weights[i] > 0, "weight should be greater than 0");
+      lanes[i] = new Lane<>(capacities[i], weights[i]);
+    }
+  }
+
+  /**
+   * Adds an element to the first lane, waiting for space to become available if it is full.
+   *
+   * @param element to add
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void put(T element) throws InterruptedException {
+    put(element, 0);
+  }
+
+  /**
+   * Adds an element to a lane, waiting for space to become available if the lane is full.
+   *
+   * @param element to add
+   * @param lane number of the lane to add to
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void put(T element, int lane) throws InterruptedException {
+    checkNotNull(element);
+    Lane<T> target = lanes[lane];
+    target.capacity.acquire();
+    target.queue.offer(element);
+    // counted in the lane first, so that lanes always hold the elements counted in total
+    target.unclaimed.incrementAndGet();
+    unclaimed.incrementAndGet();
+  }
+
+  /** Returns number of elements available to be drained. */
+  int size() {
+    return unclaimed.get();
+  }
+
+  /** Returns number of elements in a lane not yet claimed by a consumer. */
+  int size(int lane) {
+    return lanes[lane].unclaimed.get();
+  }
+
+  /** Returns true if no elements are available to be drained. */
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Removes between {@code minElements} and {@code maxElements} elements. Nothing is removed if
+   * fewer than {@code minElements} are available.
+   *
+   * @param minElements minimum number of elements to remove, at least 1
+   * @param maxElements maximum number of elements to remove
+   * @return removed elements, empty if fewer than {@code minElements} were available
+   */
+  List<T> drain(int minElements, int maxElements) {
+    checkArgument(minElements > 0 && minElements <= maxElements, "invalid drain range");
+    int available;
+    int claimed;
+    do {
+      available = unclaimed.get();
+      if (available < minElements) {
+        return Collections.emptyList();
+      }
+      claimed = Math.min(available, maxElements);
+    } while (!unclaimed.compareAndSet(available, available - claimed));
+    List<T> drained = new ArrayList<>(claimed);
+    int remaining = claimed;
+    if (lanes.length > 1) {
+      long activeWeight = 0;
+      for (Lane<T> lane : lanes) {
+        if (lane.unclaimed.get() > 0) {
+          activeWeight += lane.weight;
+        }
+      }
+      for (int i = 0; i < lanes.length && remaining > 0 && activeWeight > 0; i++) {
+        if (lanes[i].unclaimed.get() == 0) {
+          continue;
+        }
+        long share = (claimed * (long) lanes[i].weight + activeWeight - 1) / activeWeight;
+        remaining -= lanes[i].claim((int) Math.min(share, remaining), drained);
+      }
+    }
+    // elements claimed above are held by lanes, possibly behind concurrent consumers' claims
+    while (remaining > 0) {
+      for (int i = 0; i < lanes.length && remaining > 0; i++) {
+        remaining -= lanes[i].claim(remaining, drained);
+      }
+    }
+    return drained;
+  }
+
+  /**
+   * Removes all available elements.
+   *
+   * @return removed elements
+   */
+  List<T> drainAll() {
+    List<T> drained = new ArrayList<>();
+    List<T> next;
+    while (!(next = drain(1, Integer.MAX_VALUE)).isEmpty()) {
+      drained.addAll(next);
+    }
+    return drained;
+  }
+
+  private static final class Lane<T> {
+    final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    final AtomicInteger unclaimed = new AtomicInteger();
+    final Semaphore capacity;
+    final int weight;
+
+    Lane(int capacity, int weight) {
+      this.capacity = new Semaphore(capacity);
+      this.weight = weight;
+    }
+
+    /** Removes up to {@code maxElements} elements into {@code drained}, returning their count. */
+    int claim(int maxElements, List<T> drained) {
+      int available;
+      int claimed;
+      do {
+        available = unclaimed.get();
+        if (available == 0) {
+          return 0;
+        }
+        claimed = Math.min(available, maxElements);
+      } while (!unclaimed.compareAndSet(available, available - claimed));
+      for (int i = 0; i < claimed; i++) {
+        T element = queue.poll();
+        checkState(element != null, "claimed element missing from queue");
+        drained.add(element);
+      }
+      capacity.release(claimed);
+      return claimed;
+    }
+  }
+}
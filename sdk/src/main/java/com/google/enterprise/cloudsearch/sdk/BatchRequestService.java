@@ -15,6 +15,7 @@
  */
 package com.google.enterprise.cloudsearch.sdk;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -37,23 +38,27 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.cloudsearch.sdk.AsyncRequest.EventStartCallback;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Status;
 import com.google.enterprise.cloudsearch.sdk.RetryPolicy.BackOffFactory;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -70,10 +75,18 @@ import javax.net.ssl.SSLHandshakeException;
  * <p>TODO(tvartak) : Use executor service to set values or exceptions on settable future with
  * timeout. Caller can potentially add long running callback or listener with
  * {@link MoreExecutors#newDirectExecutorService()}. These should not block other threads.
+ *
+ * <p>Statistics of each instance, including {@code queueDepth}, {@code batchSize} and {@code
+ * activeBatchesLimit} gauges while the service is running, are recorded under its own {@code
+ * BatchRequestService.<name>} component, see {@link Builder#setName}.
  */
 public class BatchRequestService extends AbstractIdleService {
   private static final Logger logger = Logger.getLogger(BatchRequestService.class.getName());
-  private final ArrayBlockingQueue<AsyncRequest<?>> requests;
+  private static final String STATS_COMPONENT_PREFIX = "BatchRequestService.";
+  private static final AtomicInteger unnamedInstances = new AtomicInteger();
+  private final OperationStats batchStats;
+  private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+  private final BatchRequestQueue<AsyncRequest<?>> requests;
   private final ExecutorService batchExecutor;
   private final ScheduledExecutorService scheduledExecutor;
   private final BatchPolicy flushPolicy;
@@ -81,7 +94,7 @@ public class BatchRequestService extends AbstractIdleService {
   private final TimeProvider currentTimeProvider;
   private final AtomicBoolean needToScheduleFlush = new AtomicBoolean(true);
   private final BatchRequestHelper batchRequestHelper;
-  private final Semaphore batchingSemaphore;
+  private final AdaptiveBatchController batchController;
   private final BatchRequestInitializer batchRequestInitializer;
   private final BackOffFactory backOffFactory;
 
@@ -92,29 +105,52 @@ public class BatchRequestService extends AbstractIdleService {
    */
   public BatchRequestService(Builder builder) {
     this.batchRequestHelper = builder.batchRequestHelper;
+    this.batchStats =
+        StatsManager.getComponent(
+            STATS_COMPONENT_PREFIX
+                + (builder.name != null
+                    ? builder.name
+                    : String.valueOf(unnamedInstances.incrementAndGet())));
     this.batchExecutor = checkNotNull(builder.executorFactory.getExecutor());
     this.scheduledExecutor = checkNotNull(builder.executorFactory.getScheduledExecutor());
     this.flushPolicy = builder.batchPolicy;
     this.backOffFactory = checkNotNull(builder.retryPolicy.getBackOffFactory());
     this.currentTimeProvider = builder.timeProvider;
-    this.requests = new ArrayBlockingQueue<>(builder.batchPolicy.getQueueLength(), true);
-    this.batchingSemaphore = new Semaphore(builder.batchPolicy.getMaxActiveBatches());
+    this.requests = createQueue(builder.batchPolicy);
+    this.batchController = new AdaptiveBatchController(builder.batchPolicy);
     this.batchRequestInitializer =
         new BatchRequestInitializer(builder.credential, builder.batchPolicy);
   }
 
+  /** Creates a queue with a lane for each {@link Priority}, in order of priority. */
+  private static BatchRequestQueue<AsyncRequest<?>> createQueue(BatchPolicy policy) {
+    Priority[] priorities = Priority.values();
+    int[] capacities = new int[priorities.length];
+    int[] weights = new int[priorities.length];
+    for (Priority priority : priorities) {
+      capacities[priority.ordinal()] = policy.getPriorityQueueLength(priority);
+      weights[priority.ordinal()] = policy.getPriorityWeight(priority);
+    }
+    return new BatchRequestQueue<>(capacities, weights);
+  }
+
   /**
    * Adds an request to batch request. If current batch size is greater than or equal to {@link
-   * BatchPolicy#getMaxBatchSize()}, current batched requests will be automatically flushed.
+   * BatchPolicy#getMaxBatchSize()}, current batched requests will be automatically flushed. If
+   * {@link BatchPolicy#isAdaptive()} is enabled, the adjusted batch size is used instead.
    * Operation might block if {@link BatchRequestService} can not accept more request immediately.
    *
+   * <p>The request is queued in the lane of its {@link AsyncRequest#getPriority()}. Batches are
+   * filled from all lanes holding requests in proportion to {@link BatchPolicy#getPriorityWeight},
+   * so requests of a lane are not delayed by a backlog in another lane.
+   *
    * @param request to be batched
    * @throws InterruptedException
    */
   public <T> void add(AsyncRequest<T> request) throws InterruptedException {
     checkNotNull(request, "can not batch null request");
     checkState(isRunning(), "can not batch elements if service is not running.");
-    requests.put(request);
+    requests.put(request, request.getPriority().ordinal());
     boolean flushed = flushIfRequired();
     if (!flushed && needToScheduleFlush.get()) {
       scheduleAutoFlush();
@@ -132,19 +168,28 @@ public class BatchRequestService extends AbstractIdleService {
   }
 
   private boolean flushIfRequired() throws InterruptedException {
-    if (getCurrentBatchSize() < flushPolicy.getMaxBatchSize()) {
+    int batchSize = batchController.getBatchSize();
+    if (getCurrentBatchSize() < batchSize) {
       return false;
     }
-    synchronized (requests) {
-      if (getCurrentBatchSize() < flushPolicy.getMaxBatchSize()) {
-        return false;
-      }
+    List<AsyncRequest<?>> snapshotRequests = requests.drain(batchSize, batchSize);
+    if (snapshotRequests.isEmpty()) {
+      // Another thread claimed this batch.
+      return false;
+    }
+    if (!claimForExecution(snapshotRequests).isEmpty()) {
       logger.info("flushing batched requests as max size reached");
-      flush();
+      executeSnapshot(snapshotRequests);
     }
     return true;
   }
 
+  /** Removes requests cancelled by {@link AsyncRequest#cancelIfQueued()} while queued. */
+  private static List<AsyncRequest<?>> claimForExecution(List<AsyncRequest<?>> snapshotRequests) {
+    snapshotRequests.removeIf(r -> !r.claimForExecution());
+    return snapshotRequests;
+  }
+
   /**
    * Returns number of elements enqueued for batched execution.
    *
@@ -166,21 +211,24 @@ public class BatchRequestService extends AbstractIdleService {
 
   private ListenableFuture<Integer> flush(boolean isShutdown) throws InterruptedException {
     checkState(isShutdown || isRunning(), "service not running to flush batched requests.");
-    SnapshotRunnable snapshot;
-    synchronized (requests) {
-      if (requests.isEmpty()) {
-        SettableFuture<Integer> result = SettableFuture.create();
-        result.set(0);
-        return result;
-      }
-      final List<AsyncRequest<?>> snapshotRequests = new ArrayList<>();
-      requests.drainTo(snapshotRequests, flushPolicy.getMaxBatchSize());
-      snapshot = new SnapshotRunnable(snapshotRequests, backOffFactory.createBackOffInstance());
-      lastFlush.set(currentTimeProvider.currentTimeMillis());
-      needToScheduleFlush.set(true);
-    }
+    List<AsyncRequest<?>> snapshotRequests =
+        claimForExecution(requests.drain(1, batchController.getBatchSize()));
+    if (snapshotRequests.isEmpty()) {
+      SettableFuture<Integer> result = SettableFuture.create();
+      result.set(0);
+      return result;
+    }
+    return executeSnapshot(snapshotRequests);
+  }
+
+  private ListenableFuture<Integer> executeSnapshot(List<AsyncRequest<?>> snapshotRequests)
+      throws InterruptedException {
+    SnapshotRunnable snapshot =
+        new SnapshotRunnable(snapshotRequests, backOffFactory.createBackOffInstance());
+    lastFlush.set(currentTimeProvider.currentTimeMillis());
+    needToScheduleFlush.set(true);
     try {
-      batchingSemaphore.acquire();
+      batchController.acquireBatchPermit();
       batchExecutor.execute(snapshot);
     } catch (RejectedExecutionException e) {
       // Mark current set of Futures in batch as rejected.
@@ -234,14 +282,19 @@ public class BatchRequestService extends AbstractIdleService {
       try {
         List<AsyncRequest<?>> pendingTasks = new ArrayList<>(snapshotRequests);
         do {
+          long start = currentTimeProvider.currentTimeMillis();
           try {
             execute(pendingTasks);
           } catch (IOException e) {
             // may be retryable
             pendingTasks.forEach(t -> onFailure(t, e));
           } finally {
+            int attempted = pendingTasks.size();
+            long latencyMillis = currentTimeProvider.currentTimeMillis() - start;
+            batchStats.recordLatency("batchExecute", latencyMillis, TimeUnit.MILLISECONDS);
             // back off
             pendingTasks = filterActiveTasks(pendingTasks);
+            batchController.onBatchExecuted(attempted, pendingTasks.size(), latencyMillis);
             if (pendingTasks.size() > 0) {
               boolean succeeded = backOff(pendingTasks);
               if (!succeeded) {
@@ -253,7 +306,7 @@ public class BatchRequestService extends AbstractIdleService {
         result.set(
             (int) snapshotRequests.stream().filter(t -> t.getStatus() != Status.FAILED).count());
       } finally {
-        batchingSemaphore.release();
+        batchController.releaseBatchPermit();
       }
     }
 
@@ -313,7 +366,7 @@ public class BatchRequestService extends AbstractIdleService {
       logger.log(Level.WARNING, "snapshot rejected", rejectedException);
       snapshotRequests.forEach(k -> onFailure(k, rejectedException));
       result.setException(rejectedException);
-      batchingSemaphore.release();
+      batchController.releaseBatchPermit();
     }
 
     /** Helper method makes the onFailure callback without throwing IOException */
@@ -342,7 +395,16 @@ public class BatchRequestService extends AbstractIdleService {
   }
 
   @Override
-  protected void startUp() throws Exception {}
+  protected void startUp() throws Exception {
+    gauges.put("queueDepth", requests::size);
+    for (Priority priority : Priority.values()) {
+      gauges.put(
+          "queueDepth." + priority.name().toLowerCase(), () -> requests.size(priority.ordinal()));
+    }
+    gauges.put("batchSize", batchController::getBatchSize);
+    gauges.put("activeBatchesLimit", batchController::getActiveBatchesLimit);
+    gauges.forEach(batchStats::registerGauge);
+  }
 
   @Override
   protected void shutDown() throws Exception {
@@ -354,11 +416,14 @@ public class BatchRequestService extends AbstractIdleService {
       flush(true);
     } else {
       // cancel batched requests if flushOnShutdown is false.
-      requests.stream().forEach(k -> k.cancel());
+      requests.drainAll().forEach(k -> k.cancel());
     }
     // TODO(tvartak) Use MoreExecutors.shutdownAndAwaitTermination for shutdown
     shutdownExecutor(batchExecutor);
     shutdownExecutor(scheduledExecutor);
+    // gauges reference this instance, so they must not outlive it
+    gauges.forEach(batchStats::unregisterGauge);
+    gauges.clear();
   }
 
   private synchronized void shutdownExecutor(ExecutorService executor) {
@@ -410,8 +475,7 @@ public class BatchRequestService extends AbstractIdleService {
     /** Gets an instance of {@link ExecutorService} */
     @Override
     public ExecutorService getExecutor() {
-      return Executors.newCachedThreadPool(
-          new ThreadFactoryBuilder().setDaemon(false).setNameFormat("batching").build());
+      return ConnectorExecutors.newCachedExecutor("batching", false);
     }
 
     /** Gets an instance of {@link ScheduledExecutorService}. */
@@ -506,6 +570,7 @@ public class BatchRequestService extends AbstractIdleService {
     private TimeProvider timeProvider = new SystemTimeProvider();
     private BatchRequestHelper batchRequestHelper;
     private GoogleCredential credential;
+    private String name;
 
     /**
      * Creates Builder to construct {@link BatchRequestService} for batching requests for {@link
@@ -570,6 +635,17 @@ public class BatchRequestService extends AbstractIdleService {
       return this;
     }
 
+    /**
+     * Sets name distinguishing statistics of this instance, recorded under the {@code
+     * BatchRequestService.<name>} component. Defaults to a sequence number.
+     *
+     * @param name name of the instance, for example the API it batches requests for
+     */
+    public Builder setName(String name) {
+      this.name = name;
+      return this;
+    }
+
     /**
      * Sets credentials to be used for executing {@link BatchRequest}
      *
@@ -591,6 +667,7 @@ public class BatchRequestService extends AbstractIdleService {
       checkNotNull(timeProvider, "timeProvider can not be null");
       checkNotNull(batchRequestHelper, "batchRequestHelper can not be null");
       checkNotNull(credential, "credential can not be null");
+      checkArgument(name == null || !name.isEmpty(), "name can not be empty");
       return new BatchRequestService(this);
     }
   }
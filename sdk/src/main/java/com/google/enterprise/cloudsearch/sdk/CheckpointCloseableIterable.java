@@ -42,4 +42,21 @@ public interface CheckpointCloseableIterable<T> extends CloseableIterable<T> {
    *     objects available for traversal.
    */
   public boolean hasMore();
+
+  /**
+   * Get checkpoint value to resume traversal after the objects returned by the iterator so far.
+   * Framework may call this method while iterating, between calls to {@link
+   * java.util.Iterator#next}, and saves the value only after all objects returned before the call
+   * were processed. This lets an interrupted traversal resume close to where it stopped instead of
+   * from the start of current set of items.
+   *
+   * <p>The default implementation returns {@code null}, meaning intermediate checkpoints are not
+   * supported and only {@link #getCheckpoint} is saved.
+   *
+   * @return checkpoint value to save, or {@code null} if not available
+   * @throws RuntimeException if computation of checkpoint value fails.
+   */
+  public default byte[] getIntermediateCheckpoint() {
+    return null;
+  }
 }
@@ -35,11 +35,13 @@ public class CheckpointCloseableIterableImpl<T> implements CheckpointCloseableIt
   private final CloseableIterable<T> delegate;
   private final Supplier<byte[]> checkpoint;
   private final Supplier<Boolean> hasMore;
+  private final Supplier<byte[]> intermediateCheckpoint;
 
   private CheckpointCloseableIterableImpl(Builder<T> builder) {
     this.delegate = checkNotNull(builder.delegate);
     this.checkpoint = checkNotNull(builder.checkpoint);
     this.hasMore = checkNotNull(builder.hasMore);
+    this.intermediateCheckpoint = checkNotNull(builder.intermediateCheckpoint);
   }
 
   @Override
@@ -62,11 +64,17 @@ public class CheckpointCloseableIterableImpl<T> implements CheckpointCloseableIt
     return hasMore.get();
   }
 
+  @Override
+  public byte[] getIntermediateCheckpoint() {
+    return intermediateCheckpoint.get();
+  }
+
   /** Builder object for {@link CheckpointCloseableIterableImpl} */
   public static class Builder<T> {
     private final CloseableIterable<T> delegate;
     private Supplier<byte[]> checkpoint = () -> null;
     private Supplier<Boolean> hasMore = () -> false;
+    private Supplier<byte[]> intermediateCheckpoint = () -> null;
 
     /**
      * Constructs a builder that clones the given {@code CheckpointCloseableIterable}. This
@@ -75,13 +83,14 @@ public class CheckpointCloseableIterableImpl<T> implements CheckpointCloseableIt
      * more items flag.
      *
      * <p>Changes to {@code delegate} are reflected in the constructed {@code
-     * CheckpointCloseableIterable} by default, unless the {@link #setCheckpoint} or {@link
-     * #setHasMore} methods are called on this builder.
+     * CheckpointCloseableIterable} by default, unless the {@link #setCheckpoint}, {@link
+     * #setHasMore} or {@link #setIntermediateCheckpoint} methods are called on this builder.
      */
     public Builder(CheckpointCloseableIterable<T> delegate) {
       this.delegate = delegate;
       this.checkpoint = () -> delegate.getCheckpoint();
       this.hasMore = () -> delegate.hasMore();
+      this.intermediateCheckpoint = () -> delegate.getIntermediateCheckpoint();
     }
 
     /**
@@ -149,6 +158,18 @@ public class CheckpointCloseableIterableImpl<T> implements CheckpointCloseableIt
       return this;
     }
 
+    /**
+     * Sets {@link Supplier} for checkpoint to resume traversal after the items returned by the
+     * iterator so far. {@link Supplier#get} may be invoked while iterating, between calls to
+     * {@link Iterator#next}, and may return {@code null} if no checkpoint is available.
+     *
+     * @param intermediateCheckpoint to be committed after processing of items returned so far.
+     */
+    public Builder<T> setIntermediateCheckpoint(Supplier<byte[]> intermediateCheckpoint) {
+      this.intermediateCheckpoint = intermediateCheckpoint;
+      return this;
+    }
+
     /** Builds an instance of {@link CheckpointCloseableIterableImpl} */
     public CheckpointCloseableIterableImpl<T> build() {
       return new CheckpointCloseableIterableImpl<T>(this);
@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates {@link ExecutorService} instances running blocking repository and API work, on platform
+ * threads or on virtual threads depending on the configured execution mode.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@code executor.mode} - {@code platform} (default) or {@code virtual}. In {@code virtual}
+ *       mode, each task runs on a new virtual thread, and executors limited to a number of threads
+ *       limit the number of concurrently running tasks with a {@link Semaphore} instead. Virtual
+ *       threads require Java 21 or later; on older runtimes {@code platform} mode is used and a
+ *       warning is logged.
+ * </ul>
+ *
+ * <p>Virtual threads are always daemon threads. Connectors keeping the process alive rely on the
+ * non-daemon scheduler threads of {@link ConnectorScheduler}.
+ */
+public final class ConnectorExecutors {
+  private static final Logger logger = Logger.getLogger(ConnectorExecutors.class.getName());
+
+  /** Configuration key selecting the {@link Mode}. */
+  public static final String CONFIG_EXECUTOR_MODE = "executor.mode";
+
+  /** Threads running blocking work. */
+  public enum Mode {
+    /** Threads pooled by the executor. */
+    PLATFORM,
+    /** A new virtual thread per task. */
+    VIRTUAL
+  }
+
+  private static final VirtualThreads VIRTUAL_THREADS = VirtualThreads.load();
+
+  private ConnectorExecutors() {}
+
+  /** Returns true if the running JVM supports virtual threads. */
+  public static boolean isVirtualThreadSupported() {
+    return VIRTUAL_THREADS != null;
+  }
+
+  /**
+   * Returns the execution mode selected by configuration, {@link Mode#PLATFORM} if configuration
+   * is not initialized or virtual threads are not supported.
+   */
+  public static Mode getMode() {
+    if (!Configuration.isInitialized()) {
+      return Mode.PLATFORM;
+    }
+    Mode mode =
+        Configuration.getValue(
+                CONFIG_EXECUTOR_MODE,
+                Mode.PLATFORM,
+                value -> {
+                  try {
+                    return Mode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+                  } catch (IllegalArgumentException e) {
+                    throw new InvalidConfigurationException(
+                        "Invalid " + CONFIG_EXECUTOR_MODE + " " + value
+                            + ", expected platform or virtual", e);
+                  }
+                })
+            .get();
+    if (mode == Mode.VIRTUAL && !isVirtualThreadSupported()) {
+      logger.log(
+          Level.WARNING,
+          "{0}=virtual requires Java 21 or later, using platform threads on Java {1}",
+          new Object[] {CONFIG_EXECUTOR_MODE, System.getProperty("java.version")});
+      return Mode.PLATFORM;
+    }
+    return mode;
+  }
+
+  /**
+   * Creates an executor running any number of tasks concurrently, a cached thread pool in {@link
+   * Mode#PLATFORM} mode.
+   *
+   * @param nameFormat thread name format, see {@link ThreadFactoryBuilder#setNameFormat}
+   * @param daemon whether platform threads are daemon threads
+   * @return executor for the configured mode
+   */
+  public static ExecutorService newCachedExecutor(String nameFormat, boolean daemon) {
+    if (getMode() == Mode.VIRTUAL) {
+      return VIRTUAL_THREADS.newThreadPerTaskExecutor(nameFormat);
+    }
+    return Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(daemon).setNameFormat(nameFormat).build());
+  }
+
+  /**
+   * Creates an executor running at most {@code maxConcurrency} tasks concurrently, a fixed thread
+   * pool in {@link Mode#PLATFORM} mode.
+   *
+   * @param nameFormat thread name format, see {@link ThreadFactoryBuilder#setNameFormat}
+   * @param daemon whether platform threads are daemon threads
+   * @param maxConcurrency maximum number of concurrently running tasks
+   * @return executor for the configured mode
+   */
+  public static ExecutorService newBoundedExecutor(
+      String nameFormat, boolean daemon, int maxConcurrency) {
+    checkArgument(maxConcurrency > 0, "maxConcurrency should be greater than 0");
+    if (getMode() == Mode.VIRTUAL) {
+      return boundedBy(VIRTUAL_THREADS.newThreadPerTaskExecutor(nameFormat), maxConcurrency);
+    }
+    return Executors.newFixedThreadPool(
+        maxConcurrency,
+        new ThreadFactoryBuilder().setDaemon(daemon).setNameFormat(nameFormat).build());
+  }
+
+  /**
+   * Limits the number of tasks running concurrently on {@code delegate}. Tasks over the limit wait
+   * for a permit on their own thread, so callers are never blocked.
+   */
+  @VisibleForTesting
+  static ExecutorService boundedBy(ExecutorService delegate, int maxConcurrency) {
+    return new SemaphoreBoundedExecutorService(delegate, maxConcurrency);
+  }
+
+  private static final class SemaphoreBoundedExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    SemaphoreBoundedExecutorService(ExecutorService delegate, int maxConcurrency) {
+      this.delegate = checkNotNull(delegate);
+      this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      checkNotNull(command);
+      delegate.execute(
+          () -> {
+            try {
+              permits.acquire();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+            try {
+              command.run();
+            } finally {
+              permits.release();
+            }
+          });
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+
+  /** Virtual thread API of Java 21, looked up reflectively since the SDK targets Java 8. */
+  private static final class VirtualThreads {
+    private final Method ofVirtual;
+    private final Method factory;
+    private final Method newThreadPerTaskExecutor;
+
+    private VirtualThreads(Method ofVirtual, Method factory, Method newThreadPerTaskExecutor) {
+      this.ofVirtual = ofVirtual;
+      this.factory = factory;
+      this.newThreadPerTaskExecutor = newThreadPerTaskExecutor;
+    }
+
+    static VirtualThreads load() {
+      try {
+        Method ofVirtual = Thread.class.getMethod("ofVirtual");
+        Method factory = ofVirtual.getReturnType().getMethod("factory");
+        Method newThreadPerTaskExecutor =
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return new VirtualThreads(ofVirtual, factory, newThreadPerTaskExecutor);
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+
+    ExecutorService newThreadPerTaskExecutor(String nameFormat) {
+      try {
+        ThreadFactory virtualFactory = (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+        ThreadFactory named =
+            new ThreadFactoryBuilder()
+                .setThreadFactory(virtualFactory)
+                .setNameFormat(nameFormat)
+                .build();
+        return (ExecutorService) newThreadPerTaskExecutor.invoke(null, named);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        throw new IllegalStateException("Failed to create virtual thread executor", e);
+      }
+    }
+  }
+}
@@ -23,6 +23,9 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats.Event;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -70,6 +73,9 @@ public class ConnectorScheduler<T extends ConnectorContext> {
 
   private BackgroundRunnable incrementalTraversalRunnable;
 
+  /** Exporters listed by {@link StatsExporter#CONFIG_STATS_EXPORTERS}, started with traversal. */
+  private final List<StatsExporter> statsExporters = new ArrayList<>();
+
   private final AtomicBoolean isRunning;
 
   /** Pointer to shutdown method to be executed when traversal is complete. */
@@ -111,9 +117,7 @@ public class ConnectorScheduler<T extends ConnectorContext> {
     scheduleExecutor =
         Executors.newSingleThreadScheduledExecutor(
             new ThreadFactoryBuilder().setDaemon(false).setNameFormat("schedule").build());
-    backgroundExecutor =
-        Executors.newCachedThreadPool(
-            new ThreadFactoryBuilder().setDaemon(false).setNameFormat("background").build());
+    backgroundExecutor = ConnectorExecutors.newCachedExecutor("background", false);
     ConnectorSchedule traversalSchedule = new ConnectorSchedule();
 
     if (traversalSchedule.isRunOnce()) {
@@ -129,6 +133,25 @@ public class ConnectorScheduler<T extends ConnectorContext> {
             new OneAtATimeRunnable(
                 () -> logger.info(StatsManager.getInstance().printStats()), "StatsLog"));
     scheduleExecutor.scheduleAtFixedRate(loggingStatsRunnable, 1, 5, TimeUnit.MINUTES);
+    startStatsExporters();
+  }
+
+  private void startStatsExporters() {
+    for (StatsExporter exporter : StatsExporter.fromConfiguration()) {
+      try {
+        StatsManager.getInstance().startExporter(exporter);
+      } catch (IOException e) {
+        // exporters started so far would keep their ports and MBeans after a failed start
+        stopStatsExporters();
+        throw new StartupException("Failed to start stats exporter " + exporter, e);
+      }
+      statsExporters.add(exporter);
+    }
+  }
+
+  private void stopStatsExporters() {
+    statsExporters.forEach(StatsManager.getInstance()::stopExporter);
+    statsExporters.clear();
   }
 
   private void startToRunContinuously(ConnectorSchedule traversalSchedule) {
@@ -189,6 +212,7 @@ public class ConnectorScheduler<T extends ConnectorContext> {
     shutdownExecutor(backgroundExecutor);
     traversalRunnable = null;
     isRunning.set(false);
+    stopStatsExporters();
     logger.info(StatsManager.getInstance().printStats());
   }
 
@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.BatchRequestService.TimeProvider;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link StatsExporter} periodically appending statistics to a local file in InfluxDB line
+ * protocol format, one line per counter, gauge and latency histogram, for example:
+ *
+ * <pre>
+ *   cloudsearch_operations,component=Traverser,operation=item,outcome=success value=5i 15094944...
+ *   cloudsearch_latency,component=Traverser,operation=item count=5i,p50_us=1200i,... 15094944...
+ * </pre>
+ *
+ * <p>Configuration parameters:
+ *
+ * <ul>
+ *   <li>{@code stats.file.path} - Required. File to append statistics to.
+ *   <li>{@code stats.file.intervalSeconds} - Optional. Interval between exports. Defaults to 60.
+ * </ul>
+ */
+public class FileStatsExporter implements StatsExporter {
+  private static final Logger logger = Logger.getLogger(FileStatsExporter.class.getName());
+
+  public static final String CONFIG_PATH = "stats.file.path";
+  public static final String CONFIG_INTERVAL_SECONDS = "stats.file.intervalSeconds";
+  public static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] PERCENTILE_FIELDS = {"p50_us", "p90_us", "p99_us", "p999_us"};
+
+  private final Path path;
+  private final long intervalSeconds;
+  private final TimeProvider timeProvider;
+  private final LineVisitor visitor = new LineVisitor();
+  private StatsManager statsManager;
+  private ScheduledExecutorService executor;
+
+  /**
+   * Creates an exporter.
+   *
+   * @param path file to append statistics to
+   * @param intervalSeconds interval between exports
+   */
+  public FileStatsExporter(Path path, long intervalSeconds) {
+    this(path, intervalSeconds, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  FileStatsExporter(Path path, long intervalSeconds, TimeProvider timeProvider) {
+    this.path = checkNotNull(path, "path can not be null");
+    checkArgument(intervalSeconds > 0, "intervalSeconds should be greater than 0");
+    this.intervalSeconds = intervalSeconds;
+    this.timeProvider = checkNotNull(timeProvider);
+  }
+
+  /** Creates an exporter using configuration parameters described in class documentation. */
+  public static FileStatsExporter fromConfiguration() {
+    String path = Configuration.getString(CONFIG_PATH, "").get();
+    Configuration.checkConfiguration(!Strings.isNullOrEmpty(path), "%s is required", CONFIG_PATH);
+    int interval =
+        Configuration.getInteger(CONFIG_INTERVAL_SECONDS, DEFAULT_INTERVAL_SECONDS).get();
+    Configuration.checkConfiguration(
+        interval > 0, "%s should be greater than 0", CONFIG_INTERVAL_SECONDS);
+    return new FileStatsExporter(Paths.get(path), interval);
+  }
+
+  @Override
+  public synchronized void start(StatsManager statsManager) {
+    checkState(executor == null, "exporter already started");
+    this.statsManager = checkNotNull(statsManager);
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stats-file").build());
+    executor.scheduleAtFixedRate(
+        this::exportQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdownNow();
+    executor = null;
+    exportQuietly();
+  }
+
+  private void exportQuietly() {
+    try {
+      export();
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to export stats to " + path, e);
+    }
+  }
+
+  /** Appends current statistics to the file. */
+  @VisibleForTesting
+  synchronized void export() throws IOException {
+    checkState(statsManager != null, "exporter not started");
+    visitor.reset(timeProvider.currentTimeMillis());
+    statsManager.visit(visitor);
+    if (visitor.lines.length() == 0) {
+      return;
+    }
+    Files.write(
+        path,
+        visitor.lines.toString().getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+
+  /** Formats statistics into a reusable buffer. */
+  private static class LineVisitor implements StatsVisitor {
+    final StringBuilder lines = new StringBuilder();
+    final long[] values = new long[PERCENTILES.length];
+    long timestampNanos;
+
+    void reset(long timestampMillis) {
+      lines.setLength(0);
+      timestampNanos = TimeUnit.MILLISECONDS.toNanos(timestampMillis);
+    }
+
+    @Override
+    public void visitRegistered(String component, String operation, long count) {
+      appendOperation(component, operation, "registered", count);
+    }
+
+    @Override
+    public void visitSuccess(String component, String operation, long count) {
+      appendOperation(component, operation, "success", count);
+    }
+
+    @Override
+    public void visitFailure(String component, String operation, long count) {
+      appendOperation(component, operation, "failure", count);
+    }
+
+    private void appendOperation(String component, String operation, String outcome, long count) {
+      lines.append("cloudsearch_operations,component=");
+      appendEscaped(component).append(",operation=");
+      appendEscaped(operation).append(",outcome=").append(outcome);
+      appendValue(count);
+    }
+
+    @Override
+    public void visitResult(String component, String operation, String result, long count) {
+      lines.append("cloudsearch_operation_results,component=");
+      appendEscaped(component).append(",operation=");
+      appendEscaped(operation).append(",result=");
+      appendEscaped(result);
+      appendValue(count);
+    }
+
+    @Override
+    public void visitGauge(String component, String gauge, long value) {
+      lines.append("cloudsearch_gauge,component=");
+      appendEscaped(component).append(",gauge=");
+      appendEscaped(gauge);
+      appendValue(value);
+    }
+
+    @Override
+    public void visitLatency(String component, String operation, LatencyHistogram histogram) {
+      long count = histogram.getValuesAtPercentiles(PERCENTILES, values);
+      lines.append("cloudsearch_latency,component=");
+      appendEscaped(component).append(",operation=");
+      appendEscaped(operation);
+      lines.append(" count=").append(count).append('i');
+      lines.append(",sum_us=").append(histogram.getSum()).append('i');
+      lines.append(",max_us=").append(histogram.getMax()).append('i');
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        lines.append(',').append(PERCENTILE_FIELDS[i]).append('=').append(values[i]).append('i');
+      }
+      lines.append(' ').append(timestampNanos).append('\n');
+    }
+
+    private void appendValue(long value) {
+      lines.append(" value=").append(value).append("i ").append(timestampNanos).append('\n');
+    }
+
+    private StringBuilder appendEscaped(String value) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == ',' || c == ' ' || c == '=' || c == '\\') {
+          lines.append('\\');
+        } else if (c == '\n') {
+          lines.append("\\n");
+          continue;
+        }
+        lines.append(c);
+      }
+      return lines;
+    }
+  }
+}
@@ -91,6 +91,11 @@ public final class GoogleProxy {
     return proxy;
   }
 
+  /** Gets Base64 encoded user name and password for proxy authentication, if any. */
+  Optional<String> getAuthToken() {
+    return authToken;
+  }
+
   /** Gets an {@link HttpTransport} that contains the proxy configuration. */
   public HttpTransport getHttpTransport() throws IOException, GeneralSecurityException {
     return new NetHttpTransport.Builder()
@@ -0,0 +1,419 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.Base64;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * Pool of persistent HTTP connections shared by API services, see {@link
+ * BaseApiService.AbstractBuilder#setTransportPool}.
+ *
+ * <p>Services using the same pool reuse each other's idle connections, within limits on the total
+ * number of connections and the number of connections to a single host. The Java 8 client stack
+ * only speaks HTTP/1.1, so each connection carries one request at a time.
+ *
+ * <p>Credentials of an HTTP proxy are sent in response to its authentication challenges, including
+ * challenges to the {@code CONNECT} requests tunneling HTTPS connections.
+ *
+ * <p>Pool state is reported as {@code leased}, {@code available}, {@code pending} and {@code max}
+ * gauges of the {@value #STATS_COMPONENT} statistics component until the pool is closed.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@value #CONFIG_ENABLED} - Whether services created from configuration share a pool.
+ *       Defaults to false.
+ *   <li>{@value #CONFIG_MAX_CONNECTIONS} - Maximum number of connections. Defaults to 100.
+ *   <li>{@value #CONFIG_MAX_CONNECTIONS_PER_ROUTE} - Maximum number of connections to a single
+ *       host. Defaults to 20.
+ *   <li>{@value #CONFIG_KEEP_ALIVE_SECONDS} - Maximum time an idle connection is kept for reuse,
+ *       lower if the server says so. Defaults to 60.
+ *   <li>{@value #CONFIG_IDLE_TIMEOUT_SECONDS} - Time after which idle connections are closed by a
+ *       background thread. Defaults to 30.
+ *   <li>{@value #CONFIG_TCP_NO_DELAY} - Whether to disable Nagle's algorithm. Defaults to true.
+ * </ul>
+ */
+public class HttpTransportPool implements Closeable {
+  private static final Logger logger = Logger.getLogger(HttpTransportPool.class.getName());
+
+  public static final String CONFIG_ENABLED = "transport.pool.enabled";
+  public static final String CONFIG_MAX_CONNECTIONS = "transport.pool.maxConnections";
+  public static final String CONFIG_MAX_CONNECTIONS_PER_ROUTE =
+      "transport.pool.maxConnectionsPerRoute";
+  public static final String CONFIG_KEEP_ALIVE_SECONDS = "transport.pool.keepAliveSeconds";
+  public static final String CONFIG_IDLE_TIMEOUT_SECONDS = "transport.pool.idleTimeoutSeconds";
+  public static final String CONFIG_TCP_NO_DELAY = "transport.pool.tcpNoDelay";
+  public static final String STATS_COMPONENT = "HttpTransportPool";
+
+  static final int DEFAULT_MAX_CONNECTIONS = 100;
+  static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+  static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+
+  private static HttpTransportPool shared;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final IdleConnectionEvictor evictor;
+  private final long keepAliveMillis;
+  private final Map<GoogleProxy, HttpTransport> transports = new ConcurrentHashMap<>();
+  private final OperationStats stats = StatsManager.getComponent(STATS_COMPONENT);
+  private final LongSupplier leased = () -> getTotalStats().getLeased();
+  private final LongSupplier available = () -> getTotalStats().getAvailable();
+  private final LongSupplier pending = () -> getTotalStats().getPending();
+  private final LongSupplier max = () -> getTotalStats().getMax();
+
+  private HttpTransportPool(Builder builder) throws GeneralSecurityException, IOException {
+    SSLContext sslContext =
+        SSLContexts.custom()
+            .loadTrustMaterial(GoogleUtils.getCertificateTrustStore(), null)
+            .build();
+    Registry<ConnectionSocketFactory> socketFactories =
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", new SSLConnectionSocketFactory(sslContext))
+            .build();
+    connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+    connectionManager.setMaxTotal(builder.maxConnections);
+    connectionManager.setDefaultMaxPerRoute(builder.maxConnectionsPerRoute);
+    connectionManager.setDefaultSocketConfig(
+        SocketConfig.custom().setTcpNoDelay(builder.tcpNoDelay).setSoKeepAlive(true).build());
+    keepAliveMillis = TimeUnit.SECONDS.toMillis(builder.keepAliveSeconds);
+    evictor =
+        new IdleConnectionEvictor(connectionManager, builder.idleTimeoutSeconds, TimeUnit.SECONDS);
+    evictor.start();
+    stats.registerGauge("leased", leased);
+    stats.registerGauge("available", available);
+    stats.registerGauge("pending", pending);
+    stats.registerGauge("max", max);
+  }
+
+  /**
+   * Gets the pool shared by services created from configuration, creating it with configuration
+   * parameters described in class documentation on first use.
+   *
+   * @return shared pool, or null if {@value #CONFIG_ENABLED} is false
+   */
+  public static synchronized HttpTransportPool fromConfiguration() {
+    checkState(Configuration.isInitialized(), "configuration not initialized");
+    if (!Configuration.getBoolean(CONFIG_ENABLED, false).get()) {
+      return null;
+    }
+    if (shared == null) {
+      int maxConnections =
+          Configuration.getInteger(CONFIG_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS).get();
+      int maxConnectionsPerRoute =
+          Configuration.getInteger(
+                  CONFIG_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE)
+              .get();
+      int keepAliveSeconds =
+          Configuration.getInteger(CONFIG_KEEP_ALIVE_SECONDS, DEFAULT_KEEP_ALIVE_SECONDS).get();
+      int idleTimeoutSeconds =
+          Configuration.getInteger(CONFIG_IDLE_TIMEOUT_SECONDS, DEFAULT_IDLE_TIMEOUT_SECONDS).get();
+      Configuration.checkConfiguration(
+          maxConnections > 0, "%s should be greater than 0", CONFIG_MAX_CONNECTIONS);
+      Configuration.checkConfiguration(
+          maxConnectionsPerRoute > 0,
+          "%s should be greater than 0",
+          CONFIG_MAX_CONNECTIONS_PER_ROUTE);
+      Configuration.checkConfiguration(
+          keepAliveSeconds > 0, "%s should be greater than 0", CONFIG_KEEP_ALIVE_SECONDS);
+      Configuration.checkConfiguration(
+          idleTimeoutSeconds > 0, "%s should be greater than 0", CONFIG_IDLE_TIMEOUT_SECONDS);
+      try {
+        shared =
+            new Builder()
+                .setMaxConnections(maxConnections)
+                .setMaxConnectionsPerRoute(maxConnectionsPerRoute)
+                .setKeepAliveSeconds(keepAliveSeconds)
+                .setIdleTimeoutSeconds(idleTimeoutSeconds)
+                .setTcpNoDelay(Configuration.getBoolean(CONFIG_TCP_NO_DELAY, true).get())
+                .build();
+      } catch (GeneralSecurityException | IOException e) {
+        throw new IllegalStateException("Unable to create HTTP transport pool", e);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Closes the pool shared by services created from configuration, if any, so that it is created
+   * again on next use. Called when the connector application shuts down.
+   */
+  public static synchronized void closeShared() {
+    if (shared != null) {
+      shared.close();
+      shared = null;
+    }
+  }
+
+  /**
+   * Gets a transport sending requests over connections from this pool, through the proxy of
+   * {@code googleProxy}. SOCKS proxies are not supported by the pool, for those a transport with
+   * its own connections is returned.
+   *
+   * @param googleProxy proxy to send requests through
+   * @return transport using this pool
+   */
+  public HttpTransport getHttpTransport(GoogleProxy googleProxy)
+      throws GeneralSecurityException, IOException {
+    Proxy proxy = checkNotNull(googleProxy, "proxy can not be null").getProxy();
+    if (proxy.type() == Proxy.Type.SOCKS) {
+      logger.log(Level.WARNING, "Connection pool does not support SOCKS proxy {0}", proxy);
+      return googleProxy.getHttpTransport();
+    }
+    return transports.computeIfAbsent(
+        googleProxy, p -> new ApacheHttpTransport(createClient(p)));
+  }
+
+  private PooledHttpClient createClient(GoogleProxy googleProxy) {
+    Proxy proxy = googleProxy.getProxy();
+    HttpClientBuilder builder =
+        HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setConnectionManagerShared(true)
+            .setKeepAliveStrategy(
+                (response, context) -> {
+                  long duration =
+                      DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                          response, context);
+                  return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+                })
+            // redirects, retries and compression are handled by the Google API client
+            .disableRedirectHandling()
+            .disableAutomaticRetries()
+            .disableContentCompression()
+            .disableCookieManagement();
+    if (proxy.type() == Proxy.Type.HTTP) {
+      InetSocketAddress address = (InetSocketAddress) proxy.address();
+      builder.setProxy(new HttpHost(address.getHostString(), address.getPort()));
+      if (googleProxy.getAuthToken().isPresent()) {
+        // the Proxy-Authorization header set per request is not sent on CONNECT
+        builder.setDefaultCredentialsProvider(
+            getProxyCredentials(address, googleProxy.getAuthToken().get()));
+      }
+    }
+    return new PooledHttpClient(builder.build());
+  }
+
+  private static CredentialsProvider getProxyCredentials(
+      InetSocketAddress address, String authToken) {
+    // encoded by GoogleProxy.Builder with the default charset
+    String userNamePassword = new String(Base64.decodeBase64(authToken));
+    int separator = userNamePassword.indexOf(':');
+    CredentialsProvider credentials = new BasicCredentialsProvider();
+    credentials.setCredentials(
+        new AuthScope(address.getHostString(), address.getPort()),
+        new UsernamePasswordCredentials(
+            userNamePassword.substring(0, separator), userNamePassword.substring(separator + 1)));
+    return credentials;
+  }
+
+  /** Gets number of leased, available and pending connections across all hosts. */
+  public PoolStats getTotalStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  /**
+   * Stops idle connection eviction, closes all connections of the pool and unregisters its
+   * gauges.
+   */
+  @Override
+  public void close() {
+    evictor.shutdown();
+    connectionManager.close();
+    stats.unregisterGauge("leased", leased);
+    stats.unregisterGauge("available", available);
+    stats.unregisterGauge("pending", pending);
+    stats.unregisterGauge("max", max);
+  }
+
+  /**
+   * Adapts a client to the parameters API used by {@link ApacheHttpTransport}, which is not
+   * supported by clients sharing a {@link PoolingHttpClientConnectionManager}. Request timeouts
+   * set by the transport are still applied per request. {@link ApacheHttpTransport#shutdown} leaves
+   * the connections open, since they are owned by the pool.
+   */
+  @SuppressWarnings("deprecation")
+  private static class PooledHttpClient extends CloseableHttpClient {
+    private final CloseableHttpClient delegate;
+    private final org.apache.http.params.HttpParams params =
+        new org.apache.http.params.BasicHttpParams();
+
+    PooledHttpClient(CloseableHttpClient delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(
+        HttpHost target, HttpRequest request, HttpContext context)
+        throws IOException, ClientProtocolException {
+      return delegate.execute(target, request, context);
+    }
+
+    @Override
+    @Deprecated
+    public org.apache.http.params.HttpParams getParams() {
+      return params;
+    }
+
+    @Override
+    @Deprecated
+    public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+      return SharedConnectionManager.INSTANCE;
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+  }
+
+  /**
+   * Connection manager returned to callers of the legacy API of {@link PooledHttpClient}. It owns
+   * no connections: requests for a connection time out, and releasing, closing and shutting down
+   * are ignored. Connections are closed by {@link HttpTransportPool#close}.
+   */
+  @SuppressWarnings("deprecation")
+  private static class SharedConnectionManager
+      implements org.apache.http.conn.ClientConnectionManager {
+    static final SharedConnectionManager INSTANCE = new SharedConnectionManager();
+
+    @Override
+    public org.apache.http.conn.scheme.SchemeRegistry getSchemeRegistry() {
+      return org.apache.http.impl.conn.SchemeRegistryFactory.createDefault();
+    }
+
+    @Override
+    public org.apache.http.conn.ClientConnectionRequest requestConnection(
+        org.apache.http.conn.routing.HttpRoute route, Object state) {
+      return new org.apache.http.conn.ClientConnectionRequest() {
+        @Override
+        public org.apache.http.conn.ManagedClientConnection getConnection(
+            long timeout, TimeUnit timeUnit) throws ConnectionPoolTimeoutException {
+          throw new ConnectionPoolTimeoutException("connections are owned by HttpTransportPool");
+        }
+
+        @Override
+        public void abortRequest() {}
+      };
+    }
+
+    @Override
+    public void releaseConnection(
+        org.apache.http.conn.ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {}
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit timeUnit) {}
+
+    @Override
+    public void closeExpiredConnections() {}
+
+    @Override
+    public void shutdown() {}
+  }
+
+  /** Builder for {@link HttpTransportPool}. */
+  public static class Builder {
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+    private boolean tcpNoDelay = true;
+
+    /** Sets maximum number of connections in the pool. Defaults to 100. */
+    public Builder setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /** Sets maximum number of connections to a single host. Defaults to 20. */
+    public Builder setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+      return this;
+    }
+
+    /** Sets maximum time an idle connection is kept for reuse. Defaults to 60 seconds. */
+    public Builder setKeepAliveSeconds(int keepAliveSeconds) {
+      this.keepAliveSeconds = keepAliveSeconds;
+      return this;
+    }
+
+    /** Sets time after which idle connections are closed. Defaults to 30 seconds. */
+    public Builder setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+      this.idleTimeoutSeconds = idleTimeoutSeconds;
+      return this;
+    }
+
+    /** Sets whether to disable Nagle's algorithm on connections. Defaults to true. */
+    public Builder setTcpNoDelay(boolean tcpNoDelay) {
+      this.tcpNoDelay = tcpNoDelay;
+      return this;
+    }
+
+    /** Builds a {@link HttpTransportPool} and starts evicting its idle connections. */
+    public HttpTransportPool build() throws GeneralSecurityException, IOException {
+      checkArgument(maxConnections > 0, "maxConnections should be greater than 0");
+      checkArgument(maxConnectionsPerRoute > 0, "maxConnectionsPerRoute should be greater than 0");
+      checkArgument(keepAliveSeconds > 0, "keepAliveSeconds should be greater than 0");
+      checkArgument(idleTimeoutSeconds > 0, "idleTimeoutSeconds should be greater than 0");
+      return new HttpTransportPool(this);
+    }
+  }
+}
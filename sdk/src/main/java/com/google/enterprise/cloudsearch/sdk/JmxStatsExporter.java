@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * {@link StatsExporter} registering an MBean per {@link StatsManager} component.
+ *
+ * <p>MBeans are named {@code com.google.enterprise.cloudsearch:type=Stats,component=<name>} and
+ * expose read-only {@code Long} attributes, computed when read:
+ *
+ * <ul>
+ *   <li>{@code registered.<operation>}, {@code success.<operation>}, {@code failure.<operation>}
+ *   <li>{@code result.<operation>.<result>}
+ *   <li>{@code gauge.<gauge>}
+ *   <li>{@code latency.<operation>.count}, and {@code .p50}, {@code .p90}, {@code .p99}, {@code
+ *       .p999}, {@code .max} in microseconds
+ * </ul>
+ */
+public class JmxStatsExporter implements StatsExporter {
+  private static final Logger logger = Logger.getLogger(JmxStatsExporter.class.getName());
+
+  public static final String DOMAIN = "com.google.enterprise.cloudsearch";
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private final MBeanServer mbeanServer;
+  private final ConcurrentMap<String, ObjectName> registered = new ConcurrentHashMap<>();
+
+  /** Creates an exporter registering MBeans with the platform {@link MBeanServer}. */
+  public JmxStatsExporter() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  @VisibleForTesting
+  JmxStatsExporter(MBeanServer mbeanServer) {
+    this.mbeanServer = checkNotNull(mbeanServer);
+  }
+
+  @Override
+  public void start(StatsManager statsManager) {
+    for (String component : StatsManager.getComponentNames()) {
+      componentAdded(component, StatsManager.getComponent(component));
+    }
+  }
+
+  @Override
+  public void componentAdded(String component, OperationStats stats) {
+    ObjectName name = getObjectName(component);
+    if (registered.putIfAbsent(component, name) != null) {
+      return;
+    }
+    try {
+      mbeanServer.registerMBean(new ComponentMBean(component, stats), name);
+    } catch (JMException e) {
+      registered.remove(component);
+      logger.log(Level.WARNING, "Failed to register stats MBean " + name, e);
+    }
+  }
+
+  @Override
+  public void stop() {
+    for (String component : registered.keySet()) {
+      ObjectName name = registered.remove(component);
+      try {
+        mbeanServer.unregisterMBean(name);
+      } catch (JMException e) {
+        logger.log(Level.WARNING, "Failed to unregister stats MBean " + name, e);
+      }
+    }
+  }
+
+  /** Returns name of the MBean for {@code component}. */
+  public static ObjectName getObjectName(String component) {
+    try {
+      return new ObjectName(DOMAIN + ":type=Stats,component=" + ObjectName.quote(component));
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("invalid component name " + component, e);
+    }
+  }
+
+  /** Read-only MBean exposing statistics of a single component. */
+  private static class ComponentMBean implements DynamicMBean {
+    private final String component;
+    private final OperationStats stats;
+
+    ComponentMBean(String component, OperationStats stats) {
+      this.component = component;
+      this.stats = stats;
+    }
+
+    private Map<String, Long> readAttributes() {
+      Map<String, Long> attributes = new TreeMap<>();
+      stats.visit(
+          component,
+          new StatsVisitor() {
+            @Override
+            public void visitRegistered(String component, String operation, long count) {
+              attributes.put("registered." + operation, count);
+            }
+
+            @Override
+            public void visitSuccess(String component, String operation, long count) {
+              attributes.put("success." + operation, count);
+            }
+
+            @Override
+            public void visitFailure(String component, String operation, long count) {
+              attributes.put("failure." + operation, count);
+            }
+
+            @Override
+            public void visitResult(
+                String component, String operation, String result, long count) {
+              attributes.put("result." + operation + "." + result, count);
+            }
+
+            @Override
+            public void visitGauge(String component, String gauge, long value) {
+              attributes.put("gauge." + gauge, value);
+            }
+
+            @Override
+            public void visitLatency(
+                String component, String operation, LatencyHistogram histogram) {
+              long[] values = new long[PERCENTILES.length];
+              String prefix = "latency." + operation + ".";
+              long count = histogram.getValuesAtPercentiles(PERCENTILES, values);
+              attributes.put(prefix + "count", count);
+              for (int i = 0; i < values.length; i++) {
+                attributes.put(prefix + PERCENTILE_NAMES[i], values[i]);
+              }
+              attributes.put(prefix + "max", histogram.getMax());
+            }
+          });
+      return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Long value = readAttributes().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> values = readAttributes();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Long value = values.get(attribute);
+        if (value != null) {
+          list.add(new Attribute(attribute, value));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("read-only attribute " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+        throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      MBeanAttributeInfo[] attributes =
+          readAttributes()
+              .keySet()
+              .stream()
+              .map(
+                  name ->
+                      new MBeanAttributeInfo(
+                          name, Long.class.getName(), name, true, false, false))
+              .toArray(MBeanAttributeInfo[]::new);
+      return new MBeanInfo(
+          ComponentMBean.class.getName(),
+          "Statistics of component " + component,
+          attributes,
+          null,
+          null,
+          null);
+    }
+  }
+}
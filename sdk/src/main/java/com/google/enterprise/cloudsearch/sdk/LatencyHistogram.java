@@ -0,0 +1,287 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latency values with log-linear buckets, in the style of HdrHistogram.
+ *
+ * <p>Values are grouped into buckets covering powers of two, each split into linear sub-buckets,
+ * so that any recorded value is reported within a relative error given by the number of
+ * significant decimal digits. Recording a value does not allocate and only updates atomic
+ * counters. Values larger than the highest trackable value are recorded as that value.
+ *
+ * <p>Use {@link #getSnapshot()} to read the histogram. Snapshots are immutable, can be merged
+ * with {@link #add(Snapshot)}, and {@link Snapshot#since(Snapshot)} gives the values recorded
+ * between two snapshots of the same histogram.
+ */
+public final class LatencyHistogram {
+  /** Default highest trackable value, one hour in microseconds. */
+  public static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toMicros(1);
+  /**
+   * Highest number of significant digits, keeping a histogram of {@link
+   * #DEFAULT_HIGHEST_TRACKABLE_VALUE} below 200KB. Each further digit takes ten times more.
+   */
+  public static final int MAX_SIGNIFICANT_DIGITS = 3;
+
+  private final long highestTrackableValue;
+  private final int subBucketHalfCountMagnitude;
+  private final AtomicLongArray counts;
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Creates a histogram tracking values up to {@link #DEFAULT_HIGHEST_TRACKABLE_VALUE}.
+   *
+   * @param significantDigits number of significant decimal digits kept for recorded values,
+   *     between 1 and {@link #MAX_SIGNIFICANT_DIGITS}
+   */
+  public LatencyHistogram(int significantDigits) {
+    this(significantDigits, DEFAULT_HIGHEST_TRACKABLE_VALUE);
+  }
+
+  /**
+   * Creates a histogram.
+   *
+   * @param significantDigits number of significant decimal digits kept for recorded values,
+   *     between 1 and {@link #MAX_SIGNIFICANT_DIGITS}
+   * @param highestTrackableValue highest value tracked without losing precision
+   */
+  public LatencyHistogram(int significantDigits, long highestTrackableValue) {
+    checkArgument(
+        significantDigits >= 1 && significantDigits <= MAX_SIGNIFICANT_DIGITS,
+        "significantDigits should be between 1 and %s",
+        MAX_SIGNIFICANT_DIGITS);
+    checkArgument(highestTrackableValue >= 2, "highestTrackableValue should be at least 2");
+    long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    int subBucketCountMagnitude =
+        64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1);
+    this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+    this.highestTrackableValue = highestTrackableValue;
+    this.counts = new AtomicLongArray(countsIndex(highestTrackableValue) + 1);
+  }
+
+  /**
+   * Records a single value.
+   *
+   * @param value value to record, negative values are recorded as 0
+   */
+  public void record(long value) {
+    long normalized = Math.min(Math.max(value, 0), highestTrackableValue);
+    counts.incrementAndGet(countsIndex(normalized));
+    sum.add(normalized);
+    max.accumulateAndGet(normalized, Math::max);
+  }
+
+  /**
+   * Adds all values from a snapshot, which may come from a histogram with different precision.
+   *
+   * @param snapshot snapshot to add
+   */
+  public void add(Snapshot snapshot) {
+    checkNotNull(snapshot);
+    for (int i = 0; i < snapshot.counts.length; i++) {
+      if (snapshot.counts[i] > 0) {
+        long value =
+            Math.min(
+                valueFromIndex(i, snapshot.subBucketHalfCountMagnitude), highestTrackableValue);
+        counts.addAndGet(countsIndex(value), snapshot.counts[i]);
+      }
+    }
+    sum.add(snapshot.sum);
+    max.accumulateAndGet(Math.min(snapshot.max, highestTrackableValue), Math::max);
+  }
+
+  /** Returns sum of recorded values. */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /** Returns largest recorded value, 0 if no values were recorded. */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Reads count and percentiles of recorded values without copying the histogram. Values
+   * recorded concurrently may or may not be included.
+   *
+   * @param percentiles percentiles between 0 and 100, in ascending order
+   * @param values receives value at each of {@code percentiles}, see {@link
+   *     Snapshot#getValueAtPercentile}
+   * @return number of recorded values
+   */
+  public long getValuesAtPercentiles(double[] percentiles, long[] values) {
+    checkArgument(percentiles.length == values.length, "percentiles and values differ in length");
+    long totalCount = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      totalCount += counts.get(i);
+    }
+    long currentMax = max.get();
+    int next = 0;
+    long cumulative = 0;
+    for (int i = 0; i < counts.length() && next < percentiles.length; i++) {
+      cumulative += counts.get(i);
+      while (next < percentiles.length
+          && cumulative >= countAtPercentile(percentiles[next], totalCount)) {
+        values[next++] =
+            Math.min(highestEquivalentValue(i, subBucketHalfCountMagnitude), currentMax);
+      }
+    }
+    while (next < percentiles.length) {
+      values[next++] = totalCount == 0 ? 0 : currentMax;
+    }
+    return totalCount;
+  }
+
+  /** Returns an immutable copy of recorded values. */
+  public Snapshot getSnapshot() {
+    long[] copy = new long[counts.length()];
+    for (int i = 0; i < copy.length; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new Snapshot(subBucketHalfCountMagnitude, copy, sum.sum(), max.get());
+  }
+
+  private int countsIndex(long value) {
+    return countsIndex(value, subBucketHalfCountMagnitude);
+  }
+
+  private static int countsIndex(long value, int subBucketHalfCountMagnitude) {
+    long subBucketMask = (1L << (subBucketHalfCountMagnitude + 1)) - 1;
+    int bucketIndex =
+        63 - subBucketHalfCountMagnitude - Long.numberOfLeadingZeros(value | subBucketMask);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+    return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + subBucketIndex - subBucketHalfCount;
+  }
+
+  /** Immutable copy of values recorded by a {@link LatencyHistogram}. */
+  public static final class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int subBucketHalfCountMagnitude;
+    private final long[] counts;
+    private final long totalCount;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(int subBucketHalfCountMagnitude, long[] counts, long sum, long max) {
+      this.subBucketHalfCountMagnitude = subBucketHalfCountMagnitude;
+      this.counts = counts;
+      this.totalCount = Arrays.stream(counts).sum();
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /** Returns number of recorded values. */
+    public long getCount() {
+      return totalCount;
+    }
+
+    /** Returns largest recorded value, 0 if no values were recorded. */
+    public long getMax() {
+      return max;
+    }
+
+    /** Returns mean of recorded values, 0 if no values were recorded. */
+    public double getMean() {
+      return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * Returns value at or below which the given percentage of recorded values fall. The value is
+     * reported as the highest value equivalent to it within the histogram precision, but never
+     * above {@link #getMax()}.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return value at percentile, 0 if no values were recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+      checkArgument(percentile >= 0 && percentile <= 100, "percentile should be in [0, 100]");
+      if (totalCount == 0) {
+        return 0;
+      }
+      long countAtPercentile = countAtPercentile(percentile, totalCount);
+      long cumulative = 0;
+      for (int i = 0; i < counts.length; i++) {
+        cumulative += counts[i];
+        if (cumulative >= countAtPercentile) {
+          return Math.min(highestEquivalentValue(i, subBucketHalfCountMagnitude), max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * Returns values recorded after {@code earlier} was taken, assuming both snapshots come from
+     * the same histogram.
+     *
+     * @param earlier snapshot taken before this one
+     * @return snapshot of values recorded in between
+     */
+    public Snapshot since(Snapshot earlier) {
+      checkArgument(
+          earlier.subBucketHalfCountMagnitude == subBucketHalfCountMagnitude
+              && earlier.counts.length == counts.length,
+          "snapshots from different histograms");
+      long[] delta = new long[counts.length];
+      int highestIndex = -1;
+      for (int i = 0; i < counts.length; i++) {
+        delta[i] = Math.max(0, counts[i] - earlier.counts[i]);
+        if (delta[i] > 0) {
+          highestIndex = i;
+        }
+      }
+      long windowMax =
+          highestIndex < 0
+              ? 0
+              : Math.min(highestEquivalentValue(highestIndex, subBucketHalfCountMagnitude), max);
+      return new Snapshot(
+          subBucketHalfCountMagnitude, delta, Math.max(0, sum - earlier.sum), windowMax);
+    }
+  }
+
+  private static long countAtPercentile(double percentile, long totalCount) {
+    checkArgument(percentile >= 0 && percentile <= 100, "percentile should be in [0, 100]");
+    return Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+  }
+
+  private static long valueFromIndex(int index, int subBucketHalfCountMagnitude) {
+    int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+    int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+    long subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+    if (bucketIndex < 0) {
+      subBucketIndex -= subBucketHalfCount;
+      bucketIndex = 0;
+    }
+    return subBucketIndex << bucketIndex;
+  }
+
+  private static long highestEquivalentValue(int index, int subBucketHalfCountMagnitude) {
+    int bucketIndex = Math.max(0, (index >> subBucketHalfCountMagnitude) - 1);
+    return valueFromIndex(index, subBucketHalfCountMagnitude) + (1L << bucketIndex) - 1;
+  }
+}
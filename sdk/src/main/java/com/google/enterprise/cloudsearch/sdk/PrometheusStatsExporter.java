@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link StatsExporter} serving statistics over HTTP in Prometheus text format, or in OpenMetrics
+ * text format if requested by the {@code Accept} header of the scrape request.
+ *
+ * <p>Optional configuration parameters:
+ *
+ * <ul>
+ *   <li>{@code stats.prometheus.port} - port to listen on. Defaults to 9464.
+ *   <li>{@code stats.prometheus.bindAddress} - address to listen on. Defaults to localhost.
+ *   <li>{@code stats.prometheus.path} - path statistics are served from. Defaults to /metrics.
+ * </ul>
+ *
+ * <p>Latency is reported as a summary in seconds with 0.5, 0.9, 0.99 and 0.999 quantiles. Text
+ * and encoded response buffers are reused across scrapes, which are serialized by the exporter.
+ */
+public class PrometheusStatsExporter implements StatsExporter {
+  private static final Logger logger = Logger.getLogger(PrometheusStatsExporter.class.getName());
+
+  public static final String CONFIG_PORT = "stats.prometheus.port";
+  public static final String CONFIG_BIND_ADDRESS = "stats.prometheus.bindAddress";
+  public static final String CONFIG_PATH = "stats.prometheus.path";
+  public static final int DEFAULT_PORT = 9464;
+  public static final String DEFAULT_BIND_ADDRESS = "localhost";
+  public static final String DEFAULT_PATH = "/metrics";
+
+  private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String OPENMETRICS_CONTENT_TYPE =
+      "application/openmetrics-text; version=1.0.0; charset=utf-8";
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+  private final String bindAddress;
+  private final int port;
+  private final String path;
+  private final TextVisitor visitor = new TextVisitor();
+  private final CharsetEncoder encoder =
+      StandardCharsets.UTF_8
+          .newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private ByteBuffer body = ByteBuffer.allocate(0);
+  private StatsManager statsManager;
+  private HttpServer server;
+
+  /**
+   * Creates an exporter.
+   *
+   * @param bindAddress address to listen on
+   * @param port port to listen on, 0 to pick any free port
+   * @param path path statistics are served from
+   */
+  public PrometheusStatsExporter(String bindAddress, int port, String path) {
+    this.bindAddress = checkNotNull(bindAddress, "bind address can not be null");
+    checkArgument(port >= 0 && port <= 65535, "invalid port %s", port);
+    this.port = port;
+    checkArgument(path != null && path.startsWith("/"), "path should start with /");
+    this.path = path;
+  }
+
+  /** Creates an exporter using configuration parameters described in class documentation. */
+  public static PrometheusStatsExporter fromConfiguration() {
+    int port = Configuration.getInteger(CONFIG_PORT, DEFAULT_PORT).get();
+    Configuration.checkConfiguration(
+        port >= 0 && port <= 65535, "%s should be a valid port", CONFIG_PORT);
+    String path = Configuration.getString(CONFIG_PATH, DEFAULT_PATH).get();
+    Configuration.checkConfiguration(path.startsWith("/"), "%s should start with /", CONFIG_PATH);
+    return new PrometheusStatsExporter(
+        Configuration.getString(CONFIG_BIND_ADDRESS, DEFAULT_BIND_ADDRESS).get(), port, path);
+  }
+
+  @Override
+  public synchronized void start(StatsManager statsManager) throws IOException {
+    checkState(server == null, "exporter already started");
+    this.statsManager = checkNotNull(statsManager);
+    server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+    server.createContext(path, this::handle);
+    server.start();
+    logger.log(Level.INFO, "Serving stats at http://{0}:{1}{2}",
+        new Object[] {bindAddress, Integer.toString(getPort()), path});
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+  }
+
+  /** Returns port the exporter listens on. */
+  public synchronized int getPort() {
+    checkState(server != null, "exporter not started");
+    return server.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      String accept = exchange.getRequestHeaders().getFirst("Accept");
+      boolean openMetrics = accept != null && accept.contains("application/openmetrics-text");
+      exchange
+          .getResponseHeaders()
+          .set("Content-Type", openMetrics ? OPENMETRICS_CONTENT_TYPE : PROMETHEUS_CONTENT_TYPE);
+      synchronized (this) {
+        ByteBuffer encoded = encode(renderText(openMetrics));
+        exchange.sendResponseHeaders(200, encoded.limit());
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(encoded.array(), 0, encoded.limit());
+        }
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized String render(boolean openMetrics) {
+    return renderText(openMetrics).toString();
+  }
+
+  /** Renders statistics into the reusable output buffer, valid until the next call. */
+  private synchronized StringBuilder renderText(boolean openMetrics) {
+    checkState(statsManager != null, "exporter not started");
+    visitor.reset();
+    statsManager.visit(visitor);
+    StringBuilder out = visitor.output;
+    out.setLength(0);
+    appendFamily(out, "cloudsearch_operations", "counter",
+        "Number of operations by outcome.", visitor.operations, openMetrics);
+    appendFamily(out, "cloudsearch_operation_results", "counter",
+        "Number of logged operation results.", visitor.results, openMetrics);
+    appendFamily(out, "cloudsearch_gauge", "gauge",
+        "Current value of gauges.", visitor.gauges, openMetrics);
+    appendFamily(out, "cloudsearch_latency_seconds", "summary",
+        "Latency of successful operations.", visitor.latency, openMetrics);
+    if (openMetrics) {
+      out.append("# EOF\n");
+    }
+    return out;
+  }
+
+  /** Encodes text into the reusable body buffer, grown as needed, valid until the next call. */
+  @VisibleForTesting
+  synchronized ByteBuffer encode(CharSequence text) {
+    if (body.capacity() < text.length()) {
+      body = ByteBuffer.allocate(text.length());
+    }
+    while (true) {
+      body.clear();
+      encoder.reset();
+      CoderResult result = encoder.encode(CharBuffer.wrap(text), body, true);
+      if (!result.isOverflow()) {
+        result = encoder.flush(body);
+      }
+      if (!result.isOverflow()) {
+        body.flip();
+        return body;
+      }
+      body = ByteBuffer.allocate(2 * body.capacity());
+    }
+  }
+
+  private static void appendFamily(
+      StringBuilder out,
+      String name,
+      String type,
+      String help,
+      StringBuilder samples,
+      boolean openMetrics) {
+    if (samples.length() == 0) {
+      return;
+    }
+    // OpenMetrics counter families are named without the _total suffix of their samples
+    String family = type.equals("counter") && !openMetrics ? name + "_total" : name;
+    out.append("# HELP ").append(family).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+    out.append(samples);
+  }
+
+  /** Collects samples of each metric family into reusable buffers. */
+  private static class TextVisitor implements StatsVisitor {
+    final StringBuilder operations = new StringBuilder();
+    final StringBuilder results = new StringBuilder();
+    final StringBuilder gauges = new StringBuilder();
+    final StringBuilder latency = new StringBuilder();
+    final StringBuilder output = new StringBuilder();
+    final long[] values = new long[PERCENTILES.length];
+
+    void reset() {
+      operations.setLength(0);
+      results.setLength(0);
+      gauges.setLength(0);
+      latency.setLength(0);
+    }
+
+    @Override
+    public void visitRegistered(String component, String operation, long count) {
+      appendOperation(component, operation, "registered", count);
+    }
+
+    @Override
+    public void visitSuccess(String component, String operation, long count) {
+      appendOperation(component, operation, "success", count);
+    }
+
+    @Override
+    public void visitFailure(String component, String operation, long count) {
+      appendOperation(component, operation, "failure", count);
+    }
+
+    private void appendOperation(String component, String operation, String outcome, long count) {
+      operations.append("cloudsearch_operations_total{component=\"");
+      appendEscaped(operations, component).append("\",operation=\"");
+      appendEscaped(operations, operation).append("\",outcome=\"").append(outcome);
+      operations.append("\"} ").append(count).append('\n');
+    }
+
+    @Override
+    public void visitResult(String component, String operation, String result, long count) {
+      results.append("cloudsearch_operation_results_total{component=\"");
+      appendEscaped(results, component).append("\",operation=\"");
+      appendEscaped(results, operation).append("\",result=\"");
+      appendEscaped(results, result).append("\"} ").append(count).append('\n');
+    }
+
+    @Override
+    public void visitGauge(String component, String gauge, long value) {
+      gauges.append("cloudsearch_gauge{component=\"");
+      appendEscaped(gauges, component).append("\",gauge=\"");
+      appendEscaped(gauges, gauge).append("\"} ").append(value).append('\n');
+    }
+
+    @Override
+    public void visitLatency(String component, String operation, LatencyHistogram histogram) {
+      long count = histogram.getValuesAtPercentiles(PERCENTILES, values);
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        appendLatencyName(component, operation, "");
+        latency.append(",quantile=\"").append(QUANTILES[i]).append("\"} ");
+        latency.append(values[i] / 1_000_000.0).append('\n');
+      }
+      appendLatencyName(component, operation, "_count");
+      latency.append("} ").append(count).append('\n');
+      appendLatencyName(component, operation, "_sum");
+      latency.append("} ").append(histogram.getSum() / 1_000_000.0).append('\n');
+    }
+
+    private void appendLatencyName(String component, String operation, String suffix) {
+      latency.append("cloudsearch_latency_seconds").append(suffix).append("{component=\"");
+      appendEscaped(latency, component).append("\",operation=\"");
+      appendEscaped(latency, operation).append('"');
+    }
+
+    private static StringBuilder appendEscaped(StringBuilder sb, String value) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+          case '\\':
+            sb.append("\\\\");
+            break;
+          case '"':
+            sb.append("\\\"");
+            break;
+          case '\n':
+            sb.append("\\n");
+            break;
+          default:
+            sb.append(c);
+        }
+      }
+      return sb;
+    }
+  }
+}
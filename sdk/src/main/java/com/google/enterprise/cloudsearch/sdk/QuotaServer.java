@@ -19,13 +19,32 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.TokenBucket.LocalTokenBucket;
+import com.google.enterprise.cloudsearch.sdk.TokenBucket.SharedQuotaFile;
+import com.google.enterprise.cloudsearch.sdk.TokenBucket.SharedTokenBucket;
 import com.google.enterprise.cloudsearch.sdk.config.ConfigValue;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -34,22 +53,51 @@ import java.util.stream.Collectors;
  * <p>Create an instance to enforce individual quota maximums on a set of operations defined by an
  * enumeration. Before executing a quota restricted operation, call the {@link QuotaServer#acquire}
  * method to restrict the rate at which the operation is allowed to execute. Internally, quota is
- * enforced using a {@link RateLimiter} object. The calling thread is blocked if the token cannot be
- * granted immediately.
+ * enforced using a token bucket per operation. The calling thread is blocked by {@link #acquire}
+ * if the token cannot be granted immediately, while {@link #acquireAsync} returns a future which
+ * completes once the token is granted.
+ *
+ * <p>Each operation stores up to its burst capacity of unused tokens, one second worth of tokens
+ * by default. If a shared quota file is configured, token buckets are kept in that memory mapped
+ * file so that all connector processes on a host using the same file share a single budget.
+ * The file is held open until {@link #close} is called.
  */
-public class QuotaServer<T extends Enum<T>> {
+public class QuotaServer<T extends Enum<T>> implements Closeable {
   public static final double DEFAULT_QPS = 10;
   private static final String CONFIG_QUOTA_SERVER_ENUM_KEY_FORMAT = "quotaServer.%s.%s";
   private static final String CONFIG_QUOTA_SERVER_DEFAULT_QPS_FORMAT = "quotaServer.%s.defaultQps";
+  private static final String CONFIG_QUOTA_SERVER_BURST_KEY_FORMAT = "quotaServer.%s.%s.burst";
+  private static final String CONFIG_QUOTA_SERVER_SHARED_FILE_FORMAT = "quotaServer.%s.sharedFile";
+
+  private static final OperationStats quotaStats = StatsManager.getComponent("QuotaServer");
 
-  private final Map<T, RateLimiter> quotaMap;
+  private final Map<T, TokenBucket> quotaMap;
+  private final ListeningScheduledExecutorService scheduler;
+  private final SharedQuotaFile sharedFile;
 
   private QuotaServer(Builder<T, ? extends QuotaServer<T>> builder) {
-    quotaMap = new HashMap<T, RateLimiter>();
-    builder
-        .operationQps
-        .keySet()
-        .forEach(k -> quotaMap.put(k, RateLimiter.create(builder.operationQps.get(k))));
+    quotaMap = new HashMap<T, TokenBucket>();
+    SharedQuotaFile sharedFile = null;
+    if (builder.sharedQuotaFile != null && !builder.allOperations.isEmpty()) {
+      try {
+        sharedFile = new SharedQuotaFile(builder.sharedQuotaFile, builder.slots);
+      } catch (IOException e) {
+        throw new IllegalArgumentException(
+            "unable to open shared quota file " + builder.sharedQuotaFile, e);
+      }
+    }
+    for (T operation : builder.allOperations) {
+      double qps = builder.operationQps.get(operation);
+      double burst = builder.operationBurst.getOrDefault(operation, qps);
+      quotaMap.put(
+          operation,
+          sharedFile == null
+              ? new LocalTokenBucket(qps, burst, builder.localTimeSourceMicros)
+              : new SharedTokenBucket(
+                  qps, burst, sharedFile, operation.ordinal(), builder.sharedTimeSourceMicros));
+    }
+    scheduler = MoreExecutors.listeningDecorator(builder.scheduler);
+    this.sharedFile = sharedFile;
   }
 
   /**
@@ -61,8 +109,29 @@ public class QuotaServer<T extends Enum<T>> {
    * @return time spent sleeping to enforce quota in seconds (0.0 if not rate limited)
    */
   public double acquire(T operation) {
-    checkArgument(quotaMap.containsKey(operation), "undefined operation");
-    return quotaMap.get(operation).acquire();
+    long waitMicros = reserve(operation);
+    Uninterruptibles.sleepUninterruptibly(waitMicros, TimeUnit.MICROSECONDS);
+    return toSeconds(waitMicros);
+  }
+
+  /**
+   * Acquires a token before allowing an operation to execute, without blocking the calling
+   * thread.
+   *
+   * <p>The token is reserved immediately. The returned future completes once the reserved token
+   * may be used, on a scheduler thread if the token cannot be granted immediately. Callbacks
+   * which block or take long should therefore be registered with their own executor.
+   *
+   * @param operation the enumeration operation to rate limit base on its quota
+   * @return future for time waited to enforce quota in seconds (0.0 if not rate limited)
+   */
+  public ListenableFuture<Double> acquireAsync(T operation) {
+    long waitMicros = reserve(operation);
+    double waitSeconds = toSeconds(waitMicros);
+    if (waitMicros <= 0) {
+      return Futures.immediateFuture(waitSeconds);
+    }
+    return scheduler.schedule(() -> waitSeconds, waitMicros, TimeUnit.MICROSECONDS);
   }
 
   /**
@@ -72,8 +141,45 @@ public class QuotaServer<T extends Enum<T>> {
    * @return current configured rate limit for the operation
    */
   public double getRate(T operation) {
+    return getBucket(operation).getRate();
+  }
+
+  /**
+   * Returns maximum number of unused tokens stored for the specified enumeration operation.
+   *
+   * @param operation for burst capacity lookup
+   * @return configured burst capacity for the operation
+   */
+  public double getBurstCapacity(T operation) {
+    return getBucket(operation).getMaxBurstPermits();
+  }
+
+  /**
+   * Closes the shared quota file, if one is configured. Operations limited by a shared quota file
+   * can not acquire tokens afterwards.
+   *
+   * @throws IOException if closing the shared quota file fails
+   */
+  @Override
+  public void close() throws IOException {
+    if (sharedFile != null) {
+      sharedFile.close();
+    }
+  }
+
+  private long reserve(T operation) {
+    long waitMicros = getBucket(operation).reserve();
+    quotaStats.recordLatency(operation.name(), waitMicros, TimeUnit.MICROSECONDS);
+    return waitMicros;
+  }
+
+  private TokenBucket getBucket(T operation) {
     checkArgument(quotaMap.containsKey(operation), "undefined operation");
-    return quotaMap.get(operation).getRate();
+    return quotaMap.get(operation);
+  }
+
+  private static double toSeconds(long micros) {
+    return Math.max(micros, 0) / 1_000_000.0;
   }
 
   /**
@@ -90,6 +196,14 @@ public class QuotaServer<T extends Enum<T>> {
    * operation types defined in an enumeration. Any unspecified {@code ENUM_*} values take the QPS
    * value from the {@code defaultQps} parameter.
    *
+   * <p>Optional parameters:
+   * <ul>
+   *   <li>quotaServer.[quotaPrefix].ENUM_OPERATION1.burst = 50; Maximum number of unused tokens
+   *       stored for the operation. Defaults to the QPS value of the operation.
+   *   <li>quotaServer.[quotaPrefix].sharedFile = /path/to/file; File used to share quota with
+   *       other processes on the same host. Each quota prefix should use its own file.
+   * </ul>
+   *
    * @param quotaPrefix prefix for configuration keys related to quota server parameters
    * @param enumClass class for enumerations representing operations
    * @return a {@link QuotaServer} instance
@@ -117,15 +231,49 @@ public class QuotaServer<T extends Enum<T>> {
             "QPS for " + configKey + " can not be 0 or negative. Configured as " + qps.get());
       }
       builder.addQuota(operation, qps.get());
+      String burstKey = String.format(CONFIG_QUOTA_SERVER_BURST_KEY_FORMAT, quotaPrefix, operation);
+      ConfigValue<Double> burst =
+          Configuration.getValue(burstKey, qps.get(), Configuration.DOUBLE_PARSER);
+      if (burst.get() <= 0) {
+        throw new InvalidConfigurationException(
+            "Burst for " + burstKey + " can not be 0 or negative. Configured as " + burst.get());
+      }
+      builder.setBurstCapacity(operation, burst.get());
+    }
+    String sharedFile =
+        Configuration.getString(
+                String.format(CONFIG_QUOTA_SERVER_SHARED_FILE_FORMAT, quotaPrefix), "")
+            .get();
+    if (!Strings.isNullOrEmpty(sharedFile)) {
+      builder.setSharedQuotaFile(Paths.get(sharedFile));
+    }
+    try {
+      return builder.build();
+    } catch (IllegalArgumentException e) {
+      throw new InvalidConfigurationException(e.getMessage(), e);
     }
-    return builder.build();
+  }
+
+  /** Holder for scheduler used to complete {@link #acquireAsync} futures by default. */
+  private static class DefaultScheduler {
+    static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("quota-server").build());
   }
 
   /** Builder for {@link QuotaServer} instances. */
   public static class Builder<T extends Enum<T>, K extends QuotaServer<T>> {
     private Map<T, Double> operationQps = new HashMap<T, Double>();
+    private Map<T, Double> operationBurst = new HashMap<T, Double>();
     private double defaultQps = DEFAULT_QPS;
     private Set<T> allOperations;
+    private int slots;
+    private Path sharedQuotaFile;
+    private ScheduledExecutorService scheduler;
+    private LongSupplier localTimeSourceMicros =
+        () -> TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+    private LongSupplier sharedTimeSourceMicros =
+        () -> TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
 
     /** Sets the enum class of the supported operations. */
     public Builder(Class<T> enumClass) {
@@ -133,6 +281,7 @@ public class QuotaServer<T extends Enum<T>> {
       T[] enumValues = enumClass.getEnumConstants();
       checkArgument(enumValues != null, "class " + enumClass + " is not an enum class");
       allOperations = Arrays.stream(enumValues).collect(Collectors.toSet());
+      slots = enumValues.length;
     }
 
     /** Sets the {@code qps} quota for a given {@code operation}. */
@@ -143,6 +292,17 @@ public class QuotaServer<T extends Enum<T>> {
       return this;
     }
 
+    /**
+     * Sets maximum number of unused tokens stored for a given {@code operation}. Defaults to the
+     * qps of the operation.
+     */
+    public Builder<T, K> setBurstCapacity(T operation, double permits) {
+      checkArgument(allOperations.contains(operation), "undefined operation");
+      checkArgument(permits > 0, "burst capacity can not be 0 or negative");
+      operationBurst.put(operation, permits);
+      return this;
+    }
+
     /** Sets the default qps {@code qps} if such setting is not provided for an operation. */
     public Builder<T, K> setDefaultQps(double defaultQps) {
       checkArgument(defaultQps > 0, "defaultQps can not be 0 or negative");
@@ -150,12 +310,38 @@ public class QuotaServer<T extends Enum<T>> {
       return this;
     }
 
+    /**
+     * Sets file used to share quota with other processes on the same host. All processes using
+     * the same file should use the same operations enumeration.
+     */
+    public Builder<T, K> setSharedQuotaFile(Path sharedQuotaFile) {
+      this.sharedQuotaFile = checkNotNull(sharedQuotaFile, "shared quota file can not be null");
+      return this;
+    }
+
+    /** Sets scheduler used to complete {@link QuotaServer#acquireAsync} futures. */
+    public Builder<T, K> setScheduler(ScheduledExecutorService scheduler) {
+      this.scheduler = checkNotNull(scheduler, "scheduler can not be null");
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder<T, K> setTimeSourceMicros(LongSupplier timeSourceMicros) {
+      checkNotNull(timeSourceMicros, "time source can not be null");
+      this.localTimeSourceMicros = timeSourceMicros;
+      this.sharedTimeSourceMicros = timeSourceMicros;
+      return this;
+    }
+
     /** Builds an instance of {@link QuotaServer}. */
     public QuotaServer<T> build() {
       allOperations
           .stream()
           .filter(k -> !operationQps.containsKey(k))
           .forEach(k -> operationQps.put(k, defaultQps));
+      if (scheduler == null) {
+        scheduler = DefaultScheduler.INSTANCE;
+      }
       return new QuotaServer<T>(this);
     }
   }
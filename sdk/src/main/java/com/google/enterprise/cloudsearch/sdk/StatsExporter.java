@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import com.google.common.base.Splitter;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes statistics collected by {@link StatsManager} outside the connector process.
+ *
+ * <p>Exporters are started with {@link StatsManager#startExporter} and read statistics through
+ * {@link StatsManager#visit}. Built-in exporters are selected by the {@code stats.exporters}
+ * configuration parameter, a comma separated list of:
+ *
+ * <ul>
+ *   <li>{@code jmx} - {@link JmxStatsExporter}, an MBean per component
+ *   <li>{@code prometheus} - {@link PrometheusStatsExporter}, an HTTP endpoint serving Prometheus
+ *       and OpenMetrics text format
+ *   <li>{@code file} - {@link FileStatsExporter}, periodic append to a local file in line
+ *       protocol format
+ * </ul>
+ */
+public interface StatsExporter {
+  String CONFIG_STATS_EXPORTERS = "stats.exporters";
+
+  /**
+   * Starts exporting statistics.
+   *
+   * @param statsManager source of statistics
+   * @throws IOException if exporter fails to start
+   */
+  void start(StatsManager statsManager) throws IOException;
+
+  /**
+   * Notifies exporter about a component created after it was started.
+   *
+   * @param component name of the component
+   * @param stats statistics of the component
+   */
+  default void componentAdded(String component, OperationStats stats) {}
+
+  /** Stops exporting statistics and releases resources. */
+  void stop();
+
+  /**
+   * Creates exporters listed by the {@code stats.exporters} configuration parameter.
+   *
+   * @return configured exporters, not started
+   */
+  static List<StatsExporter> fromConfiguration() {
+    List<StatsExporter> exporters = new ArrayList<>();
+    String configured = Configuration.getString(CONFIG_STATS_EXPORTERS, "").get();
+    for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(configured)) {
+      switch (name) {
+        case "jmx":
+          exporters.add(new JmxStatsExporter());
+          break;
+        case "prometheus":
+          exporters.add(PrometheusStatsExporter.fromConfiguration());
+          break;
+        case "file":
+          exporters.add(FileStatsExporter.fromConfiguration());
+          break;
+        default:
+          throw new InvalidConfigurationException(
+              "Unknown stats exporter " + name + " in " + CONFIG_STATS_EXPORTERS);
+      }
+    }
+    return exporters;
+  }
+}
@@ -15,18 +15,25 @@
  */
 package com.google.enterprise.cloudsearch.sdk;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.Multiset;
-import java.util.Arrays;
-import java.util.Collections;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
@@ -43,7 +50,7 @@ import org.junit.runners.model.Statement;
  *   /:component/:event
  *                    |success           - long (counter)
  *                    |failure           - long (counter)
- *                    |latency           - map of &lt;latency_range, counts&gt;
+ *                    |latency           - histogram of latency in microseconds
  *              /:operationWithVariants  - map of &lt;variant, counts&gt;
  *  </pre>
  *
@@ -51,20 +58,34 @@ import org.junit.runners.model.Statement;
  * <pre>
  *   /requests/SendFeeds    - returns {CODE_OK: 155, CODE_404: 105}
  *  </pre>
+ *
+ * <p>Latency of successful events is recorded in a {@link LatencyHistogram} per operation, with
+ * precision set by the optional {@code stats.latency.significantDigits} configuration parameter
+ * (default 2, at most {@value LatencyHistogram#MAX_SIGNIFICANT_DIGITS}), read once by {@link
+ * #initConfig} when the application starts.
+ *
+ * <p>Statistics can be published continuously by {@link StatsExporter} implementations started
+ * with {@link #startExporter}. Exporters read statistics through {@link #visit}, which does not
+ * take the {@link StatsManager} lock.
  */
 // TODO(imysak): make StatsManager configurable
 public class StatsManager {
+  private static final Logger logger = Logger.getLogger(StatsManager.class.getName());
 
-  // scaling range for latency metrics
-  private final NavigableSet<Long> latencyRange =
-      Collections.unmodifiableNavigableSet(new TreeSet<>(Arrays.asList(
-          0L, 10L, 50L, 100L, 200L, 300L, 500L, 1000L,
-          1500L, 2000L, 3000L, 5000L, 10000L, 20000L, 30000L, 60000L)));
+  public static final String CONFIG_LATENCY_SIGNIFICANT_DIGITS =
+      "stats.latency.significantDigits";
+  public static final int DEFAULT_LATENCY_SIGNIFICANT_DIGITS = 2;
+  // percentiles of latency included in printStats
+  private static final double[] PRINTED_PERCENTILES = {50, 90, 99, 99.9};
 
   // collection that store OperationStats, stored in a map where the key is a component name
   private ConcurrentMap<String, OperationStats> stats = new ConcurrentHashMap<>();
   // true if stats is active and we store all incoming events/operations
   private boolean running = true;
+  // exporters notified about components created after they were started
+  private final List<StatsExporter> exporters = new CopyOnWriteArrayList<>();
+  // precision of latency histograms created from now on
+  private volatile int latencySignificantDigits = DEFAULT_LATENCY_SIGNIFICANT_DIGITS;
 
   private static class InstanceHolder {
     private static final StatsManager instance = new StatsManager();
@@ -90,10 +111,61 @@ public class StatsManager {
    * @return OperationStats object for specified component (create instance if needed)
    */
   public static OperationStats getComponent(String component) {
-    // atomic, same as putIfAbsent, but with lambda interface, so we can avoid creating objects
-    return getInstance()
-        .stats
-        .computeIfAbsent(component, key -> new OperationStats(getInstance()));
+    StatsManager manager = getInstance();
+    OperationStats existing = manager.stats.get(component);
+    if (existing != null) {
+      return existing;
+    }
+    OperationStats created = new OperationStats(manager);
+    existing = manager.stats.putIfAbsent(component, created);
+    if (existing != null) {
+      return existing;
+    }
+    manager.exporters.forEach(exporter -> exporter.componentAdded(component, created));
+    return created;
+  }
+
+  /**
+   * Passes current values of all components to {@code visitor}, without taking the {@link
+   * StatsManager} lock. Values of different components and operations are read independently.
+   *
+   * @param visitor to receive statistics
+   */
+  public void visit(StatsVisitor visitor) {
+    stats.forEach((component, opStats) -> opStats.visit(component, visitor));
+  }
+
+  /**
+   * Starts {@code exporter} and notifies it about components created afterwards.
+   *
+   * @param exporter to start
+   * @throws IOException if exporter fails to start
+   */
+  public void startExporter(StatsExporter exporter) throws IOException {
+    checkArgument(exporter != null, "exporter can not be null");
+    exporter.start(this);
+    exporters.add(exporter);
+  }
+
+  /**
+   * Stops {@code exporter} if it was started by {@link #startExporter}.
+   *
+   * @param exporter to stop
+   */
+  public void stopExporter(StatsExporter exporter) {
+    if (!exporters.remove(exporter)) {
+      return;
+    }
+    try {
+      exporter.stop();
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to stop stats exporter " + exporter, e);
+    }
+  }
+
+  /** Stops all exporters started by {@link #startExporter}. */
+  public void stopExporters() {
+    exporters.forEach(this::stopExporter);
   }
 
   /**
@@ -119,21 +191,39 @@ public class StatsManager {
     return running;
   }
 
-  public synchronized Object takeSnapshot() {
-    // TODO(imysak): implement this
-    throw new UnsupportedOperationException("not implemented yet");
+  /**
+   * Takes a serializable copy of statistics of all components.
+   *
+   * @return snapshot which can be passed to {@link #mergeWithSnapshot}
+   */
+  public synchronized StatsSnapshot takeSnapshot() {
+    ImmutableMap.Builder<String, ComponentSnapshot> components = ImmutableMap.builder();
+    stats.forEach((component, opStats) -> components.put(component, opStats.takeSnapshot()));
+    return new StatsSnapshot(components.build());
   }
 
-  @SuppressWarnings("unused")
+  /**
+   * Adds counts and latency from a snapshot taken by {@link #takeSnapshot} to current statistics.
+   *
+   * @param snapshot {@link StatsSnapshot} to merge
+   */
   public synchronized void mergeWithSnapshot(Object snapshot) {
-    // TODO(imysak): implement this (and remove SuppressWarnings)
-    throw new UnsupportedOperationException("not implemented yet");
+    checkArgument(snapshot instanceof StatsSnapshot, "invalid snapshot %s", snapshot);
+    ((StatsSnapshot) snapshot)
+        .components
+        .forEach((component, componentSnapshot) ->
+            getComponent(component).mergeWithSnapshot(componentSnapshot));
   }
 
-  @SuppressWarnings("unused")
+  /**
+   * Replaces current statistics with a snapshot taken by {@link #takeSnapshot}.
+   *
+   * @param snapshot {@link StatsSnapshot} to start from
+   */
   public synchronized void startFromSnapshot(Object snapshot) {
-    // TODO(imysak): implement this (and remove SuppressWarnings)
-    throw new UnsupportedOperationException("not implemented yet");
+    checkArgument(snapshot instanceof StatsSnapshot, "invalid snapshot %s", snapshot);
+    stats.forEach((component, opStats) -> opStats.clear());
+    mergeWithSnapshot(snapshot);
   }
 
   /**
@@ -153,20 +243,128 @@ public class StatsManager {
     return sb.toString();
   }
 
+  /**
+   * Reads the statistics configuration. Latency histograms created before this call, or when the
+   * configuration is not initialized, use the default precision.
+   *
+   * @throws InvalidConfigurationException if {@value #CONFIG_LATENCY_SIGNIFICANT_DIGITS} is not
+   *     between 1 and {@value LatencyHistogram#MAX_SIGNIFICANT_DIGITS}
+   */
+  public void initConfig() {
+    if (!Configuration.isInitialized()) {
+      return;
+    }
+    int digits =
+        Configuration.getInteger(
+                CONFIG_LATENCY_SIGNIFICANT_DIGITS, DEFAULT_LATENCY_SIGNIFICANT_DIGITS)
+            .get();
+    Configuration.checkConfiguration(
+        digits >= 1 && digits <= LatencyHistogram.MAX_SIGNIFICANT_DIGITS,
+        "%s should be between 1 and %s",
+        CONFIG_LATENCY_SIGNIFICANT_DIGITS,
+        LatencyHistogram.MAX_SIGNIFICANT_DIGITS);
+    latencySignificantDigits = digits;
+  }
+
+  /**
+   * Receives statistics passed to {@link StatsManager#visit}. Counters are cumulative since start
+   * or last {@link OperationStats#clear}.
+   */
+  public interface StatsVisitor {
+    /** Count of operations registered by {@link OperationStats#register}. */
+    void visitRegistered(String component, String operation, long count);
+
+    /** Count of events ended with success. */
+    void visitSuccess(String component, String operation, long count);
+
+    /** Count of events ended with failure. */
+    void visitFailure(String component, String operation, long count);
+
+    /** Count of a result logged by {@link OperationStats#logResult}. */
+    void visitResult(String component, String operation, String result, long count);
+
+    /** Current value of a gauge registered by {@link OperationStats#registerGauge}. */
+    void visitGauge(String component, String gauge, long value);
+
+    /**
+     * Latency of an operation in microseconds. The live histogram is passed so that it can be
+     * read without copying.
+     */
+    void visitLatency(String component, String operation, LatencyHistogram latency);
+  }
+
+  /** Serializable copy of statistics of all components, see {@link #takeSnapshot}. */
+  public static final class StatsSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ImmutableMap<String, ComponentSnapshot> components;
+
+    private StatsSnapshot(ImmutableMap<String, ComponentSnapshot> components) {
+      this.components = components;
+    }
+
+    /** Returns snapshot of a single component, or null if the component was not present. */
+    public ComponentSnapshot getComponent(String component) {
+      return components.get(component);
+    }
+  }
+
+  /** Serializable copy of statistics of a single {@link OperationStats} component. */
+  public static final class ComponentSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ImmutableMultiset<String> opCounter;
+    private final ImmutableMultiset<String> successCounter;
+    private final ImmutableMultiset<String> failureCounter;
+    private final ImmutableMap<String, ImmutableMultiset<String>> opWithResult;
+    private final ImmutableMap<String, LatencyHistogram.Snapshot> latency;
+
+    private ComponentSnapshot(
+        ImmutableMultiset<String> opCounter,
+        ImmutableMultiset<String> successCounter,
+        ImmutableMultiset<String> failureCounter,
+        ImmutableMap<String, ImmutableMultiset<String>> opWithResult,
+        ImmutableMap<String, LatencyHistogram.Snapshot> latency) {
+      this.opCounter = opCounter;
+      this.successCounter = successCounter;
+      this.failureCounter = failureCounter;
+      this.opWithResult = opWithResult;
+      this.latency = latency;
+    }
+
+    public int getRegisteredCount(String operation) {
+      return opCounter.count(operation);
+    }
+
+    public int getSuccessCount(String operation) {
+      return successCounter.count(operation);
+    }
+
+    public int getFailureCount(String operation) {
+      return failureCounter.count(operation);
+    }
+
+    public int getLogResultCounter(String operation, String result) {
+      ImmutableMultiset<String> results = opWithResult.get(operation);
+      return results != null ? results.count(result) : 0;
+    }
+
+    /** Returns latency snapshot for operation, or null if no latency was recorded. */
+    public LatencyHistogram.Snapshot getLatency(String operation) {
+      return latency.get(operation);
+    }
+  }
+
   /**
    * Object used to log events, operations, and actions
    */
   public static class OperationStats {
 
-    // reference on scaling range for latency metrics
-    private NavigableSet<Long> latencyRange;
-
     /**
-     * map that present dispersion response time granulated by specific scale {@link #latencyRange}
-     * per operation(key of map)
-     * <pre>map < operation, map < scaling_key, count >></pre>
+     * map that present histogram of response time in microseconds per operation(key of map)
+     * <pre>map < operation, histogram ></pre>
      */
-    private final ConcurrentMap<String, Multiset<Long>> latency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> latency = new ConcurrentHashMap<>();
     /**
      * map that present counts of success-ended operations
      */
@@ -184,13 +382,17 @@ public class StatsManager {
      * <pre>map < operation, map < result, count >></pre>
      */
     private final ConcurrentMap<String, Multiset<String>> opWithResult = new ConcurrentHashMap<>();
+    /**
+     * map that present current value suppliers
+     * <pre>map < gauge, supplier ></pre>
+     */
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
 
     /** <i>true</i> if component is active and we store all income events/operations */
     private boolean running;
 
     private OperationStats(StatsManager manager) {
       this.running = manager.running;
-      this.latencyRange = manager.latencyRange;
     }
 
     private void start() {
@@ -247,6 +449,113 @@ public class StatsManager {
       return multiset != null ? multiset.count(result) : 0;
     }
 
+    /**
+     * Registers supplier of a value sampled whenever statistics are exported, replacing any
+     * supplier previously registered under the same name.
+     *
+     * @param gauge gauge name
+     * @param value supplier of current value, should be cheap and non-blocking
+     */
+    public void registerGauge(String gauge, LongSupplier value) {
+      checkArgument(gauge != null && value != null, "gauge and value can not be null");
+      gauges.put(gauge, value);
+    }
+
+    /**
+     * Removes a gauge if it is still backed by {@code value}, so that a supplier registered later
+     * under the same name is kept.
+     *
+     * @param gauge gauge name
+     * @param value supplier passed to {@link #registerGauge}
+     */
+    public void unregisterGauge(String gauge, LongSupplier value) {
+      checkArgument(gauge != null && value != null, "gauge and value can not be null");
+      gauges.remove(gauge, value);
+    }
+
+    /**
+     * Records latency for an operation measured by the caller.
+     *
+     * @param operation operation name
+     * @param duration measured duration
+     * @param unit unit of {@code duration}
+     */
+    public void recordLatency(String operation, long duration, TimeUnit unit) {
+      if (running) {
+        getLatencyHistogram(operation).record(unit.toMicros(duration));
+      }
+    }
+
+    /**
+     * Passes current values of this component to {@code visitor}.
+     *
+     * @param component name of this component
+     * @param visitor to receive statistics
+     */
+    public void visit(String component, StatsVisitor visitor) {
+      for (Multiset.Entry<String> e : opCounter.entrySet()) {
+        visitor.visitRegistered(component, e.getElement(), e.getCount());
+      }
+      for (Multiset.Entry<String> e : successCounter.entrySet()) {
+        visitor.visitSuccess(component, e.getElement(), e.getCount());
+      }
+      for (Multiset.Entry<String> e : failureCounter.entrySet()) {
+        visitor.visitFailure(component, e.getElement(), e.getCount());
+      }
+      opWithResult.forEach(
+          (op, results) -> {
+            for (Multiset.Entry<String> e : results.entrySet()) {
+              visitor.visitResult(component, op, e.getElement(), e.getCount());
+            }
+          });
+      gauges.forEach((gauge, value) -> visitor.visitGauge(component, gauge, value.getAsLong()));
+      latency.forEach((op, histogram) -> visitor.visitLatency(component, op, histogram));
+    }
+
+    /**
+     * Returns snapshot of latency in microseconds of successful events for an operation.
+     *
+     * @param operation operation name
+     * @return latency snapshot, or null if no successful event was recorded for the operation
+     */
+    public LatencyHistogram.Snapshot getLatencySnapshot(String operation) {
+      LatencyHistogram histogram = latency.get(operation);
+      return histogram != null ? histogram.getSnapshot() : null;
+    }
+
+    private LatencyHistogram getLatencyHistogram(String operation) {
+      return latency.computeIfAbsent(
+          operation, op -> new LatencyHistogram(getInstance().latencySignificantDigits));
+    }
+
+    private ComponentSnapshot takeSnapshot() {
+      ImmutableMap.Builder<String, ImmutableMultiset<String>> results = ImmutableMap.builder();
+      opWithResult.forEach((op, values) -> results.put(op, ImmutableMultiset.copyOf(values)));
+      ImmutableMap.Builder<String, LatencyHistogram.Snapshot> latencies = ImmutableMap.builder();
+      latency.forEach((op, histogram) -> latencies.put(op, histogram.getSnapshot()));
+      return new ComponentSnapshot(
+          ImmutableMultiset.copyOf(opCounter),
+          ImmutableMultiset.copyOf(successCounter),
+          ImmutableMultiset.copyOf(failureCounter),
+          results.build(),
+          latencies.build());
+    }
+
+    private void mergeWithSnapshot(ComponentSnapshot snapshot) {
+      addAll(opCounter, snapshot.opCounter);
+      addAll(successCounter, snapshot.successCounter);
+      addAll(failureCounter, snapshot.failureCounter);
+      snapshot.opWithResult.forEach(
+          (op, values) ->
+              addAll(
+                  opWithResult.computeIfAbsent(op, o -> ConcurrentHashMultiset.create()), values));
+      snapshot.latency.forEach((op, histogram) -> getLatencyHistogram(op).add(histogram));
+    }
+
+    private static void addAll(Multiset<String> target, Multiset<String> source) {
+      source.entrySet().forEach(e -> target.add(e.getElement(), e.getCount()));
+    }
+
     public void clear() {
       opWithResult.clear();
       failureCounter.clear();
@@ -304,23 +613,30 @@ public class StatsManager {
                     .append('\n');
               });
       sb.append('\n');
-      sb.append("\tResponse latency on operations divided by range:\n");
+      sb.append("\tResponse latency on operations in milliseconds:\n");
       latency.forEach(
-          (op, results) -> {
+          (op, histogram) -> {
+            LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
             sb.append("\t\t").append(op).append('\n');
-            results
-                .elementSet()
-                .forEach(
-                    value -> {
-                      sb.append("\t\t\t")
-                          .append(value)
-                          .append(" = ")
-                          .append(results.count(value))
-                          .append('\n');
-                    });
+            sb.append("\t\t\tcount = ").append(snapshot.getCount());
+            sb.append(", mean = ").append(toMillis(snapshot.getMean()));
+            for (double percentile : PRINTED_PERCENTILES) {
+              sb.append(", p")
+                  .append(
+                      percentile == Math.rint(percentile)
+                          ? String.valueOf((long) percentile)
+                          : String.valueOf(percentile))
+                  .append(" = ")
+                  .append(toMillis(snapshot.getValueAtPercentile(percentile)));
+            }
+            sb.append(", max = ").append(toMillis(snapshot.getMax())).append('\n');
           });
     }
 
+    private static String toMillis(double micros) {
+      return String.format("%.3f", micros / 1000);
+    }
+
     /**
      * Counter for single operation to wrap Stopwatch
      */
@@ -401,25 +717,16 @@ public class StatsManager {
         watch.stop();
         if (success) {
           OperationStats.this.successCounter.add(op);
-          Multiset<Long> latency =
-              OperationStats.this.latency.computeIfAbsent(
-                  op, o -> ConcurrentHashMultiset.create());
-
-          long elapsed = watch.elapsed(TimeUnit.MILLISECONDS);
-          latency.add(keyFromRange(elapsed));
+          getLatencyHistogram(op).record(watch.elapsed(TimeUnit.MICROSECONDS));
         } else {
           OperationStats.this.failureCounter.add(op);
         }
       }
-
-      private Long keyFromRange(long latency) {
-        Long top = OperationStats.this.latencyRange.ceiling(latency);
-        return top != null ? top : Long.MAX_VALUE;
-      }
     }
   }
 
   private static synchronized void resetStatsManager() {
+    getInstance().latencySignificantDigits = DEFAULT_LATENCY_SIGNIFICANT_DIGITS;
     for (ConcurrentMap.Entry<String, OperationStats> entry : getInstance().stats.entrySet()) {
       entry.getValue().clear();
     }
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limiter used by {@link QuotaServer} for a single operation.
+ *
+ * <p>Permits accumulate at {@code permitsPerSecond} while the bucket is unused, up to {@code
+ * maxBurstPermits}. A reservation consumes a stored permit if one is available and otherwise
+ * reserves the next free slot, so callers are told how long to wait instead of being blocked.
+ */
+abstract class TokenBucket {
+  private final double permitsPerSecond;
+  private final double maxBurstPermits;
+  private final double stableIntervalMicros;
+
+  TokenBucket(double permitsPerSecond, double maxBurstPermits) {
+    checkArgument(permitsPerSecond > 0, "permitsPerSecond can not be 0 or negative");
+    checkArgument(maxBurstPermits > 0, "maxBurstPermits can not be 0 or negative");
+    this.permitsPerSecond = permitsPerSecond;
+    this.maxBurstPermits = maxBurstPermits;
+    this.stableIntervalMicros = 1_000_000.0 / permitsPerSecond;
+  }
+
+  /** Gets rate at which permits are granted. */
+  double getRate() {
+    return permitsPerSecond;
+  }
+
+  /** Gets maximum number of permits which can be stored while the bucket is unused. */
+  double getMaxBurstPermits() {
+    return maxBurstPermits;
+  }
+
+  /**
+   * Reserves a single permit.
+   *
+   * @return time in microseconds the caller has to wait before using the permit
+   */
+  abstract long reserve();
+
+  /**
+   * Updates {@code state} to reserve a single permit at {@code nowMicros}.
+   *
+   * @return time in microseconds the caller has to wait before using the permit
+   */
+  long reserve(BucketState state, long nowMicros) {
+    if (nowMicros > state.nextFreeMicros) {
+      double newPermits = (nowMicros - state.nextFreeMicros) / stableIntervalMicros;
+      state.storedPermits = Math.min(maxBurstPermits, state.storedPermits + newPermits);
+      state.nextFreeMicros = nowMicros;
+    }
+    long waitMicros = state.nextFreeMicros - nowMicros;
+    double fromStored = Math.min(1.0, state.storedPermits);
+    state.storedPermits -= fromStored;
+    state.nextFreeMicros += (long) ((1.0 - fromStored) * stableIntervalMicros);
+    return waitMicros;
+  }
+
+  /** Mutable state of a token bucket. */
+  static class BucketState {
+    double storedPermits;
+    long nextFreeMicros;
+  }
+
+  /** {@link TokenBucket} holding its state in memory, shared by threads of a single process. */
+  static class LocalTokenBucket extends TokenBucket {
+    private final LongSupplier timeSourceMicros;
+    private final BucketState state = new BucketState();
+
+    LocalTokenBucket(
+        double permitsPerSecond, double maxBurstPermits, LongSupplier timeSourceMicros) {
+      super(permitsPerSecond, maxBurstPermits);
+      this.timeSourceMicros = checkNotNull(timeSourceMicros);
+      this.state.nextFreeMicros = timeSourceMicros.getAsLong();
+    }
+
+    @Override
+    synchronized long reserve() {
+      return reserve(state, timeSourceMicros.getAsLong());
+    }
+  }
+
+  /**
+   * {@link TokenBucket} holding its state in a slot of a memory mapped {@link SharedQuotaFile}, so
+   * that all processes on a host using the same file share a single budget. Updates are
+   * serialized by an exclusive lock on the slot. Time source should be wall clock based since it
+   * is compared across processes.
+   */
+  static class SharedTokenBucket extends TokenBucket {
+    private final SharedQuotaFile file;
+    private final int slot;
+    private final LongSupplier timeSourceMicros;
+
+    SharedTokenBucket(
+        double permitsPerSecond,
+        double maxBurstPermits,
+        SharedQuotaFile file,
+        int slot,
+        LongSupplier timeSourceMicros) {
+      super(permitsPerSecond, maxBurstPermits);
+      this.file = checkNotNull(file);
+      checkArgument(slot >= 0 && slot < file.getSlots(), "invalid slot %s", slot);
+      this.slot = slot;
+      this.timeSourceMicros = checkNotNull(timeSourceMicros);
+    }
+
+    @Override
+    long reserve() {
+      return file.update(slot, state -> reserve(state, timeSourceMicros.getAsLong()));
+    }
+  }
+
+  /** Operation on {@link BucketState} performed while holding the slot lock. */
+  interface StateUpdate {
+    long apply(BucketState state);
+  }
+
+  /**
+   * Memory mapped file holding one {@link BucketState} per slot. A file left over from a previous
+   * run is reused as is; an all zero slot starts with a full burst of permits. Buckets using the
+   * file can not reserve permits once it is closed.
+   */
+  static class SharedQuotaFile implements Closeable {
+    private static final int SLOT_SIZE = Double.BYTES + Long.BYTES;
+    // FileLock is held per process, threads of this process are serialized by a monitor per file
+    private static final ConcurrentMap<Path, Object> processLocks = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Object processLock;
+    private final int slots;
+
+    SharedQuotaFile(Path path, int slots) throws IOException {
+      checkArgument(slots > 0, "slots should be greater than 0");
+      Path normalized = path.toAbsolutePath().normalize();
+      this.slots = slots;
+      this.channel =
+          FileChannel.open(
+              normalized,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      this.buffer = channel.map(MapMode.READ_WRITE, 0, (long) slots * SLOT_SIZE);
+      this.processLock = processLocks.computeIfAbsent(normalized, k -> new Object());
+    }
+
+    int getSlots() {
+      return slots;
+    }
+
+    long update(int slot, StateUpdate update) {
+      int offset = slot * SLOT_SIZE;
+      synchronized (processLock) {
+        try (FileLock lock = channel.lock(offset, SLOT_SIZE, false)) {
+          BucketState state = new BucketState();
+          state.storedPermits = buffer.getDouble(offset);
+          state.nextFreeMicros = buffer.getLong(offset + Double.BYTES);
+          long result = update.apply(state);
+          buffer.putDouble(offset, state.storedPermits);
+          buffer.putLong(offset + Double.BYTES, state.nextFreeMicros);
+          return result;
+        } catch (IOException e) {
+          throw new IllegalStateException("unable to lock shared quota file", e);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
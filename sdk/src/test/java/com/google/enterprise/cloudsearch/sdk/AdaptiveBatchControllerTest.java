@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static com.google.enterprise.cloudsearch.sdk.AdaptiveBatchController.ADAPTIVE_BATCHING_STATS;
+import static com.google.enterprise.cloudsearch.sdk.AdaptiveBatchController.OPERATION_DECISION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.sdk.AdaptiveBatchController.Decision;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link AdaptiveBatchController}. */
+public class AdaptiveBatchControllerTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetStatsRule resetStats = new ResetStatsRule();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  private static BatchPolicy.Builder adaptivePolicy() {
+    return new BatchPolicy.Builder()
+        .setAdaptive(true)
+        .setMaxBatchSize(8)
+        .setAdaptiveBatchSizeRange(2, 10)
+        .setMaxActiveBatches(4)
+        .setAdaptiveMinActiveBatches(1)
+        .setAdaptiveTargetLatencyMillis(1000)
+        .setAdaptiveMaxRetryableErrorRatio(0.25);
+  }
+
+  @Test
+  public void testStaticPolicy() {
+    AdaptiveBatchController controller =
+        new AdaptiveBatchController(
+            new BatchPolicy.Builder().setMaxBatchSize(7).setMaxActiveBatches(3).build());
+    assertEquals(Decision.UNCHANGED, controller.onBatchExecuted(7, 7, 100000));
+    assertEquals(7, controller.getBatchSize());
+    assertEquals(3, controller.getActiveBatchesLimit());
+    assertEquals(0, ADAPTIVE_BATCHING_STATS.getLogResultCounter(OPERATION_DECISION, "UNCHANGED"));
+  }
+
+  @Test
+  public void testAdditiveIncreaseUpToLimits() {
+    AdaptiveBatchController controller = new AdaptiveBatchController(adaptivePolicy().build());
+    assertEquals(8, controller.getBatchSize());
+    assertEquals(4, controller.getActiveBatchesLimit());
+    assertEquals(Decision.INCREASE, controller.onBatchExecuted(8, 0, 500));
+    assertEquals(9, controller.getBatchSize());
+    assertEquals(4, controller.getActiveBatchesLimit());
+    assertEquals(Decision.INCREASE, controller.onBatchExecuted(9, 0, 1000));
+    assertEquals(10, controller.getBatchSize());
+    assertEquals(Decision.UNCHANGED, controller.onBatchExecuted(10, 0, 10));
+    assertEquals(10, controller.getBatchSize());
+    assertEquals(2, ADAPTIVE_BATCHING_STATS.getLogResultCounter(OPERATION_DECISION, "INCREASE"));
+  }
+
+  @Test
+  public void testMultiplicativeDecreaseOnLatency() {
+    AdaptiveBatchController controller = new AdaptiveBatchController(adaptivePolicy().build());
+    assertEquals(Decision.DECREASE, controller.onBatchExecuted(8, 0, 1001));
+    assertEquals(4, controller.getBatchSize());
+    assertEquals(2, controller.getActiveBatchesLimit());
+    assertEquals(Decision.DECREASE, controller.onBatchExecuted(4, 0, 5000));
+    assertEquals(2, controller.getBatchSize());
+    assertEquals(1, controller.getActiveBatchesLimit());
+    assertEquals(Decision.UNCHANGED, controller.onBatchExecuted(2, 0, 5000));
+    assertEquals(2, controller.getBatchSize());
+    assertEquals(1, controller.getActiveBatchesLimit());
+    assertEquals(Decision.INCREASE, controller.onBatchExecuted(2, 0, 10));
+    assertEquals(3, controller.getBatchSize());
+    assertEquals(2, controller.getActiveBatchesLimit());
+  }
+
+  @Test
+  public void testMultiplicativeDecreaseOnRetryableErrors() {
+    AdaptiveBatchController controller = new AdaptiveBatchController(adaptivePolicy().build());
+    assertEquals(Decision.INCREASE, controller.onBatchExecuted(8, 2, 10));
+    assertEquals(Decision.DECREASE, controller.onBatchExecuted(9, 3, 10));
+    assertEquals(4, controller.getBatchSize());
+    assertEquals(1, ADAPTIVE_BATCHING_STATS.getLogResultCounter(OPERATION_DECISION, "DECREASE"));
+  }
+
+  @Test
+  public void testActiveBatchPermitsFollowLimit() throws InterruptedException {
+    AdaptiveBatchController controller = new AdaptiveBatchController(adaptivePolicy().build());
+    controller.onBatchExecuted(8, 8, 10);
+    controller.onBatchExecuted(4, 4, 10);
+    assertEquals(1, controller.getActiveBatchesLimit());
+    controller.acquireBatchPermit();
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                controller.acquireBatchPermit();
+                acquired.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    waiter.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    controller.releaseBatchPermit();
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    waiter.join();
+  }
+
+  @Test
+  public void testInvalidAdaptiveRange() {
+    thrown.expect(IllegalArgumentException.class);
+    adaptivePolicy().setAdaptiveBatchSizeRange(2, 5).build();
+  }
+
+  @Test
+  public void testInvalidErrorRatio() {
+    thrown.expect(IllegalArgumentException.class);
+    adaptivePolicy().setAdaptiveMaxRetryableErrorRatio(1.5).build();
+  }
+
+  @Test
+  public void testFromConfiguration() {
+    Properties config = new Properties();
+    config.put("batch.batchSize", "20");
+    config.put("batch.adaptive", "true");
+    config.put("batch.adaptive.minBatchSize", "5");
+    config.put("batch.adaptive.maxBatchSize", "50");
+    config.put("batch.adaptive.minActiveBatches", "2");
+    config.put("batch.adaptive.targetLatencyMillis", "3000");
+    config.put("batch.adaptive.maxRetryableErrorRatio", "0.05");
+    setupConfig.initConfig(config);
+    BatchPolicy policy = BatchPolicy.fromConfiguration();
+    assertTrue(policy.isAdaptive());
+    assertEquals(20, policy.getMaxBatchSize());
+    assertEquals(5, policy.getAdaptiveMinBatchSize());
+    assertEquals(50, policy.getAdaptiveMaxBatchSize());
+    assertEquals(2, policy.getAdaptiveMinActiveBatches());
+    assertEquals(3000, policy.getAdaptiveTargetLatencyMillis());
+    assertEquals(0.05, policy.getAdaptiveMaxRetryableErrorRatio(), 0.0);
+  }
+
+  @Test
+  public void testPriorityFromConfiguration() {
+    Properties config = new Properties();
+    config.put("batch.maxQueueLength", "500");
+    config.put("batch.priority.interactive.weight", "8");
+    config.put("batch.priority.bulk.maxQueueLength", "50");
+    setupConfig.initConfig(config);
+    BatchPolicy policy = BatchPolicy.fromConfiguration();
+    assertEquals(8, policy.getPriorityWeight(Priority.INTERACTIVE));
+    assertEquals(2, policy.getPriorityWeight(Priority.DEFAULT));
+    assertEquals(1, policy.getPriorityWeight(Priority.BULK));
+    assertEquals(500, policy.getPriorityQueueLength(Priority.INTERACTIVE));
+    assertEquals(500, policy.getPriorityQueueLength(Priority.DEFAULT));
+    assertEquals(50, policy.getPriorityQueueLength(Priority.BULK));
+  }
+
+  @Test
+  public void testInvalidPriorityWeight() {
+    thrown.expect(IllegalArgumentException.class);
+    new BatchPolicy.Builder().setPriorityWeight(Priority.BULK, 0).build();
+  }
+
+  @Test
+  public void testFromConfigurationDefaults() {
+    Properties config = new Properties();
+    config.put("batch.batchSize", "20");
+    setupConfig.initConfig(config);
+    BatchPolicy policy = BatchPolicy.fromConfiguration();
+    assertFalse(policy.isAdaptive());
+    assertEquals(20, policy.getAdaptiveMaxBatchSize());
+  }
+}
@@ -15,6 +15,10 @@
  */
 package com.google.enterprise.cloudsearch.sdk;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.times;
@@ -25,6 +29,8 @@ import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.json.GenericJson;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Status;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats.Event;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
@@ -62,6 +68,62 @@ public class AsyncRequestTest {
     req.getCallback().onSuccess(new GenericJson(), new HttpHeaders());
   }
 
+  @Test
+  public void testDefaultPriority() {
+    AsyncRequest<GenericJson> req = new AsyncRequest<>(testRequest, retryPolicy, operationStats);
+    assertEquals(Priority.DEFAULT, req.getPriority());
+    req = new AsyncRequest<>(testRequest, retryPolicy, operationStats, Priority.BULK);
+    assertEquals(Priority.BULK, req.getPriority());
+  }
+
+  @Test
+  public void testNullPriority() {
+    thrown.expect(NullPointerException.class);
+    new AsyncRequest<>(testRequest, retryPolicy, operationStats, null);
+  }
+
+  @Test
+  public void testCancelIfQueued() {
+    AsyncRequest<GenericJson> req = new AsyncRequest<>(testRequest, retryPolicy, operationStats);
+    assertTrue(req.cancelIfQueued());
+    assertTrue(req.getFuture().isCancelled());
+    assertEquals(Status.CANCELLED, req.getStatus());
+    assertFalse(req.claimForExecution());
+    assertFalse(req.cancelIfQueued());
+  }
+
+  @Test
+  public void testCancelIfQueuedAfterClaim() {
+    AsyncRequest<GenericJson> req = new AsyncRequest<>(testRequest, retryPolicy, operationStats);
+    assertTrue(req.claimForExecution());
+    assertFalse(req.cancelIfQueued());
+    assertFalse(req.getFuture().isDone());
+    assertEquals(Status.NEW, req.getStatus());
+  }
+
+  @Test
+  public void testCopyOfCancelledRequest() {
+    AsyncRequest<GenericJson> req =
+        new AsyncRequest<>(testRequest, retryPolicy, operationStats, Priority.BULK);
+    assertTrue(req.cancelIfQueued());
+    AsyncRequest<GenericJson> copy = req.copy();
+    assertSame(testRequest, copy.getRequest());
+    assertEquals(Priority.BULK, copy.getPriority());
+    assertFalse(copy.getFuture().isDone());
+    assertEquals(Status.NEW, copy.getStatus());
+    assertTrue(copy.claimForExecution());
+  }
+
+  @Test
+  public void testCopyInOtherLane() {
+    AsyncRequest<GenericJson> req =
+        new AsyncRequest<>(testRequest, retryPolicy, operationStats, Priority.INTERACTIVE);
+    AsyncRequest<GenericJson> copy = req.copy(Priority.BULK);
+    assertSame(testRequest, copy.getRequest());
+    assertEquals(Priority.BULK, copy.getPriority());
+    assertEquals(Priority.INTERACTIVE, req.getPriority());
+  }
+
   @Test
   public void testSuccess() throws IOException {
     AsyncRequest<GenericJson> req = new AsyncRequest<>(testRequest, retryPolicy, operationStats);
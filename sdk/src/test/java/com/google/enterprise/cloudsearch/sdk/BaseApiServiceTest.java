@@ -20,6 +20,7 @@ import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.spy;
@@ -318,6 +319,20 @@ public class BaseApiServiceTest {
         request.getHeaderValues("user-agent").get(0), containsString("bring your own client"));
   }
 
+  @Test
+  public void testApiServiceWithTransportPool() throws Exception {
+    try (HttpTransportPool pool = new HttpTransportPool.Builder().build()) {
+      TestApiService apiService =
+          new TestApiService.Builder()
+              .setTransportPool(pool)
+              .setCredentialFactory(scopes -> new MockGoogleCredential.Builder().build())
+              .build();
+      assertSame(
+          pool.getHttpTransport(new GoogleProxy.Builder().build()),
+          apiService.service.getRequestFactory().getTransport());
+    }
+  }
+
   @Test
   public void testIOExceptionRetry() throws Exception {
     MockLowLevelHttpRequest request =
@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link BatchRequestQueue}. */
+public class BatchRequestQueueTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testInvalidCapacity() {
+    thrown.expect(IllegalArgumentException.class);
+    new BatchRequestQueue<String>(0);
+  }
+
+  @Test
+  public void testDrainRespectsMinimum() throws InterruptedException {
+    BatchRequestQueue<String> queue = new BatchRequestQueue<>(10);
+    queue.put("a");
+    queue.put("b");
+    assertEquals(Collections.emptyList(), queue.drain(3, 3));
+    assertEquals(2, queue.size());
+    assertEquals(ImmutableList.of("a"), queue.drain(1, 1));
+    assertEquals(ImmutableList.of("b"), queue.drain(1, 5));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testDrainAll() throws InterruptedException {
+    BatchRequestQueue<String> queue = new BatchRequestQueue<>(10);
+    queue.put("a");
+    queue.put("b");
+    queue.put("c");
+    assertEquals(ImmutableList.of("a", "b", "c"), queue.drainAll());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testPutBlocksWhenFull() throws InterruptedException {
+    BatchRequestQueue<String> queue = new BatchRequestQueue<>(1);
+    queue.put("a");
+    CountDownLatch added = new CountDownLatch(1);
+    Thread producer =
+        new Thread(
+            () -> {
+              try {
+                queue.put("b");
+                added.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    producer.start();
+    assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(ImmutableList.of("a"), queue.drain(1, 1));
+    assertTrue(added.await(10, TimeUnit.SECONDS));
+    producer.join();
+    assertEquals(ImmutableList.of("b"), queue.drainAll());
+  }
+
+  @Test
+  public void testMismatchedLanes() {
+    thrown.expect(IllegalArgumentException.class);
+    new BatchRequestQueue<String>(new int[] {1, 1}, new int[] {1});
+  }
+
+  @Test
+  public void testDrainSharesBatchByWeight() throws InterruptedException {
+    BatchRequestQueue<String> queue =
+        new BatchRequestQueue<>(new int[] {10, 10, 10}, new int[] {4, 2, 1});
+    for (int i = 0; i < 10; i++) {
+      queue.put("bulk" + i, 2);
+      queue.put("default" + i, 1);
+      queue.put("interactive" + i, 0);
+    }
+    assertEquals(
+        ImmutableList.of(
+            "interactive0", "interactive1", "interactive2", "interactive3",
+            "default0", "default1", "bulk0"),
+        queue.drain(7, 7));
+    assertEquals(6, queue.size(0));
+    assertEquals(8, queue.size(1));
+    assertEquals(9, queue.size(2));
+    assertEquals(23, queue.size());
+  }
+
+  @Test
+  public void testDrainFillsBatchFromOtherLanes() throws InterruptedException {
+    BatchRequestQueue<String> queue =
+        new BatchRequestQueue<>(new int[] {10, 10}, new int[] {4, 1});
+    for (int i = 0; i < 10; i++) {
+      queue.put("bulk" + i, 1);
+    }
+    queue.put("interactive0", 0);
+    assertEquals(
+        ImmutableList.of("interactive0", "bulk0", "bulk1", "bulk2", "bulk3"),
+        queue.drain(5, 5));
+    assertEquals(ImmutableList.of("bulk4", "bulk5"), queue.drain(2, 2));
+    assertEquals(0, queue.size(0));
+    assertEquals(4, queue.size(1));
+  }
+
+  @Test
+  public void testFullLaneDoesNotBlockOtherLanes() throws InterruptedException {
+    BatchRequestQueue<String> queue =
+        new BatchRequestQueue<>(new int[] {1, 1}, new int[] {1, 1});
+    queue.put("bulk0", 1);
+    CountDownLatch added = new CountDownLatch(1);
+    Thread producer =
+        new Thread(
+            () -> {
+              try {
+                queue.put("bulk1", 1);
+                added.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    producer.start();
+    queue.put("interactive0", 0);
+    assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(ImmutableList.of("interactive0", "bulk0"), queue.drain(2, 2));
+    assertTrue(added.await(10, TimeUnit.SECONDS));
+    producer.join();
+    assertEquals(ImmutableList.of("bulk1"), queue.drainAll());
+  }
+
+  @Test
+  public void testConcurrentProducersExactBatches() throws Exception {
+    int producers = 16;
+    int perProducer = 1000;
+    int batchSize = 7;
+    BatchRequestQueue<Integer> queue = new BatchRequestQueue<>(64);
+    List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    CountDownLatch start = new CountDownLatch(1);
+    for (int p = 0; p < producers; p++) {
+      int base = p * perProducer;
+      executor.execute(
+          () -> {
+            try {
+              start.await();
+              for (int i = 0; i < perProducer; i++) {
+                queue.put(base + i);
+                List<Integer> batch = queue.drain(batchSize, batchSize);
+                if (!batch.isEmpty()) {
+                  batches.add(batch);
+                }
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    List<Integer> remaining = queue.drainAll();
+    assertTrue(remaining.size() < batchSize);
+
+    Set<Integer> seen = ConcurrentHashMap.newKeySet();
+    for (List<Integer> batch : batches) {
+      assertEquals(batchSize, batch.size());
+      seen.addAll(batch);
+    }
+    seen.addAll(remaining);
+    assertEquals(producers * perProducer, seen.size());
+    assertEquals(producers * perProducer, batches.size() * batchSize + remaining.size());
+  }
+}
@@ -21,12 +21,15 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -46,8 +49,10 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.util.BackOff;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Priority;
 import com.google.enterprise.cloudsearch.sdk.AsyncRequest.SettableFutureCallback;
 import com.google.enterprise.cloudsearch.sdk.AsyncRequest.Status;
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService.BatchRequestHelper;
@@ -57,8 +62,11 @@ import com.google.enterprise.cloudsearch.sdk.BatchRequestService.SnapshotRunnabl
 import com.google.enterprise.cloudsearch.sdk.BatchRequestService.TimeProvider;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -145,6 +153,54 @@ public class BatchRequestServiceTest {
         .build();
   }
 
+  @Test
+  public void testGaugesScopedPerInstance() throws Exception {
+    when(executorFactory.getExecutor()).thenReturn(MoreExecutors.newDirectExecutorService());
+    when(executorFactory.getScheduledExecutor()).thenReturn(scheduleExecutorService);
+    BatchRequestService users =
+        new BatchRequestService.Builder(service)
+            .setExecutorFactory(executorFactory)
+            .setBatchRequestHelper(batchRequestHelper)
+            .setGoogleCredential(credential)
+            .setName("users")
+            .build();
+    BatchRequestService groups =
+        new BatchRequestService.Builder(service)
+            .setExecutorFactory(executorFactory)
+            .setBatchRequestHelper(batchRequestHelper)
+            .setGoogleCredential(credential)
+            .setName("groups")
+            .build();
+    users.startAsync().awaitRunning();
+    groups.startAsync().awaitRunning();
+    StatsVisitor visitor = mock(StatsVisitor.class);
+    StatsManager.getInstance().visit(visitor);
+    verify(visitor).visitGauge("BatchRequestService.users", "queueDepth", 0);
+    verify(visitor).visitGauge("BatchRequestService.groups", "queueDepth", 0);
+    BatchPolicy defaultPolicy = new BatchPolicy.Builder().build();
+    verify(visitor)
+        .visitGauge(
+            "BatchRequestService.users", "batchSize", defaultPolicy.getMaxBatchSize());
+    verify(visitor)
+        .visitGauge(
+            "BatchRequestService.users",
+            "activeBatchesLimit",
+            defaultPolicy.getMaxActiveBatches());
+
+    users.stopAsync().awaitTerminated();
+    visitor = mock(StatsVisitor.class);
+    StatsManager.getInstance().visit(visitor);
+    verify(visitor, never()).visitGauge(eq("BatchRequestService.users"), any(), anyLong());
+    verify(visitor).visitGauge("BatchRequestService.groups", "queueDepth", 0);
+    groups.stopAsync().awaitTerminated();
+  }
+
+  @Test
+  public void testEmptyName() {
+    thrown.expect(IllegalArgumentException.class);
+    new BatchRequestService.Builder(service).setGoogleCredential(credential).setName("").build();
+  }
+
   @Test
   public void testNotStartedBatch() throws InterruptedException {
     BatchRequestService batchService =
@@ -170,6 +226,10 @@ public class BatchRequestServiceTest {
     SettableFutureCallback<GenericJson> callback2 = Mockito.mock(SettableFutureCallback.class);
     when(requestToBatch.getCallback()).thenReturn(callback);
     when(requestToBatch2.getCallback()).thenReturn(callback2);
+    when(requestToBatch.getPriority()).thenReturn(Priority.DEFAULT);
+    when(requestToBatch2.getPriority()).thenReturn(Priority.DEFAULT);
+    when(requestToBatch.claimForExecution()).thenReturn(true);
+    when(requestToBatch2.claimForExecution()).thenReturn(true);
 
     when(batchRequestHelper.createBatch(requestInitializerCaptor.capture()))
         .thenReturn(batchRequest);
@@ -459,6 +519,136 @@ public class BatchRequestServiceTest {
     verifyNoMoreInteractions(backOff);
   }
 
+  @Test
+  public void testInteractiveRequestBatchedAheadOfBulk() throws Exception {
+    when(executorFactory.getExecutor()).thenReturn(MoreExecutors.newDirectExecutorService());
+    when(executorFactory.getScheduledExecutor()).thenReturn(scheduleExecutorService);
+    BatchRequestService batchService =
+        new BatchRequestService.Builder(service)
+            .setExecutorFactory(executorFactory)
+            .setBatchRequestHelper(batchRequestHelper)
+            .setGoogleCredential(credential)
+            .setBatchPolicy(
+                new BatchPolicy.Builder().setMaxBatchSize(3).setFlushOnShutdown(false).build())
+            .build();
+    batchService.startAsync().awaitRunning();
+    AsyncRequest<GenericJson> bulk1 =
+        new AsyncRequest<GenericJson>(testRequest, retryPolicy, operationStats, Priority.BULK);
+    AsyncRequest<GenericJson> bulk2 =
+        new AsyncRequest<GenericJson>(testRequest, retryPolicy, operationStats, Priority.BULK);
+    AsyncRequest<GenericJson> interactive =
+        new AsyncRequest<GenericJson>(
+            testRequest, retryPolicy, operationStats, Priority.INTERACTIVE);
+    BatchRequest batch = getMockBatchRequest();
+    doAnswer(
+            invocation -> {
+              for (AsyncRequest<GenericJson> request :
+                  ImmutableList.of(bulk1, bulk2, interactive)) {
+                request.getCallback().onStart();
+                request.getCallback().onSuccess(new GenericJson(), new HttpHeaders());
+              }
+              return null;
+            })
+        .when(batchRequestHelper)
+        .executeBatchRequest(batch);
+    when(batchRequestHelper.createBatch(any())).thenReturn(batch);
+    batchService.add(bulk1);
+    batchService.add(bulk2);
+    batchService.add(interactive);
+    InOrder inOrder = inOrder(batchRequestHelper);
+    inOrder.verify(batchRequestHelper).createBatch(any());
+    for (AsyncRequest<GenericJson> request : ImmutableList.of(interactive, bulk1, bulk2)) {
+      inOrder
+          .verify(batchRequestHelper)
+          .queue(
+              eq(batch),
+              eq(request.getRequest()),
+              argThat(new EqualityMatcher<>(request.getCallback())));
+    }
+    inOrder.verify(batchRequestHelper).executeBatchRequest(batch);
+    batchService.stopAsync().awaitTerminated();
+    assertEquals(Status.COMPLETED, interactive.getStatus());
+  }
+
+  @Test
+  public void testRequestCancelledWhileQueuedIsNotExecuted() throws Exception {
+    BatchRequestService batchService = setupService();
+    batchService.startAsync().awaitRunning();
+    AsyncRequest<GenericJson> superseded =
+        new AsyncRequest<GenericJson>(testRequest, retryPolicy, operationStats);
+    AsyncRequest<GenericJson> requestToBatch =
+        new AsyncRequest<GenericJson>(testRequest, retryPolicy, operationStats);
+    BatchRequest batch = getMockBatchRequest();
+    doAnswer(
+            invocation -> {
+              requestToBatch.getCallback().onStart();
+              requestToBatch.getCallback().onSuccess(new GenericJson(), new HttpHeaders());
+              return null;
+            })
+        .when(batchRequestHelper)
+        .executeBatchRequest(batch);
+    when(batchRequestHelper.createBatch(any())).thenReturn(batch);
+    batchService.add(superseded);
+    batchService.add(requestToBatch);
+    assertTrue(superseded.cancelIfQueued());
+    assertEquals((Integer) 1, batchService.flush().get());
+    verify(batchRequestHelper)
+        .queue(
+            eq(batch),
+            eq(requestToBatch.getRequest()),
+            argThat(new EqualityMatcher<>(requestToBatch.getCallback())));
+    verify(batchRequestHelper).executeBatchRequest(batch);
+
+    AsyncRequest<GenericJson> cancelled =
+        new AsyncRequest<GenericJson>(testRequest, retryPolicy, operationStats);
+    batchService.add(cancelled);
+    assertTrue(cancelled.cancelIfQueued());
+    assertEquals((Integer) 0, batchService.flush().get());
+    batchService.stopAsync().awaitTerminated();
+    verify(batchRequestHelper).createBatch(any());
+    assertTrue(superseded.getFuture().isCancelled());
+    assertEquals(Status.COMPLETED, requestToBatch.getStatus());
+  }
+
+  @Test
+  public void testAdaptiveBatchSizeGrowsAfterHealthyBatch() throws Exception {
+    when(executorFactory.getExecutor()).thenReturn(MoreExecutors.newDirectExecutorService());
+    when(executorFactory.getScheduledExecutor()).thenReturn(scheduleExecutorService);
+    BatchRequestService batchService =
+        new BatchRequestService.Builder(service)
+            .setExecutorFactory(executorFactory)
+            .setBatchRequestHelper(batchRequestHelper)
+            .setGoogleCredential(credential)
+            .setBatchPolicy(
+                new BatchPolicy.Builder()
+                    .setMaxBatchSize(2)
+                    .setAdaptive(true)
+                    .setAdaptiveBatchSizeRange(1, 4)
+                    .setFlushOnShutdown(false)
+                    .build())
+            .build();
+    batchService.startAsync().awaitRunning();
+    when(batchRequestHelper.createBatch(any())).thenAnswer(i -> getMockBatchRequest());
+    List<AsyncRequest<GenericJson>> batched = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      AsyncRequest<GenericJson> request =
+          new AsyncRequest<GenericJson>(testRequest, retryPolicy, operationStats);
+      request.setStatus(Status.COMPLETED);
+      batched.add(request);
+    }
+    // first batch flushed at configured size 2, second one at adjusted size 3
+    batchService.add(batched.get(0));
+    batchService.add(batched.get(1));
+    assertEquals(0, batchService.getCurrentBatchSize());
+    batchService.add(batched.get(2));
+    batchService.add(batched.get(3));
+    assertEquals(2, batchService.getCurrentBatchSize());
+    batchService.add(batched.get(4));
+    assertEquals(0, batchService.getCurrentBatchSize());
+    verify(batchRequestHelper, times(2)).executeBatchRequest(any());
+    batchService.stopAsync().awaitTerminated();
+  }
+
   @Test
   public void testRejectedByExecutor() throws Exception {
     ExecutorService rejectExecutor = Mockito.mock(ExecutorService.class);
@@ -18,11 +18,13 @@ package com.google.enterprise.cloudsearch.sdk;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableList;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl.CompareCheckpointCloseableIterableRule;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import org.junit.Rule;
 import org.junit.Test;
@@ -180,4 +182,35 @@ public class CheckpointCloseableIterableTest {
     changeComparer.compare(incremental1, incremental2);
   }
 
+  @Test
+  public void testIntermediateCheckpoint_defaultNull() {
+    CheckpointCloseableIterable<String> incremental =
+        new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of("id1")).build();
+    assertNull(incremental.getIntermediateCheckpoint());
+  }
+
+  @Test
+  public void testIntermediateCheckpoint_suppliedWhileIterating() {
+    Iterator<String> changes = ImmutableList.of("id1", "id2").iterator();
+    CheckpointCloseableIterable<String> incremental =
+        new CheckpointCloseableIterableImpl.Builder<>(changes)
+            .setIntermediateCheckpoint(() -> changes.hasNext() ? checkPoint1 : checkPoint2)
+            .build();
+    Iterator<String> iterator = incremental.iterator();
+    iterator.next();
+    assertEquals(checkPoint1, incremental.getIntermediateCheckpoint());
+    iterator.next();
+    assertEquals(checkPoint2, incremental.getIntermediateCheckpoint());
+  }
+
+  @Test
+  public void testIntermediateCheckpoint_clonedFromDelegate() {
+    CheckpointCloseableIterable<String> delegate =
+        new CheckpointCloseableIterableImpl.Builder<>(ImmutableList.of("id1"))
+            .setIntermediateCheckpoint(() -> checkPoint1)
+            .build();
+    CheckpointCloseableIterable<String> clone =
+        new CheckpointCloseableIterableImpl.Builder<>(delegate).build();
+    assertEquals(checkPoint1, clone.getIntermediateCheckpoint());
+  }
 }
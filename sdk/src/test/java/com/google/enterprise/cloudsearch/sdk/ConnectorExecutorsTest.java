@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.sdk.ConnectorExecutors.Mode;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link ConnectorExecutors}. */
+public class ConnectorExecutorsTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  @Test
+  public void testPlatformModeWithoutConfiguration() {
+    assertEquals(Mode.PLATFORM, ConnectorExecutors.getMode());
+  }
+
+  @Test
+  public void testPlatformModeByDefault() {
+    setupConfig.initConfig(new Properties());
+    assertEquals(Mode.PLATFORM, ConnectorExecutors.getMode());
+  }
+
+  @Test
+  public void testInvalidMode() {
+    Properties config = new Properties();
+    config.put(ConnectorExecutors.CONFIG_EXECUTOR_MODE, "green");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    ConnectorExecutors.getMode();
+  }
+
+  @Test
+  public void testVirtualModeFallsBackWhenUnsupported() {
+    assumeFalse(ConnectorExecutors.isVirtualThreadSupported());
+    Properties config = new Properties();
+    config.put(ConnectorExecutors.CONFIG_EXECUTOR_MODE, "Virtual");
+    setupConfig.initConfig(config);
+    assertEquals(Mode.PLATFORM, ConnectorExecutors.getMode());
+  }
+
+  @Test
+  public void testVirtualMode() throws Exception {
+    assumeTrue(ConnectorExecutors.isVirtualThreadSupported());
+    Properties config = new Properties();
+    config.put(ConnectorExecutors.CONFIG_EXECUTOR_MODE, "virtual");
+    setupConfig.initConfig(config);
+    ExecutorService executor = ConnectorExecutors.newCachedExecutor("virtual-%d", false);
+    try {
+      Future<String> name = executor.submit(() -> Thread.currentThread().getName());
+      assertEquals("virtual-0", name.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testPlatformBoundedExecutor() {
+    setupConfig.initConfig(new Properties());
+    ExecutorService executor = ConnectorExecutors.newBoundedExecutor("bounded-%d", true, 3);
+    try {
+      assertTrue(executor instanceof ThreadPoolExecutor);
+      assertEquals(3, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testBoundedByLimitsRunningTasks() throws Exception {
+    ExecutorService delegate = Executors.newCachedThreadPool();
+    ExecutorService bounded = ConnectorExecutors.boundedBy(delegate, 2);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(10);
+    try {
+      for (int i = 0; i < 10; i++) {
+        bounded.execute(
+            () -> {
+              maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+              try {
+                Thread.sleep(10);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              running.decrementAndGet();
+              done.countDown();
+            });
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 2);
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(bounded, 10, TimeUnit.SECONDS);
+    }
+    assertTrue(delegate.isTerminated());
+  }
+}
@@ -28,7 +28,11 @@ import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
@@ -180,6 +184,33 @@ public class ConnectorSchedulerTest {
     traverser.start();
   }
 
+  @Test
+  public void testFailedStatsExporterStopsStartedExporters() throws Exception {
+    StatsManager.getComponent("ConnectorSchedulerTest");
+    try (ServerSocket taken = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+      Map<String, String> config = new HashMap<>();
+      config.put(StatsExporter.CONFIG_STATS_EXPORTERS, "jmx,prometheus");
+      config.put(PrometheusStatsExporter.CONFIG_PORT, String.valueOf(taken.getLocalPort()));
+      setupConfig(config);
+      ConnectorScheduler<ConnectorContext> traverser =
+          new ConnectorScheduler.Builder()
+              .setConnector(new NothingConnector(1))
+              .setContext(getContextWithExceptionHandler(-1))
+              .build();
+      try {
+        traverser.start();
+        fail("expected StartupException");
+      } catch (StartupException expected) {
+        // prometheus port in use, the JMX exporter started before it is stopped
+        assertFalse(
+            ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(JmxStatsExporter.getObjectName("ConnectorSchedulerTest")));
+      } finally {
+        traverser.stop();
+      }
+    }
+  }
+
   @Test
   public void testTraverseNoRetry() throws Exception {
     setupConfig(Collections.emptyMap());
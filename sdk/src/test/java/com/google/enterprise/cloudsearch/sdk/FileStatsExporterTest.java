@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link FileStatsExporter}. */
+public class FileStatsExporterTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testExportAppendsLineProtocol() throws Exception {
+    OperationStats component = StatsManager.getComponent("file component");
+    component.event("item").start().success();
+    component.registerGauge("depth", () -> 6);
+    component.recordLatency("wait", 250, TimeUnit.MICROSECONDS);
+    Path path = temporaryFolder.getRoot().toPath().resolve("stats.txt");
+    FileStatsExporter exporter = new FileStatsExporter(path, 60, () -> 1000L);
+    exporter.start(StatsManager.getInstance());
+    try {
+      exporter.export();
+      exporter.export();
+    } finally {
+      exporter.stop();
+    }
+
+    List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+    String success =
+        "cloudsearch_operations,component=file\\ component,operation=item,outcome=success"
+            + " value=1i 1000000000";
+    assertEquals(3, lines.stream().filter(success::equals).count());
+    assertTrue(
+        lines.contains(
+            "cloudsearch_gauge,component=file\\ component,gauge=depth value=6i 1000000000"));
+    assertTrue(
+        lines.contains(
+            "cloudsearch_latency,component=file\\ component,operation=wait count=1i,sum_us=250i,"
+                + "max_us=250i,p50_us=250i,p90_us=250i,p99_us=250i,p999_us=250i 1000000000"));
+  }
+
+  @Test
+  public void testExportNotStarted() throws Exception {
+    FileStatsExporter exporter =
+        new FileStatsExporter(temporaryFolder.newFile().toPath(), 60, () -> 0L);
+    thrown.expect(IllegalStateException.class);
+    exporter.export();
+  }
+
+  @Test
+  public void testStopWithoutStart() throws Exception {
+    Path path = temporaryFolder.getRoot().toPath().resolve("unused.txt");
+    new FileStatsExporter(path, 60, () -> 0L).stop();
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  public void testFromConfigurationMissingPath() {
+    setupConfig.initConfig(new Properties());
+    thrown.expect(InvalidConfigurationException.class);
+    FileStatsExporter.fromConfiguration();
+  }
+
+  @Test
+  public void testFromConfigurationInvalidInterval() throws Exception {
+    Properties config = new Properties();
+    config.put(FileStatsExporter.CONFIG_PATH, temporaryFolder.newFile().toString());
+    config.put(FileStatsExporter.CONFIG_INTERVAL_SECONDS, "0");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    FileStatsExporter.fromConfiguration();
+  }
+}
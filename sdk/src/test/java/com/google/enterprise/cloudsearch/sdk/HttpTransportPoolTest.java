@@ -0,0 +1,275 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.Base64;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.ResetStatsRule;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link HttpTransportPool}. */
+public class HttpTransportPoolTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetStatsRule resetStats = new ResetStatsRule();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  private HttpTransportPool pool;
+  private HttpServer server;
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.close();
+    }
+    if (server != null) {
+      server.stop(0);
+    }
+    HttpTransportPool.closeShared();
+  }
+
+  @Test
+  public void testInvalidMaxConnections() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new HttpTransportPool.Builder().setMaxConnections(0).build();
+  }
+
+  @Test
+  public void testTransportSharedPerProxy() throws Exception {
+    pool = new HttpTransportPool.Builder().build();
+    GoogleProxy direct = new GoogleProxy.Builder().build();
+    GoogleProxy httpProxy =
+        new GoogleProxy.Builder()
+            .setProxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy", 3128)))
+            .build();
+    HttpTransport transport = pool.getHttpTransport(direct);
+    assertTrue(transport instanceof ApacheHttpTransport);
+    assertSame(transport, pool.getHttpTransport(new GoogleProxy.Builder().build()));
+    assertNotSame(transport, pool.getHttpTransport(httpProxy));
+  }
+
+  @Test
+  public void testSocksProxyNotPooled() throws Exception {
+    pool = new HttpTransportPool.Builder().build();
+    GoogleProxy socksProxy =
+        new GoogleProxy.Builder()
+            .setProxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("proxy", 1080)))
+            .build();
+    assertFalse(pool.getHttpTransport(socksProxy) instanceof ApacheHttpTransport);
+  }
+
+  @Test
+  public void testProxyCredentialsSentOnConnect() throws Exception {
+    String authorization =
+        "Basic " + Base64.encodeBase64String("user:secret".getBytes(StandardCharsets.UTF_8));
+    List<String> connectAuthorizations = new CopyOnWriteArrayList<>();
+    try (ServerSocket proxyServer = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+      Thread proxyThread =
+          new Thread(
+              () -> runAuthenticatingProxy(proxyServer, authorization, connectAuthorizations));
+      proxyThread.setDaemon(true);
+      proxyThread.start();
+      pool = new HttpTransportPool.Builder().build();
+      GoogleProxy googleProxy =
+          new GoogleProxy.Builder()
+              .setProxy(
+                  new Proxy(
+                      Proxy.Type.HTTP,
+                      new InetSocketAddress("localhost", proxyServer.getLocalPort())))
+              .setUserNamePassword("user", "secret")
+              .build();
+      HttpTransport transport = pool.getHttpTransport(googleProxy);
+      try {
+        transport
+            .createRequestFactory(googleProxy.getHttpRequestInitializer())
+            .buildGetRequest(new GenericUrl("https://www.googleapis.com/"))
+            .execute();
+        fail("expected tunnel to be refused");
+      } catch (IOException expected) {
+        // the test proxy refuses tunnels once authenticated
+      }
+    }
+    // challenged without credentials first, then authenticated
+    assertEquals(Arrays.asList("", authorization), connectAuthorizations);
+  }
+
+  /**
+   * Serves CONNECT requests, challenging requests without {@code authorization} and refusing
+   * authenticated tunnels with 502.
+   */
+  private static void runAuthenticatingProxy(
+      ServerSocket proxyServer, String authorization, List<String> connectAuthorizations) {
+    while (!proxyServer.isClosed()) {
+      try (Socket socket = proxyServer.accept()) {
+        BufferedReader in =
+            new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        OutputStream out = socket.getOutputStream();
+        String requestLine;
+        while ((requestLine = in.readLine()) != null) {
+          String proxyAuthorization = "";
+          String header;
+          while ((header = in.readLine()) != null && !header.isEmpty()) {
+            if (header.toLowerCase(Locale.ROOT).startsWith("proxy-authorization:")) {
+              proxyAuthorization = header.substring(header.indexOf(':') + 1).trim();
+            }
+          }
+          if (!requestLine.startsWith("CONNECT ")) {
+            break;
+          }
+          connectAuthorizations.add(proxyAuthorization);
+          String response =
+              authorization.equals(proxyAuthorization)
+                  ? "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                  : "HTTP/1.1 407 Proxy Authentication Required\r\n"
+                      + "Proxy-Authenticate: Basic realm=\"test\"\r\nContent-Length: 0\r\n\r\n";
+          out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+          out.flush();
+        }
+      } catch (IOException e) {
+        // closed by the test
+      }
+    }
+  }
+
+  @Test
+  public void testConnectionReused() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    pool = new HttpTransportPool.Builder().setMaxConnectionsPerRoute(1).build();
+    HttpTransport transport = pool.getHttpTransport(new GoogleProxy.Builder().build());
+    GenericUrl url = new GenericUrl("http://localhost:" + server.getAddress().getPort() + "/");
+
+    for (int i = 0; i < 3; i++) {
+      HttpResponse response =
+          transport
+              .createRequestFactory(request -> request.setConnectTimeout(5000))
+              .buildGetRequest(url)
+              .execute();
+      assertEquals("ok", response.parseAsString());
+      response.disconnect();
+    }
+
+    assertEquals(0, pool.getTotalStats().getLeased());
+    assertEquals(1, pool.getTotalStats().getAvailable());
+
+    // connections are owned by the pool, not by a transport shut down by its service
+    transport.shutdown();
+    assertEquals(1, pool.getTotalStats().getAvailable());
+    HttpResponse response =
+        transport
+            .createRequestFactory(request -> request.setConnectTimeout(5000))
+            .buildGetRequest(url)
+            .execute();
+    assertEquals("ok", response.parseAsString());
+    response.disconnect();
+
+    StatsVisitor visitor = mock(StatsVisitor.class);
+    StatsManager.getComponent(HttpTransportPool.STATS_COMPONENT)
+        .visit(HttpTransportPool.STATS_COMPONENT, visitor);
+    verify(visitor).visitGauge(HttpTransportPool.STATS_COMPONENT, "leased", 0);
+    verify(visitor).visitGauge(HttpTransportPool.STATS_COMPONENT, "available", 1);
+  }
+
+  @Test
+  public void testFromConfigurationShared() throws Exception {
+    Properties config = new Properties();
+    config.put(HttpTransportPool.CONFIG_ENABLED, "true");
+    config.put(HttpTransportPool.CONFIG_MAX_CONNECTIONS, "10");
+    setupConfig.initConfig(config);
+    HttpTransportPool shared = HttpTransportPool.fromConfiguration();
+    assertSame(shared, HttpTransportPool.fromConfiguration());
+    assertEquals(10, shared.getTotalStats().getMax());
+  }
+
+  @Test
+  public void testFromConfigurationDisabledByDefault() {
+    setupConfig.initConfig(new Properties());
+    assertNull(HttpTransportPool.fromConfiguration());
+  }
+
+  @Test
+  public void testCloseSharedUnregistersGauges() {
+    Properties config = new Properties();
+    config.put(HttpTransportPool.CONFIG_ENABLED, "true");
+    setupConfig.initConfig(config);
+    HttpTransportPool shared = HttpTransportPool.fromConfiguration();
+    HttpTransportPool.closeShared();
+
+    StatsVisitor visitor = mock(StatsVisitor.class);
+    StatsManager.getComponent(HttpTransportPool.STATS_COMPONENT)
+        .visit(HttpTransportPool.STATS_COMPONENT, visitor);
+    verify(visitor, never()).visitGauge(any(), any(), anyLong());
+    assertNotSame(shared, HttpTransportPool.fromConfiguration());
+  }
+
+  @Test
+  public void testFromConfigurationInvalid() {
+    Properties config = new Properties();
+    config.put(HttpTransportPool.CONFIG_ENABLED, "true");
+    config.put(HttpTransportPool.CONFIG_MAX_CONNECTIONS_PER_ROUTE, "0");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    HttpTransportPool.fromConfiguration();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link JmxStatsExporter}. */
+public class JmxStatsExporterTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private MBeanServer mbeanServer;
+  private JmxStatsExporter exporter;
+
+  @Before
+  public void setUp() {
+    mbeanServer = MBeanServerFactory.newMBeanServer();
+    exporter = new JmxStatsExporter(mbeanServer);
+  }
+
+  @After
+  public void tearDown() {
+    StatsManager.getInstance().stopExporter(exporter);
+  }
+
+  @Test
+  public void testAttributesOfExistingComponent() throws Exception {
+    OperationStats component = StatsManager.getComponent("jmxComponent");
+    component.register("item");
+    component.event("item").start().success();
+    component.logResult("item", "OK");
+    component.registerGauge("depth", () -> 5);
+    component.recordLatency("wait", 1500, TimeUnit.MICROSECONDS);
+    StatsManager.getInstance().startExporter(exporter);
+
+    ObjectName name = JmxStatsExporter.getObjectName("jmxComponent");
+    assertEquals(1L, mbeanServer.getAttribute(name, "registered.item"));
+    assertEquals(1L, mbeanServer.getAttribute(name, "success.item"));
+    assertEquals(1L, mbeanServer.getAttribute(name, "result.item.OK"));
+    assertEquals(5L, mbeanServer.getAttribute(name, "gauge.depth"));
+    assertEquals(1L, mbeanServer.getAttribute(name, "latency.wait.count"));
+    assertEquals(1500L, (long) mbeanServer.getAttribute(name, "latency.wait.max"));
+    MBeanAttributeInfo[] attributes = mbeanServer.getMBeanInfo(name).getAttributes();
+    assertTrue(
+        Arrays.stream(attributes).anyMatch(a -> a.getName().equals("latency.wait.p999")));
+  }
+
+  @Test
+  public void testComponentAddedAfterStart() throws Exception {
+    StatsManager.getInstance().startExporter(exporter);
+    StatsManager.getComponent("jmxLateComponent").registerGauge("threads", () -> 3);
+    ObjectName name = JmxStatsExporter.getObjectName("jmxLateComponent");
+    assertEquals(3L, mbeanServer.getAttribute(name, "gauge.threads"));
+  }
+
+  @Test
+  public void testStopUnregisters() throws Exception {
+    StatsManager.getComponent("jmxStoppedComponent");
+    StatsManager.getInstance().startExporter(exporter);
+    ObjectName name = JmxStatsExporter.getObjectName("jmxStoppedComponent");
+    assertTrue(mbeanServer.isRegistered(name));
+    StatsManager.getInstance().stopExporter(exporter);
+    assertFalse(mbeanServer.isRegistered(name));
+  }
+
+  @Test
+  public void testUnknownAttribute() throws Exception {
+    StatsManager.getComponent("jmxUnknownAttribute");
+    StatsManager.getInstance().startExporter(exporter);
+    thrown.expect(AttributeNotFoundException.class);
+    mbeanServer.getAttribute(JmxStatsExporter.getObjectName("jmxUnknownAttribute"), "missing");
+  }
+}
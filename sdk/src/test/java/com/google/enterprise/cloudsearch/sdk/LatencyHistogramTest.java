@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link LatencyHistogram}. */
+public class LatencyHistogramTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testInvalidSignificantDigits() {
+    thrown.expect(IllegalArgumentException.class);
+    new LatencyHistogram(0);
+  }
+
+  @Test
+  public void testSignificantDigitsAboveMax() {
+    thrown.expect(IllegalArgumentException.class);
+    new LatencyHistogram(LatencyHistogram.MAX_SIGNIFICANT_DIGITS + 1);
+  }
+
+  @Test
+  public void testEmpty() {
+    LatencyHistogram.Snapshot snapshot = new LatencyHistogram(2).getSnapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0, snapshot.getMean(), 0.0);
+    assertEquals(0, snapshot.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram(2);
+    for (long i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(100, snapshot.getCount());
+    assertEquals(100, snapshot.getMax());
+    assertEquals(50.5, snapshot.getMean(), 0.0);
+    assertEquals(50, snapshot.getValueAtPercentile(50));
+    assertEquals(99, snapshot.getValueAtPercentile(99));
+    assertEquals(100, snapshot.getValueAtPercentile(100));
+    assertEquals(1, snapshot.getValueAtPercentile(0));
+  }
+
+  @Test
+  public void testPrecisionOfLargeValues() {
+    for (int digits = 1; digits <= 3; digits++) {
+      LatencyHistogram histogram = new LatencyHistogram(digits);
+      double maxRelativeError = Math.pow(10, -digits);
+      for (long value = 1; value < LatencyHistogram.DEFAULT_HIGHEST_TRACKABLE_VALUE; value *= 3) {
+        LatencyHistogram single = new LatencyHistogram(digits);
+        single.record(value);
+        single.record(value + 1);
+        long reported = single.getSnapshot().getValueAtPercentile(50);
+        assertTrue(
+            "value " + value + " reported as " + reported,
+            reported >= value && reported <= value * (1 + maxRelativeError));
+        histogram.record(value);
+      }
+    }
+  }
+
+  @Test
+  public void testTailPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram(2);
+    for (int i = 0; i < 990; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toMicros(10));
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(TimeUnit.SECONDS.toMicros(2));
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(10_000, snapshot.getValueAtPercentile(99), 100);
+    assertEquals(2_000_000, snapshot.getValueAtPercentile(99.9), 20_000);
+    assertEquals(2_000_000, snapshot.getMax());
+  }
+
+  @Test
+  public void testValuesOutOfRange() {
+    LatencyHistogram histogram = new LatencyHistogram(2, 1000);
+    histogram.record(-5);
+    histogram.record(5000);
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(0, snapshot.getValueAtPercentile(50));
+    assertEquals(1000, snapshot.getMax());
+  }
+
+  @Test
+  public void testSince() {
+    LatencyHistogram histogram = new LatencyHistogram(2);
+    histogram.record(5000);
+    LatencyHistogram.Snapshot first = histogram.getSnapshot();
+    histogram.record(10);
+    histogram.record(20);
+    LatencyHistogram.Snapshot window = histogram.getSnapshot().since(first);
+    assertEquals(2, window.getCount());
+    assertEquals(15, window.getMean(), 0.0);
+    assertEquals(20, window.getMax());
+  }
+
+  @Test
+  public void testSinceDifferentHistogram() {
+    LatencyHistogram.Snapshot first = new LatencyHistogram(1).getSnapshot();
+    thrown.expect(IllegalArgumentException.class);
+    new LatencyHistogram(3).getSnapshot().since(first);
+  }
+
+  @Test
+  public void testAddWithDifferentPrecision() {
+    LatencyHistogram source = new LatencyHistogram(3);
+    source.record(123_456);
+    source.record(7);
+    LatencyHistogram target = new LatencyHistogram(2);
+    target.record(1);
+    target.add(source.getSnapshot());
+    LatencyHistogram.Snapshot snapshot = target.getSnapshot();
+    assertEquals(3, snapshot.getCount());
+    assertEquals(123_456, snapshot.getMax());
+    assertEquals((123_456 + 7 + 1) / 3.0, snapshot.getMean(), 0.0);
+    assertEquals(7, snapshot.getValueAtPercentile(50));
+    assertEquals(123_456, snapshot.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram(2);
+    int threads = 8;
+    int perThread = 10_000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.execute(
+          () -> {
+            for (int i = 1; i <= perThread; i++) {
+              histogram.record(i);
+            }
+          });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(threads * perThread, snapshot.getCount());
+    assertEquals(perThread, snapshot.getMax());
+    assertEquals((perThread + 1) / 2.0, snapshot.getMean(), 0.0);
+  }
+
+  @Test
+  public void testSnapshotSerializable() throws IOException, ClassNotFoundException {
+    LatencyHistogram histogram = new LatencyHistogram(2);
+    histogram.record(42);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(histogram.getSnapshot());
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      LatencyHistogram.Snapshot snapshot = (LatencyHistogram.Snapshot) in.readObject();
+      assertEquals(1, snapshot.getCount());
+      assertEquals(42, snapshot.getValueAtPercentile(50));
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.CharStreams;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Tests for {@link PrometheusStatsExporter}. */
+public class PrometheusStatsExporterTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  private PrometheusStatsExporter exporter;
+
+  @After
+  public void tearDown() {
+    if (exporter != null) {
+      exporter.stop();
+    }
+  }
+
+  @Test
+  public void testRenderPrometheusFormat() throws Exception {
+    OperationStats component = StatsManager.getComponent("prometheus\"Component");
+    component.event("item").start().success();
+    component.event("item").start().failure();
+    component.logResult("item", "DONE");
+    component.registerGauge("queueDepth", () -> 4);
+    component.recordLatency("wait", 2, TimeUnit.SECONDS);
+    exporter = new PrometheusStatsExporter("localhost", 0, "/metrics");
+    exporter.start(StatsManager.getInstance());
+
+    String text = exporter.render(false);
+
+    assertTrue(text, text.contains("# TYPE cloudsearch_operations_total counter\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_operations_total{component=\"prometheus\\\"Component\","
+                + "operation=\"item\",outcome=\"success\"} 1\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_operations_total{component=\"prometheus\\\"Component\","
+                + "operation=\"item\",outcome=\"failure\"} 1\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_operation_results_total{component=\"prometheus\\\"Component\","
+                + "operation=\"item\",result=\"DONE\"} 1\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_gauge{component=\"prometheus\\\"Component\",gauge=\"queueDepth\"} 4\n"));
+    assertTrue(text, text.contains("# TYPE cloudsearch_latency_seconds summary\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_latency_seconds_count{component=\"prometheus\\\"Component\","
+                + "operation=\"wait\"} 1\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_latency_seconds_sum{component=\"prometheus\\\"Component\","
+                + "operation=\"wait\"} 2.0\n"));
+    assertFalse(text, text.contains("# EOF"));
+  }
+
+  @Test
+  public void testRenderOpenMetricsFormat() throws Exception {
+    StatsManager.getComponent("openMetricsComponent").register("item");
+    exporter = new PrometheusStatsExporter("localhost", 0, "/metrics");
+    exporter.start(StatsManager.getInstance());
+
+    String text = exporter.render(true);
+
+    assertTrue(text, text.contains("# TYPE cloudsearch_operations counter\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "cloudsearch_operations_total{component=\"openMetricsComponent\","
+                + "operation=\"item\",outcome=\"registered\"} 1\n"));
+    assertTrue(text, text.endsWith("# EOF\n"));
+  }
+
+  @Test
+  public void testEncodeReusesBuffer() {
+    exporter = new PrometheusStatsExporter("localhost", 0, "/metrics");
+    String text = "ascii, \u00e9, \u20ac and \ud83d\ude00";
+
+    ByteBuffer encoded = exporter.encode(text);
+
+    byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+    assertEquals(expected.length, encoded.remaining());
+    assertArrayEquals(expected, Arrays.copyOf(encoded.array(), encoded.limit()));
+    assertSame(encoded, exporter.encode("short"));
+    assertEquals("short", new String(encoded.array(), 0, encoded.limit(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testScrapeOverHttp() throws Exception {
+    StatsManager.getComponent("scrapedComponent").registerGauge("threads", () -> 2);
+    exporter = new PrometheusStatsExporter("localhost", 0, "/stats");
+    exporter.start(StatsManager.getInstance());
+    URL url = new URL("http://localhost:" + exporter.getPort() + "/stats");
+
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+    String body = read(connection);
+    assertTrue(
+        body,
+        body.contains("cloudsearch_gauge{component=\"scrapedComponent\",gauge=\"threads\"} 2\n"));
+
+    connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestProperty("Accept", "application/openmetrics-text; version=1.0.0");
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("application/openmetrics-text"));
+    assertTrue(read(connection).endsWith("# EOF\n"));
+  }
+
+  @Test
+  public void testFromConfiguration() {
+    Properties config = new Properties();
+    config.put(PrometheusStatsExporter.CONFIG_PORT, "0");
+    config.put(PrometheusStatsExporter.CONFIG_PATH, "/custom");
+    setupConfig.initConfig(config);
+    assertTrue(PrometheusStatsExporter.fromConfiguration() != null);
+  }
+
+  @Test
+  public void testFromConfigurationInvalidPath() {
+    Properties config = new Properties();
+    config.put(PrometheusStatsExporter.CONFIG_PATH, "metrics");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    PrometheusStatsExporter.fromConfiguration();
+  }
+
+  @Test
+  public void testGetPortNotStarted() {
+    exporter = new PrometheusStatsExporter("localhost", 0, "/metrics");
+    thrown.expect(IllegalStateException.class);
+    exporter.getPort();
+  }
+
+  private static String read(HttpURLConnection connection) throws Exception {
+    try (Reader reader =
+        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+      return CharStreams.toString(reader);
+    }
+  }
+}
@@ -17,13 +17,24 @@ package com.google.enterprise.cloudsearch.sdk;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.File;
+import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 /** Tests for {@link QuotaServer}. */
 
@@ -32,6 +43,7 @@ public class QuotaServerTest {
   @Rule public ExpectedException thrown = ExpectedException.none();
   @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
   @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   private static final double DELTA_FOR_EQUALS = 0.01;
 
@@ -187,4 +199,138 @@ public class QuotaServerTest {
     thrown.expect(InvalidConfigurationException.class);
     QuotaServer.<Operations>createFromConfiguration("ops", Operations.class);
   }
+
+  @Test
+  public void testBurstCapacityBuilder() {
+    AtomicLong nowMicros = new AtomicLong();
+    QuotaServer<Operations> qs =
+        new QuotaServer.Builder<>(Operations.class)
+            .setDefaultQps(4)
+            .setBurstCapacity(Operations.OP1, 20)
+            .setTimeSourceMicros(nowMicros::get)
+            .build();
+    assertEquals(20, qs.getBurstCapacity(Operations.OP1), DELTA_FOR_EQUALS);
+    assertEquals(4, qs.getBurstCapacity(Operations.OP2), DELTA_FOR_EQUALS);
+    nowMicros.addAndGet(TimeUnit.SECONDS.toMicros(10));
+    for (int i = 0; i < 20; i++) {
+      assertEquals(0.0, qs.acquire(Operations.OP1), 0.0);
+    }
+  }
+
+  @Test
+  public void testInvalidBurstCapacityBuilder() {
+    QuotaServer.Builder<Operations, QuotaServer<Operations>> qs =
+        new QuotaServer.Builder<>(Operations.class);
+    thrown.expect(IllegalArgumentException.class);
+    qs.setBurstCapacity(Operations.OP1, 0);
+  }
+
+  @Test
+  public void testAcquireAsyncDoesNotBlock() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      QuotaServer<Operations> qs =
+          new QuotaServer.Builder<>(Operations.class)
+              .addQuota(Operations.OP1, 2)
+              .setScheduler(scheduler)
+              .setTimeSourceMicros(() -> 0L)
+              .build();
+      ListenableFuture<Double> first = qs.acquireAsync(Operations.OP1);
+      assertTrue(first.isDone());
+      assertEquals(0.0, first.get(), 0.0);
+      long start = System.nanoTime();
+      ListenableFuture<Double> second = qs.acquireAsync(Operations.OP1);
+      ListenableFuture<Double> third = qs.acquireAsync(Operations.OP1);
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+      assertFalse(third.isDone());
+      assertEquals(0.5, second.get(10, TimeUnit.SECONDS), 0.0);
+      assertEquals(1.0, third.get(10, TimeUnit.SECONDS), 0.0);
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testInvalidOperationAcquireAsync() {
+    QuotaServer<Operations> qs = new QuotaServer.Builder<>(Operations.class).build();
+    thrown.expect(IllegalArgumentException.class);
+    qs.acquireAsync(null);
+  }
+
+  @Test
+  public void testSharedQuotaFile() throws IOException, ExecutionException, InterruptedException {
+    File shared = temporaryFolder.newFile();
+    AtomicLong nowMicros = new AtomicLong(TimeUnit.SECONDS.toMicros(100));
+    QuotaServer<Operations> first =
+        new QuotaServer.Builder<>(Operations.class)
+            .setDefaultQps(1)
+            .setSharedQuotaFile(shared.toPath())
+            .setTimeSourceMicros(nowMicros::get)
+            .build();
+    QuotaServer<Operations> second =
+        new QuotaServer.Builder<>(Operations.class)
+            .setDefaultQps(1)
+            .setSharedQuotaFile(shared.toPath())
+            .setTimeSourceMicros(nowMicros::get)
+            .build();
+    assertTrue(first.acquireAsync(Operations.OP1).isDone());
+    assertTrue(second.acquireAsync(Operations.OP1).isDone());
+    // budget for OP1 is used up by both servers together
+    assertFalse(first.acquireAsync(Operations.OP1).isDone());
+    assertFalse(second.acquireAsync(Operations.OP1).isDone());
+    assertTrue(second.acquireAsync(Operations.OP2).isDone());
+  }
+
+  @Test
+  public void testCloseSharedQuotaFile() throws IOException {
+    QuotaServer<Operations> qs =
+        new QuotaServer.Builder<>(Operations.class)
+            .setSharedQuotaFile(temporaryFolder.newFile().toPath())
+            .build();
+    qs.acquire(Operations.OP1);
+    qs.close();
+    thrown.expect(IllegalStateException.class);
+    qs.acquire(Operations.OP1);
+  }
+
+  @Test
+  public void testCloseWithoutSharedQuotaFile() throws IOException {
+    QuotaServer<Operations> qs = new QuotaServer.Builder<>(Operations.class).build();
+    qs.close();
+    assertEquals(0.0, qs.acquire(Operations.OP1), 0.0);
+  }
+
+  @Test
+  public void testBurstAndSharedFileFromConfig() throws IOException {
+    File shared = temporaryFolder.newFile();
+    Properties properties = new Properties();
+    properties.put("quotaServer.ops.defaultQps", "5");
+    properties.put("quotaServer.ops.OP1.burst", "50");
+    properties.put("quotaServer.ops.sharedFile", shared.getAbsolutePath());
+    setupConfig.initConfig(properties);
+    QuotaServer<Operations> qs =
+        QuotaServer.<Operations>createFromConfiguration("ops", Operations.class);
+    assertEquals(50, qs.getBurstCapacity(Operations.OP1), DELTA_FOR_EQUALS);
+    assertEquals(5, qs.getBurstCapacity(Operations.OP2), DELTA_FOR_EQUALS);
+    qs.acquire(Operations.OP1);
+    assertTrue(shared.length() > 0);
+  }
+
+  @Test
+  public void testNegBurstFromConfig() {
+    Properties properties = new Properties();
+    properties.put("quotaServer.ops.OP1.burst", "-2");
+    setupConfig.initConfig(properties);
+    thrown.expect(InvalidConfigurationException.class);
+    QuotaServer.<Operations>createFromConfiguration("ops", Operations.class);
+  }
+
+  @Test
+  public void testInvalidSharedFileFromConfig() throws IOException {
+    Properties properties = new Properties();
+    properties.put("quotaServer.ops.sharedFile", temporaryFolder.newFolder().getAbsolutePath());
+    setupConfig.initConfig(properties);
+    thrown.expect(InvalidConfigurationException.class);
+    QuotaServer.<Operations>createFromConfiguration("ops", Operations.class);
+  }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link StatsExporter#fromConfiguration()}. */
+public class StatsExporterTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testNoExportersByDefault() {
+    setupConfig.initConfig(new Properties());
+    assertTrue(StatsExporter.fromConfiguration().isEmpty());
+  }
+
+  @Test
+  public void testConfiguredExporters() throws Exception {
+    Properties config = new Properties();
+    config.put(StatsExporter.CONFIG_STATS_EXPORTERS, "jmx, prometheus,file");
+    config.put(FileStatsExporter.CONFIG_PATH, temporaryFolder.newFile().toString());
+    setupConfig.initConfig(config);
+    List<StatsExporter> exporters = StatsExporter.fromConfiguration();
+    assertEquals(3, exporters.size());
+    assertTrue(exporters.get(0) instanceof JmxStatsExporter);
+    assertTrue(exporters.get(1) instanceof PrometheusStatsExporter);
+    assertTrue(exporters.get(2) instanceof FileStatsExporter);
+  }
+
+  @Test
+  public void testUnknownExporter() {
+    Properties config = new Properties();
+    config.put(StatsExporter.CONFIG_STATS_EXPORTERS, "jmx,statsd");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    thrown.expectMessage("statsd");
+    StatsExporter.fromConfiguration();
+  }
+}
@@ -18,15 +18,37 @@ package com.google.enterprise.cloudsearch.sdk;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats;
 import com.google.enterprise.cloudsearch.sdk.StatsManager.OperationStats.Event;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsSnapshot;
+import com.google.enterprise.cloudsearch.sdk.StatsManager.StatsVisitor;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
 
 /** Unit test methods for {@link StatsManager}. */
 public class StatsManagerTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
 
   /** Test method for {@link com.google.enterprise.cloudsearch.sdk.StatsManager#getInstance()}. */
   @Test
@@ -126,6 +148,154 @@ public class StatsManagerTest {
     }
   }
 
+  @Test
+  public void testSnapshotAndMerge() {
+    StatsManager service = StatsManager.getInstance();
+    OperationStats component = StatsManager.getComponent("snapshotComponent");
+    component.clear();
+    component.register("registered");
+    component.logResult("logged", "ok");
+    component.event("timed").start().success();
+    component.event("timed").start().failure();
+
+    StatsSnapshot snapshot = service.takeSnapshot();
+    StatsManager.ComponentSnapshot componentSnapshot = snapshot.getComponent("snapshotComponent");
+    assertEquals(1, componentSnapshot.getRegisteredCount("registered"));
+    assertEquals(1, componentSnapshot.getLogResultCounter("logged", "ok"));
+    assertEquals(1, componentSnapshot.getSuccessCount("timed"));
+    assertEquals(1, componentSnapshot.getFailureCount("timed"));
+    assertEquals(1, componentSnapshot.getLatency("timed").getCount());
+    assertNull(componentSnapshot.getLatency("missing"));
+
+    service.mergeWithSnapshot(snapshot);
+    assertEquals(2, component.getRegisteredCount("registered"));
+    assertEquals(2, component.getLogResultCounter("logged", "ok"));
+    assertEquals(2, component.getSuccessCount("timed"));
+    assertEquals(2, component.getFailureCount("timed"));
+    assertEquals(2, component.getLatencySnapshot("timed").getCount());
+
+    service.startFromSnapshot(snapshot);
+    assertEquals(1, component.getRegisteredCount("registered"));
+    assertEquals(1, component.getSuccessCount("timed"));
+    assertEquals(1, component.getLatencySnapshot("timed").getCount());
+  }
+
+  @Test
+  public void testMergeWithInvalidSnapshot() {
+    thrown.expect(IllegalArgumentException.class);
+    StatsManager.getInstance().mergeWithSnapshot("invalid");
+  }
+
+  @Test
+  public void testLatencyPercentilesPrinted() {
+    OperationStats component = StatsManager.getComponent("percentileComponent");
+    component.event("operation").start().success();
+    assertNotNull(component.getLatencySnapshot("operation"));
+    assertNull(component.getLatencySnapshot("missing"));
+    String printed = StatsManager.getInstance().printStats();
+    assertTrue(printed, printed.contains("p99.9 = "));
+  }
+
+  @Test
+  public void testLatencySignificantDigitsFromConfig() {
+    Properties config = new Properties();
+    config.put(StatsManager.CONFIG_LATENCY_SIGNIFICANT_DIGITS, "4");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    StatsManager.getInstance().initConfig();
+  }
+
+  @Test
+  public void testLatencySignificantDigitsReadOnce() {
+    Properties config = new Properties();
+    config.put(StatsManager.CONFIG_LATENCY_SIGNIFICANT_DIGITS, "7");
+    setupConfig.initConfig(config);
+    // not read when histograms are created, only by initConfig
+    OperationStats component = StatsManager.getComponent("uninitializedDigitsComponent");
+    component.event("operation").start().success();
+    assertEquals(1, component.getLatencySnapshot("operation").getCount());
+  }
+
+  @Test
+  public void testVisit() {
+    OperationStats component = StatsManager.getComponent("visitComponent");
+    component.register("registered");
+    component.event("operation").start().success();
+    component.event("operation").start().failure();
+    component.logResult("operation", "OK");
+    component.registerGauge("depth", () -> 7);
+    component.recordLatency("measured", 3, TimeUnit.MILLISECONDS);
+
+    StatsVisitor visitor = mock(StatsVisitor.class);
+    StatsManager.getInstance().visit(visitor);
+
+    verify(visitor).visitRegistered("visitComponent", "registered", 1);
+    verify(visitor).visitSuccess("visitComponent", "operation", 1);
+    verify(visitor).visitFailure("visitComponent", "operation", 1);
+    verify(visitor).visitResult("visitComponent", "operation", "OK", 1);
+    verify(visitor).visitGauge("visitComponent", "depth", 7);
+    verify(visitor).visitLatency(eq("visitComponent"), eq("operation"), any());
+    verify(visitor).visitLatency(eq("visitComponent"), eq("measured"), any());
+    assertEquals(3000, component.getLatencySnapshot("measured").getMax(), 30);
+  }
+
+  @Test
+  public void testUnregisterGaugeKeepsReplacement() {
+    OperationStats component = StatsManager.getComponent("unregisterComponent");
+    LongSupplier first = () -> 1;
+    LongSupplier second = () -> 2;
+    component.registerGauge("depth", first);
+    component.registerGauge("depth", second);
+    component.unregisterGauge("depth", first);
+
+    StatsVisitor visitor = mock(StatsVisitor.class);
+    StatsManager.getInstance().visit(visitor);
+    verify(visitor).visitGauge("unregisterComponent", "depth", 2);
+
+    component.unregisterGauge("depth", second);
+    visitor = mock(StatsVisitor.class);
+    StatsManager.getInstance().visit(visitor);
+    verify(visitor, never()).visitGauge(eq("unregisterComponent"), any(), anyLong());
+  }
+
+  @Test
+  public void testGaugeSurvivesClear() {
+    OperationStats component = StatsManager.getComponent("gaugeComponent");
+    component.registerGauge("depth", () -> 3);
+    component.clear();
+    Map<String, Long> gauges = new HashMap<>();
+    component.visit(
+        "gaugeComponent",
+        mock(
+            StatsVisitor.class,
+            invocation -> {
+              if (invocation.getMethod().getName().equals("visitGauge")) {
+                gauges.put(invocation.getArgument(1), invocation.getArgument(2));
+              }
+              return null;
+            }));
+    assertEquals(3L, (long) gauges.get("depth"));
+  }
+
+  @Test
+  public void testExporterNotifiedAboutNewComponent() throws Exception {
+    StatsExporter exporter = mock(StatsExporter.class);
+    StatsManager manager = StatsManager.getInstance();
+    manager.startExporter(exporter);
+    try {
+      OperationStats component = StatsManager.getComponent("exportedComponent");
+      StatsManager.getComponent("exportedComponent");
+      InOrder inOrder = inOrder(exporter);
+      inOrder.verify(exporter).start(manager);
+      inOrder.verify(exporter).componentAdded("exportedComponent", component);
+    } finally {
+      manager.stopExporter(exporter);
+    }
+    verify(exporter).stop();
+    StatsManager.getComponent("componentAfterStop");
+    verify(exporter, never()).componentAdded(eq("componentAfterStop"), any());
+  }
+
   @Test
   public void manual_test() {
     OperationStats stats = StatsManager.getComponent("component_1");
@@ -158,7 +328,6 @@ public class StatsManagerTest {
     stats2.register("twoTime");
 
     System.out.println(StatsManager.getInstance().printStats());
-    // TODO(imysak): update test when snapshot functional will be added
   }
 
   private static enum TestEnum {
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.sdk;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.enterprise.cloudsearch.sdk.TokenBucket.LocalTokenBucket;
+import com.google.enterprise.cloudsearch.sdk.TokenBucket.SharedQuotaFile;
+import com.google.enterprise.cloudsearch.sdk.TokenBucket.SharedTokenBucket;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link TokenBucket}. */
+public class TokenBucketTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final AtomicLong nowMicros = new AtomicLong(1_000_000);
+
+  @Test
+  public void testInvalidRate() {
+    thrown.expect(IllegalArgumentException.class);
+    new LocalTokenBucket(0, 1, nowMicros::get);
+  }
+
+  @Test
+  public void testInvalidBurst() {
+    thrown.expect(IllegalArgumentException.class);
+    new LocalTokenBucket(1, 0, nowMicros::get);
+  }
+
+  @Test
+  public void testLocalStableRate() {
+    TokenBucket bucket = new LocalTokenBucket(10, 10, nowMicros::get);
+    assertEquals(0, bucket.reserve());
+    assertEquals(100_000, bucket.reserve());
+    assertEquals(200_000, bucket.reserve());
+    nowMicros.addAndGet(300_000);
+    assertEquals(0, bucket.reserve());
+  }
+
+  @Test
+  public void testLocalBurstAfterIdle() {
+    TokenBucket bucket = new LocalTokenBucket(10, 3, nowMicros::get);
+    bucket.reserve();
+    // idle long enough to store more than burst capacity
+    nowMicros.addAndGet(10_000_000);
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(100_000, bucket.reserve());
+  }
+
+  @Test
+  public void testSharedBucketsShareBudget() throws IOException {
+    Path path = temporaryFolder.newFile().toPath();
+    TokenBucket first =
+        new SharedTokenBucket(10, 1, new SharedQuotaFile(path, 2), 1, nowMicros::get);
+    TokenBucket second =
+        new SharedTokenBucket(10, 1, new SharedQuotaFile(path, 2), 1, nowMicros::get);
+    TokenBucket otherSlot =
+        new SharedTokenBucket(10, 1, new SharedQuotaFile(path, 2), 0, nowMicros::get);
+    // new file starts with full burst
+    assertEquals(0, first.reserve());
+    assertEquals(0, second.reserve());
+    assertEquals(100_000, first.reserve());
+    assertEquals(200_000, second.reserve());
+    assertEquals(0, otherSlot.reserve());
+  }
+
+  @Test
+  public void testSharedBucketInvalidSlot() throws IOException {
+    SharedQuotaFile file = new SharedQuotaFile(temporaryFolder.newFile().toPath(), 1);
+    thrown.expect(IllegalArgumentException.class);
+    new SharedTokenBucket(10, 1, file, 1, nowMicros::get);
+  }
+}